@@ -213,5 +213,59 @@ public enum TaskCounter {
    *
    * Represented in milliseconds
    */
-  LAST_EVENT_RECEIVED
+  LAST_EVENT_RECEIVED,
+
+  /**
+   * Number of connections the async http fetchers of the shuffles of the task looked up in the
+   * connection pool of the container. Fetches over HttpURLConnection are not counted, as it does
+   * not tell whether it reused a kept alive connection.
+   */
+  SHUFFLE_CONNECTIONS,
+
+  /**
+   * Number of kept alive connections which were found in the connection pool of the container
+   * and reused, out of SHUFFLE_CONNECTIONS.
+   */
+  SHUFFLE_CONNECTIONS_REUSED,
+
+  /**
+   * Highest number of fetchers the adaptive fetcher parallelism of the shuffle allowed to run
+   * concurrently.
+   */
+  SHUFFLE_FETCHERS_PEAK,
+
+  /**
+   * Number of times the adaptive fetcher parallelism of the shuffle changed the number of
+   * fetchers allowed to run concurrently.
+   */
+  SHUFFLE_FETCHERS_ADJUSTMENTS,
+
+  /**
+   * Number of bytes which were streamed from the source hosts into the final merge, without
+   * being shuffled to memory or disk first.
+   */
+  SHUFFLE_BYTES_STREAMED,
+
+  /**
+   * Number of in-memory shuffle buffers which were taken from the buffer pool of the shuffle,
+   * instead of being allocated.
+   */
+  SHUFFLE_BUFFER_POOL_HITS,
+
+  /**
+   * Number of bytes of in-memory shuffle buffers which were taken from the buffer pool of the
+   * shuffle, i.e. allocations avoided.
+   */
+  SHUFFLE_BUFFER_POOL_BYTES_REUSED,
+
+  /**
+   * Time in milliseconds the writer of an unordered output spent waiting for spills to complete,
+   * either for a buffer to be freed once all the memory of the output was in use, or on close.
+   */
+  OUTPUT_SPILL_WAIT_TIME,
+
+  /**
+   * Number of times the writer of an unordered output waited for spills to complete.
+   */
+  OUTPUT_SPILL_WAITS
 }
\ No newline at end of file
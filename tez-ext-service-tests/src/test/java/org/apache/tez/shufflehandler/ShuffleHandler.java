@@ -402,10 +402,18 @@ public class ShuffleHandler {
         sendError(ctx, "Too many job/reduce parameters", BAD_REQUEST);
         return;
       }
+      // a single reduce, or a range of reduces "first-last"
       int reduceId;
+      int reduceCount;
       String jobId;
       try {
-        reduceId = Integer.parseInt(reduceQ.get(0));
+        String[] reduceRange = reduceQ.get(0).split("-");
+        reduceId = Integer.parseInt(reduceRange[0]);
+        reduceCount = (reduceRange.length == 1) ? 1
+            : Integer.parseInt(reduceRange[1]) - reduceId + 1;
+        if (reduceRange.length > 2 || reduceCount < 1) {
+          throw new NumberFormatException("Bad reduce range " + reduceQ.get(0));
+        }
         jobId = jobQ.get(0);
       } catch (NumberFormatException e) {
         sendError(ctx, "Bad reduce parameter", BAD_REQUEST);
@@ -441,7 +449,7 @@ public class ShuffleHandler {
       String outputBasePathStr = getBaseLocation(jobId, user);
 
       try {
-        populateHeaders(mapIds, outputBasePathStr, user, reduceId, request,
+        populateHeaders(mapIds, outputBasePathStr, user, reduceId, reduceCount, request,
           response, keepAliveParam, mapOutputInfoMap);
       } catch(IOException e) {
         ch.write(response);
@@ -454,23 +462,25 @@ public class ShuffleHandler {
       // TODO refactor the following into the pipeline
       ChannelFuture lastMap = null;
       for (String mapId : mapIds) {
-        try {
-          MapOutputInfo info = mapOutputInfoMap.get(mapId);
-          if (info == null) {
-            info = getMapOutputInfo(outputBasePathStr, mapId, reduceId, user);
-          }
-          lastMap =
-              sendMapOutput(ctx, ch, user, mapId,
-                reduceId, info);
-          if (null == lastMap) {
-            sendError(ctx, NOT_FOUND);
+        for (int reduce = reduceId; reduce < reduceId + reduceCount; reduce++) {
+          try {
+            MapOutputInfo info = (reduceCount == 1) ? mapOutputInfoMap.get(mapId) : null;
+            if (info == null) {
+              info = getMapOutputInfo(outputBasePathStr + mapId, mapId, reduce, user);
+            }
+            lastMap =
+                sendMapOutput(ctx, ch, user, mapId,
+                  reduce, info);
+            if (null == lastMap) {
+              sendError(ctx, NOT_FOUND);
+              return;
+            }
+          } catch (IOException e) {
+            LOG.error("Shuffle error :", e);
+            String errorMessage = getErrorMessage(e);
+            sendError(ctx,errorMessage , INTERNAL_SERVER_ERROR);
             return;
           }
-        } catch (IOException e) {
-          LOG.error("Shuffle error :", e);
-          String errorMessage = getErrorMessage(e);
-          sendError(ctx,errorMessage , INTERNAL_SERVER_ERROR);
-          return;
         }
       }
       lastMap.addListener(ChannelFutureListener.CLOSE);
@@ -518,29 +528,31 @@ public class ShuffleHandler {
     }
 
     protected void populateHeaders(List<String> mapIds, String outputBaseStr,
-        String user, int reduce, HttpRequest request, HttpResponse response,
-        boolean keepAliveParam, Map<String, MapOutputInfo> mapOutputInfoMap)
-        throws IOException {
+        String user, int firstReduce, int reduceCount, HttpRequest request,
+        HttpResponse response, boolean keepAliveParam,
+        Map<String, MapOutputInfo> mapOutputInfoMap) throws IOException {
 
       long contentLength = 0;
       for (String mapId : mapIds) {
         String base = outputBaseStr + mapId;
-        MapOutputInfo outputInfo = getMapOutputInfo(base, mapId, reduce, user);
-        if (mapOutputInfoMap.size() < mapOutputMetaInfoCacheSize) {
-          mapOutputInfoMap.put(mapId, outputInfo);
+        for (int reduce = firstReduce; reduce < firstReduce + reduceCount; reduce++) {
+          MapOutputInfo outputInfo = getMapOutputInfo(base, mapId, reduce, user);
+          if (reduceCount == 1 && mapOutputInfoMap.size() < mapOutputMetaInfoCacheSize) {
+            mapOutputInfoMap.put(mapId, outputInfo);
+          }
+          // Index file
+          Path indexFileName =
+              lDirAlloc.getLocalPathToRead(base + "/file.out.index", conf);
+          TezIndexRecord info =
+              indexCache.getIndexInformation(mapId, reduce, indexFileName, user);
+          ShuffleHeader header =
+              new ShuffleHeader(mapId, info.getPartLength(), info.getRawLength(), reduce);
+          DataOutputBuffer dob = new DataOutputBuffer();
+          header.write(dob);
+
+          contentLength += info.getPartLength();
+          contentLength += dob.getLength();
         }
-        // Index file
-        Path indexFileName =
-            lDirAlloc.getLocalPathToRead(base + "/file.out.index", conf);
-        TezIndexRecord info =
-            indexCache.getIndexInformation(mapId, reduce, indexFileName, user);
-        ShuffleHeader header =
-            new ShuffleHeader(mapId, info.getPartLength(), info.getRawLength(), reduce);
-        DataOutputBuffer dob = new DataOutputBuffer();
-        header.write(dob);
-
-        contentLength += info.getPartLength();
-        contentLength += dob.getLength();
       }
 
       // Now set the response headers.
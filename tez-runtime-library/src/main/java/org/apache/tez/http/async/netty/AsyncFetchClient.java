@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.http.async.netty;
+
+import com.google.common.base.Preconditions;
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.FluentCaseInsensitiveStringsMap;
+import com.ning.http.client.ListenableFuture;
+import com.ning.http.client.Request;
+import com.ning.http.client.RequestBuilder;
+import com.ning.http.client.providers.netty.NettyResponseFuture;
+import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.http.HttpConnectionParams;
+import org.apache.tez.http.SSLFactory;
+import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
+import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleHeader;
+import org.jboss.netty.channel.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+
+/**
+ * Issues shuffle requests whose responses are consumed by an {@link AsyncHandler} on the IO
+ * threads of the client, instead of by a thread blocked on a stream per request (see
+ * {@link AsyncHttpConnection}). A few IO threads serve the connections to all hosts, so the
+ * number of requests in flight is not bound by a thread pool.
+ */
+public class AsyncFetchClient {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncFetchClient.class);
+
+  private static volatile AsyncHttpClient httpAsyncClient;
+  // NettyResponseFuture.channel(), which is not public
+  private static final Method CHANNEL_METHOD;
+
+  static {
+    Method channelMethod = null;
+    try {
+      channelMethod = NettyResponseFuture.class.getDeclaredMethod("channel");
+      channelMethod.setAccessible(true);
+    } catch (Exception e) {
+      LOG.warn("Unable to access the connections of responses, responses cannot be paused", e);
+    }
+    CHANNEL_METHOD = channelMethod;
+  }
+
+  private static AsyncHttpClient getClient(HttpConnectionParams httpConnParams)
+      throws IOException {
+    if (httpAsyncClient == null) {
+      synchronized (AsyncFetchClient.class) {
+        if (httpAsyncClient == null) {
+          LOG.info("Initializing AsyncClient (AsyncFetchClient)");
+          AsyncHttpClientConfig.Builder builder = new AsyncHttpClientConfig.Builder();
+          if (httpConnParams.isSslShuffle()) {
+            //Configure SSL
+            SSLFactory sslFactory = httpConnParams.getSslFactory();
+            Preconditions.checkArgument(sslFactory != null, "SSLFactory can not be null");
+            sslFactory.configure(builder);
+          }
+          if (httpConnParams.isKeepAlive()) {
+            builder.setConnectionsPool(new TezConnectionsPool(httpConnParams));
+          }
+
+          // A response can take arbitrarily long for large inputs, so only time out when the
+          // connection stays idle for the read timeout.
+          builder
+              .setAllowPoolingConnection(httpConnParams.isKeepAlive())
+              .setAllowSslConnectionPool(httpConnParams.isKeepAlive())
+              .setCompressionEnabled(false)
+              .setConnectionTimeoutInMs(httpConnParams.getConnectionTimeout())
+              .setIdleConnectionTimeoutInMs(httpConnParams.getReadTimeout())
+              .setRequestTimeoutInMs(-1)
+              .setIOThreadMultiplier(1)
+              .setUseRawUrl(true);
+          httpAsyncClient = new AsyncHttpClient(builder.build());
+        }
+      }
+    }
+    return httpAsyncClient;
+  }
+
+  /**
+   * Compute the hash of the url, which is sent with the request and verified against the reply
+   * hash in {@link #validate(FluentCaseInsensitiveStringsMap, String, JobTokenSecretManager)}.
+   */
+  public static String computeEncHash(URL url, JobTokenSecretManager jobTokenSecretMgr)
+      throws IOException {
+    return SecureShuffleUtils.hashFromString(SecureShuffleUtils.buildMsgFrom(url),
+        jobTokenSecretMgr);
+  }
+
+  /**
+   * Send a shuffle request for the url. The response is handed to the handler as it arrives.
+   */
+  public static <T> ListenableFuture<T> fetch(URL url, String encHash,
+      HttpConnectionParams httpConnParams, AsyncHandler<T> handler) throws IOException {
+    RequestBuilder rb = new RequestBuilder();
+    rb.setHeader(SecureShuffleUtils.HTTP_HEADER_URL_HASH, encHash);
+    rb.setHeader(ShuffleHeader.HTTP_HEADER_NAME, ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+    rb.setHeader(ShuffleHeader.HTTP_HEADER_VERSION, ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+    Request request = rb.setUrl(url.toString()).build();
+    LOG.debug("Request url={}, encHash={}", url, encHash);
+    return getClient(httpConnParams).executeRequest(request, handler);
+  }
+
+  /**
+   * Stop, or resume, reading the response of a request from its connection. This pushes back on
+   * the sender of that response only, without blocking the IO thread shared with the other
+   * connections. Body parts which were read already may still be delivered after the connection
+   * was paused.
+   *
+   * @return false if the connection of the request is not known (yet)
+   */
+  public static boolean setReadable(ListenableFuture<?> future, boolean readable) {
+    if (CHANNEL_METHOD == null || !(future instanceof NettyResponseFuture)) {
+      return false;
+    }
+    Channel channel;
+    try {
+      channel = (Channel) CHANNEL_METHOD.invoke(future);
+    } catch (Exception e) {
+      LOG.debug("Unable to get the connection of {}", future, e);
+      return false;
+    }
+    if (channel == null) {
+      return false;
+    }
+    channel.setReadable(readable);
+    return true;
+  }
+
+  /**
+   * Verify the shuffle version and the reply hash of the response headers.
+   */
+  public static void validate(FluentCaseInsensitiveStringsMap headers, String encHash,
+      JobTokenSecretManager jobTokenSecretMgr) throws IOException {
+    if (!ShuffleHeader.DEFAULT_HTTP_HEADER_NAME
+        .equals(headers.getFirstValue(ShuffleHeader.HTTP_HEADER_NAME))
+        || !ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION
+        .equals(headers.getFirstValue(ShuffleHeader.HTTP_HEADER_VERSION))) {
+      throw new IOException("Incompatible shuffle response version");
+    }
+
+    // get the replyHash which is HMac of the encHash we sent to the server
+    String replyHash = headers.getFirstValue(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH);
+    if (replyHash == null) {
+      throw new IOException("security validation of TT Map output failed");
+    }
+    // verify that replyHash is HMac of encHash
+    SecureShuffleUtils.verifyReply(replyHash, encHash, jobTokenSecretMgr);
+  }
+}
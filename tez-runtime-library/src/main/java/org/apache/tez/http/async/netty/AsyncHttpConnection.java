@@ -83,6 +83,9 @@ public class AsyncHttpConnection extends BaseHttpConnection {
             Preconditions.checkArgument(sslFactory != null, "SSLFactory can not be null");
             sslFactory.configure(builder);
           }
+          if (httpConnParams.isKeepAlive()) {
+            builder.setConnectionsPool(new TezConnectionsPool(httpConnParams));
+          }
 
           /**
            * TODO : following settings need fine tuning.
@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.http.async.netty;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ning.http.client.ConnectionsPool;
+import com.ning.http.client.providers.netty.NettyConnectionsPool;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.http.HttpConnectionParams;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+
+/**
+ * Pool of the kept alive shuffle connections of an async http client, keyed by the host:port
+ * they are connected to. The clients are static, so the connections are reused by all fetchers
+ * of all tasks which run in the container. This is the {@link NettyConnectionsPool} the clients
+ * use by default with connection pooling allowed, which is wrapped to count the connections
+ * looked up for each input, see {@link #setInputCounters(TezCounter, TezCounter)}.
+ */
+public class TezConnectionsPool implements ConnectionsPool<String, Channel> {
+
+  // idle connections are usually closed earlier, by the keep alive timeout of the ShuffleHandler
+  private static final long MAX_IDLE_TIME_MS = 60 * 1000;
+
+  // the connections and reused connections counters of the input the calling thread fetches for
+  private static final ThreadLocal<TezCounter[]> inputCounters = new ThreadLocal<TezCounter[]>();
+
+  private final Timer timer;
+  private final NettyConnectionsPool pool;
+
+  public TezConnectionsPool(HttpConnectionParams httpConnParams) {
+    this.timer = new HashedWheelTimer(new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("ShuffleConnectionsPool #%d").build());
+    this.pool = new NettyConnectionsPool(-1, httpConnParams.getKeepAliveMaxConnections(),
+        MAX_IDLE_TIME_MS, -1, httpConnParams.isSslShuffle(), timer);
+  }
+
+  @Override
+  public boolean offer(String uri, Channel connection) {
+    if (!connection.isReadable()) {
+      // paused by AsyncFetchClient#setReadable while the end of the response was already read
+      connection.setReadable(true);
+    }
+    return pool.offer(uri, connection);
+  }
+
+  @Override
+  public Channel poll(String uri) {
+    Channel channel = pool.poll(uri);
+    TezCounter[] counters = inputCounters.get();
+    if (counters != null) {
+      counters[0].increment(1);
+      if (channel != null) {
+        counters[1].increment(1);
+      }
+    }
+    return channel;
+  }
+
+  @Override
+  public boolean removeAll(Channel connection) {
+    return pool.removeAll(connection);
+  }
+
+  @Override
+  public boolean canCacheConnection() {
+    return pool.canCacheConnection();
+  }
+
+  @Override
+  public void destroy() {
+    pool.destroy();
+    timer.stop();
+  }
+
+  /**
+   * Count the connections looked up by the requests the calling thread executes in the counters
+   * of the input they fetch for, until {@link #clearInputCounters()}. The clients look the
+   * connection of a request up in the thread which executes it.
+   *
+   * @param connections incremented for every connection looked up
+   * @param connectionsReused incremented for every kept alive connection which is reused
+   */
+  public static void setInputCounters(TezCounter connections, TezCounter connectionsReused) {
+    if (connections == null || connectionsReused == null) {
+      inputCounters.remove();
+    } else {
+      inputCounters.set(new TezCounter[] { connections, connectionsReused });
+    }
+  }
+
+  public static void clearInputCounters() {
+    inputCounters.remove();
+  }
+}
@@ -43,4 +43,51 @@ public abstract class KeyValueWriter extends Writer {
    * @throws {@link IOInterruptedException} if IO was performing a blocking operation and was interrupted
    */
   public abstract void write(Object key, Object value) throws IOException;
+
+  /**
+   * Writes a batch of key/value pairs, keys[offset] with values[offset] up to
+   * keys[offset + length - 1] with values[offset + length - 1]. Writers may write a batch with
+   * less overhead per pair than pairs written one at a time.
+   *
+   * @param keys
+   *          the keys to write
+   * @param values
+   *          the values to write
+   * @param offset
+   *          index of the first pair to write
+   * @param length
+   *          number of pairs to write
+   * @throws IOException
+   *           if an error occurs
+   * @throws {@link IOInterruptedException} if IO was interrupted
+   */
+  public void write(Object[] keys, Object[] values, int offset, int length) throws IOException {
+    for (int i = offset; i < offset + length; i++) {
+      write(keys[i], values[i]);
+    }
+  }
+
+  /**
+   * Writes a batch of key/value pairs along with their partitions, as computed by the
+   * partitioner of the output, so that partitioned writers do not compute them again. Writers
+   * which are not partitioned ignore the partitions.
+   *
+   * @param keys
+   *          the keys to write
+   * @param values
+   *          the values to write
+   * @param partitions
+   *          the partition of each pair
+   * @param offset
+   *          index of the first pair to write
+   * @param length
+   *          number of pairs to write
+   * @throws IOException
+   *           if an error occurs
+   * @throws {@link IOInterruptedException} if IO was interrupted
+   */
+  public void write(Object[] keys, Object[] values, int[] partitions, int offset, int length)
+      throws IOException {
+    write(keys, values, offset, length);
+  }
 }
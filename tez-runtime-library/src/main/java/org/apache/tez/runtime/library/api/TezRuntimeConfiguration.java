@@ -90,6 +90,27 @@ public class TezRuntimeConfiguration {
 
   public static final int TEZ_RUNTIME_IFILE_BUFFER_SIZE_DEFAULT = -1;
 
+  /**
+   * Number of buffers which compressed IFiles are decompressed into ahead of the merge, on a
+   * background thread, so that decompression overlaps with the merge itself. Each buffer has
+   * the size of the IFile buffer (128 KB unless configured). Only used for IFiles read from
+   * disk by merges. 0 decompresses on the merge thread.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_IFILE_ASYNC_DECOMPRESS_BUFFERS = TEZ_RUNTIME_PREFIX +
+      "ifile.async-decompress.buffers";
+  public static final int TEZ_RUNTIME_IFILE_ASYNC_DECOMPRESS_BUFFERS_DEFAULT = 0;
+
+  /**
+   * Number of threads which decompress IFiles ahead of a merge, when
+   * {@link #TEZ_RUNTIME_IFILE_ASYNC_DECOMPRESS_BUFFERS} is set. The threads are shared by the
+   * IFiles of the merge and stopped when it is closed.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_IFILE_ASYNC_DECOMPRESS_THREADS = TEZ_RUNTIME_PREFIX +
+      "ifile.async-decompress.threads";
+  public static final int TEZ_RUNTIME_IFILE_ASYNC_DECOMPRESS_THREADS_DEFAULT = 2;
+
   /**
    * This is copy of io.file.buffer.size from Hadoop, which is used in several places such
    * as compression codecs, buffer sizes in IFile, while fetching etc.
@@ -154,6 +175,37 @@ public class TezRuntimeConfiguration {
   public static final boolean
       TEZ_RUNTIME_PIPELINED_SORTER_LAZY_ALLOCATE_MEMORY_DEFAULT = false;
 
+  /**
+   * Setting this to true would make PipelinedSorter allocate its sort buffers
+   * (@link{#TEZ_RUNTIME_IO_SORT_MB}) in direct memory instead of on the Java heap.
+   * The buffers are released as soon as the sorter is done with them.
+   *
+   * The amount of memory is still requested from, and scaled by, the task memory
+   * distributor. -XX:MaxDirectMemorySize has to be large enough to hold the sort
+   * buffers of all outputs of the task.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_MEMORY = TEZ_RUNTIME_PREFIX +
+      "pipelined.sorter.use-direct-memory";
+  public static final boolean
+      TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_MEMORY_DEFAULT = false;
+
+  /**
+   * Setting this to true would make PipelinedSorter store an 8 byte normalized prefix of
+   * each key next to its metadata, and sort on partition and prefix, only comparing the
+   * actual keys when the prefixes are equal. This costs 8 additional bytes of sort buffer per
+   * record.
+   *
+   * Only takes effect for comparators ordering keys by their raw bytes
+   * (TezBytesComparator, and the default comparators of Text and BytesWritable).
+   * It is ignored for any other comparator.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_PIPELINED_SORTER_PREFIX_SORT = TEZ_RUNTIME_PREFIX +
+      "pipelined.sorter.prefix-sort";
+  public static final boolean
+      TEZ_RUNTIME_PIPELINED_SORTER_PREFIX_SORT_DEFAULT = false;
+
   /**
    * String value.
    * Which sorter implementation to use.
@@ -172,6 +224,45 @@ public class TezRuntimeConfiguration {
       "pipelined.sorter.sort.threads";
   public static final int TEZ_RUNTIME_PIPELINED_SORTER_SORT_THREADS_DEFAULT = 2;
 
+  /**
+   * Setting this to true would make PipelinedSorter merge the partitions of its spills
+   * concurrently on the sort threads (@link{#TEZ_RUNTIME_PIPELINED_SORTER_SORT_THREADS}) during
+   * the final merge. Each partition is written in place to a region of the final output sized
+   * after its spill segments; the unused tail of a region is left as a hole in the file, so the
+   * final output is sparse. It pays off when the final merge is CPU bound (many partitions and
+   * spills, compressed output) and the local disks have spare bandwidth; with a single busy disk
+   * the concurrent writes mostly compete for it.
+   *
+   * Not used when the combiner has to run during the final merge.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_PIPELINED_SORTER_PARALLEL_FINAL_MERGE =
+      TEZ_RUNTIME_PREFIX + "pipelined.sorter.parallel-final-merge";
+  public static final boolean
+      TEZ_RUNTIME_PIPELINED_SORTER_PARALLEL_FINAL_MERGE_DEFAULT = false;
+
+  /**
+   * Number of threads the LEGACY sorter (DefaultSorter) uses to sort a spill. With more than one
+   * thread, large spills are split into regions which are sorted concurrently and merged while
+   * being written out. The spill files are the same as with a single thread.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_LEGACY_SORTER_SORT_THREADS = TEZ_RUNTIME_PREFIX +
+      "legacy.sorter.sort.threads";
+  public static final int TEZ_RUNTIME_LEGACY_SORTER_SORT_THREADS_DEFAULT = 1;
+
+  /**
+   * Setting this to true makes TezMerger pick the next record of a merge from a loser tree
+   * (tournament tree) instead of a binary heap. Replacing the winner of a loser tree takes a
+   * single comparison per level of the tree, which roughly halves the key comparisons of merges
+   * with a large number of segments. Applies to the spill merges of the sorters and to the merges
+   * done by the ordered shuffle.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_MERGE_USE_LOSER_TREE = TEZ_RUNTIME_PREFIX +
+      "merge.use-loser-tree";
+  public static final boolean TEZ_RUNTIME_MERGE_USE_LOSER_TREE_DEFAULT = false;
+
   /**
    * Report partition statistics (e.g better scheduling in ShuffleVertexManager). TEZ-2496
    * This can be enabled/disabled at vertex level.
@@ -199,6 +290,28 @@ public class TezRuntimeConfiguration {
       TEZ_RUNTIME_PREFIX +
           "unordered.output.max-per-buffer.size-bytes";
 
+  /**
+   * Send the data of unordered outputs which are not pipelined along with their event, instead
+   * of writing it out to be fetched, when the data fits within
+   * tez.runtime.transfer.data-via-events.max-size. The inputs then take the data from the event,
+   * without fetching it. Single partition outputs buffer their data in memory until it no longer
+   * fits.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_TRANSFER_DATA_VIA_EVENTS_ENABLED = TEZ_RUNTIME_PREFIX +
+      "transfer.data-via-events.enabled";
+  public static final boolean TEZ_RUNTIME_TRANSFER_DATA_VIA_EVENTS_ENABLED_DEFAULT = false;
+
+  /**
+   * Maximum size in bytes of the (compressed) data of all the partitions of an output sent along
+   * with its event. The event is delivered to every consumer of the output, so this should be
+   * kept small.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_TRANSFER_DATA_VIA_EVENTS_MAX_SIZE = TEZ_RUNTIME_PREFIX +
+      "transfer.data-via-events.max-size";
+  public static final int TEZ_RUNTIME_TRANSFER_DATA_VIA_EVENTS_MAX_SIZE_DEFAULT = 512;
+
   /**
    * Specifies a partitioner class, which is used in Tez Runtime components
    * like OnFileSortedOutput
@@ -213,11 +326,87 @@ public class TezRuntimeConfiguration {
   @ConfigurationProperty
   public static final String TEZ_RUNTIME_COMBINER_CLASS = TEZ_RUNTIME_PREFIX + "combiner.class";
 
+  /**
+   * Expert level setting. Apply the combiner to the records written to ordered and unordered
+   * partitioned outputs in an in-memory hash table, before the records are sorted or buffered,
+   * so that keys with many duplicates are combined without being sorted first. Only applies
+   * when {@link #TEZ_RUNTIME_COMBINER_CLASS} is set.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_HASH_AGGREGATION_ENABLED = TEZ_RUNTIME_PREFIX +
+      "hash-aggregation.enabled";
+  public static final boolean TEZ_RUNTIME_HASH_AGGREGATION_ENABLED_DEFAULT = false;
+
+  /**
+   * Fraction of the memory assigned to the output used by the hash aggregation table, which is
+   * combined and passed on whenever it is full. This memory is taken out of the sort buffer, or
+   * the buffers of unordered outputs.
+   */
+  @ConfigurationProperty(type = "float")
+  public static final String TEZ_RUNTIME_HASH_AGGREGATION_MEMORY_FRACTION = TEZ_RUNTIME_PREFIX +
+      "hash-aggregation.memory.fraction";
+  public static final float TEZ_RUNTIME_HASH_AGGREGATION_MEMORY_FRACTION_DEFAULT = 0.1f;
+
+  /**
+   * Hash aggregation is turned off for the rest of the output if the first time the table is
+   * combined, the number of records is reduced by less than this fraction.
+   */
+  @ConfigurationProperty(type = "float")
+  public static final String TEZ_RUNTIME_HASH_AGGREGATION_MIN_REDUCTION = TEZ_RUNTIME_PREFIX +
+      "hash-aggregation.min.reduction";
+  public static final float TEZ_RUNTIME_HASH_AGGREGATION_MIN_REDUCTION_DEFAULT = 0.5f;
+
   @ConfigurationProperty(type = "integer")
   public static final String TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES = TEZ_RUNTIME_PREFIX +
       "shuffle.parallel.copies";
   public static final int TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES_DEFAULT = 20;
 
+  /**
+   * Adapt the number of fetchers of an ordered input, up to
+   * {@link #TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES}, to the throughput observed and the memory
+   * available to the shuffle.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_PARALLELISM = TEZ_RUNTIME_PREFIX +
+      "shuffle.fetch.adaptive.parallelism";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_PARALLELISM_DEFAULT = false;
+
+  /**
+   * Order the hosts waiting for a fetcher by the number of inputs pending on them and the
+   * throughput of earlier fetches from them, instead of picking them at random (ordered inputs)
+   * or in arrival order (unordered inputs). Hosts failing to serve fetches come last.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_HOST_PRIORITY = TEZ_RUNTIME_PREFIX +
+      "shuffle.fetch.host.priority";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_FETCH_HOST_PRIORITY_DEFAULT = false;
+
+  /**
+   * Once no more than this many inputs of an ordered input remain to be fetched, fetch another
+   * known attempt of an input ahead of other hosts while its fetch is stuck on a slow host.
+   * 0 disables this.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATIVE_TAIL_INPUTS =
+      TEZ_RUNTIME_PREFIX + "shuffle.fetch.speculative.tail.inputs";
+  public static final int TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATIVE_TAIL_INPUTS_DEFAULT = 0;
+
+  /**
+   * Once no more than this many inputs of an ordered input remain to be fetched, all of them are
+   * being fetched and no merge is in progress, an input which does not fit in the memory left to
+   * the shuffle is streamed from its host straight into the final merge, instead of being fetched
+   * to memory or disk first. Every streamed input keeps its connection open until the merge is
+   * done with it, and a failure while reading it fails the task attempt, since records of the
+   * input may already have been passed on. The connection is read only as fast as the merge
+   * consumes records, so a shuffle server which closes connections idle or open for longer than
+   * its own timeout, as the ShuffleHandler does, can fail the task attempt as well. Leave this
+   * at 0, which disables streaming, unless the processor consumes its input at a steady rate.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_STREAMING_MERGE_INPUTS =
+      TEZ_RUNTIME_PREFIX + "shuffle.fetch.streaming.merge.inputs";
+  public static final int TEZ_RUNTIME_SHUFFLE_FETCH_STREAMING_MERGE_INPUTS_DEFAULT = 0;
+
   @ConfigurationProperty(type = "integer")
   public static final String TEZ_RUNTIME_SHUFFLE_FETCH_FAILURES_LIMIT = TEZ_RUNTIME_PREFIX +
       "shuffle.fetch.failures.limit";
@@ -330,6 +519,18 @@ public class TezRuntimeConfiguration {
   public final static int TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE_DEFAULT
       = 20;
 
+  /**
+   * Maximum number of consecutive partitions of a host fetched with a single request, if the
+   * pending inputs of these partitions are of the same source attempts. This is the case for
+   * unordered inputs which consume a range of partitions, e.g. after auto reduce parallelism.
+   * Requires a ShuffleHandler which serves partition ranges; the default of 1 fetches one
+   * partition per request.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITIONS_AT_ONCE =
+      TEZ_RUNTIME_PREFIX + "shuffle.fetch.max.partitions.at.once";
+  public static final int TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITIONS_AT_ONCE_DEFAULT = 1;
+
   @ConfigurationProperty(type = "boolean")
   public static final String TEZ_RUNTIME_SHUFFLE_NOTIFY_READERROR = TEZ_RUNTIME_PREFIX +
       "shuffle.notify.readerror";
@@ -368,6 +569,36 @@ public class TezRuntimeConfiguration {
       "shuffle.use.async.http";
   public static final boolean TEZ_RUNTIME_SHUFFLE_USE_ASYNC_HTTP_DEFAULT = false;
 
+  /**
+   * Fetch unordered inputs over non-blocking connections, which are served by a few IO threads
+   * instead of a thread per fetcher. Local disk and shared fetches still run on fetcher threads.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_NON_BLOCKING = TEZ_RUNTIME_PREFIX +
+      "shuffle.fetch.non-blocking";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_FETCH_NON_BLOCKING_DEFAULT = false;
+
+  /**
+   * Maximum number of fetches which run at once per input, when fetching over non-blocking
+   * connections. They do not take a thread each, so this is usually larger than
+   * {@link #TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES}, which still bounds the fetcher threads. The few
+   * fetches which are not done non-blocking wait for those threads.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_NON_BLOCKING_PARALLEL_FETCHES =
+      TEZ_RUNTIME_PREFIX + "shuffle.fetch.non-blocking.parallel-fetches";
+  public static final int TEZ_RUNTIME_SHUFFLE_FETCH_NON_BLOCKING_PARALLEL_FETCHES_DEFAULT = 50;
+
+  /**
+   * Run the fetchers of all inputs of the container on threads of a shared service, and share
+   * the penalties of hosts which failed to serve a fetch between them. Useful with container
+   * reuse, and with many concurrent inputs.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_CONTAINER_SERVICE = TEZ_RUNTIME_PREFIX +
+      "shuffle.fetch.container-service";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_FETCH_CONTAINER_SERVICE_DEFAULT = false;
+
   @ConfigurationProperty(type = "boolean")
   public static final String TEZ_RUNTIME_SHUFFLE_ENABLE_SSL = TEZ_RUNTIME_PREFIX +
       "shuffle.ssl.enable";
@@ -379,6 +610,29 @@ public class TezRuntimeConfiguration {
   public static final float TEZ_RUNTIME_SHUFFLE_FETCH_BUFFER_PERCENT_DEFAULT =
       0.90f;
 
+  /**
+   * Recycle the buffers of the inputs shuffled to memory through a pool, instead of allocating a
+   * new buffer for every input. Buffers of at least 64 KB are pooled, in size classes a quarter of
+   * a power of two apart, and the pool never holds more than the shuffle memory not in use.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED = TEZ_RUNTIME_PREFIX +
+      "shuffle.buffer.pool.enabled";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED_DEFAULT = false;
+
+  /**
+   * Direct (off-heap) memory, in bytes, in which each shuffle input keeps the data it shuffles to
+   * memory. When set, it replaces the fraction of the heap given by
+   * {@link #TEZ_RUNTIME_SHUFFLE_FETCH_BUFFER_PERCENT}, so that inputs can shuffle in memory
+   * without a larger heap. The direct memory of the task (-XX:MaxDirectMemorySize) has to be large
+   * enough for the budgets of all its inputs. 0 keeps the data on the heap. The buffer pool and
+   * the memory to memory merge only apply to heap buffers.
+   */
+  @ConfigurationProperty(type = "long")
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_OFFHEAP_BUFFER_BYTES = TEZ_RUNTIME_PREFIX +
+      "shuffle.fetch.offheap.buffer.bytes";
+  public static final long TEZ_RUNTIME_SHUFFLE_FETCH_OFFHEAP_BUFFER_BYTES_DEFAULT = 0;
+
   @ConfigurationProperty(type = "float")
   public static final String TEZ_RUNTIME_SHUFFLE_MEMORY_LIMIT_PERCENT = TEZ_RUNTIME_PREFIX +
       "shuffle.memory.limit.percent";
@@ -431,6 +685,18 @@ public class TezRuntimeConfiguration {
   @ConfigurationProperty
   public static final String TEZ_RUNTIME_COMPRESS_CODEC = TEZ_RUNTIME_PREFIX + "compress.codec";
 
+  /**
+   * When set to a positive number of bytes, compressed IFiles are written in blocks of this
+   * (uncompressed) size, each compressed on its own and with its own checksum, instead of as a
+   * single stream of the codec. Such blocks can be verified and decompressed independently of
+   * each other. Readers detect the format from the IFile header, so this only needs to be set
+   * for the writers. 0 writes a single compressed stream.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_COMPRESS_BLOCK_SIZE = TEZ_RUNTIME_PREFIX +
+      "compress.block-size";
+  public static final int TEZ_RUNTIME_COMPRESS_BLOCK_SIZE_DEFAULT = 0;
+
   // TODO Move this key to MapReduce
   @ConfigurationProperty
   public static final String TEZ_RUNTIME_KEY_SECONDARY_COMPARATOR_CLASS =
@@ -449,6 +715,16 @@ public class TezRuntimeConfiguration {
   public static final String TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH = TEZ_RUNTIME_PREFIX + "optimize.local.fetch";
   public static final boolean TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH_DEFAULT = true;
 
+  /**
+   * Expert level setting. Read the inputs fetched from the local host through a memory mapping of
+   * the spill file, instead of through the local file system. Only used if
+   * {@link #TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH} is enabled.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH_MMAP =
+      TEZ_RUNTIME_PREFIX + "optimize.local.fetch.mmap";
+  public static final boolean TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH_MMAP_DEFAULT = false;
+
   /**
    * Expert level setting. Enable pipelined shuffle in ordered outputs and in unordered
    * partitioned outputs. In ordered cases, it works with PipelinedSorter.
@@ -462,7 +738,9 @@ public class TezRuntimeConfiguration {
   public static final boolean TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED_DEFAULT = false;
 
   /**
-   * Expert level setting. Enable final merge in ordered (defaultsorter/pipelinedsorter) outputs.
+   * Expert level setting. Enable final merge in ordered (defaultsorter/pipelinedsorter) outputs,
+   * and in unordered partitioned outputs. When disabled, the spills of an unordered partitioned
+   * output are not merged, but published in place on close.
    * Speculative execution needs to be turned off when disabling this parameter. //TODO: TEZ-2132
    */
   @ConfigurationProperty(type = "boolean")
@@ -516,6 +794,8 @@ public class TezRuntimeConfiguration {
   static {
     tezRuntimeKeys.add(TEZ_RUNTIME_IFILE_READAHEAD);
     tezRuntimeKeys.add(TEZ_RUNTIME_IFILE_READAHEAD_BYTES);
+    tezRuntimeKeys.add(TEZ_RUNTIME_IFILE_ASYNC_DECOMPRESS_BUFFERS);
+    tezRuntimeKeys.add(TEZ_RUNTIME_IFILE_ASYNC_DECOMPRESS_THREADS);
     tezRuntimeKeys.add(TEZ_RUNTIME_IO_FILE_BUFFER_SIZE);
     tezRuntimeKeys.add(TEZ_RUNTIME_IO_SORT_FACTOR);
     tezRuntimeKeys.add(TEZ_RUNTIME_SORT_SPILL_PERCENT);
@@ -523,17 +803,35 @@ public class TezRuntimeConfiguration {
     tezRuntimeKeys.add(TEZ_RUNTIME_INDEX_CACHE_MEMORY_LIMIT_BYTES);
     tezRuntimeKeys.add(TEZ_RUNTIME_COMBINE_MIN_SPILLS);
     tezRuntimeKeys.add(TEZ_RUNTIME_PIPELINED_SORTER_SORT_THREADS);
+    tezRuntimeKeys.add(TEZ_RUNTIME_PIPELINED_SORTER_PARALLEL_FINAL_MERGE);
+    tezRuntimeKeys.add(TEZ_RUNTIME_LEGACY_SORTER_SORT_THREADS);
+    tezRuntimeKeys.add(TEZ_RUNTIME_MERGE_USE_LOSER_TREE);
     tezRuntimeKeys.add(
         TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB);
     tezRuntimeKeys.add(TEZ_RUNTIME_PIPELINED_SORTER_LAZY_ALLOCATE_MEMORY);
+    tezRuntimeKeys.add(TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_MEMORY);
+    tezRuntimeKeys.add(TEZ_RUNTIME_PIPELINED_SORTER_PREFIX_SORT);
     tezRuntimeKeys.add(TEZ_RUNTIME_UNORDERED_OUTPUT_BUFFER_SIZE_MB);
     tezRuntimeKeys.add(TEZ_RUNTIME_UNORDERED_OUTPUT_MAX_PER_BUFFER_SIZE_BYTES);
+    tezRuntimeKeys.add(TEZ_RUNTIME_TRANSFER_DATA_VIA_EVENTS_ENABLED);
+    tezRuntimeKeys.add(TEZ_RUNTIME_TRANSFER_DATA_VIA_EVENTS_MAX_SIZE);
     tezRuntimeKeys.add(TEZ_RUNTIME_PARTITIONER_CLASS);
     tezRuntimeKeys.add(TEZ_RUNTIME_COMBINER_CLASS);
+    tezRuntimeKeys.add(TEZ_RUNTIME_HASH_AGGREGATION_ENABLED);
+    tezRuntimeKeys.add(TEZ_RUNTIME_HASH_AGGREGATION_MEMORY_FRACTION);
+    tezRuntimeKeys.add(TEZ_RUNTIME_HASH_AGGREGATION_MIN_REDUCTION);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_USE_ASYNC_HTTP);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_NON_BLOCKING);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_NON_BLOCKING_PARALLEL_FETCHES);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_CONTAINER_SERVICE);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_PARALLELISM);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_HOST_PRIORITY);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATIVE_TAIL_INPUTS);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_STREAMING_MERGE_INPUTS);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_FAILURES_LIMIT);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITIONS_AT_ONCE);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_NOTIFY_READERROR);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_CONNECT_TIMEOUT);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_KEEP_ALIVE_ENABLED);
@@ -542,6 +840,8 @@ public class TezRuntimeConfiguration {
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_BUFFER_SIZE);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_ENABLE_SSL);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_BUFFER_PERCENT);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_OFFHEAP_BUFFER_BYTES);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_MEMORY_LIMIT_PERCENT);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_MERGE_PERCENT);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_MEMTOMEM_SEGMENTS);
@@ -563,12 +863,14 @@ public class TezRuntimeConfiguration {
     tezRuntimeKeys.add(TEZ_RUNTIME_VALUE_CLASS);
     tezRuntimeKeys.add(TEZ_RUNTIME_COMPRESS);
     tezRuntimeKeys.add(TEZ_RUNTIME_COMPRESS_CODEC);
+    tezRuntimeKeys.add(TEZ_RUNTIME_COMPRESS_BLOCK_SIZE);
     tezRuntimeKeys.add(TEZ_RUNTIME_KEY_SECONDARY_COMPARATOR_CLASS);
     tezRuntimeKeys.add(TEZ_RUNTIME_EMPTY_PARTITION_INFO_VIA_EVENTS_ENABLED);
     tezRuntimeKeys.add(TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED);
     tezRuntimeKeys.add(TEZ_RUNTIME_ENABLE_FINAL_MERGE_IN_OUTPUT);
     tezRuntimeKeys.add(TEZ_RUNTIME_RECORDS_BEFORE_PROGRESS);
     tezRuntimeKeys.add(TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH);
+    tezRuntimeKeys.add(TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH_MMAP);
     tezRuntimeKeys.add(TEZ_RUNTIME_OPTIMIZE_SHARED_FETCH);
     tezRuntimeKeys.add(TEZ_RUNTIME_CONVERT_USER_PAYLOAD_TO_HISTORY_TEXT);
     tezRuntimeKeys.add(TEZ_RUNTIME_SORTER_CLASS);
@@ -0,0 +1,379 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.combine;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.util.Progress;
+import org.apache.tez.runtime.api.OutputContext;
+import org.apache.tez.runtime.library.api.IOInterruptedException;
+import org.apache.tez.runtime.library.api.KeyValueWriter;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.ConfigUtils;
+import org.apache.tez.runtime.library.common.TezRuntimeUtils;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups the records written to an output by key in a bounded in-memory hash table, and runs
+ * the {@link Combiner} over the table whenever it is full, passing the combined records on to
+ * the sorter or writer of the output. Keys with many duplicates are combined this way before
+ * they are sorted or spilled.
+ *
+ * Keys are grouped by their serialized bytes, so keys equal for the comparator but serialized
+ * differently are not combined here, which is left to the combiner runs of the sorter.
+ */
+@Private
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class HashAggregator {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HashAggregator.class);
+
+  // approximate size of the hash map entry, the key and the value buffer objects of a key
+  @VisibleForTesting
+  static final int ENTRY_OVERHEAD = 160;
+
+  private final String destNameTrimmed;
+  private final Combiner combiner;
+  private final KeyValueWriter output;
+  private final long maxSizeBytes;
+  private final float minReduction;
+
+  private final Serializer keySerializer;
+  private final Serializer valSerializer;
+  private final DataOutputBuffer keyBuffer = new DataOutputBuffer();
+  private final DataOutputBuffer valBuffer = new DataOutputBuffer();
+  // looks up the serialized key in the table without copying it to a new key
+  private final BytesWritable lookupKey = new BytesWritable();
+
+  private final Map<BytesWritable, ValueList> table = new HashMap<BytesWritable, ValueList>();
+  private long sizeBytes = 0;
+
+  private final CombinedOutputWriter combinedOutput;
+  private boolean enabled = true;
+  private int numFlushes = 0;
+  private long numInputRecords = 0;
+  private long numOutputRecords = 0;
+
+  @VisibleForTesting
+  HashAggregator(OutputContext outputContext, Configuration conf, Combiner combiner,
+      long maxSizeBytes, KeyValueWriter output) throws IOException {
+    Preconditions.checkArgument(maxSizeBytes > 0, "Invalid hash aggregation memory: "
+        + maxSizeBytes);
+    this.destNameTrimmed = outputContext.getDestinationVertexName();
+    this.combiner = combiner;
+    this.output = output;
+    this.maxSizeBytes = maxSizeBytes;
+    this.minReduction = conf.getFloat(
+        TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_MIN_REDUCTION,
+        TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_MIN_REDUCTION_DEFAULT);
+
+    Class keyClass = ConfigUtils.getIntermediateOutputKeyClass(conf);
+    Class valClass = ConfigUtils.getIntermediateOutputValueClass(conf);
+    SerializationFactory serializationFactory = new SerializationFactory(conf);
+    keySerializer = serializationFactory.getSerializer(keyClass);
+    keySerializer.open(keyBuffer);
+    valSerializer = serializationFactory.getSerializer(valClass);
+    valSerializer.open(valBuffer);
+    combinedOutput = new CombinedOutputWriter(serializationFactory.getDeserializer(keyClass),
+        serializationFactory.getDeserializer(valClass));
+  }
+
+  /**
+   * @return memory out of memoryAssigned to be used by the hash aggregation table of an output,
+   * 0 if hash aggregation is disabled
+   */
+  public static long getMemory(Configuration conf, long memoryAssigned) {
+    if (!conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_ENABLED,
+        TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_ENABLED_DEFAULT)
+        || conf.get(TezRuntimeConfiguration.TEZ_RUNTIME_COMBINER_CLASS) == null) {
+      return 0;
+    }
+    float fraction = conf.getFloat(
+        TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_MEMORY_FRACTION,
+        TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_MEMORY_FRACTION_DEFAULT);
+    Preconditions.checkArgument(fraction >= 0 && fraction < 1,
+        TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_MEMORY_FRACTION
+            + " should be in the range [0, 1), found " + fraction);
+    return (long) (memoryAssigned * fraction);
+  }
+
+  /**
+   * @param maxSizeBytes memory obtained from {@link #getMemory(Configuration, long)}
+   * @param output writer the combined records are passed on to
+   * @return an aggregator in front of output, or null if hash aggregation is disabled
+   */
+  public static HashAggregator create(OutputContext outputContext, Configuration conf,
+      long maxSizeBytes, KeyValueWriter output) throws IOException {
+    if (maxSizeBytes <= 0) {
+      return null;
+    }
+    Combiner combiner = TezRuntimeUtils.instantiateCombiner(conf, outputContext);
+    if (combiner == null) {
+      return null;
+    }
+    LOG.info(outputContext.getDestinationVertexName() + ": Hash aggregation enabled, memory="
+        + maxSizeBytes + ", combiner=" + combiner.getClass().getName());
+    return new HashAggregator(outputContext, conf, combiner, maxSizeBytes, output);
+  }
+
+  public void write(Object key, Object value) throws IOException {
+    if (!enabled) {
+      output.write(key, value);
+      return;
+    }
+    numInputRecords++;
+    keyBuffer.reset();
+    keySerializer.serialize(key);
+    lookupKey.set(keyBuffer.getData(), 0, keyBuffer.getLength());
+    ValueList values = table.get(lookupKey);
+    if (values == null) {
+      values = new ValueList();
+      table.put(new BytesWritable(Arrays.copyOf(keyBuffer.getData(), keyBuffer.getLength())),
+          values);
+      sizeBytes += ENTRY_OVERHEAD + keyBuffer.getLength() + values.getCapacity();
+    }
+    valBuffer.reset();
+    valSerializer.serialize(value);
+    sizeBytes += values.add(valBuffer);
+    if (sizeBytes >= maxSizeBytes) {
+      flush();
+    }
+  }
+
+  public void write(Object key, Iterable<Object> values) throws IOException {
+    for (Object value : values) {
+      write(key, value);
+    }
+  }
+
+  /**
+   * Combine the records held in the table, and pass them on.
+   */
+  public void flush() throws IOException {
+    if (table.isEmpty()) {
+      return;
+    }
+    long outputRecordsBefore = numOutputRecords;
+    long inputRecords = 0;
+    for (ValueList values : table.values()) {
+      inputRecords += values.numValues;
+    }
+    try {
+      combiner.combine(new TableIterator(), combinedOutput);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOInterruptedException("Combiner interrupted", e);
+    }
+    table.clear();
+    sizeBytes = 0;
+    numFlushes++;
+
+    long outputRecords = numOutputRecords - outputRecordsBefore;
+    if (numFlushes == 1 && outputRecords > inputRecords * (1 - minReduction)) {
+      // not worth serializing and combining the records twice
+      enabled = false;
+      LOG.info(destNameTrimmed + ": Disabling hash aggregation, records reduced from "
+          + inputRecords + " to " + outputRecords);
+    }
+  }
+
+  /**
+   * Pass on the remaining records once all of them are written.
+   */
+  public void close() throws IOException {
+    flush();
+    LOG.info(destNameTrimmed + ": Hash aggregation combined " + numInputRecords + " records into "
+        + numOutputRecords + " records in " + numFlushes + " flushes");
+  }
+
+  @VisibleForTesting
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  @VisibleForTesting
+  long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  /**
+   * Serialized values of a key, each prefixed by its length.
+   */
+  private static class ValueList extends DataOutputBuffer {
+    int numValues = 0;
+
+    ValueList() {
+      super(16);
+    }
+
+    /**
+     * @return the growth of the buffer
+     */
+    int add(DataOutputBuffer value) throws IOException {
+      int capacity = getCapacity();
+      WritableUtils.writeVInt(this, value.getLength());
+      write(value.getData(), 0, value.getLength());
+      numValues++;
+      return getCapacity() - capacity;
+    }
+
+    int getCapacity() {
+      return getData().length;
+    }
+  }
+
+  /**
+   * Iterates over the records of the table, key by key.
+   */
+  private class TableIterator implements TezRawKeyValueIterator {
+    private final Iterator<Map.Entry<BytesWritable, ValueList>> entries =
+        table.entrySet().iterator();
+    private final Progress progress = new Progress();
+    private final DataInputBuffer key = new DataInputBuffer();
+    private final DataInputBuffer value = new DataInputBuffer();
+    private final DataInputBuffer valueList = new DataInputBuffer();
+    private BytesWritable currentKey;
+    private int remainingValues = 0;
+    private boolean sameKey = false;
+
+    @Override
+    public DataInputBuffer getKey() throws IOException {
+      return key;
+    }
+
+    @Override
+    public DataInputBuffer getValue() throws IOException {
+      return value;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+      if (remainingValues == 0) {
+        if (!entries.hasNext()) {
+          return false;
+        }
+        Map.Entry<BytesWritable, ValueList> entry = entries.next();
+        currentKey = entry.getKey();
+        ValueList values = entry.getValue();
+        valueList.reset(values.getData(), 0, values.getLength());
+        remainingValues = values.numValues;
+        sameKey = false;
+      } else {
+        sameKey = true;
+      }
+      // the key may have been read by the previous record
+      key.reset(currentKey.getBytes(), 0, currentKey.getLength());
+      int valueLength = WritableUtils.readVInt(valueList);
+      value.reset(valueList.getData(), valueList.getPosition(), valueLength);
+      valueList.skip(valueLength);
+      remainingValues--;
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public Progress getProgress() {
+      return progress;
+    }
+
+    @Override
+    public boolean isSameKey() throws IOException {
+      return sameKey;
+    }
+  }
+
+  /**
+   * Passes the records written by the combiner on to the output.
+   */
+  private class CombinedOutputWriter extends IFile.Writer {
+    private final Deserializer keyDeserializer;
+    private final Deserializer valDeserializer;
+    private final DataInputBuffer keyIn = new DataInputBuffer();
+    private final DataInputBuffer valIn = new DataInputBuffer();
+    private Object lastKey;
+    private Object rawKey;
+    private Object rawValue;
+
+    CombinedOutputWriter(Deserializer keyDeserializer, Deserializer valDeserializer)
+        throws IOException {
+      super(null, null);
+      this.keyDeserializer = keyDeserializer;
+      this.keyDeserializer.open(keyIn);
+      this.valDeserializer = valDeserializer;
+      this.valDeserializer.open(valIn);
+    }
+
+    @Override
+    public void append(Object key, Object value) throws IOException {
+      if (key != IFile.REPEAT_KEY) {
+        lastKey = key;
+      }
+      output.write(lastKey, value);
+      numOutputRecords++;
+    }
+
+    @Override
+    public void appendValue(Object value) throws IOException {
+      append(IFile.REPEAT_KEY, value);
+    }
+
+    @Override
+    public void append(DataInputBuffer key, DataInputBuffer value) throws IOException {
+      Object keyObject = IFile.REPEAT_KEY;
+      if (key != IFile.REPEAT_KEY) {
+        keyIn.reset(key.getData(), key.getPosition(), key.getLength() - key.getPosition());
+        rawKey = keyDeserializer.deserialize(rawKey);
+        keyObject = rawKey;
+      }
+      valIn.reset(value.getData(), value.getPosition(), value.getLength() - value.getPosition());
+      rawValue = valDeserializer.deserialize(rawValue);
+      append(keyObject, rawValue);
+    }
+
+    @Override
+    public void appendValue(DataInputBuffer value) throws IOException {
+      append(IFile.REPEAT_KEY, value);
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+}
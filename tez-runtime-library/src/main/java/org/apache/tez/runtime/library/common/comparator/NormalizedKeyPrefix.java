@@ -0,0 +1,154 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tez.runtime.library.common.comparator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.classification.InterfaceStability.Unstable;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Computes a fixed width (8 byte) normalized prefix of a serialized key, for comparators which
+ * order keys by the unsigned lexicographic order of (part of) their serialized bytes.
+ *
+ * The prefix is the first 8 comparable bytes of the key in big-endian order, padded with zeros.
+ * Comparing two prefixes with {@link #compare(long, long)} gives the same answer as the
+ * comparator whenever the prefixes differ. Equal prefixes do not imply equal keys, so ties have
+ * to be resolved with the comparator.
+ */
+@Private
+@Unstable
+public enum NormalizedKeyPrefix {
+
+  /** {@link TezBytesComparator}: the whole serialized key is compared. */
+  RAW_BYTES {
+    @Override
+    int headerLength(ByteBuffer buffer, int start, int length) {
+      return 0;
+    }
+  },
+
+  /** {@link BytesWritable.Comparator}: a 4 byte length header precedes the bytes. */
+  BYTES_WRITABLE {
+    @Override
+    int headerLength(ByteBuffer buffer, int start, int length) {
+      return 4;
+    }
+  },
+
+  /** {@link Text.Comparator}: a vint length header precedes the utf-8 bytes. */
+  TEXT {
+    @Override
+    int headerLength(ByteBuffer buffer, int start, int length) {
+      return (length == 0) ? 0 : WritableUtils.decodeVIntSize(buffer.get(start));
+    }
+  };
+
+  public static final int PREFIX_BYTES = 8;
+
+  /**
+   * Number of bytes at the start of the serialized key which are not part of the comparison.
+   */
+  abstract int headerLength(ByteBuffer buffer, int start, int length);
+
+  /**
+   * Compute the prefix of the serialized key at [start, start + length) in buffer. The position
+   * of the buffer is not changed.
+   */
+  public long getPrefix(ByteBuffer buffer, int start, int length) {
+    final int header = Math.min(headerLength(buffer, start, length), length);
+    final int from = start + header;
+    final int n = Math.min(length - header, PREFIX_BYTES);
+    long prefix = 0;
+    for (int i = 0; i < n; i++) {
+      prefix = (prefix << 8) | (buffer.get(from + i) & 0xff);
+    }
+    // left align, shorter keys are zero padded
+    return prefix << ((PREFIX_BYTES - n) << 3);
+  }
+
+  /**
+   * Compare the serialized keys at [start1, start1 + length1) and [start2, start2 + length2) of
+   * buffer in place, with the same sign as the comparator. Keys are read a long word at a time
+   * with absolute gets, so nothing is copied and the position of the buffer is not changed.
+   */
+  public int compare(ByteBuffer buffer, int start1, int length1, int start2, int length2) {
+    final int header1 = Math.min(headerLength(buffer, start1, length1), length1);
+    final int header2 = Math.min(headerLength(buffer, start2, length2), length2);
+    final int s1 = start1 + header1;
+    final int s2 = start2 + header2;
+    final int l1 = length1 - header1;
+    final int l2 = length2 - header2;
+    final int n = Math.min(l1, l2);
+    final boolean bigEndian = (buffer.order() == ByteOrder.BIG_ENDIAN);
+    int i = 0;
+    for (; i + PREFIX_BYTES <= n; i += PREFIX_BYTES) {
+      long w1 = buffer.getLong(s1 + i);
+      long w2 = buffer.getLong(s2 + i);
+      if (w1 != w2) {
+        if (!bigEndian) {
+          w1 = Long.reverseBytes(w1);
+          w2 = Long.reverseBytes(w2);
+        }
+        return compare(w1, w2);
+      }
+    }
+    for (; i < n; i++) {
+      final int b1 = buffer.get(s1 + i) & 0xff;
+      final int b2 = buffer.get(s2 + i) & 0xff;
+      if (b1 != b2) {
+        return b1 - b2;
+      }
+    }
+    return l1 - l2;
+  }
+
+  /**
+   * Compare two prefixes as unsigned values.
+   */
+  public static int compare(long prefix1, long prefix2) {
+    final long p1 = prefix1 + Long.MIN_VALUE;
+    final long p2 = prefix2 + Long.MIN_VALUE;
+    return (p1 < p2) ? -1 : ((p1 == p2) ? 0 : 1);
+  }
+
+  /**
+   * @return the prefix type for the given comparator, or null if its ordering cannot be
+   * represented by a byte prefix. Only the exact comparator classes are recognized, as
+   * subclasses are free to change the ordering.
+   */
+  public static NormalizedKeyPrefix get(RawComparator comparator) {
+    if (comparator == null) {
+      return null;
+    }
+    final Class<?> clazz = comparator.getClass();
+    if (clazz == TezBytesComparator.class) {
+      return RAW_BYTES;
+    } else if (clazz == BytesWritable.Comparator.class) {
+      return BYTES_WRITABLE;
+    } else if (clazz == Text.Comparator.class) {
+      return TEXT;
+    }
+    return null;
+  }
+}
@@ -206,7 +206,7 @@ public class UnorderedKVReader<K, V> extends KeyValueReader {
       MemoryFetchedInput mfi = (MemoryFetchedInput) fetchedInput;
 
       return new InMemoryReader(null, mfi.getInputAttemptIdentifier(),
-          mfi.getBytes(), 0, (int) mfi.getActualSize());
+          mfi.getBuffer(), 0, (int) mfi.getActualSize());
     } else {
       return new IFile.Reader(fetchedInput.getInputStream(),
           fetchedInput.getCompressedSize(), codec, null, null, ifileReadAhead,
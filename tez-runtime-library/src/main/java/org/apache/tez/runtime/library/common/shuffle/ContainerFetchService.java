@@ -0,0 +1,219 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * Fetcher threads and host penalties shared by the shuffles of all inputs and tasks which run
+ * in the container, so that a reused container does not start every shuffle from scratch, and
+ * concurrent inputs do not each run a pool of their own. Connections are shared already, by the
+ * keep-alive pools of the http clients.
+ *
+ * Every shuffle gets its own executor from {@link #newExecutor()}, which runs the fetchers on the
+ * shared threads. Shutting it down only stops the fetchers of that shuffle. The number of fetchers
+ * which run at once is still limited by every shuffle itself.
+ */
+@InterfaceAudience.Private
+public class ContainerFetchService {
+
+  private static final ContainerFetchService INSTANCE = new ContainerFetchService();
+
+  // idle threads are kept for a minute, which covers the gap between the tasks of a container
+  private final ExecutorService threads = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ShuffleFetcher #%d").build());
+
+  // end of the penalty of a host:port, in millis
+  @VisibleForTesting
+  final ConcurrentHashMap<String, Long> hostPenalties = new ConcurrentHashMap<String, Long>();
+
+  @VisibleForTesting
+  ContainerFetchService() {
+  }
+
+  public static ContainerFetchService getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return an executor for the fetchers of one shuffle, which runs them on the shared threads
+   */
+  public ListeningExecutorService newExecutor() {
+    return new FetcherExecutor();
+  }
+
+  /**
+   * Penalize the host for the given time, in addition to any current penalty of it.
+   *
+   * @param hostIdentifier host:port
+   */
+  public void penalizeHost(String hostIdentifier, long delayMillis) {
+    final long now = System.currentTimeMillis();
+    // drop the penalties which ended, of hosts which were not looked up since
+    for (Map.Entry<String, Long> penalty : hostPenalties.entrySet()) {
+      if (penalty.getValue() <= now) {
+        hostPenalties.remove(penalty.getKey(), penalty.getValue());
+      }
+    }
+    final long end = now + delayMillis;
+    Long current = hostPenalties.putIfAbsent(hostIdentifier, end);
+    while (current != null && current < end
+        && !hostPenalties.replace(hostIdentifier, current, end)) {
+      current = hostPenalties.putIfAbsent(hostIdentifier, end);
+    }
+  }
+
+  /**
+   * @param hostIdentifier host:port
+   * @return the remaining penalty of the host in millis, 0 if it is not penalized
+   */
+  public long getHostPenalty(String hostIdentifier) {
+    Long end = hostPenalties.get(hostIdentifier);
+    if (end == null) {
+      return 0;
+    }
+    long remaining = end - System.currentTimeMillis();
+    if (remaining <= 0) {
+      hostPenalties.remove(hostIdentifier, end);
+      return 0;
+    }
+    return remaining;
+  }
+
+  /**
+   * Runs the fetchers of one shuffle on the shared threads, and keeps track of them so that
+   * {@link #shutdownNow()} can interrupt them.
+   */
+  private class FetcherExecutor extends AbstractExecutorService
+      implements ListeningExecutorService {
+
+    private final Set<Future<?>> running =
+        Collections.newSetFromMap(new ConcurrentHashMap<Future<?>, Boolean>());
+    private volatile boolean shutdown = false;
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+      return ListenableFutureTask.create(callable);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+      return ListenableFutureTask.create(runnable, value);
+    }
+
+    @Override
+    public ListenableFuture<?> submit(Runnable task) {
+      return (ListenableFuture<?>) super.submit(task);
+    }
+
+    @Override
+    public <T> ListenableFuture<T> submit(Runnable task, T result) {
+      return (ListenableFuture<T>) super.submit(task, result);
+    }
+
+    @Override
+    public <T> ListenableFuture<T> submit(Callable<T> task) {
+      return (ListenableFuture<T>) super.submit(task);
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+      if (shutdown) {
+        throw new RejectedExecutionException("Fetcher executor has been shutdown");
+      }
+      final Future<?> future = (command instanceof Future) ? (Future<?>) command : null;
+      if (future != null) {
+        running.add(future);
+      }
+      threads.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            command.run();
+          } finally {
+            if (future != null) {
+              running.remove(future);
+            }
+            synchronized (running) {
+              running.notifyAll();
+            }
+          }
+        }
+      });
+    }
+
+    @Override
+    public void shutdown() {
+      shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      shutdown = true;
+      for (Future<?> future : running) {
+        future.cancel(true);
+      }
+      return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return shutdown && running.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      final long end = System.currentTimeMillis() + unit.toMillis(timeout);
+      synchronized (running) {
+        while (!isTerminated()) {
+          long remaining = end - System.currentTimeMillis();
+          if (remaining <= 0) {
+            return false;
+          }
+          running.wait(remaining);
+        }
+      }
+      return true;
+    }
+  }
+}
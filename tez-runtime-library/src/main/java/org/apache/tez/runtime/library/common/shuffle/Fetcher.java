@@ -19,14 +19,21 @@
 package org.apache.tez.runtime.library.common.shuffle;
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
@@ -35,13 +42,23 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
 
 import org.apache.tez.http.BaseHttpConnection;
 import org.apache.tez.http.HttpConnectionParams;
+import org.apache.tez.http.async.netty.AsyncFetchClient;
+import org.apache.tez.http.async.netty.TezConnectionsPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.commons.lang.StringUtils;
@@ -49,10 +66,14 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.LocalDirAllocator;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.util.DiskChecker.DiskErrorException;
 import org.apache.hadoop.yarn.api.records.ApplicationId;
 import org.apache.tez.common.CallableWithNdc;
+import org.apache.tez.common.counters.TezCounter;
 import org.apache.tez.common.security.JobTokenSecretManager;
 import org.apache.tez.dag.api.TezUncheckedException;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
@@ -75,6 +96,13 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
   private static final Logger LOG = LoggerFactory.getLogger(Fetcher.class);
 
   private static final AtomicInteger fetcherIdGen = new AtomicInteger(0);
+  // data of a non-blocking fetch not written to disk yet, above which its connection is paused
+  private static final long NON_BLOCKING_MAX_PENDING_WRITE_BYTES = 1 << 20;
+  // data of a non-blocking fetch not written to disk yet, below which its connection is resumed
+  private static final long NON_BLOCKING_RESUME_PENDING_WRITE_BYTES =
+      NON_BLOCKING_MAX_PENDING_WRITE_BYTES / 2;
+  // data of a non-blocking fetch added to a partial header at once, more than headers take
+  private static final int NON_BLOCKING_HEADER_CHUNK_BYTES = 512;
   private final Configuration conf;
   private final int shufflePort;
 
@@ -96,6 +124,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
   private final String localHostname;
   
   private final AtomicBoolean isShutDown = new AtomicBoolean(false);
+  private volatile boolean reportedFailures = false;
 
   private final int fetcherIdentifier;
 
@@ -106,8 +135,14 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
   private String host;
   private int port;
   private int partition;
-
-  // Maps from the pathComponents (unique per srcTaskId) to the specific taskId
+  // number of consecutive partitions fetched, starting at partition
+  private int partitionCount = 1;
+  // partitions of the inputs, if more than one partition is fetched
+  private InputHost.PartitionToInputs partitionRange;
+  // latencies and throughput of the fetches from the host, if tracked
+  private HostStats hostStats;
+
+  // Maps from the pathComponents (unique per srcTaskId) to the specific taskId, see getPathKey
   private final Map<String, InputAttemptIdentifier> pathToAttemptMap;
 
   private URL url;
@@ -118,6 +153,8 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
 
   private final boolean localDiskFetchEnabled;
   private final boolean sharedFetchEnabled;
+  // read local disk inputs through a memory mapping of the spill file
+  private boolean localDiskFetchMapped = false;
 
   private final LocalDirAllocator localDirAllocator;
   private final Path lockPath;
@@ -130,6 +167,14 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
 
   private final boolean isDebugEnabled = LOG.isDebugEnabled();
 
+  // connections of the async http clients looked up by the fetches of the input, may be null
+  private TezCounter connectionsCounter;
+  private TezCounter connectionsReusedCounter;
+  // writes the inputs of non-blocking fetches fetched to disk
+  private Executor diskWriteExecutor;
+  private volatile NonBlockingFetchHandler nonBlockingHandler;
+  private volatile com.ning.http.client.ListenableFuture<Void> nonBlockingFetch;
+
   private Fetcher(FetcherCallback fetcherCallback, HttpConnectionParams params,
       FetchedInputAllocator inputManager, ApplicationId appId, int dagIdentifier,
       JobTokenSecretManager jobTokenSecretManager, String srcNameTrimmed, Configuration conf,
@@ -191,7 +236,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
 
     populateRemainingMap(srcAttempts);
     for (InputAttemptIdentifier in : srcAttemptsRemaining.values()) {
-      pathToAttemptMap.put(in.getPathComponent(), in);
+      pathToAttemptMap.put(getPathKey(in.getPathComponent(), getInputPartition(in)), in);
       // do only if all of them are shared fetches
       multiplex &= in.isShared();
     }
@@ -212,11 +257,32 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
       hostFetchResult = doHttpFetch();
     }
 
+    return finishFetch(hostFetchResult, multiplex);
+  }
+
+  private void fetchSucceeded(InputAttemptIdentifier srcAttemptId, FetchedInput fetchedInput,
+      long fetchedBytes, long decompressedLength, long copyDuration) throws IOException {
+    if (hostStats != null) {
+      hostStats.fetchSucceeded(fetchedBytes, copyDuration);
+    }
+    fetcherCallback.fetchSucceeded(host, srcAttemptId, fetchedInput, fetchedBytes,
+        decompressedLength, copyDuration);
+  }
+
+  /**
+   * Report the failed inputs of the fetch and shut the fetcher down.
+   */
+  private FetchResult finishFetch(HostFetchResult hostFetchResult, boolean multiplex)
+      throws IOException {
     if (hostFetchResult.failedInputs != null && hostFetchResult.failedInputs.length > 0) {
       if (!isShutDown.get()) {
         LOG.warn("copyInputs failed for tasks " + Arrays.toString(hostFetchResult.failedInputs));
+        reportedFailures = true;
         for (InputAttemptIdentifier left : hostFetchResult.failedInputs) {
           fetcherCallback.fetchFailed(host, left, hostFetchResult.connectFailed);
+          if (hostStats != null) {
+            hostStats.fetchFailed();
+          }
         }
       } else {
         if (isDebugEnabled) {
@@ -416,14 +482,20 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
 
   private HostFetchResult setupConnection(Collection<InputAttemptIdentifier> attempts) {
     try {
-      StringBuilder baseURI = ShuffleUtils.constructBaseURIForShuffleHandler(host,
-          port, partition, appId.toString(), dagIdentifier, httpConnectionParams.isSslShuffle());
+      StringBuilder baseURI = ShuffleUtils.constructBaseURIForPartitionRange(
+          InputHost.createIdentifier(host, port), partition, partitionCount, appId.toString(),
+          dagIdentifier, httpConnectionParams.isSslShuffle());
       this.url = ShuffleUtils.constructInputURL(baseURI.toString(), attempts,
           httpConnectionParams.isKeepAlive());
 
       httpConnection = ShuffleUtils.getHttpConnection(asyncHttp, url, httpConnectionParams,
           logIdentifier, jobTokenSecretMgr);
-      httpConnection.connect();
+      TezConnectionsPool.setInputCounters(connectionsCounter, connectionsReusedCounter);
+      try {
+        httpConnection.connect();
+      } finally {
+        TezConnectionsPool.clearInputCounters();
+      }
     } catch (IOException | InterruptedException e) {
       if (e instanceof InterruptedException) {
         Thread.currentThread().interrupt();
@@ -486,7 +558,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
   protected HostFetchResult doHttpFetch(CachingCallBack callback) {
 
     HostFetchResult connectionsWithRetryResult =
-        setupConnection(srcAttemptsRemaining.values());
+        setupConnection(getInputsToRequest());
     if (connectionsWithRetryResult != null) {
       return connectionsWithRetryResult;
     }
@@ -535,7 +607,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
               false);
         }
         // Connect again.
-        connectionsWithRetryResult = setupConnection(srcAttemptsRemaining.values());
+        connectionsWithRetryResult = setupConnection(getInputsToRequest());
         if (connectionsWithRetryResult != null) {
           break;
         }
@@ -553,6 +625,830 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
         false);
   }
 
+  /**
+   * @return true if the fetch reported inputs of the host as failed
+   */
+  public boolean hasReportedFailures() {
+    return reportedFailures;
+  }
+
+  /**
+   * @return true if the work assigned to this fetcher can be done by
+   * {@link #fetchNonBlocking()}, i.e. it is neither a local disk fetch nor a shared fetch.
+   */
+  public boolean canFetchNonBlocking() {
+    if (localDiskFetchEnabled && host.equals(localHostname) && port == shufflePort) {
+      return false;
+    }
+    boolean multiplex = (this.sharedFetchEnabled && this.localDiskFetchEnabled);
+    for (InputAttemptIdentifier in : srcAttempts) {
+      multiplex &= in.isShared();
+    }
+    return !multiplex || srcAttempts.isEmpty();
+  }
+
+  /**
+   * Fetch the assigned inputs over HTTP without blocking a thread on the connection. The
+   * response is parsed and copied into the {@link FetchedInput}s on the IO threads of the
+   * {@link AsyncFetchClient} as it arrives. The outcome is reported to the
+   * {@link FetcherCallback} in the same way as by {@link #call()}, and the returned future
+   * completes as the one of {@link #call()} would.
+   */
+  public ListenableFuture<FetchResult> fetchNonBlocking() {
+    Preconditions.checkState(canFetchNonBlocking(),
+        "Local disk and shared fetches cannot be done non-blocking");
+    Preconditions.checkState(diskWriteExecutor != null,
+        "Non-blocking fetches need an executor to write to disk");
+    SettableFuture<FetchResult> result = SettableFuture.create();
+    if (srcAttempts.size() == 0) {
+      result.set(new FetchResult(host, port, partition, srcAttempts));
+      return result;
+    }
+
+    populateRemainingMap(srcAttempts);
+    for (InputAttemptIdentifier in : srcAttemptsRemaining.values()) {
+      pathToAttemptMap.put(getPathKey(in.getPathComponent(), getInputPartition(in)), in);
+    }
+
+    String encHash = null;
+    try {
+      StringBuilder baseURI = ShuffleUtils.constructBaseURIForPartitionRange(
+          InputHost.createIdentifier(host, port), partition, partitionCount, appId.toString(),
+          dagIdentifier, httpConnectionParams.isSslShuffle());
+      this.url = ShuffleUtils.constructInputURL(baseURI.toString(), getInputsToRequest(),
+          httpConnectionParams.isKeepAlive());
+      encHash = AsyncFetchClient.computeEncHash(url, jobTokenSecretMgr);
+    } catch (IOException e) {
+      LOG.warn("Failed to create shuffle request for host: " + host, e);
+    }
+    NonBlockingFetchHandler handler = new NonBlockingFetchHandler(result, encHash);
+    nonBlockingHandler = handler;
+    if (encHash == null) {
+      handler.finish(getRemainingAttempts(), true);
+    } else {
+      startNonBlockingFetch(handler);
+    }
+    return result;
+  }
+
+  @VisibleForTesting
+  protected void startNonBlockingFetch(NonBlockingFetchHandler handler) {
+    TezConnectionsPool.setInputCounters(connectionsCounter, connectionsReusedCounter);
+    try {
+      nonBlockingFetch = AsyncFetchClient.fetch(url, handler.encHash, httpConnectionParams,
+          handler);
+    } catch (IOException e) {
+      LOG.warn("Failed to connect to host: " + host, e);
+      handler.finish(getRemainingAttempts(), true);
+      return;
+    } finally {
+      TezConnectionsPool.clearInputCounters();
+    }
+    if (isShutDown.get()) {
+      // shutdown might have missed the request
+      abortNonBlockingFetch();
+    }
+  }
+
+  private InputAttemptIdentifier[] getRemainingAttempts() {
+    synchronized (srcAttemptsRemaining) {
+      return srcAttemptsRemaining.values().toArray(
+          new InputAttemptIdentifier[srcAttemptsRemaining.size()]);
+    }
+  }
+
+  private void abortNonBlockingFetch() {
+    com.ning.http.client.ListenableFuture<Void> fetch = nonBlockingFetch;
+    NonBlockingFetchHandler handler = nonBlockingHandler;
+    if (fetch != null && handler != null && !handler.finished.get()) {
+      fetch.abort(new IOException("Fetcher has been shutdown"));
+    }
+  }
+
+  /**
+   * Pause, or resume, reading the response of the non-blocking fetch from its connection.
+   *
+   * @return false if the connection is not known
+   */
+  @VisibleForTesting
+  protected boolean setConnectionReadable(boolean readable) {
+    return AsyncFetchClient.setReadable(nonBlockingFetch, readable);
+  }
+
+  /**
+   * Handles the response of a non-blocking fetch. The body is a sequence of a
+   * {@link ShuffleHeader} followed by the data of that input, for every input fetched, which is
+   * parsed from the body parts as they arrive. Inputs fetched to disk are written and completed
+   * by a {@link DiskWriter}, so that the IO threads do not block on local disks;
+   * srcAttemptsRemaining is shared with it, and accessed while holding its lock. When the disk
+   * writer falls behind, the connection of the response is paused and the body parts still
+   * delivered are kept, to be parsed by the disk writer once it caught up. The parsing state is
+   * guarded by the handler's lock.
+   */
+  @VisibleForTesting
+  class NonBlockingFetchHandler implements AsyncHandler<Void> {
+
+    private final SettableFuture<FetchResult> result;
+    final String encHash;
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    private final DataOutputBuffer headerBuffer = new DataOutputBuffer();
+    private final DataInputBuffer headerIn = new DataInputBuffer();
+    private boolean responseStarted = false;
+    private long startTime;
+
+    // the input being copied, null while reading a header
+    private InputAttemptIdentifier srcAttemptId;
+    private FetchedInput fetchedInput;
+    private long compressedLength;
+    private long decompressedLength;
+    private long bytesLeft;
+    // data of the requested partition range which is not fetched
+    private long skipLeft;
+    // the body parts of an input fetched to memory, which are not reused by the client
+    private List<ByteBuffer> memoryData;
+    private OutputStream diskOutput;
+    // created with the first input fetched to disk
+    private DiskWriter diskWriter;
+    // set while waiting for the disk writer to catch up
+    private boolean paused = false;
+    private boolean connectionPaused = false;
+    // body parts delivered while paused, and whether the response completed meanwhile
+    private final ArrayDeque<ByteBuffer> deferredParts = new ArrayDeque<ByteBuffer>();
+    private boolean completionDeferred = false;
+    private final Runnable resumer = new Runnable() {
+      @Override
+      public void run() {
+        resume();
+      }
+    };
+
+    NonBlockingFetchHandler(SettableFuture<FetchResult> result, String encHash) {
+      this.result = result;
+      this.encHash = encHash;
+    }
+
+    @Override
+    public STATE onStatusReceived(HttpResponseStatus status) throws Exception {
+      if (isShutDown.get()) {
+        finish(null, false);
+        return STATE.ABORT;
+      }
+      if (status.getStatusCode() != HttpURLConnection.HTTP_OK) {
+        LOG.warn("Got invalid response code " + status.getStatusCode() + " from " + url + ": "
+            + status.getStatusText());
+        finish(getRemainingAttempts(), true);
+        return STATE.ABORT;
+      }
+      return STATE.CONTINUE;
+    }
+
+    @Override
+    public STATE onHeadersReceived(HttpResponseHeaders headers) throws Exception {
+      try {
+        AsyncFetchClient.validate(headers.getHeaders(), encHash, jobTokenSecretMgr);
+      } catch (IOException e) {
+        // penalize only the first input, as the blocking fetch does
+        InputAttemptIdentifier firstAttempt = getNextRemainingAttempt();
+        if (!isShutDown.get()) {
+          LOG.warn("Fetch Failure from host while connecting: " + host + ", attempt: "
+              + firstAttempt + " Informing ShuffleManager: ", e);
+        }
+        finish(new InputAttemptIdentifier[] { firstAttempt }, false);
+        return STATE.ABORT;
+      }
+      responseStarted = true;
+      startTime = System.currentTimeMillis();
+      return STATE.CONTINUE;
+    }
+
+    @Override
+    public STATE onBodyPartReceived(HttpResponseBodyPart bodyPart) throws Exception {
+      if (finished.get()) {
+        return STATE.ABORT;
+      }
+      if (isShutDown.get()) {
+        finish(null, false);
+        return STATE.ABORT;
+      }
+      InputAttemptIdentifier[] failedInputs;
+      synchronized (this) {
+        if (paused) {
+          deferredParts.add(bodyPart.getBodyByteBuffer());
+          return STATE.CONTINUE;
+        }
+        failedInputs = process(bodyPart.getBodyByteBuffer());
+        if (failedInputs == null) {
+          pauseIfBehind();
+        }
+      }
+      if (failedInputs != null) {
+        finish(failedInputs, false);
+        return STATE.ABORT;
+      }
+      return STATE.CONTINUE;
+    }
+
+    @Override
+    public Void onCompleted() throws Exception {
+      synchronized (this) {
+        if (paused) {
+          // all of the response was read, it completes once the deferred parts are processed
+          completionDeferred = true;
+          resumeConnection();
+          return null;
+        }
+      }
+      completed();
+      return null;
+    }
+
+    private void completed() {
+      if (srcAttemptId != null) {
+        LOG.warn("Incomplete map output received for " + srcAttemptId + " from " + host
+            + " (" + bytesLeft + " bytes missing of " + compressedLength + ")");
+        finish(new InputAttemptIdentifier[] { srcAttemptId }, false);
+      } else if (headerBuffer.getLength() > 0) {
+        LOG.warn("Incomplete header received from " + host);
+        finish(getRemainingAttempts(), false);
+      } else {
+        finish(null, false);
+      }
+    }
+
+    /**
+     * Pause the response if the disk writer is too far behind, until it caught up.
+     */
+    private void pauseIfBehind() {
+      if (diskWriter != null && diskWriter.pauseUntilCaughtUp(resumer)) {
+        paused = true;
+        if (!connectionPaused && !completionDeferred) {
+          // if the connection is not known yet, the parts keep being deferred instead
+          connectionPaused = setConnectionReadable(false);
+        }
+      }
+    }
+
+    private void resumeConnection() {
+      if (connectionPaused) {
+        setConnectionReadable(true);
+        connectionPaused = false;
+      }
+    }
+
+    /**
+     * Process the deferred body parts once the disk writer caught up, then resume the connection
+     * or complete the response. Runs on the disk writer.
+     */
+    private void resume() {
+      InputAttemptIdentifier[] failedInputs = null;
+      boolean complete = false;
+      synchronized (this) {
+        paused = false;
+        if (finished.get()) {
+          deferredParts.clear();
+          return;
+        }
+        try {
+          while (!paused && failedInputs == null && !deferredParts.isEmpty()) {
+            failedInputs = process(deferredParts.poll());
+            if (failedInputs == null) {
+              pauseIfBehind();
+            }
+          }
+        } catch (RuntimeException e) {
+          LOG.warn("Failed to process the response from " + host, e);
+          failedInputs = (srcAttemptId != null)
+              ? new InputAttemptIdentifier[] { srcAttemptId } : getRemainingAttempts();
+        }
+        if (failedInputs != null) {
+          deferredParts.clear();
+        } else if (!paused) {
+          resumeConnection();
+          complete = completionDeferred;
+        }
+      }
+      if (failedInputs != null) {
+        finish(failedInputs, false);
+        com.ning.http.client.ListenableFuture<Void> fetch = nonBlockingFetch;
+        if (fetch != null) {
+          fetch.abort(new IOException("Failed to process the response from " + host));
+        }
+      } else if (complete) {
+        completed();
+      }
+    }
+
+    @Override
+    public void onThrowable(Throwable t) {
+      if (finished.get()) {
+        return;
+      }
+      if (isShutDown.get()) {
+        if (isDebugEnabled) {
+          LOG.debug("Already shutdown. Ignoring exception during fetch " + t.getClass().getName()
+              + ", Message: " + t.getMessage());
+        }
+        finish(null, false);
+      } else if (srcAttemptId != null) {
+        LOG.warn("Failed to shuffle output of " + srcAttemptId + " from " + host, t);
+        finish(new InputAttemptIdentifier[] { srcAttemptId }, false);
+      } else {
+        // connection failures mark all inputs as failed, indirectly penalizing the host
+        LOG.warn("Failed to fetch from host: " + host, t);
+        finish(getRemainingAttempts(), !responseStarted);
+      }
+    }
+
+    /**
+     * @return the failed inputs if the fetch should be stopped, otherwise null
+     */
+    private InputAttemptIdentifier[] process(ByteBuffer data) {
+      if (diskWriter != null && diskWriter.getFailedInput() != null) {
+        return new InputAttemptIdentifier[] { diskWriter.getFailedInput() };
+      }
+      while (data.hasRemaining()) {
+        if (skipLeft > 0) {
+          int length = (int) Math.min(data.remaining(), skipLeft);
+          data.position(data.position() + length);
+          skipLeft -= length;
+        } else if (srcAttemptId == null) {
+          try {
+            if (!readHeader(data)) {
+              // header failed the sanity check
+              return new InputAttemptIdentifier[] { srcAttemptId };
+            }
+          } catch (IllegalArgumentException e) {
+            // Don't know which one was bad, so consider all of them as bad
+            LOG.warn("Invalid src id ", e);
+            return getRemainingAttempts();
+          } catch (IOException e) {
+            if (srcAttemptId == null) {
+              LOG.info("fetcher failed to read map header from " + host, e);
+              return getRemainingAttempts();
+            }
+            LOG.warn("Failed to shuffle output of " + srcAttemptId + " from " + host, e);
+            return new InputAttemptIdentifier[] { srcAttemptId };
+          }
+        } else {
+          int length = (int) Math.min(data.remaining(), bytesLeft);
+          // the body parts are not reused, so their data is kept instead of copied
+          ByteBuffer chunk = data.slice();
+          chunk.limit(length);
+          data.position(data.position() + length);
+          if (memoryData != null) {
+            memoryData.add(chunk);
+          } else if (!diskWriter.add(new WriteTask(chunk, srcAttemptId, diskOutput))) {
+            return new InputAttemptIdentifier[] { diskWriter.getFailedInput() };
+          }
+          bytesLeft -= length;
+        }
+        if (srcAttemptId != null && bytesLeft == 0) {
+          try {
+            if (!inputComplete()) {
+              return new InputAttemptIdentifier[] { diskWriter.getFailedInput() };
+            }
+          } catch (IOException e) {
+            LOG.warn("Failed to shuffle output of " + srcAttemptId + " from " + host, e);
+            return new InputAttemptIdentifier[] { srcAttemptId };
+          }
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Accumulate the data until a complete header was read, then allocate its input, or skip
+     * its data if it is not to be fetched. Only the data of the header is consumed, which is
+     * all of it if the header is incomplete.
+     *
+     * @return false if the header failed the sanity check
+     */
+    private boolean readHeader(ByteBuffer data) throws IOException {
+      int startLength = headerBuffer.getLength();
+      int length = Math.min(data.remaining(), NON_BLOCKING_HEADER_CHUNK_BYTES);
+      if (data.hasArray()) {
+        headerBuffer.write(data.array(), data.arrayOffset() + data.position(), length);
+      } else {
+        byte[] buf = new byte[length];
+        data.duplicate().get(buf);
+        headerBuffer.write(buf, 0, length);
+      }
+
+      ShuffleHeader header = new ShuffleHeader();
+      headerIn.reset(headerBuffer.getData(), headerBuffer.getLength());
+      try {
+        header.readFields(headerIn);
+      } catch (EOFException e) {
+        data.position(data.position() + length);
+        return true;
+      }
+      data.position(data.position() + headerIn.getPosition() - startLength);
+      headerBuffer.reset();
+
+      String pathComponent = header.getMapId();
+      InputAttemptIdentifier attempt =
+          pathToAttemptMap.get(getPathKey(pathComponent, header.getPartition()));
+      compressedLength = header.getCompressedLength();
+      decompressedLength = header.getUncompressedLength();
+      if (compressedLength >= 0 && isUnwantedRangeData(header.getPartition(), attempt)) {
+        if (isDebugEnabled) {
+          LOG.debug("Skipping " + compressedLength + " bytes of " + pathComponent
+              + " for partition " + header.getPartition());
+        }
+        skipLeft = compressedLength;
+        return true;
+      }
+      if (!verifySanity(compressedLength, decompressedLength, header.getPartition(), attempt,
+          pathComponent)) {
+        if (attempt == null) {
+          LOG.warn("Was expecting " + getNextRemainingAttempt() + " but got null");
+          attempt = getNextRemainingAttempt();
+        }
+        srcAttemptId = attempt;
+        return false;
+      }
+      if (isDebugEnabled) {
+        LOG.debug("header: " + attempt + ", len: " + compressedLength
+            + ", decomp len: " + decompressedLength);
+      }
+      srcAttemptId = attempt;
+      fetchedInput = inputManager.allocate(decompressedLength, compressedLength, srcAttemptId);
+      if (fetchedInput.getType() == Type.MEMORY) {
+        memoryData = new ArrayList<ByteBuffer>();
+      } else if (fetchedInput.getType() == Type.DISK) {
+        diskOutput = ((DiskFetchedInput) fetchedInput).getOutputStream();
+        if (diskWriter == null) {
+          diskWriter = new DiskWriter();
+        }
+      } else {
+        throw new TezUncheckedException("Bad fetchedInput type while fetching shuffle data " +
+            fetchedInput);
+      }
+      bytesLeft = compressedLength;
+      return true;
+    }
+
+    /**
+     * @return false if the input could not be handed over to the disk writer, as it failed
+     */
+    private boolean inputComplete() throws IOException {
+      long endTime = System.currentTimeMillis();
+      if (memoryData != null) {
+        ShuffleUtils.shuffleToMemory(((MemoryFetchedInput) fetchedInput).getBuffer(),
+            new ByteBuffersInputStream(memoryData), (int) decompressedLength,
+            (int) compressedLength, codec, ifileReadAhead, ifileReadAheadLength, LOG,
+            srcAttemptId.toString());
+        memoryData = null;
+        endTime = System.currentTimeMillis();
+        inputSucceeded(srcAttemptId, fetchedInput, compressedLength, decompressedLength,
+            endTime - startTime);
+      } else {
+        // the disk writer owns the input from now on
+        OutputStream output = diskOutput;
+        diskOutput = null;
+        if (!diskWriter.add(new CompleteTask(srcAttemptId, fetchedInput, output,
+            compressedLength, decompressedLength, startTime))) {
+          ShuffleUtils.ioCleanup(output);
+          cleanupFetchedInput(fetchedInput);
+          fetchedInput = null;
+          return false;
+        }
+      }
+      srcAttemptId = null;
+      fetchedInput = null;
+      startTime = endTime;
+      return true;
+    }
+
+    private void inputSucceeded(InputAttemptIdentifier attempt, FetchedInput input,
+        long compressedSize, long decompressedSize, long copyDuration) throws IOException {
+      fetchSucceeded(attempt, input, compressedSize, decompressedSize, copyDuration);
+      synchronized (srcAttemptsRemaining) {
+        srcAttemptsRemaining.remove(attempt.toString());
+      }
+    }
+
+    void finish(final InputAttemptIdentifier[] failedInputs, final boolean connectFailed) {
+      if (!finished.compareAndSet(false, true)) {
+        return;
+      }
+      if (diskWriter == null) {
+        complete(failedInputs, connectFailed);
+        return;
+      }
+      // the pending inputs are discarded, unless the whole response was read
+      diskWriter.finish(new Runnable() {
+        @Override
+        public void run() {
+          complete(failedInputs, connectFailed);
+        }
+      }, failedInputs != null || isShutDown.get());
+    }
+
+    private void complete(InputAttemptIdentifier[] failedInputs, boolean connectFailed) {
+      ShuffleUtils.ioCleanup(diskOutput);
+      cleanupFetchedInput(fetchedInput);
+      FetchResult fetchResult;
+      InputAttemptIdentifier writeFailed = diskWriter == null ? null : diskWriter.getFailedInput();
+      synchronized (srcAttemptsRemaining) {
+        if (writeFailed != null) {
+          if (failedInputs == null) {
+            failedInputs = new InputAttemptIdentifier[] { writeFailed };
+          } else if (!Arrays.asList(failedInputs).contains(writeFailed)) {
+            failedInputs = Arrays.copyOf(failedInputs, failedInputs.length + 1);
+            failedInputs[failedInputs.length - 1] = writeFailed;
+          }
+        }
+        if (failedInputs != null) {
+          // inputs written to disk meanwhile have been reported as fetched
+          List<InputAttemptIdentifier> remaining = new ArrayList<InputAttemptIdentifier>();
+          for (InputAttemptIdentifier failed : failedInputs) {
+            if (failed != null && srcAttemptsRemaining.containsKey(failed.toString())) {
+              remaining.add(failed);
+            }
+          }
+          failedInputs = remaining.toArray(new InputAttemptIdentifier[remaining.size()]);
+        }
+        fetchResult = new FetchResult(host, port, partition, srcAttemptsRemaining.values());
+      }
+      try {
+        result.set(finishFetch(new HostFetchResult(fetchResult, failedInputs, connectFailed),
+            false));
+      } catch (Throwable t) {
+        result.setException(t);
+      }
+    }
+
+    /**
+     * Data of an input to be written to disk, or the completion of such an input.
+     */
+    private abstract class DiskTask {
+      final InputAttemptIdentifier srcAttemptId;
+      final long length;
+
+      DiskTask(InputAttemptIdentifier srcAttemptId, long length) {
+        this.srcAttemptId = srcAttemptId;
+        this.length = length;
+      }
+
+      abstract void run() throws IOException;
+
+      void abort() {
+      }
+    }
+
+    private class WriteTask extends DiskTask {
+      private final ByteBuffer data;
+      private final OutputStream output;
+
+      WriteTask(ByteBuffer data, InputAttemptIdentifier srcAttemptId, OutputStream output) {
+        super(srcAttemptId, data.remaining());
+        this.data = data;
+        this.output = output;
+      }
+
+      @Override
+      void run() throws IOException {
+        if (data.hasArray()) {
+          output.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+          byte[] buf = new byte[data.remaining()];
+          data.get(buf);
+          output.write(buf);
+        }
+      }
+    }
+
+    private class CompleteTask extends DiskTask {
+      private final FetchedInput input;
+      private final OutputStream output;
+      private final long compressedSize;
+      private final long decompressedSize;
+      private final long startTime;
+
+      CompleteTask(InputAttemptIdentifier srcAttemptId, FetchedInput input, OutputStream output,
+          long compressedSize, long decompressedSize, long startTime) {
+        super(srcAttemptId, 0);
+        this.input = input;
+        this.output = output;
+        this.compressedSize = compressedSize;
+        this.decompressedSize = decompressedSize;
+        this.startTime = startTime;
+      }
+
+      @Override
+      void run() throws IOException {
+        output.close();
+        inputSucceeded(srcAttemptId, input, compressedSize, decompressedSize,
+            System.currentTimeMillis() - startTime);
+      }
+
+      @Override
+      void abort() {
+        ShuffleUtils.ioCleanup(output);
+        cleanupFetchedInput(input);
+      }
+    }
+
+    /**
+     * Runs the {@link DiskTask}s of the response in order, on the disk write executor, with at
+     * most one of them running at a time. Once an input failed to be written, the following
+     * tasks are discarded, and the fetch is failed by the handler. Adding tasks never blocks;
+     * the handler pauses the response while more than
+     * {@link #NON_BLOCKING_MAX_PENDING_WRITE_BYTES} are to be written, until no more than
+     * {@link #NON_BLOCKING_RESUME_PENDING_WRITE_BYTES} are left, or a task failed.
+     */
+    private class DiskWriter implements Runnable {
+      private final ArrayDeque<DiskTask> tasks = new ArrayDeque<DiskTask>();
+      private long pendingBytes = 0;
+      private boolean scheduled = false;
+      private InputAttemptIdentifier failedInput;
+      // runs once the tasks are done
+      private Runnable finisher;
+      // runs once the writer caught up
+      private Runnable caughtUpListener;
+
+      synchronized InputAttemptIdentifier getFailedInput() {
+        return failedInput;
+      }
+
+      /**
+       * @return false if a previous task failed, in which case the task is not run
+       */
+      boolean add(DiskTask task) {
+        synchronized (this) {
+          if (failedInput != null) {
+            return false;
+          }
+          tasks.add(task);
+          pendingBytes += task.length;
+          if (scheduled) {
+            return true;
+          }
+          scheduled = true;
+        }
+        schedule();
+        return true;
+      }
+
+      /**
+       * @return true if too much data is pending, in which case the listener is run once the
+       * writer caught up, or a task failed
+       */
+      synchronized boolean pauseUntilCaughtUp(Runnable listener) {
+        if (failedInput == null && pendingBytes > NON_BLOCKING_MAX_PENDING_WRITE_BYTES) {
+          caughtUpListener = listener;
+          return true;
+        }
+        return false;
+      }
+
+      private void notifyIfCaughtUp() {
+        Runnable listener;
+        synchronized (this) {
+          if (caughtUpListener == null || (failedInput == null
+              && pendingBytes > NON_BLOCKING_RESUME_PENDING_WRITE_BYTES)) {
+            return;
+          }
+          listener = caughtUpListener;
+          caughtUpListener = null;
+        }
+        listener.run();
+      }
+
+      void finish(Runnable finisher, boolean abort) {
+        synchronized (this) {
+          this.finisher = finisher;
+          if (abort) {
+            abortTasks();
+          }
+          if (scheduled) {
+            return;
+          }
+          scheduled = true;
+        }
+        schedule();
+      }
+
+      private void schedule() {
+        try {
+          diskWriteExecutor.execute(this);
+        } catch (RejectedExecutionException e) {
+          // the executor is only shut down along with the fetchers
+          synchronized (this) {
+            if (failedInput == null && !tasks.isEmpty()) {
+              failedInput = tasks.peek().srcAttemptId;
+            }
+            abortTasks();
+          }
+          notifyIfCaughtUp();
+          run();
+        }
+      }
+
+      private void abortTasks() {
+        for (DiskTask task : tasks) {
+          task.abort();
+        }
+        tasks.clear();
+        pendingBytes = 0;
+      }
+
+      @Override
+      public void run() {
+        while (true) {
+          DiskTask task;
+          Runnable finished = null;
+          synchronized (this) {
+            task = tasks.poll();
+            if (task == null) {
+              finished = finisher;
+              finisher = null;
+              scheduled = false;
+            }
+          }
+          if (task == null) {
+            if (finished != null) {
+              finished.run();
+            }
+            return;
+          }
+          try {
+            task.run();
+          } catch (IOException e) {
+            taskFailed(task, e);
+            continue;
+          } catch (RuntimeException e) {
+            taskFailed(task, e);
+            continue;
+          }
+          synchronized (this) {
+            pendingBytes -= task.length;
+          }
+          notifyIfCaughtUp();
+        }
+      }
+
+      private void taskFailed(DiskTask task, Exception e) {
+        if (!isShutDown.get()) {
+          LOG.warn("Failed to shuffle output of " + task.srcAttemptId + " from " + host, e);
+        }
+        task.abort();
+        synchronized (this) {
+          failedInput = task.srcAttemptId;
+          abortTasks();
+        }
+        notifyIfCaughtUp();
+      }
+    }
+  }
+
+  /**
+   * Reads the data of a sequence of buffers, without copying them.
+   */
+  private static class ByteBuffersInputStream extends InputStream {
+    private final Iterator<ByteBuffer> buffers;
+    private ByteBuffer current;
+
+    ByteBuffersInputStream(List<ByteBuffer> buffers) {
+      this.buffers = buffers.iterator();
+    }
+
+    private boolean nextBuffer() {
+      while (current == null || !current.hasRemaining()) {
+        if (!buffers.hasNext()) {
+          return false;
+        }
+        current = buffers.next();
+      }
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return nextBuffer() ? current.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!nextBuffer()) {
+        return -1;
+      }
+      int length = Math.min(len, current.remaining());
+      current.get(b, off, length);
+      return length;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return nextBuffer() ? current.remaining() : 0;
+    }
+  }
+
   @VisibleForTesting
   protected HostFetchResult setupLocalDiskFetch() {
     return doLocalDiskFetch(true);
@@ -591,7 +1487,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
 
               @Override
               public void freeResources(FetchedInput fetchedInput) {}
-            });
+            }, localDiskFetchMapped);
         if (isDebugEnabled) {
           LOG.debug("fetcher" + " about to shuffle output of srcAttempt (direct disk)" + srcAttemptId
               + " decomp: " + idxRecord.getRawLength() + " len: " + idxRecord.getPartLength()
@@ -599,7 +1495,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
         }
 
         long endTime = System.currentTimeMillis();
-        fetcherCallback.fetchSucceeded(host, srcAttemptId, fetchedInput, idxRecord.getPartLength(),
+        fetchSucceeded(srcAttemptId, fetchedInput, idxRecord.getPartLength(),
             idxRecord.getRawLength(), (endTime - startTime));
         iterator.remove();
       } catch (IOException e) {
@@ -648,7 +1544,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
         Constants.TEZ_RUNTIME_TASK_OUTPUT_INDEX_SUFFIX_STRING);
 
     TezSpillRecord spillRecord = new TezSpillRecord(indexFile, conf);
-    idxRecord = spillRecord.getIndex(partition);
+    idxRecord = spillRecord.getIndex(getInputPartition(srcAttemptId));
     return idxRecord;
   }
 
@@ -698,6 +1594,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
     // Can't synchronize on the main class itself since that would cause the
     // shutdown request to block
     synchronized (isShutDown) {
+      abortNonBlockingFetch();
       try {
         if (httpConnection != null) {
           httpConnection.cleanup(disconnect);
@@ -729,10 +1626,10 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
         header.readFields(input);
         pathComponent = header.getMapId();
 
-        srcAttemptId = pathToAttemptMap.get(pathComponent);
+        responsePartition = header.getPartition();
+        srcAttemptId = pathToAttemptMap.get(getPathKey(pathComponent, responsePartition));
         compressedLength = header.getCompressedLength();
         decompressedLength = header.getUncompressedLength();
-        responsePartition = header.getPartition();
       } catch (IllegalArgumentException e) {
         // badIdErrs.increment(1);
         if (!isShutDown.get()) {
@@ -747,6 +1644,15 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
         }
       }
 
+      if (compressedLength >= 0 && isUnwantedRangeData(responsePartition, srcAttemptId)) {
+        if (isDebugEnabled) {
+          LOG.debug("Skipping " + compressedLength + " bytes of " + pathComponent
+              + " for partition " + responsePartition);
+        }
+        IOUtils.skipFully(input, compressedLength);
+        return null;
+      }
+
       // Do some basic sanity verification
       if (!verifySanity(compressedLength, decompressedLength,
           responsePartition, srcAttemptId, pathComponent)) {
@@ -797,7 +1703,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
       }
 
       if (fetchedInput.getType() == Type.MEMORY) {
-        ShuffleUtils.shuffleToMemory(((MemoryFetchedInput) fetchedInput).getBytes(),
+        ShuffleUtils.shuffleToMemory(((MemoryFetchedInput) fetchedInput).getBuffer(),
           input, (int) decompressedLength, (int) compressedLength, codec,
           ifileReadAhead, ifileReadAheadLength, LOG,
           fetchedInput.getInputAttemptIdentifier().toString());
@@ -822,7 +1728,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
       long endTime = System.currentTimeMillis();
       // Reset retryStartTime as map task make progress if retried before.
       retryStartTime = 0;
-      fetcherCallback.fetchSucceeded(host, srcAttemptId, fetchedInput,
+      fetchSucceeded(srcAttemptId, fetchedInput,
           compressedLength, decompressedLength, (endTime - startTime));
 
       // Note successful shuffle
@@ -930,7 +1836,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
       return false;
     }
 
-    if (fetchPartition != this.partition) {
+    if (fetchPartition < this.partition || fetchPartition >= this.partition + partitionCount) {
       // wrongReduceErrs.increment(1);
       LOG.warn(" data for the wrong reduce -> headerPathComponent: "
           + pathComponent + "nextRemainingSrcAttemptId: "
@@ -952,11 +1858,62 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
     return true;
   }
   
+  private int getInputPartition(InputAttemptIdentifier srcAttemptId) {
+    return (partitionCount == 1) ? partition : partitionRange.getPartition(srcAttemptId);
+  }
+
+  /**
+   * @return the key of an input in pathToAttemptMap. The pathComponent identifies the input if
+   * only a single partition is fetched.
+   */
+  private String getPathKey(String pathComponent, int forPartition) {
+    return (partitionCount == 1) ? pathComponent : (pathComponent + "_" + forPartition);
+  }
+
+  /**
+   * @return the inputs to name in the request. The response to a partition range contains all
+   * of the partitions of every input named.
+   */
+  private Collection<InputAttemptIdentifier> getInputsToRequest() {
+    if (partitionCount == 1) {
+      return srcAttemptsRemaining.values();
+    }
+    Map<String, InputAttemptIdentifier> pathToInput =
+        new LinkedHashMap<String, InputAttemptIdentifier>();
+    for (InputAttemptIdentifier in : srcAttemptsRemaining.values()) {
+      if (!pathToInput.containsKey(in.getPathComponent())) {
+        pathToInput.put(in.getPathComponent(), in);
+      }
+    }
+    return pathToInput.values();
+  }
+
+  /**
+   * @return true if the data is for a partition of the requested range, which is not to be
+   * fetched (anymore) for the input. The response to a partition range contains all of the
+   * partitions of every input named in the request, which includes partitions without pending
+   * inputs, and partitions fetched before a reconnect.
+   */
+  private boolean isUnwantedRangeData(int fetchPartition, InputAttemptIdentifier srcAttemptId) {
+    if (partitionCount > 1 && fetchPartition >= partition
+        && fetchPartition < partition + partitionCount) {
+      if (srcAttemptId == null) {
+        return true;
+      }
+      synchronized (srcAttemptsRemaining) {
+        return srcAttemptsRemaining.get(srcAttemptId.toString()) == null;
+      }
+    }
+    return false;
+  }
+
   private InputAttemptIdentifier getNextRemainingAttempt() {
-    if (srcAttemptsRemaining.size() > 0) {
-      return srcAttemptsRemaining.values().iterator().next();
-    } else {
-      return null;
+    synchronized (srcAttemptsRemaining) {
+      if (srcAttemptsRemaining.size() > 0) {
+        return srcAttemptsRemaining.values().iterator().next();
+      } else {
+        return null;
+      }
     }
   }
 
@@ -1015,6 +1972,39 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
       return this;
     }
 
+    /**
+     * Assign the inputs of a range of partitions, which are fetched with a single request.
+     */
+    public FetcherBuilder assignWork(String host, int port,
+        InputHost.PartitionToInputs partitionRange) {
+      assignWork(host, port, partitionRange.getPartition(), partitionRange.getInputs());
+      fetcher.partitionCount = partitionRange.getPartitionCount();
+      fetcher.partitionRange = partitionRange;
+      return this;
+    }
+
+    public FetcherBuilder setHostStats(HostStats hostStats) {
+      fetcher.hostStats = hostStats;
+      return this;
+    }
+
+    public FetcherBuilder setLocalDiskFetchMapped(boolean localDiskFetchMapped) {
+      fetcher.localDiskFetchMapped = localDiskFetchMapped;
+      return this;
+    }
+
+    public FetcherBuilder setConnectionCounters(TezCounter connectionsCounter,
+        TezCounter connectionsReusedCounter) {
+      fetcher.connectionsCounter = connectionsCounter;
+      fetcher.connectionsReusedCounter = connectionsReusedCounter;
+      return this;
+    }
+
+    public FetcherBuilder setDiskWriteExecutor(Executor diskWriteExecutor) {
+      fetcher.diskWriteExecutor = diskWriteExecutor;
+      return this;
+    }
+
     public Fetcher build() {
       Preconditions.checkState(workAssigned == true,
           "Cannot build a fetcher withot assigning work to it");
@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.tez.runtime.library.utils.PowerOfTwoBuckets;
+
+/**
+ * Latency and throughput histograms of the fetches from a host, along with the failures since
+ * the last successful fetch. Used to order the hosts waiting for a fetcher.
+ *
+ * Values are kept in {@link PowerOfTwoBuckets}.
+ */
+@Private
+public class HostStats {
+
+  private static final int NUM_BUCKETS = 48;
+  // throughput assumed for a host nothing was fetched from yet, so that it is tried early
+  @VisibleForTesting
+  static final long UNKNOWN_THROUGHPUT = 1L << 40;
+
+  // millis per fetch
+  private final long[] latencies = new long[NUM_BUCKETS];
+  // bytes per second per fetch
+  private final long[] throughputs = new long[NUM_BUCKETS];
+  private long numFetches = 0;
+  private int failuresSinceLastFetch = 0;
+
+  public synchronized void fetchSucceeded(long bytes, long millis) {
+    latencies[getBucket(millis)]++;
+    throughputs[getBucket(bytes * 1000 / Math.max(1, millis))]++;
+    numFetches++;
+    failuresSinceLastFetch = 0;
+  }
+
+  public synchronized void fetchFailed() {
+    failuresSinceLastFetch++;
+  }
+
+  public synchronized long getNumFetches() {
+    return numFetches;
+  }
+
+  public synchronized int getFailuresSinceLastFetch() {
+    return failuresSinceLastFetch;
+  }
+
+  /**
+   * @return upper bound of the latency in millis of the given fraction of the fetches, or -1 if
+   * nothing was fetched yet
+   */
+  public synchronized long getLatencyPercentile(double fraction) {
+    return getPercentile(latencies, fraction);
+  }
+
+  /**
+   * @return upper bound of the throughput in bytes per second of the given fraction of the
+   * fetches, or -1 if nothing was fetched yet
+   */
+  public synchronized long getThroughputPercentile(double fraction) {
+    return getPercentile(throughputs, fraction);
+  }
+
+  /**
+   * Priority of a host, higher is fetched first. Grows with the number of inputs pending on the
+   * host and its median throughput, and drops with every failure since the last successful fetch.
+   */
+  public synchronized double getPriority(int numPendingInputs) {
+    long throughput = numFetches == 0 ? UNKNOWN_THROUGHPUT : getThroughputPercentile(0.5);
+    return (double) numPendingInputs * Math.max(1, throughput) / (1 + failuresSinceLastFetch);
+  }
+
+  private long getPercentile(long[] histogram, double fraction) {
+    if (numFetches == 0) {
+      return -1;
+    }
+    long needed = Math.max(1, (long) Math.ceil(fraction * numFetches));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += histogram[i];
+      if (seen >= needed) {
+        return PowerOfTwoBuckets.getUpperBound(i);
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+  @VisibleForTesting
+  static int getBucket(long value) {
+    return PowerOfTwoBuckets.getBucket(value, NUM_BUCKETS);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "[fetches=" + numFetches + ", p50Latency=" + getLatencyPercentile(0.5)
+        + "ms, p50Throughput=" + getThroughputPercentile(0.5) + "B/s, failures="
+        + failuresSinceLastFetch + "]";
+  }
+}
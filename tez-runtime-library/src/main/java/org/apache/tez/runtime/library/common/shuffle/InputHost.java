@@ -19,37 +19,47 @@
 package org.apache.tez.runtime.library.common.shuffle;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
+import com.google.common.base.Preconditions;
 import org.apache.hadoop.yarn.api.records.ApplicationId;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.InputIdentifier;
 
 /**
  * Represents a Host with respect to the MapReduce ShuffleHandler.
  * 
- * srcPhysicalIndex / partition is part of this since that only knows how to
- * serve ine partition at a time.
+ * The pending inputs are kept per srcPhysicalIndex / partition, since a request can only serve
+ * a single partition, or a range of consecutive partitions of the same source attempts.
  */
 public class InputHost {
 
   private final String host;
   private final int port;
-  private final int srcPhysicalIndex;
   private final String identifier;
   private String additionalInfo;
 
-  private final BlockingQueue<InputAttemptIdentifier> inputs = new LinkedBlockingQueue<InputAttemptIdentifier>();
+  // pending inputs by partition
+  private final TreeMap<Integer, List<InputAttemptIdentifier>> partitionToInputs =
+      new TreeMap<Integer, List<InputAttemptIdentifier>>();
+  // partition of every input added, to requeue inputs which were not fetched
+  private final Map<InputIdentifier, Integer> inputPartitions =
+      new HashMap<InputIdentifier, Integer>();
+  private int numPendingInputs = 0;
+  private final HostStats stats = new HostStats();
 
   public static String createIdentifier(String host, int port) {
     return (host + ":" + String.valueOf(port));
   }
   
-  public InputHost(String hostName, int port, ApplicationId appId, int srcPhysicalIndex) {
+  public InputHost(String hostName, int port, ApplicationId appId) {
     this.host = hostName;
     this.port = port;
-    this.srcPhysicalIndex = srcPhysicalIndex;
     this.identifier = createIdentifier(hostName, port);
   }
 
@@ -73,23 +83,125 @@ public class InputHost {
     return (additionalInfo == null) ? "" : additionalInfo;
   }
 
-  public int getSrcPhysicalIndex() {
-    return this.srcPhysicalIndex;
+  public HostStats getStats() {
+    return stats;
   }
 
-  public int getNumPendingInputs() {
-    return inputs.size();
+  public synchronized int getNumPendingInputs() {
+    return numPendingInputs;
   }
   
-  public void addKnownInput(InputAttemptIdentifier srcAttempt) {
+  public synchronized void addKnownInput(int srcPhysicalIndex,
+      InputAttemptIdentifier srcAttempt) {
+    inputPartitions.put(srcAttempt.getInputIdentifier(), srcPhysicalIndex);
+    List<InputAttemptIdentifier> inputs = partitionToInputs.get(srcPhysicalIndex);
+    if (inputs == null) {
+      inputs = new ArrayList<InputAttemptIdentifier>();
+      partitionToInputs.put(srcPhysicalIndex, inputs);
+    }
     inputs.add(srcAttempt);
+    numPendingInputs++;
+  }
+
+  /**
+   * Add an input again, which was taken by
+   * {@link #clearAndGetPendingInputs(int)} but not fetched.
+   */
+  public synchronized void addKnownInput(InputAttemptIdentifier srcAttempt) {
+    Integer srcPhysicalIndex = inputPartitions.get(srcAttempt.getInputIdentifier());
+    Preconditions.checkState(srcPhysicalIndex != null, "Unknown input " + srcAttempt
+        + " for host " + identifier);
+    addKnownInput(srcPhysicalIndex, srcAttempt);
+  }
+
+  /**
+   * Take the pending inputs of the lowest pending partition, and of up to maxPartitions - 1
+   * following partitions, as long as these have pending inputs of the very same source
+   * attempts. All of them can then be fetched with a single request for the partition range.
+   */
+  public synchronized PartitionToInputs clearAndGetPendingInputs(int maxPartitions) {
+    if (partitionToInputs.isEmpty()) {
+      return new PartitionToInputs(0, 1, new ArrayList<InputAttemptIdentifier>(0),
+          new HashMap<InputIdentifier, Integer>(0));
+    }
+    final int partition = partitionToInputs.firstKey();
+    List<InputAttemptIdentifier> inputs = partitionToInputs.remove(partition);
+    Set<String> pathComponents = getPathComponents(inputs);
+    int partitionCount = 1;
+    while (partitionCount < maxPartitions) {
+      List<InputAttemptIdentifier> next = partitionToInputs.get(partition + partitionCount);
+      if (next == null || !pathComponents.equals(getPathComponents(next))) {
+        break;
+      }
+      partitionToInputs.remove(partition + partitionCount);
+      inputs.addAll(next);
+      partitionCount++;
+    }
+    numPendingInputs -= inputs.size();
+
+    Map<InputIdentifier, Integer> partitions =
+        new HashMap<InputIdentifier, Integer>(inputs.size());
+    for (InputAttemptIdentifier input : inputs) {
+      partitions.put(input.getInputIdentifier(),
+          inputPartitions.get(input.getInputIdentifier()));
+    }
+    return new PartitionToInputs(partition, partitionCount, inputs, partitions);
+  }
+
+  private static Set<String> getPathComponents(List<InputAttemptIdentifier> inputs) {
+    Set<String> pathComponents = new HashSet<String>(inputs.size());
+    for (InputAttemptIdentifier input : inputs) {
+      pathComponents.add(input.getPathComponent());
+    }
+    return pathComponents;
   }
 
-  public List<InputAttemptIdentifier> clearAndGetPendingInputs() {
-    List<InputAttemptIdentifier> inputsCopy = new ArrayList<InputAttemptIdentifier>(
-        inputs.size());
-    inputs.drainTo(inputsCopy);
-    return inputsCopy;
+  /**
+   * Pending inputs of a range of consecutive partitions of a host.
+   */
+  public static class PartitionToInputs {
+
+    private final int partition;
+    private final int partitionCount;
+    private final List<InputAttemptIdentifier> inputs;
+    private final Map<InputIdentifier, Integer> inputPartitions;
+
+    public PartitionToInputs(int partition, int partitionCount,
+        List<InputAttemptIdentifier> inputs, Map<InputIdentifier, Integer> inputPartitions) {
+      this.partition = partition;
+      this.partitionCount = partitionCount;
+      this.inputs = inputs;
+      this.inputPartitions = inputPartitions;
+    }
+
+    /**
+     * @return the first partition of the range
+     */
+    public int getPartition() {
+      return partition;
+    }
+
+    public int getPartitionCount() {
+      return partitionCount;
+    }
+
+    public List<InputAttemptIdentifier> getInputs() {
+      return inputs;
+    }
+
+    /**
+     * @return the partition of the input
+     */
+    public int getPartition(InputAttemptIdentifier input) {
+      Integer inputPartition = inputPartitions.get(input.getInputIdentifier());
+      return (inputPartition == null) ? partition : inputPartition;
+    }
+
+    @Override
+    public String toString() {
+      return "PartitionToInputs [partition=" + partition + ", partitionCount=" + partitionCount
+          + ", inputs=" + inputs + "]";
+    }
   }
 
   @Override
@@ -98,7 +210,6 @@ public class InputHost {
     int result = 1;
     result = prime * result + ((host == null) ? 0 : host.hashCode());
     result = prime * result + port;
-    result = prime * result + srcPhysicalIndex;
     return result;
   }
 
@@ -123,20 +234,15 @@ public class InputHost {
     if (port != other.port) {
       return false;
     }
-    if (srcPhysicalIndex != other.srcPhysicalIndex) {
-      return false;
-    }
     return true;
   }
 
-  public String toDetailedString() {
-    return "InputHost [host=" + host + ", port=" + port + ",srcPhysicalIndex=" + srcPhysicalIndex
-        + ", inputs=" + inputs + "]";
+  public synchronized String toDetailedString() {
+    return "InputHost [host=" + host + ", port=" + port + ", inputs=" + partitionToInputs + "]";
   }
   
   @Override
   public String toString() {
-    return "InputHost [host=" + host + ", port=" + port + ", srcPhysicalIndex=" + srcPhysicalIndex
-        + "]";
+    return "InputHost [host=" + host + ", port=" + port + "]";
   }
 }
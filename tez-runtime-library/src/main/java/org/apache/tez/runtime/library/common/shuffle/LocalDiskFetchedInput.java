@@ -32,6 +32,7 @@ import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.utils.MappedFileInputStream;
 
 public class LocalDiskFetchedInput extends FetchedInput {
   private static final Logger LOG = LoggerFactory.getLogger(LocalDiskFetchedInput.class);
@@ -39,14 +40,26 @@ public class LocalDiskFetchedInput extends FetchedInput {
   private final Path inputFile;
   private final FileSystem localFS;
   private final long startOffset;
+  // read the input through a memory mapping of the file
+  private final boolean mapped;
 
   public LocalDiskFetchedInput(long startOffset, long actualSize, long compressedSize,
                                InputAttemptIdentifier inputAttemptIdentifier, Path inputFile,
                                Configuration conf, FetchedInputCallback callbackHandler)
       throws IOException {
+    this(startOffset, actualSize, compressedSize, inputAttemptIdentifier, inputFile, conf,
+        callbackHandler, false);
+  }
+
+  public LocalDiskFetchedInput(long startOffset, long actualSize, long compressedSize,
+                               InputAttemptIdentifier inputAttemptIdentifier, Path inputFile,
+                               Configuration conf, FetchedInputCallback callbackHandler,
+                               boolean mapped)
+      throws IOException {
     super(Type.DISK_DIRECT, actualSize, compressedSize, inputAttemptIdentifier, callbackHandler);
     this.startOffset = startOffset;
     this.inputFile = inputFile;
+    this.mapped = mapped;
     localFS = FileSystem.getLocal(conf);
   }
 
@@ -57,6 +70,9 @@ public class LocalDiskFetchedInput extends FetchedInput {
 
   @Override
   public InputStream getInputStream() throws IOException {
+    if (mapped) {
+      return new MappedFileInputStream(localFS, inputFile, startOffset, compressedSize);
+    }
     FSDataInputStream inputStream = localFS.open(inputFile);
     inputStream.seek(startOffset);
     return new BoundedInputStream(inputStream, compressedSize);
@@ -93,6 +109,7 @@ public class LocalDiskFetchedInput extends FetchedInput {
   public String toString() {
     return "LocalDiskFetchedInput [inputFile path =" + inputFile +
         ", offset" + startOffset +
+        ", mapped=" + mapped +
         ", actualSize=" + actualSize +
         ", compressedSize=" + compressedSize +
         ", inputAttemptIdentifier=" + inputAttemptIdentifier +
@@ -111,6 +128,11 @@ public class LocalDiskFetchedInput extends FetchedInput {
     return startOffset;
   }
 
+  @VisibleForTesting
+  protected boolean isMapped() {
+    return mapped;
+  }
+
   @VisibleForTesting
   protected FileSystem getLocalFS() {
     return localFS;
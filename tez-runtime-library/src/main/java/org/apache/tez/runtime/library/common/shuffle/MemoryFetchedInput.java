@@ -21,8 +21,10 @@ package org.apache.tez.runtime.library.common.shuffle;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import org.apache.hadoop.io.BoundedByteArrayOutputStream;
+import org.apache.hadoop.io.DataInputByteBuffer;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 
 import com.google.common.base.Preconditions;
@@ -30,26 +32,107 @@ import com.google.common.base.Preconditions;
 public class MemoryFetchedInput extends FetchedInput {
 
   private BoundedByteArrayOutputStream byteStream;
+  // holds the input instead of byteStream when it is off-heap
+  private ByteBuffer offHeapBuffer;
+  // memory charged for the input, the size of its buffer
+  private final long reservedSize;
 
   public MemoryFetchedInput(long actualSize, long compressedSize,
       InputAttemptIdentifier inputAttemptIdentifier,
       FetchedInputCallback callbackHandler) {
     super(Type.MEMORY, actualSize, compressedSize, inputAttemptIdentifier, callbackHandler);
     this.byteStream = new BoundedByteArrayOutputStream((int) actualSize);
+    this.reservedSize = actualSize;
+  }
+
+  /**
+   * @param buffer buffer to shuffle the input into, at least actualSize bytes long
+   */
+  public MemoryFetchedInput(long actualSize, long compressedSize,
+      InputAttemptIdentifier inputAttemptIdentifier,
+      FetchedInputCallback callbackHandler, byte[] buffer) {
+    super(Type.MEMORY, actualSize, compressedSize, inputAttemptIdentifier, callbackHandler);
+    Preconditions.checkArgument(buffer.length >= actualSize,
+        "Buffer of " + buffer.length + " bytes is too small for " + actualSize + " bytes");
+    this.byteStream = new BoundedByteArrayOutputStream(buffer, 0, (int) actualSize) {};
+    this.reservedSize = buffer.length;
+  }
+
+  /**
+   * @param offHeapBuffer direct buffer to shuffle the input into, at least actualSize bytes long
+   */
+  public MemoryFetchedInput(long actualSize, long compressedSize,
+      InputAttemptIdentifier inputAttemptIdentifier,
+      FetchedInputCallback callbackHandler, ByteBuffer offHeapBuffer) {
+    super(Type.MEMORY, actualSize, compressedSize, inputAttemptIdentifier, callbackHandler);
+    Preconditions.checkArgument(offHeapBuffer.isDirect(), "Not a direct buffer");
+    Preconditions.checkArgument(offHeapBuffer.capacity() >= actualSize,
+        "Buffer of " + offHeapBuffer.capacity() + " bytes is too small for " + actualSize
+            + " bytes");
+    this.offHeapBuffer = offHeapBuffer;
+    this.reservedSize = offHeapBuffer.capacity();
   }
 
   @Override
   public OutputStream getOutputStream() {
-    return byteStream;
+    if (offHeapBuffer == null) {
+      return byteStream;
+    }
+    final ByteBuffer out = getOffHeapView();
+    return new OutputStream() {
+      @Override
+      public void write(int b) {
+        out.put((byte) b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        out.put(b, off, len);
+      }
+    };
   }
 
   @Override
   public InputStream getInputStream() {
-    return new ByteArrayInputStream(byteStream.getBuffer());
+    if (offHeapBuffer == null) {
+      return new ByteArrayInputStream(byteStream.getBuffer(), 0, (int) actualSize);
+    }
+    DataInputByteBuffer in = new DataInputByteBuffer();
+    in.reset(getOffHeapView());
+    return in;
+  }
+
+  private ByteBuffer getOffHeapView() {
+    ByteBuffer view = offHeapBuffer.duplicate();
+    view.clear().limit((int) actualSize);
+    return view;
   }
 
+  /**
+   * @return the heap buffer holding the input, or null if the input is off-heap
+   */
   public byte[] getBytes() {
-    return byteStream.getBuffer();
+    return (offHeapBuffer == null) ? byteStream.getBuffer() : null;
+  }
+
+  /**
+   * @return the buffer holding the input, on the heap or off-heap. Its position and limit must
+   * not be changed.
+   */
+  public ByteBuffer getBuffer() {
+    return (offHeapBuffer == null) ? ByteBuffer.wrap(byteStream.getBuffer()) : offHeapBuffer;
+  }
+
+  /**
+   * @return the memory reserved for the input, which is the size of its buffer and may be more
+   * than its actual size
+   */
+  public long getReservedSize() {
+    return reservedSize;
+  }
+
+  public boolean isOffHeap() {
+    return offHeapBuffer != null;
   }
   
   @Override
@@ -75,8 +158,10 @@ public class MemoryFetchedInput extends FetchedInput {
         "FetchedInput can only be freed after it is committed or aborted");
     if (state == State.COMMITTED) { // ABORTED would have already called cleanup
       state = State.FREED;
-      this.byteStream = null;
+      // the buffer may be recycled by the callback
       notifyFreedResource();
+      this.byteStream = null;
+      this.offHeapBuffer = null;
     }
   }
 
@@ -84,7 +169,7 @@ public class MemoryFetchedInput extends FetchedInput {
   public String toString() {
     return "MemoryFetchedInput [inputAttemptIdentifier="
         + inputAttemptIdentifier + ", actualSize=" + actualSize
-        + ", compressedSize=" + compressedSize + ", type=" + type + ", id="
-        + id + ", state=" + state + "]";
+        + ", compressedSize=" + compressedSize + ", type=" + type + ", offHeap=" + isOffHeap()
+        + ", id=" + id + ", state=" + state + "]";
   }
 }
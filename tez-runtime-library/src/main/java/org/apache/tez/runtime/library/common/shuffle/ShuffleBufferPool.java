@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+
+/**
+ * Pool of the buffers of the inputs shuffled to memory, so that mid-sized and large buffers are
+ * recycled instead of being allocated for every input, which is expensive for the garbage
+ * collector (humongous objects in G1).
+ *
+ * Buffers from {@link #MIN_BUFFER_SIZE} to {@link #MAX_BUFFER_SIZE} bytes are handed out in size
+ * classes a quarter of a power of two apart, so a buffer may be up to 25% larger than requested.
+ * Smaller and larger buffers are allocated as requested, and are not pooled.
+ *
+ * A buffer must only be given back once nothing refers to its data anymore. The owner bounds
+ * the bytes retained by the pool, usually to the shuffle memory not in use.
+ */
+@Private
+public class ShuffleBufferPool {
+
+  @VisibleForTesting
+  static final int MIN_BUFFER_SIZE = 64 * 1024;
+  @VisibleForTesting
+  static final int MAX_BUFFER_SIZE = 1 << 30;
+
+  private final TezCounter hitsCounter;
+  private final TezCounter bytesReusedCounter;
+
+  // size class -> free buffers of that size
+  private final TreeMap<Integer, ArrayDeque<byte[]>> freeBuffers =
+      new TreeMap<Integer, ArrayDeque<byte[]>>();
+  private long retainedBytes = 0;
+
+  public ShuffleBufferPool(TezCounter hitsCounter, TezCounter bytesReusedCounter) {
+    this.hitsCounter = hitsCounter;
+    this.bytesReusedCounter = bytesReusedCounter;
+  }
+
+  /**
+   * @return a pool for a shuffle, or null if buffer pooling is disabled
+   */
+  public static ShuffleBufferPool create(Configuration conf, TezCounters counters) {
+    if (!conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED_DEFAULT)) {
+      return null;
+    }
+    return new ShuffleBufferPool(counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_HITS),
+        counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_BYTES_REUSED));
+  }
+
+  /**
+   * @return a buffer of at least size bytes
+   */
+  public synchronized byte[] take(int size) {
+    int bufferSize = getBufferSize(size);
+    if (isPooled(size)) {
+      ArrayDeque<byte[]> buffers = freeBuffers.get(bufferSize);
+      if (buffers != null) {
+        byte[] buffer = buffers.poll();
+        if (buffers.isEmpty()) {
+          freeBuffers.remove(bufferSize);
+        }
+        retainedBytes -= bufferSize;
+        hitsCounter.increment(1);
+        bytesReusedCounter.increment(bufferSize);
+        return buffer;
+      }
+    }
+    return new byte[bufferSize];
+  }
+
+  /**
+   * Give back a buffer once its data is no longer referred to.
+   *
+   * @param buffer buffer obtained from {@link #take(int)}
+   * @param maxRetainedBytes bytes the pool may retain at most, including this buffer; buffers
+   *                         are dropped, largest first, to stay within
+   */
+  public synchronized void release(byte[] buffer, long maxRetainedBytes) {
+    if (buffer == null || !isPooled(buffer.length)
+        || getBufferSize(buffer.length) != buffer.length) {
+      return;
+    }
+    trim(maxRetainedBytes - buffer.length);
+    if (retainedBytes + buffer.length > maxRetainedBytes) {
+      return;
+    }
+    ArrayDeque<byte[]> buffers = freeBuffers.get(buffer.length);
+    if (buffers == null) {
+      buffers = new ArrayDeque<byte[]>();
+      freeBuffers.put(buffer.length, buffers);
+    }
+    buffers.push(buffer);
+    retainedBytes += buffer.length;
+  }
+
+  /**
+   * Drop buffers, largest first, until the pool retains at most maxRetainedBytes.
+   */
+  public synchronized void trim(long maxRetainedBytes) {
+    while (retainedBytes > Math.max(0, maxRetainedBytes)) {
+      Map.Entry<Integer, ArrayDeque<byte[]>> largest = freeBuffers.lastEntry();
+      largest.getValue().poll();
+      if (largest.getValue().isEmpty()) {
+        freeBuffers.remove(largest.getKey());
+      }
+      retainedBytes -= largest.getKey();
+    }
+  }
+
+  public synchronized long getRetainedBytes() {
+    return retainedBytes;
+  }
+
+  private static boolean isPooled(int size) {
+    return size >= MIN_BUFFER_SIZE && size <= MAX_BUFFER_SIZE;
+  }
+
+  /**
+   * @return size of the buffer handed out for a request of size bytes, which is the memory the
+   * owner has to account for
+   */
+  public static int getBufferSize(int size) {
+    if (!isPooled(size)) {
+      return size;
+    }
+    // a quarter of the highest power of two not above size
+    int step = Integer.highestOneBit(size) >>> 2;
+    return (int) (((long) size + step - 1) / step * step);
+  }
+}
@@ -115,12 +115,23 @@ public class ShuffleUtils {
       InputStream input, int decompressedLength, int compressedLength,
       CompressionCodec codec, boolean ifileReadAhead, int ifileReadAheadLength,
       Logger LOG, String identifier) throws IOException {
+    shuffleToMemory(ByteBuffer.wrap(shuffleData), input, decompressedLength, compressedLength,
+        codec, ifileReadAhead, ifileReadAheadLength, LOG, identifier);
+  }
+
+  /**
+   * @param shuffleData heap or direct buffer to shuffle the input into
+   */
+  public static void shuffleToMemory(ByteBuffer shuffleData,
+      InputStream input, int decompressedLength, int compressedLength,
+      CompressionCodec codec, boolean ifileReadAhead, int ifileReadAheadLength,
+      Logger LOG, String identifier) throws IOException {
     try {
-      IFile.Reader.readToMemory(shuffleData, input, compressedLength, codec,
+      IFile.Reader.readToMemory(shuffleData, decompressedLength, input, compressedLength, codec,
           ifileReadAhead, ifileReadAheadLength);
       // metrics.inputBytes(shuffleData.length);
       if (LOG.isDebugEnabled()) {
-        LOG.debug("Read " + shuffleData.length + " bytes from input for "
+        LOG.debug("Read " + decompressedLength + " bytes from input for "
             + identifier);
       }
     } catch (IOException ioe) {
@@ -133,6 +144,22 @@ public class ShuffleUtils {
     }
   }
   
+  /**
+   * @return the direct memory an input holds the data it shuffles to memory in, 0 if the data
+   * is held on the heap
+   */
+  public static long getOffHeapMemoryLimit(Configuration conf) {
+    long offHeapMemLimit = conf.getLong(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_OFFHEAP_BUFFER_BYTES,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_OFFHEAP_BUFFER_BYTES_DEFAULT);
+    if (offHeapMemLimit < 0) {
+      throw new IllegalArgumentException("Invalid value for "
+          + TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_OFFHEAP_BUFFER_BYTES + ": "
+          + offHeapMemLimit);
+    }
+    return offHeapMemLimit;
+  }
+
   public static void shuffleToDisk(OutputStream output, String hostIdentifier,
       InputStream input, long compressedLength, long decompressedLength, Logger LOG, String identifier)
       throws IOException {
@@ -199,6 +226,16 @@ public class ShuffleUtils {
   
   public static StringBuilder constructBaseURIForShuffleHandler(String hostIdentifier,
       int partition, String appId, int dagIdentifier, boolean sslShuffle) {
+    return constructBaseURIForPartitionRange(hostIdentifier, partition, 1, appId,
+        dagIdentifier, sslShuffle);
+  }
+
+  /**
+   * Construct the base URI to fetch partitionCount consecutive partitions, starting at
+   * partition. The ShuffleHandler returns all of the partitions for every input requested.
+   */
+  public static StringBuilder constructBaseURIForPartitionRange(String hostIdentifier,
+      int partition, int partitionCount, String appId, int dagIdentifier, boolean sslShuffle) {
     final String http_protocol = (sslShuffle) ? "https://" : "http://";
     StringBuilder sb = new StringBuilder(http_protocol);
     sb.append(hostIdentifier);
@@ -209,6 +246,10 @@ public class ShuffleUtils {
     sb.append(String.valueOf(dagIdentifier));
     sb.append("&reduce=");
     sb.append(String.valueOf(partition));
+    if (partitionCount > 1) {
+      sb.append("-");
+      sb.append(String.valueOf(partition + partitionCount - 1));
+    }
     sb.append("&map=");
     return sb;
   }
@@ -254,6 +295,9 @@ public class ShuffleUtils {
     sb.append("port: " + dmProto.getPort()).append(", ");
     sb.append("pathComponent: " + dmProto.getPathComponent()).append(", ");
     sb.append("runDuration: " + dmProto.getRunDuration());
+    if (dmProto.getDataCount() > 0) {
+      sb.append(", dataCount: " + dmProto.getDataCount());
+    }
     sb.append("]");
     return sb.toString();
   }
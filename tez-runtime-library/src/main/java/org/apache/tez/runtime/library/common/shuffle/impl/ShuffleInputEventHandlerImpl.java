@@ -20,6 +20,7 @@
 package org.apache.tez.runtime.library.common.shuffle.impl;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.BitSet;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -38,10 +39,14 @@ import org.apache.tez.runtime.api.events.DataMovementEvent;
 import org.apache.tez.runtime.api.events.InputFailedEvent;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.InputIdentifier;
+import org.apache.tez.runtime.library.common.shuffle.DiskFetchedInput;
+import org.apache.tez.runtime.library.common.shuffle.FetchedInput;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInputAllocator;
+import org.apache.tez.runtime.library.common.shuffle.MemoryFetchedInput;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleEventHandler;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataMovementEventPayloadProto;
+import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataProto;
 
 import com.google.protobuf.InvalidProtocolBufferException;
 
@@ -53,7 +58,7 @@ public class ShuffleInputEventHandlerImpl implements ShuffleEventHandler {
   private static final Logger LOG = LoggerFactory.getLogger(ShuffleInputEventHandlerImpl.class);
   
   private final ShuffleManager shuffleManager;
-  //TODO: unused. Consider removing later?
+  // Used for the data sent along with events
   private final FetchedInputAllocator inputAllocator;
   private final CompressionCodec codec;
   private final boolean ifileReadAhead;
@@ -65,6 +70,7 @@ public class ShuffleInputEventHandlerImpl implements ShuffleEventHandler {
   private final AtomicInteger numDmeEvents = new AtomicInteger(0);
   private final AtomicInteger numObsoletionEvents = new AtomicInteger(0);
   private final AtomicInteger numDmeEventsNoData = new AtomicInteger(0);
+  private final AtomicInteger numDmeEventsWithData = new AtomicInteger(0);
 
   public ShuffleInputEventHandlerImpl(InputContext inputContext,
                                       ShuffleManager shuffleManager,
@@ -111,6 +117,7 @@ public class ShuffleInputEventHandlerImpl implements ShuffleEventHandler {
     LOG.info(inputContext.getSourceVertexName() + ": "
         + "numDmeEventsSeen=" + numDmeEvents.get()
         + ", numDmeEventsSeenWithNoData=" + numDmeEventsNoData.get()
+        + ", numDmeEventsSeenWithData=" + numDmeEventsWithData.get()
         + ", numObsoletionEventsSeen=" + numObsoletionEvents.get()
         + (updateOnClose == true ? ", updateOnClose" : ""));
   }
@@ -147,6 +154,14 @@ public class ShuffleInputEventHandlerImpl implements ShuffleEventHandler {
       }
     }
 
+    if (shufflePayload.getDataCount() > 0) {
+      InputAttemptIdentifier srcAttemptIdentifier =
+          constructInputAttemptIdentifier(dme, shufflePayload, false);
+      numDmeEventsWithData.incrementAndGet();
+      processDataInEvent(shufflePayload, shufflePayload.getData(srcIndex), srcAttemptIdentifier);
+      return;
+    }
+
     InputAttemptIdentifier srcAttemptIdentifier = constructInputAttemptIdentifier(dme,
         shufflePayload, (useSharedInputs && srcIndex == 0));
 
@@ -154,6 +169,39 @@ public class ShuffleInputEventHandlerImpl implements ShuffleEventHandler {
         shufflePayload.getPort(), srcAttemptIdentifier, srcIndex);
   }
 
+  /**
+   * Take the data of the partition sent along with the event, as if it was fetched.
+   */
+  private void processDataInEvent(DataMovementEventPayloadProto shufflePayload,
+      DataProto dataProto, InputAttemptIdentifier srcAttemptIdentifier) throws IOException {
+    long startTime = System.currentTimeMillis();
+    int rawLength = dataProto.getRawLength();
+    int compressedLength = dataProto.getCompressedLength();
+    String hostIdentifier = shufflePayload.getHost() + ":" + shufflePayload.getPort();
+    FetchedInput fetchedInput = inputAllocator.allocate(rawLength, compressedLength,
+        srcAttemptIdentifier);
+    InputStream input = dataProto.getData().newInput();
+    try {
+      if (fetchedInput.getType() == FetchedInput.Type.MEMORY) {
+        ShuffleUtils.shuffleToMemory(((MemoryFetchedInput) fetchedInput).getBuffer(), input,
+            rawLength, compressedLength, codec, ifileReadAhead, ifileReadAheadLength, LOG,
+            srcAttemptIdentifier.toString());
+      } else if (fetchedInput.getType() == FetchedInput.Type.DISK) {
+        ShuffleUtils.shuffleToDisk(((DiskFetchedInput) fetchedInput).getOutputStream(),
+            hostIdentifier, input, compressedLength, rawLength, LOG,
+            srcAttemptIdentifier.toString());
+      } else {
+        throw new TezUncheckedException("Bad fetchedInput type while taking data from event: "
+            + fetchedInput);
+      }
+    } catch (IOException e) {
+      fetchedInput.abort();
+      throw e;
+    }
+    shuffleManager.fetchSucceeded(shufflePayload.getHost(), srcAttemptIdentifier, fetchedInput,
+        compressedLength, rawLength, System.currentTimeMillis() - startTime);
+  }
+
   private void processInputFailedEvent(InputFailedEvent ife) {
     InputAttemptIdentifier srcAttemptIdentifier = new InputAttemptIdentifier(ife.getTargetIndex(), ife.getVersion());
     shuffleManager.obsoleteKnownInput(srcAttemptIdentifier);
@@ -26,6 +26,7 @@ import java.text.DecimalFormat;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -33,10 +34,13 @@ import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
@@ -69,6 +73,7 @@ import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.InputIdentifier;
 import org.apache.tez.runtime.library.common.TezRuntimeUtils;
+import org.apache.tez.runtime.library.common.shuffle.ContainerFetchService;
 import org.apache.tez.runtime.library.common.shuffle.FetchResult;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInput;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInputAllocator;
@@ -97,6 +102,11 @@ public class ShuffleManager implements FetcherCallback {
 
   private static final Logger LOG = LoggerFactory.getLogger(ShuffleManager.class);
 
+  // penalty of a host which failed fetches, growing as the one of the ShuffleScheduler does
+  private static final long INITIAL_HOST_PENALTY_MS = 2000;
+  private static final float HOST_PENALTY_GROWTH_RATE = 1.3f;
+  private static final long MAX_HOST_PENALTY_MS = 60 * 1000;
+
   private final InputContext inputContext;
   private final int numInputs;
 
@@ -105,6 +115,8 @@ public class ShuffleManager implements FetcherCallback {
   private final FetchedInputAllocator inputManager;
 
   private final ListeningExecutorService fetcherExecutor;
+  // writes the inputs of non-blocking fetches to disk, null unless fetching non-blocking
+  private final ExecutorService diskWriteExecutor;
 
   private final ListeningExecutorService schedulerExecutor;
   private final RunShuffleCallable schedulerCallable;
@@ -129,12 +141,19 @@ public class ShuffleManager implements FetcherCallback {
   private final Condition wakeLoop = lock.newCondition();
   
   private final int numFetchers;
+  // fetchers which run at once, more than numFetchers with non-blocking fetches
+  private final int maxRunningFetchers;
   private final boolean asyncHttp;
+  private final boolean nonBlockingFetch;
+  private final boolean containerFetchService;
+  // hosts held back while they are penalized by the container fetch service, guarded by lock
+  private final DelayQueue<PenalizedHost> penalizedHosts = new DelayQueue<PenalizedHost>();
   
   // Parameters required by Fetchers
   private final JobTokenSecretManager jobTokenSecretMgr;
   private final CompressionCodec codec;
   private final boolean localDiskFetchEnabled;
+  private final boolean localDiskFetchMapped;
   private final boolean sharedFetchEnabled;
   
   private final int ifileBufferSize;
@@ -144,6 +163,8 @@ public class ShuffleManager implements FetcherCallback {
   private final String srcNameTrimmed;
 
   private final int maxTaskOutputAtOnce;
+  private final int maxPartitionsAtOnce;
+  private final boolean prioritizeHosts;
 
   private final AtomicBoolean isShutdown = new AtomicBoolean(false);
 
@@ -166,6 +187,8 @@ public class ShuffleManager implements FetcherCallback {
   private final int shufflePort;
 
   private final TezCounter shufflePhaseTime;
+  private final TezCounter shuffleConnections;
+  private final TezCounter shuffleConnectionsReused;
   private final TezCounter firstEventReceived;
   private final TezCounter lastEventReceived;
 
@@ -196,10 +219,16 @@ public class ShuffleManager implements FetcherCallback {
     this.inputManager = inputAllocator;
     this.localDiskFetchEnabled = conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH,
         TezRuntimeConfiguration.TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH_DEFAULT);
+    this.localDiskFetchMapped = conf.getBoolean(
+        TezRuntimeConfiguration.TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH_MMAP,
+        TezRuntimeConfiguration.TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH_MMAP_DEFAULT);
     this.sharedFetchEnabled = conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_OPTIMIZE_SHARED_FETCH,
         TezRuntimeConfiguration.TEZ_RUNTIME_OPTIMIZE_SHARED_FETCH_DEFAULT);
 
     this.shufflePhaseTime = inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_PHASE_TIME);
+    this.shuffleConnections = inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_CONNECTIONS);
+    this.shuffleConnectionsReused =
+        inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_CONNECTIONS_REUSED);
     this.firstEventReceived = inputContext.getCounters().findCounter(TaskCounter.FIRST_EVENT_RECEIVED);
     this.lastEventReceived = inputContext.getCounters().findCounter(TaskCounter.LAST_EVENT_RECEIVED);
     
@@ -223,11 +252,19 @@ public class ShuffleManager implements FetcherCallback {
     
     this.numFetchers = Math.min(maxConfiguredFetchers, numInputs);
     
-    ExecutorService fetcherRawExecutor = Executors.newFixedThreadPool(
-        numFetchers,
-        new ThreadFactoryBuilder().setDaemon(true)
-            .setNameFormat("Fetcher {" + srcNameTrimmed + "} #%d").build());
-    this.fetcherExecutor = MoreExecutors.listeningDecorator(fetcherRawExecutor);
+    this.containerFetchService = conf.getBoolean(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_CONTAINER_SERVICE,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_CONTAINER_SERVICE_DEFAULT);
+    if (containerFetchService) {
+      // the fetchers submitted at a time are limited by the RunShuffleCallable
+      this.fetcherExecutor = ContainerFetchService.getInstance().newExecutor();
+    } else {
+      ExecutorService fetcherRawExecutor = Executors.newFixedThreadPool(
+          numFetchers,
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("Fetcher {" + srcNameTrimmed + "} #%d").build());
+      this.fetcherExecutor = MoreExecutors.listeningDecorator(fetcherRawExecutor);
+    }
     
     ExecutorService schedulerRawExecutor = Executors.newFixedThreadPool(1, new ThreadFactoryBuilder()
         .setDaemon(true).setNameFormat("ShuffleRunner {" + srcNameTrimmed + "}").build());
@@ -242,6 +279,24 @@ public class ShuffleManager implements FetcherCallback {
             .getServiceConsumerMetaData(TezConstants.TEZ_SHUFFLE_HANDLER_SERVICE_ID));
     this.jobTokenSecretMgr = new JobTokenSecretManager(shuffleSecret);
     this.asyncHttp = conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_USE_ASYNC_HTTP, false);
+    this.nonBlockingFetch = conf.getBoolean(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_NON_BLOCKING,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_NON_BLOCKING_DEFAULT);
+    if (nonBlockingFetch) {
+      // fetches which cannot be done non-blocking queue up for the numFetchers threads
+      this.maxRunningFetchers = Math.max(numFetchers, Math.min(numInputs, conf.getInt(
+          TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_NON_BLOCKING_PARALLEL_FETCHES,
+          TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_NON_BLOCKING_PARALLEL_FETCHES_DEFAULT)));
+      // one writer per local dir, the disks are the bottleneck
+      int numDiskWriters = Math.max(1, Math.min(numFetchers,
+          conf.getTrimmedStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS).length));
+      this.diskWriteExecutor = Executors.newFixedThreadPool(numDiskWriters,
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("ShuffleDiskWriter {" + srcNameTrimmed + "} #%d").build());
+    } else {
+      this.maxRunningFetchers = numFetchers;
+      this.diskWriteExecutor = null;
+    }
     httpConnectionParams = ShuffleUtils.getHttpConnectionParams(conf);
 
     this.localFs = (RawLocalFileSystem) FileSystem.getLocal(conf).getRaw();
@@ -263,6 +318,12 @@ public class ShuffleManager implements FetcherCallback {
     this.maxTaskOutputAtOnce = Math.max(1, Math.min(75, conf.getInt(
         TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE,
         TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE_DEFAULT)));
+    this.maxPartitionsAtOnce = Math.max(1, conf.getInt(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITIONS_AT_ONCE,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITIONS_AT_ONCE_DEFAULT));
+    this.prioritizeHosts = conf.getBoolean(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_HOST_PRIORITY,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_HOST_PRIORITY_DEFAULT);
 
     Arrays.sort(this.localDisks);
 
@@ -273,8 +334,14 @@ public class ShuffleManager implements FetcherCallback {
         + numFetchers + ", ifileBufferSize=" + ifileBufferSize + ", ifileReadAheadEnabled="
         + ifileReadAhead + ", ifileReadAheadLength=" + ifileReadAheadLength +", "
         + "localDiskFetchEnabled=" + localDiskFetchEnabled + ", "
+        + "localDiskFetchMapped=" + localDiskFetchMapped + ", "
         + "sharedFetchEnabled=" + sharedFetchEnabled + ", "
-        + httpConnectionParams.toString() + ", maxTaskOutputAtOnce=" + maxTaskOutputAtOnce);
+        + "nonBlockingFetch=" + nonBlockingFetch + ", "
+        + "maxRunningFetchers=" + maxRunningFetchers + ", "
+        + "containerFetchService=" + containerFetchService + ", "
+        + httpConnectionParams.toString() + ", maxTaskOutputAtOnce=" + maxTaskOutputAtOnce
+        + ", maxPartitionsAtOnce=" + maxPartitionsAtOnce
+        + ", prioritizeHosts=" + prioritizeHosts);
   }
 
   public void run() throws IOException {
@@ -299,9 +366,17 @@ public class ShuffleManager implements FetcherCallback {
       while (!isShutdown.get() && numCompletedInputs.get() < numInputs) {
         lock.lock();
         try {
-          if (runningFetchers.size() >= numFetchers || pendingHosts.isEmpty()) {
+          releasePenalizedHosts();
+          if (runningFetchers.size() >= maxRunningFetchers || pendingHosts.isEmpty()) {
             if (numCompletedInputs.get() < numInputs) {
-              wakeLoop.await();
+              PenalizedHost penalizedHost = penalizedHosts.peek();
+              if (penalizedHost == null) {
+                wakeLoop.await();
+              } else {
+                wakeLoop.await(penalizedHost.getDelay(TimeUnit.MILLISECONDS),
+                    TimeUnit.MILLISECONDS);
+              }
+              releasePenalizedHosts();
             }
           }
         } finally {
@@ -320,12 +395,12 @@ public class ShuffleManager implements FetcherCallback {
         if (numCompletedInputs.get() < numInputs && !isShutdown.get()) {
           lock.lock();
           try {
-            int maxFetchersToRun = numFetchers - runningFetchers.size();
+            int maxFetchersToRun = maxRunningFetchers - runningFetchers.size();
             int count = 0;
             while (pendingHosts.peek() != null && !isShutdown.get()) {
               InputHost inputHost = null;
               try {
-                inputHost = pendingHosts.take();
+                inputHost = prioritizeHosts ? takeHostWithHighestPriority() : pendingHosts.take();
               } catch (InterruptedException e) {
                 if (isShutdown.get()) {
                   LOG.info(srcNameTrimmed + ": " + "Interrupted and hasBeenShutdown, Breaking out of ShuffleScheduler Loop");
@@ -338,6 +413,9 @@ public class ShuffleManager implements FetcherCallback {
               if (LOG.isDebugEnabled()) {
                 LOG.debug(srcNameTrimmed + ": " + "Processing pending host: " + inputHost.toDetailedString());
               }
+              if (isPenalized(inputHost)) {
+                continue;
+              }
               if (inputHost.getNumPendingInputs() > 0 && !isShutdown.get()) {
                 Fetcher fetcher = constructFetcherForHost(inputHost, conf);
                 runningFetchers.add(fetcher);
@@ -345,8 +423,10 @@ public class ShuffleManager implements FetcherCallback {
                   LOG.info(srcNameTrimmed + ": " + "hasBeenShutdown, Breaking out of ShuffleScheduler Loop");
                   break;
                 }
-                ListenableFuture<FetchResult> future = fetcherExecutor
-                    .submit(fetcher);
+                // non-blocking fetches do not take a fetcher thread, so more of them run at once
+                ListenableFuture<FetchResult> future =
+                    (nonBlockingFetch && fetcher.canFetchNonBlocking())
+                        ? fetcher.fetchNonBlocking() : fetcherExecutor.submit(fetcher);
                 Futures.addCallback(future, new FetchFutureCallback(fetcher));
                 if (++count >= maxFetchersToRun) {
                   break;
@@ -368,10 +448,101 @@ public class ShuffleManager implements FetcherCallback {
       if (!fetcherExecutor.isShutdown()) {
         fetcherExecutor.shutdownNow();
       }
+      if (diskWriteExecutor != null) {
+        // lets the writers complete the fetches they are finishing
+        diskWriteExecutor.shutdown();
+      }
       return null;
     }
   }
 
+  /**
+   * Hold the host back while the container fetch service has it penalized, as the shuffle of
+   * an input of the container failed to fetch from it recently. Must be called with the lock
+   * held.
+   *
+   * @return true if the host is penalized
+   */
+  private boolean isPenalized(InputHost inputHost) {
+    if (!containerFetchService) {
+      return false;
+    }
+    long penalty = ContainerFetchService.getInstance().getHostPenalty(inputHost.getIdentifier());
+    if (penalty <= 0) {
+      return false;
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(srcNameTrimmed + ": " + "Holding back penalized host: "
+          + inputHost.getIdentifier() + " for " + penalty + " ms");
+    }
+    penalizedHosts.add(new PenalizedHost(inputHost, penalty));
+    return true;
+  }
+
+  /**
+   * Must be called with the lock held.
+   */
+  private void releasePenalizedHosts() {
+    PenalizedHost penalizedHost;
+    while ((penalizedHost = penalizedHosts.poll()) != null) {
+      pendingHosts.add(penalizedHost.host);
+    }
+  }
+
+  /**
+   * Let the shuffles of all inputs in the container back off from a host which failed to serve
+   * a fetch, for longer the more fetches from it failed in a row.
+   */
+  private void penalizeHost(String host, int port) {
+    String identifier = InputHost.createIdentifier(host, port);
+    InputHost inputHost = knownSrcHosts.get(identifier);
+    int failures = inputHost == null ? 1 : inputHost.getStats().getFailuresSinceLastFetch();
+    long delay = (long) Math.min(MAX_HOST_PENALTY_MS,
+        INITIAL_HOST_PENALTY_MS * Math.pow(HOST_PENALTY_GROWTH_RATE, Math.max(0, failures - 1)));
+    ContainerFetchService.getInstance().penalizeHost(identifier, delay);
+  }
+
+  private static class PenalizedHost implements Delayed {
+    private final InputHost host;
+    private final long endTime;
+
+    PenalizedHost(InputHost host, long delay) {
+      this.host = host;
+      this.endTime = System.currentTimeMillis() + delay;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(endTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+      long other = ((PenalizedHost) o).endTime;
+      return endTime == other ? 0 : (endTime < other ? -1 : 1);
+    }
+  }
+
+  /**
+   * Take the pending host with the most inputs pending and the best throughput so far. Hosts
+   * nothing was fetched from yet come first, hosts failing to serve fetches last.
+   */
+  private InputHost takeHostWithHighestPriority() throws InterruptedException {
+    InputHost bestHost = null;
+    double bestPriority = -1;
+    for (InputHost host : pendingHosts) {
+      double priority = host.getStats().getPriority(host.getNumPendingInputs());
+      if (priority > bestPriority) {
+        bestPriority = priority;
+        bestHost = host;
+      }
+    }
+    if (bestHost != null && pendingHosts.remove(bestHost)) {
+      return bestHost;
+    }
+    return pendingHosts.take();
+  }
+
   private boolean validateInputAttemptForPipelinedShuffle(InputAttemptIdentifier input) {
     //For pipelined shuffle.
     //TODO: TEZ-2132 for error handling. As of now, fail fast if there is a different attempt
@@ -410,12 +581,20 @@ public class ShuffleManager implements FetcherCallback {
       fetcherBuilder.setCompressionParameters(codec);
     }
     fetcherBuilder.setIFileParams(ifileReadAhead, ifileReadAheadLength);
+    fetcherBuilder.setHostStats(inputHost.getStats());
+    fetcherBuilder.setLocalDiskFetchMapped(localDiskFetchMapped);
+    fetcherBuilder.setConnectionCounters(shuffleConnections, shuffleConnectionsReused);
+    if (diskWriteExecutor != null) {
+      fetcherBuilder.setDiskWriteExecutor(diskWriteExecutor);
+    }
 
     // Remove obsolete inputs from the list being given to the fetcher. Also
     // remove from the obsolete list.
-    List<InputAttemptIdentifier> pendingInputsForHost = inputHost
-        .clearAndGetPendingInputs();
-    int includedMaps = 0;
+    InputHost.PartitionToInputs pendingInputs =
+        inputHost.clearAndGetPendingInputs(maxPartitionsAtOnce);
+    List<InputAttemptIdentifier> pendingInputsForHost = pendingInputs.getInputs();
+    // the inputs of a partition range are limited by the number of source attempts requested
+    Set<String> includedMaps = new HashSet<String>();
     for (Iterator<InputAttemptIdentifier> inputIter = pendingInputsForHost
         .iterator(); inputIter.hasNext();) {
       InputAttemptIdentifier input = inputIter.next();
@@ -437,22 +616,22 @@ public class ShuffleManager implements FetcherCallback {
       }
 
       // Check if max threshold is met
-      if (includedMaps >= maxTaskOutputAtOnce) {
+      if (!includedMaps.contains(input.getPathComponent())
+          && includedMaps.size() >= maxTaskOutputAtOnce) {
         inputIter.remove();
         inputHost.addKnownInput(input); //add to inputHost
       } else {
-        includedMaps++;
+        includedMaps.add(input.getPathComponent());
       }
     }
     if (inputHost.getNumPendingInputs() > 0) {
       pendingHosts.add(inputHost); //add it to queue
     }
-    fetcherBuilder.assignWork(inputHost.getHost(), inputHost.getPort(),
-        inputHost.getSrcPhysicalIndex(), pendingInputsForHost);
+    fetcherBuilder.assignWork(inputHost.getHost(), inputHost.getPort(), pendingInputs);
     if (LOG.isDebugEnabled()) {
       LOG.debug("Created Fetcher for host: " + inputHost.getHost()
           + ", info: " + inputHost.getAdditionalInfo()
-          + ", with inputs: " + pendingInputsForHost);
+          + ", with inputs: " + pendingInputs);
     }
     return fetcherBuilder.build();
   }
@@ -464,7 +643,7 @@ public class ShuffleManager implements FetcherCallback {
     String identifier = InputHost.createIdentifier(hostName, port);
     InputHost host = knownSrcHosts.get(identifier);
     if (host == null) {
-      host = new InputHost(hostName, port, inputContext.getApplicationId(), srcPhysicalIndex);
+      host = new InputHost(hostName, port, inputContext.getApplicationId());
       assert identifier.equals(host.getIdentifier());
       InputHost old = knownSrcHosts.putIfAbsent(identifier, host);
       if (old != null) {
@@ -484,7 +663,7 @@ public class ShuffleManager implements FetcherCallback {
       shuffleInfoEventsMap.put(inputIdentifier, new ShuffleEventInfo(srcAttemptIdentifier));
     }
 
-    host.addKnownInput(srcAttemptIdentifier);
+    host.addKnownInput(srcPhysicalIndex, srcAttemptIdentifier);
     lock.lock();
     try {
       boolean added = pendingHosts.offer(host);
@@ -807,6 +986,11 @@ public class ShuffleManager implements FetcherCallback {
       if (this.fetcherExecutor != null && !this.fetcherExecutor.isShutdown()) {
         this.fetcherExecutor.shutdownNow(); // Interrupts all running fetchers.
       }
+      if (this.diskWriteExecutor != null && !this.diskWriteExecutor.isShutdown()) {
+        // not shutdownNow, a writer dropped from the queue would never complete its fetch; the
+        // fetchers were shut down above, which discards the data they had left to write
+        this.diskWriteExecutor.shutdown();
+      }
     }
   }
 
@@ -964,6 +1148,10 @@ public class ShuffleManager implements FetcherCallback {
           LOG.debug(srcNameTrimmed + ": " + "Already shutdown. Ignoring event from fetcher");
         }
       } else {
+        if (containerFetchService && fetcher.hasReportedFailures()) {
+          // before the host is pending again, so that the penalty applies to this shuffle too
+          penalizeHost(result.getHost(), result.getPort());
+        }
         Iterable<InputAttemptIdentifier> pendingInputs = result.getPendingInputs();
         if (pendingInputs != null && pendingInputs.iterator().hasNext()) {
           InputHost inputHost = knownSrcHosts.get(InputHost.createIdentifier(result.getHost(), result.getPort()));
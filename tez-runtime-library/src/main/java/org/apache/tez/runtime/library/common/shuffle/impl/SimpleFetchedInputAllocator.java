@@ -19,7 +19,9 @@
 package org.apache.tez.runtime.library.common.shuffle.impl;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
+import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.hadoop.classification.InterfaceAudience.Private;
@@ -37,6 +39,9 @@ import org.apache.tez.runtime.library.common.shuffle.FetchedInput.Type;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInputAllocator;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInputCallback;
 import org.apache.tez.runtime.library.common.shuffle.MemoryFetchedInput;
+import org.apache.tez.runtime.library.common.shuffle.ShuffleBufferPool;
+import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
+import org.apache.tez.runtime.library.utils.BufferUtils;
 
 
 /**
@@ -65,9 +70,23 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
   
   private volatile long usedMemory = 0;
 
+  // keep the inputs in direct buffers, within a budget of their own
+  private final boolean offHeap;
+  // recycles the buffers of memory inputs, null if disabled
+  private final ShuffleBufferPool bufferPool;
+
   public SimpleFetchedInputAllocator(String srcNameTrimmed, String uniqueIdentifier, Configuration conf,
       long maxTaskAvailableMemory, long memoryAvailable) {
+    this(srcNameTrimmed, uniqueIdentifier, conf, maxTaskAvailableMemory, memoryAvailable, null);
+  }
+
+  public SimpleFetchedInputAllocator(String srcNameTrimmed, String uniqueIdentifier, Configuration conf,
+      long maxTaskAvailableMemory, long memoryAvailable, ShuffleBufferPool bufferPool) {
     this.srcNameTrimmed = srcNameTrimmed;
+    final long offHeapMemLimit = ShuffleUtils.getOffHeapMemoryLimit(conf);
+    this.offHeap = offHeapMemLimit > 0;
+    // the pool only holds heap buffers
+    this.bufferPool = offHeap ? null : bufferPool;
     this.conf = conf;    
     this.maxAvailableTaskMemory = maxTaskAvailableMemory;
     this.initialMemoryAvailable = memoryAvailable;
@@ -89,7 +108,10 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
     long memReq = (long) (conf.getLong(Constants.TEZ_RUNTIME_TASK_MEMORY,
         Math.min(maxAvailableTaskMemory, Integer.MAX_VALUE)) * maxInMemCopyUse);
     
-    if (memReq <= this.initialMemoryAvailable) {
+    if (offHeap) {
+      // not part of the memory given to the input
+      this.memoryLimit = offHeapMemLimit;
+    } else if (memReq <= this.initialMemoryAvailable) {
       this.memoryLimit = memReq;
     } else {
       this.memoryLimit = initialMemoryAvailable;
@@ -113,6 +135,8 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
         + "RequestedMemory=" + memReq
         + ", AssignedMemory=" + this.memoryLimit
         + ", maxSingleShuffleLimit=" + this.maxSingleShuffleLimit
+        + ", offHeap=" + offHeap
+        + ", bufferPool=" + (this.bufferPool != null)
     );
 
   }
@@ -127,6 +151,10 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
           + TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_BUFFER_PERCENT + ": "
           + maxInMemCopyUse);
     }
+    if (ShuffleUtils.getOffHeapMemoryLimit(conf) > 0) {
+      // the inputs are held in direct memory
+      return 0;
+    }
     long memReq = (long) (conf.getLong(Constants.TEZ_RUNTIME_TASK_MEMORY,
         Math.min(maxAvailableTaskMemory, Integer.MAX_VALUE)) * maxInMemCopyUse);
     return memReq;
@@ -135,18 +163,32 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
   @Override
   public synchronized FetchedInput allocate(long actualSize, long compressedSize,
       InputAttemptIdentifier inputAttemptIdentifier) throws IOException {
-    if (actualSize > maxSingleShuffleLimit
-        || this.usedMemory + actualSize > this.memoryLimit) {
+    // the buffer handed out by the pool may be larger than the input
+    long reservedSize = (bufferPool != null && actualSize <= Integer.MAX_VALUE)
+        ? ShuffleBufferPool.getBufferSize((int) actualSize) : actualSize;
+    if (reservedSize > maxSingleShuffleLimit
+        || this.usedMemory + reservedSize > this.memoryLimit) {
       return new DiskFetchedInput(actualSize, compressedSize,
           inputAttemptIdentifier, this, conf, localDirAllocator,
           fileNameAllocator);
     } else {
-      this.usedMemory += actualSize;
+      this.usedMemory += reservedSize;
       if (LOG.isDebugEnabled()) {
-        LOG.info(srcNameTrimmed + ": " + "Used memory after allocating " + actualSize + " : " +
+        LOG.info(srcNameTrimmed + ": " + "Used memory after allocating " + reservedSize + " : " +
             usedMemory);
       }
-      return new MemoryFetchedInput(actualSize, compressedSize, inputAttemptIdentifier, this);
+      if (offHeap) {
+        return new MemoryFetchedInput(actualSize, compressedSize, inputAttemptIdentifier, this,
+            ByteBuffer.allocateDirect((int) actualSize));
+      }
+      if (bufferPool == null) {
+        return new MemoryFetchedInput(actualSize, compressedSize, inputAttemptIdentifier, this);
+      }
+      byte[] buffer = bufferPool.take((int) actualSize);
+      // the buffers kept by the pool and the memory in use stay within the memory limit
+      bufferPool.trim(memoryLimit - usedMemory);
+      return new MemoryFetchedInput(actualSize, compressedSize, inputAttemptIdentifier, this,
+          buffer);
     }
   }
 
@@ -187,6 +229,14 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
   @Override
   public synchronized void freeResources(FetchedInput fetchedInput) {
     cleanup(fetchedInput);
+    // the input was read, nothing refers to its buffer anymore. Buffers of failed fetches are
+    // neither recycled nor freed, since their fetcher may still be writing into them.
+    if (offHeap && fetchedInput.getType() == Type.MEMORY) {
+      BufferUtils.freeDirectBuffer(((MemoryFetchedInput) fetchedInput).getBuffer());
+    } else if (bufferPool != null && fetchedInput.getType() == Type.MEMORY) {
+      bufferPool.release(((MemoryFetchedInput) fetchedInput).getBytes(),
+          memoryLimit - usedMemory);
+    }
   }
 
   private void cleanup(FetchedInput fetchedInput) {
@@ -194,7 +244,7 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
     case DISK:
       break;
     case MEMORY:
-      unreserve(fetchedInput.getActualSize());
+      unreserve(((MemoryFetchedInput) fetchedInput).getReservedSize());
       break;
     default:
       throw new TezUncheckedException("InputType: " + fetchedInput.getType()
@@ -202,6 +252,16 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
     }
   }
 
+  @VisibleForTesting
+  long getUsedMemory() {
+    return usedMemory;
+  }
+
+  @VisibleForTesting
+  long getMemoryLimit() {
+    return memoryLimit;
+  }
+
   private synchronized void unreserve(long size) {
     this.usedMemory -= size;
     if (LOG.isDebugEnabled()) {
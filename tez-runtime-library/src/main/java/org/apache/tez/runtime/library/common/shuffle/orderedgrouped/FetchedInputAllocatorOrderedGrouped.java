@@ -27,8 +27,21 @@ public interface FetchedInputAllocatorOrderedGrouped {
                                         long compressedLength,
                                         int fetcherId) throws IOException;
 
+  /**
+   * Reserve a STREAM output for an input, which is then read straight from its source by the
+   * final merge.
+   *
+   * @return a STREAM output, or null if the input should be fetched with
+   * {@link #reserve(InputAttemptIdentifier, long, long, int)} instead
+   */
+  public MapOutput reserveStream(InputAttemptIdentifier srcAttemptIdentifier,
+                                 long requestedSize,
+                                 long compressedLength);
+
   void closeInMemoryFile(MapOutput mapOutput);
 
+  void closeStreamedOutput(MapOutput mapOutput);
+
   void closeOnDiskFile(FileChunk file);
 
   void unreserve(long bytes);
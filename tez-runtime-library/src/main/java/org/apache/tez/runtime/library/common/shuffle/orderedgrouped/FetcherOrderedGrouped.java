@@ -18,7 +18,9 @@
 package org.apache.tez.runtime.library.common.shuffle.orderedgrouped;
 
 import java.io.DataInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.Arrays;
@@ -31,6 +33,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.tez.http.BaseHttpConnection;
 import org.apache.tez.http.HttpConnectionParams;
+import org.apache.tez.http.async.netty.TezConnectionsPool;
 import org.apache.tez.common.CallableWithNdc;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -66,6 +69,8 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
   private final TezCounter badIdErrs;
   private final TezCounter wrongMapErrs;
   private final TezCounter wrongReduceErrs;
+  private final TezCounter connectionsCounter;
+  private final TezCounter connectionsReusedCounter;
   private final FetchedInputAllocatorOrderedGrouped allocator;
   private final ShuffleScheduler scheduler;
   private final ShuffleClientMetrics metrics;
@@ -90,6 +95,8 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
   private final int ifileReadAheadLength;
   @VisibleForTesting
   Map<String, InputAttemptIdentifier> remaining;
+  // whether mapHost was freed before the fetch finished, see freeHost()
+  private boolean hostFreed;
   volatile DataInputStream input;
 
   volatile BaseHttpConnection httpConnection;
@@ -118,6 +125,8 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
                                TezCounter wrongMapErrsCounter,
                                TezCounter connectionErrsCounter,
                                TezCounter wrongReduceErrsCounter,
+                               TezCounter connectionsCounter,
+                               TezCounter connectionsReusedCounter,
                                boolean asyncHttp) {
     this.scheduler = scheduler;
     this.allocator = allocator;
@@ -134,6 +143,8 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
     this.wrongMapErrs = wrongMapErrsCounter;
     this.connectionErrs = connectionErrsCounter;
     this.wrongReduceErrs = wrongReduceErrsCounter;
+    this.connectionsCounter = connectionsCounter;
+    this.connectionsReusedCounter = connectionsReusedCounter;
 
     this.ifileReadAhead = ifileReadAhead;
     this.ifileReadAheadLength = ifileReadAheadLength;
@@ -154,6 +165,7 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
 
   @VisibleForTesting
   protected void fetchNext() throws InterruptedException, IOException {
+    hostFreed = false;
     try {
       metrics.threadBusy();
 
@@ -166,11 +178,18 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
       }
     } finally {
       cleanupCurrentConnection(false);
-      scheduler.freeHost(mapHost);
+      freeHost();
       metrics.threadFree();
     }
   }
 
+  private void freeHost() {
+    if (!hostFreed) {
+      hostFreed = true;
+      scheduler.freeHost(mapHost);
+    }
+  }
+
   @Override
   public Void callInternal() {
     try {
@@ -220,6 +239,23 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
     }
   }
 
+  /**
+   * Hand the current connection over to a streamed map output, which reads the rest of the
+   * response and closes the connection once the final merge is done with it.
+   */
+  private InputStream handOverConnection() {
+    synchronized (cleanupLock) {
+      final BaseHttpConnection connection = httpConnection;
+      httpConnection = null;
+      return new FilterInputStream(input) {
+        @Override
+        public void close() throws IOException {
+          connection.cleanup(true);
+        }
+      };
+    }
+  }
+
   /**
    * The crux of the matter...
    * 
@@ -323,7 +359,12 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
           httpConnectionParams.isKeepAlive());
       httpConnection = ShuffleUtils.getHttpConnection(asyncHttp, url, httpConnectionParams,
           logIdentifier, jobTokenSecretManager);
-      connectSucceeded = httpConnection.connect();
+      TezConnectionsPool.setInputCounters(connectionsCounter, connectionsReusedCounter);
+      try {
+        connectSucceeded = httpConnection.connect();
+      } finally {
+        TezConnectionsPool.clearInputCounters();
+      }
 
       if (stopped) {
         if (LOG.isDebugEnabled()) {
@@ -457,9 +498,15 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
             ", decomp len: " + decompressedLength);
       }
 
-      // Get the location for the map output - either in-memory or on-disk
+      // Get the location for the map output - either in-memory or on-disk, or the final merge if
+      // it is the last output on the connection
       try {
-        mapOutput = allocator.reserve(srcAttemptId, decompressedLength, compressedLength, id);
+        if (remaining.size() == 1 && scheduler.canStreamToMerge()) {
+          mapOutput = allocator.reserveStream(srcAttemptId, decompressedLength, compressedLength);
+        }
+        if (mapOutput == null) {
+          mapOutput = allocator.reserve(srcAttemptId, decompressedLength, compressedLength, id);
+        }
       } catch (IOException e) {
         if (!stopped) {
           // Kill the reduce attempt
@@ -488,12 +535,14 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
       }
 
       if (mapOutput.getType() == Type.MEMORY) {
-        ShuffleUtils.shuffleToMemory(mapOutput.getMemory(), input,
+        ShuffleUtils.shuffleToMemory(mapOutput.getMemoryBuffer(), input,
           (int) decompressedLength, (int) compressedLength, codec, ifileReadAhead,
           ifileReadAheadLength, LOG, mapOutput.getAttemptIdentifier().toString());
       } else if (mapOutput.getType() == Type.DISK) {
         ShuffleUtils.shuffleToDisk(mapOutput.getDisk(), host.getHostIdentifier(),
           input, compressedLength, decompressedLength, LOG, mapOutput.getAttemptIdentifier().toString());
+      } else if (mapOutput.getType() == Type.STREAM) {
+        mapOutput.setStream(handOverConnection());
       } else {
         throw new IOException("Unknown mapOutput type while fetching shuffle data:" +
             mapOutput.getType());
@@ -509,6 +558,11 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
       // Note successful shuffle
       remaining.remove(srcAttemptId.toString());
       metrics.successFetch();
+      if (mapOutput.getType() == Type.STREAM) {
+        // The streamed output was the last one on the connection and the connection belongs to
+        // it now, so the host does not have to wait for the final merge to be fetched from again
+        freeHost();
+      }
       return null;
     } catch (IOException ioe) {
       if (stopped) {
@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.orderedgrouped;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import org.apache.tez.common.counters.TezCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adapts the number of fetchers a shuffle runs concurrently, between 1 and the configured
+ * number of fetchers, to the throughput observed.
+ *
+ * Starts with a quarter of the fetchers, and adds one fetcher per interval while hosts are
+ * waiting for a fetcher and all fetchers allowed are busy. If the throughput of the interval
+ * after adding a fetcher did not improve, the fetcher is taken away again and no fetcher is added
+ * for a few intervals; the bottleneck is then the network or the remote disks rather than the
+ * number of fetchers. A fetcher is also taken away while the memory of the shuffle is nearly
+ * used up, since more fetchers would only wait for the merge.
+ */
+class FetcherParallelism {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FetcherParallelism.class);
+
+  @VisibleForTesting
+  static final long INTERVAL_MS = 1000;
+  // minimal relative gain in throughput to keep an added fetcher
+  @VisibleForTesting
+  static final double MIN_GAIN = 0.05;
+  // fraction of the shuffle memory in use, above which fetchers are taken away
+  @VisibleForTesting
+  static final float MEMORY_PRESSURE = 0.9f;
+  // intervals to wait after taking away a fetcher which did not help, before adding one again
+  @VisibleForTesting
+  static final int HOLD_INTERVALS = 5;
+
+  private final String srcNameTrimmed;
+  private final int maxFetchers;
+  private final TezCounter peakFetchersCounter;
+  private final TezCounter adjustmentsCounter;
+
+  private int fetchers;
+  private long intervalStart;
+  private long intervalBytes = 0;
+  // throughput of the last interval, in bytes per second
+  private double lastThroughput = -1;
+  private boolean lastAdded = false;
+  private int holdIntervals = 0;
+
+  FetcherParallelism(String srcNameTrimmed, int maxFetchers, long now,
+      TezCounter peakFetchersCounter, TezCounter adjustmentsCounter) {
+    Preconditions.checkArgument(maxFetchers > 0, "maxFetchers should be > 0");
+    this.srcNameTrimmed = srcNameTrimmed;
+    this.maxFetchers = maxFetchers;
+    this.fetchers = Math.max(1, maxFetchers / 4);
+    this.intervalStart = now;
+    this.peakFetchersCounter = peakFetchersCounter;
+    this.adjustmentsCounter = adjustmentsCounter;
+    peakFetchersCounter.setValue(fetchers);
+  }
+
+  synchronized void bytesFetched(long bytes) {
+    intervalBytes += bytes;
+  }
+
+  /**
+   * @param now current time in millis
+   * @param pendingHosts number of hosts waiting for a fetcher
+   * @param runningFetchers number of fetchers running
+   * @param usedMemoryFraction memory in use, as a fraction of the shuffle memory
+   * @return the number of fetchers to run concurrently
+   */
+  synchronized int getNumFetchers(long now, int pendingHosts, int runningFetchers,
+      float usedMemoryFraction) {
+    if (now - intervalStart >= INTERVAL_MS) {
+      adjust(now, pendingHosts, runningFetchers, usedMemoryFraction);
+    }
+    return fetchers;
+  }
+
+  private void adjust(long now, int pendingHosts, int runningFetchers,
+      float usedMemoryFraction) {
+    final double throughput = intervalBytes * 1000.0 / (now - intervalStart);
+    intervalStart = now;
+    intervalBytes = 0;
+
+    final int previous = fetchers;
+    final boolean added = lastAdded;
+    lastAdded = false;
+    if (usedMemoryFraction >= MEMORY_PRESSURE) {
+      fetchers = Math.max(1, fetchers - 1);
+    } else if (added && throughput <= lastThroughput * (1 + MIN_GAIN)) {
+      // the fetcher added last did not help
+      fetchers = Math.max(1, fetchers - 1);
+      holdIntervals = HOLD_INTERVALS;
+    } else if (holdIntervals > 0) {
+      holdIntervals--;
+    } else if (pendingHosts > 0 && runningFetchers >= fetchers && fetchers < maxFetchers) {
+      fetchers++;
+      lastAdded = true;
+    }
+    lastThroughput = throughput;
+
+    if (fetchers != previous) {
+      adjustmentsCounter.increment(1);
+      if (fetchers > peakFetchersCounter.getValue()) {
+        peakFetchersCounter.setValue(fetchers);
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(srcNameTrimmed + ": " + "Changed number of fetchers from " + previous + " to "
+            + fetchers + ", throughput=" + (long) throughput + " bytes/s, pendingHosts="
+            + pendingHosts + ", usedMemoryFraction=" + usedMemoryFraction);
+      }
+    }
+  }
+}
@@ -19,19 +19,27 @@
 package org.apache.tez.runtime.library.common.shuffle.orderedgrouped;
 
 import java.io.DataInput;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Reader;
 
 /**
  * <code>IFile.InMemoryReader</code> to read map-outputs present in-memory.
+ *
+ * Records of a map-output in a heap buffer are handed out as views over the buffer. Records of a
+ * map-output in a direct buffer are copied to the heap as they are read.
  */
 @InterfaceAudience.Private
 @InterfaceStability.Unstable
@@ -44,24 +52,68 @@ public class InMemoryReader extends Reader {
   private int length;
   private int originalKeyPos;
 
+  // the buffer of the map-output, given back to the merger on close
+  private ByteBuffer data;
+  // the memory reserved for the map-output, released on close
+  private final long reservedSize;
+  // DIRECT buffer: view the records are read from, and copies of the current key and value
+  private final ByteBuffer offHeapData;
+  private byte[] offHeapKey = new byte[0];
+  private byte[] offHeapValue = new byte[0];
+
   public InMemoryReader(MergeManager merger,
       InputAttemptIdentifier taskAttemptId, byte[] data, int start,
       int length)
       throws IOException {
+    this(merger, taskAttemptId, ByteBuffer.wrap(data), start, length);
+  }
+
+  /**
+   * @param data heap or direct buffer holding the map-output
+   */
+  public InMemoryReader(MergeManager merger,
+      InputAttemptIdentifier taskAttemptId, ByteBuffer data, int start,
+      int length)
+      throws IOException {
+    this(merger, taskAttemptId, data, start, length, length);
+  }
+
+  /**
+   * @param data heap or direct buffer holding the map-output
+   * @param reservedSize memory reserved for the map-output, see
+   *                     {@link MapOutput#getReservedSize()}
+   */
+  public InMemoryReader(MergeManager merger,
+      InputAttemptIdentifier taskAttemptId, ByteBuffer data, int start,
+      int length, long reservedSize)
+      throws IOException {
     super(null, length - start, null, null, null, false, 0, -1);
     this.merger = merger;
     this.taskAttemptId = taskAttemptId;
+    this.reservedSize = reservedSize;
 
-    buffer = data;
-    bufferSize = (int) length;
-    memDataIn.reset(buffer, start, length);
-    this.start = start;
+    this.data = data;
+    bufferSize = length;
     this.length = length;
+    if (data.hasArray()) {
+      buffer = data.array();
+      this.start = data.arrayOffset() + start;
+      this.offHeapData = null;
+      memDataIn.reset(buffer, this.start, length);
+    } else {
+      this.start = start;
+      this.offHeapData = data.duplicate();
+      offHeapData.limit(start + length).position(start);
+    }
   }
 
   @Override
   public void reset(int offset) {
-    memDataIn.reset(buffer, start + offset, length);
+    if (offHeapData != null) {
+      offHeapData.position(start + offset);
+    } else {
+      memDataIn.reset(buffer, start + offset, length);
+    }
     bytesRead = offset;
     eof = false;
   }
@@ -86,7 +138,13 @@ public class InMemoryReader extends Reader {
     FileOutputStream fos = null;
     try {
       fos = new FileOutputStream(dumpFile);
-      fos.write(buffer, 0, bufferSize);
+      if (offHeapData != null) {
+        ByteBuffer dump = data.duplicate();
+        dump.clear().limit(bufferSize);
+        fos.getChannel().write(dump);
+      } else {
+        fos.write(buffer, 0, bufferSize);
+      }
     } catch (IOException ioe) {
       System.err.println("Failed to dump map-output of " + taskAttemptId);
     } finally {
@@ -100,6 +158,76 @@ public class InMemoryReader extends Reader {
     }
   }
 
+  /**
+   * Decode the vint straight from the buffer, instead of byte by byte through the stream.
+   */
+  @Override
+  protected int readVInt(DataInput dIn) throws IOException {
+    if (dIn != memDataIn) {
+      return super.readVInt(dIn);
+    }
+    if (offHeapData != null) {
+      return readOffHeapVInt();
+    }
+    final int pos = memDataIn.getPosition();
+    if (pos >= memDataIn.getLength()) {
+      throw new EOFException("Rec# " + recNo + ": Reached the end of the in-memory data at "
+          + pos);
+    }
+    final byte[] data = memDataIn.getData();
+    final int size = WritableUtils.decodeVIntSize(data[pos]);
+    if (pos + size > memDataIn.getLength()) {
+      throw new EOFException("Rec# " + recNo + ": Incomplete vint at " + pos);
+    }
+    final int value = WritableComparator.readVInt(data, pos);
+    memDataIn.skip(size);
+    return value;
+  }
+
+  /**
+   * {@link WritableUtils#readVInt(DataInput)}, straight from the direct buffer.
+   */
+  private int readOffHeapVInt() throws IOException {
+    if (!offHeapData.hasRemaining()) {
+      throw new EOFException("Rec# " + recNo + ": Reached the end of the in-memory data at "
+          + offHeapData.position());
+    }
+    final byte first = offHeapData.get();
+    final int size = WritableUtils.decodeVIntSize(first);
+    if (size == 1) {
+      return first;
+    }
+    if (offHeapData.remaining() < size - 1) {
+      throw new EOFException("Rec# " + recNo + ": Incomplete vint at "
+          + (offHeapData.position() - 1));
+    }
+    long value = 0;
+    for (int i = 0; i < size - 1; i++) {
+      value = (value << 8) | (offHeapData.get() & 0xff);
+    }
+    return (int) (WritableUtils.isNegativeVInt(first) ? (value ^ -1L) : value);
+  }
+
+  /**
+   * Copy the next len bytes of the direct buffer to the heap.
+   */
+  private void readOffHeap(byte[] dest, int len, String what) throws IOException {
+    try {
+      offHeapData.get(dest, 0, len);
+    } catch (BufferUnderflowException e) {
+      throw new EOFException("Rec# " + recNo + ": Failed to read " + what + " of length: "
+          + len);
+    }
+    bytesRead += len;
+  }
+
+  @Override
+  public boolean isRawKeyStable() {
+    // keys are handed out as views over the map-output, which is never overwritten. Keys of a
+    // direct buffer are copied to the same heap buffer.
+    return offHeapData == null;
+  }
+
   protected void readKeyValueLength(DataInput dIn) throws IOException {
     super.readKeyValueLength(dIn);
     if (currentKeyLength != IFile.RLE_MARKER) {
@@ -112,6 +240,18 @@ public class InMemoryReader extends Reader {
       if (!positionToNextRecord(memDataIn)) {
         return KeyState.NO_KEY;
       }
+      if (offHeapData != null) {
+        if (currentKeyLength == IFile.RLE_MARKER) {
+          key.reset(offHeapKey, originalKeyLength);
+          return KeyState.SAME_KEY;
+        }
+        if (offHeapKey.length < currentKeyLength) {
+          offHeapKey = new byte[currentKeyLength << 1];
+        }
+        readOffHeap(offHeapKey, currentKeyLength, "key");
+        key.reset(offHeapKey, currentKeyLength);
+        return KeyState.NEW_KEY;
+      }
       // Setup the key
       int pos = memDataIn.getPosition();
       byte[] data = memDataIn.getData();
@@ -138,6 +278,15 @@ public class InMemoryReader extends Reader {
 
   public void nextRawValue(DataInputBuffer value) throws IOException {
     try {
+      if (offHeapData != null) {
+        if (offHeapValue.length < currentValueLength) {
+          offHeapValue = new byte[currentValueLength << 1];
+        }
+        readOffHeap(offHeapValue, currentValueLength, "value");
+        value.reset(offHeapValue, currentValueLength);
+        ++recNo;
+        return;
+      }
       int pos = memDataIn.getPosition();
       byte[] data = memDataIn.getData();
       value.reset(data, pos, currentValueLength);
@@ -160,11 +309,13 @@ public class InMemoryReader extends Reader {
 
   public void close() {
     // Release
+    ByteBuffer data = this.data;
     dataIn = null;
     buffer = null;
+    this.data = null;
     // Inform the MergeManager
     if (merger != null) {
-      merger.unreserve(bufferSize);
+      merger.unreserve(reservedSize, data);
     }
   }
 }
@@ -18,10 +18,14 @@
 package org.apache.tez.runtime.library.common.shuffle.orderedgrouped;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.hadoop.classification.InterfaceAudience.Private;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.InputIdentifier;
+import org.apache.tez.runtime.library.common.shuffle.HostStats;
 
 @Private
 class MapHost {
@@ -40,6 +44,10 @@ class MapHost {
   private final String identifier;
   // Tracks attempt IDs
   private List<InputAttemptIdentifier> maps = new ArrayList<InputAttemptIdentifier>();
+  private final HostStats stats = new HostStats();
+  // Tracks attempt IDs handed to the fetcher of the host, and when it last made progress
+  private List<InputAttemptIdentifier> inFlightMaps = Collections.emptyList();
+  private long lastProgressTime;
   
   public MapHost(int partitionId, String hostPort, String baseUrl) {
     this.partitionId = partitionId;
@@ -85,6 +93,40 @@ class MapHost {
     return currentKnownMaps;
   }
   
+  public synchronized boolean hasKnownMapOf(Set<InputIdentifier> inputs) {
+    for (InputAttemptIdentifier map : maps) {
+      if (inputs.contains(map.getInputIdentifier())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public HostStats getStats() {
+    return stats;
+  }
+
+  public synchronized void fetchStarted(List<InputAttemptIdentifier> inputs, long now) {
+    inFlightMaps = new ArrayList<InputAttemptIdentifier>(inputs);
+    lastProgressTime = now;
+  }
+
+  public synchronized void fetchProgressed(long now) {
+    lastProgressTime = now;
+  }
+
+  public synchronized void fetchFinished() {
+    inFlightMaps = Collections.emptyList();
+  }
+
+  public synchronized List<InputAttemptIdentifier> getInFlightMaps() {
+    return inFlightMaps;
+  }
+
+  public synchronized long getLastProgressTime() {
+    return lastProgressTime;
+  }
+
   public synchronized void markBusy() {
     state = State.BUSY;
   }
@@ -18,7 +18,9 @@
 package org.apache.tez.runtime.library.common.shuffle.orderedgrouped;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Comparator;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -41,20 +43,24 @@ class MapOutput {
     WAIT,
     MEMORY,
     DISK,
-    DISK_DIRECT
+    DISK_DIRECT,
+    STREAM
   }
 
   private final int id;
   private final Type type;
   private InputAttemptIdentifier attemptIdentifier;
   private final long size;
+  // memory charged for a MEMORY output, the size of its buffer
+  private final long reservedSize;
 
   private final boolean primaryMapOutput;
   private final FetchedInputAllocatorOrderedGrouped callback;
 
-  // MEMORY
+  // MEMORY, on the heap or in a direct buffer
   private final byte[] memory;
   private BoundedByteArrayOutputStream byteStream;
+  private final ByteBuffer offHeapMemory;
 
   // DISK
   private final FileSystem localFS;
@@ -62,9 +68,13 @@ class MapOutput {
   private final FileChunk outputPath;
   private OutputStream disk;
 
+  // STREAM
+  private InputStream stream;
+
   private MapOutput(Type type, InputAttemptIdentifier attemptIdentifier, FetchedInputAllocatorOrderedGrouped callback,
                     long size, Path outputPath, long offset, boolean primaryMapOutput,
-                    FileSystem fs, Path tmpOutputPath) {
+                    FileSystem fs, Path tmpOutputPath, byte[] memory,
+                    ByteBuffer offHeapMemory) {
     this.id = ID.incrementAndGet();
     this.type = type;
     this.attemptIdentifier = attemptIdentifier;
@@ -76,13 +86,25 @@ class MapOutput {
 
     // Other type specific values
 
-    if (type == Type.MEMORY) {
+    this.offHeapMemory = offHeapMemory;
+    if (type == Type.MEMORY && offHeapMemory != null) {
+      this.byteStream = null;
+      this.memory = null;
+      this.reservedSize = offHeapMemory.capacity();
+    } else if (type == Type.MEMORY) {
       // since we are passing an int from createMemoryMapOutput, its safe to cast to int
-      this.byteStream = new BoundedByteArrayOutputStream((int)size);
+      if (memory == null) {
+        this.byteStream = new BoundedByteArrayOutputStream((int)size);
+      } else {
+        // the buffer may be larger than the output
+        this.byteStream = new BoundedByteArrayOutputStream(memory, 0, (int) size) {};
+      }
       this.memory = byteStream.getBuffer();
+      this.reservedSize = this.memory.length;
     } else {
       this.byteStream = null;
       this.memory = null;
+      this.reservedSize = 0;
     }
 
     this.tmpOutputPath = tmpOutputPath;
@@ -114,7 +136,7 @@ class MapOutput {
     long offset = 0;
 
     MapOutput mapOutput = new MapOutput(Type.DISK, attemptIdentifier, callback, size, outputpath, offset,
-        primaryMapOutput, fs, tmpOuputPath);
+        primaryMapOutput, fs, tmpOuputPath, null, null);
     mapOutput.disk = mapOutput.localFS.create(tmpOuputPath);
 
     return mapOutput;
@@ -124,18 +146,46 @@ class MapOutput {
                                                    FetchedInputAllocatorOrderedGrouped callback, Path path,  long offset,
                                                    long size, boolean primaryMapOutput)  {
     return new MapOutput(Type.DISK_DIRECT, attemptIdentifier, callback, size, path, offset,
-        primaryMapOutput, null, null);
+        primaryMapOutput, null, null, null, null);
   }
 
   public static MapOutput createMemoryMapOutput(InputAttemptIdentifier attemptIdentifier,
                                                 FetchedInputAllocatorOrderedGrouped callback, int size,
                                                 boolean primaryMapOutput)  {
+    return createMemoryMapOutput(attemptIdentifier, callback, size, primaryMapOutput, null);
+  }
+
+  /**
+   * @param memory buffer of at least size bytes to hold the output, or null to allocate one
+   */
+  public static MapOutput createMemoryMapOutput(InputAttemptIdentifier attemptIdentifier,
+                                                FetchedInputAllocatorOrderedGrouped callback, int size,
+                                                boolean primaryMapOutput, byte[] memory)  {
     return new MapOutput(Type.MEMORY, attemptIdentifier, callback, size, null, -1, primaryMapOutput,
-        null, null);
+        null, null, memory, null);
+  }
+
+  /**
+   * @param memory direct buffer of at least size bytes to hold the output
+   */
+  public static MapOutput createOffHeapMemoryMapOutput(InputAttemptIdentifier attemptIdentifier,
+                                                       FetchedInputAllocatorOrderedGrouped callback,
+                                                       int size, boolean primaryMapOutput,
+                                                       ByteBuffer memory) {
+    return new MapOutput(Type.MEMORY, attemptIdentifier, callback, size, null, -1, primaryMapOutput,
+        null, null, null, memory);
+  }
+
+  public static MapOutput createStreamMapOutput(InputAttemptIdentifier attemptIdentifier,
+                                                FetchedInputAllocatorOrderedGrouped callback,
+                                                long size) {
+    return new MapOutput(Type.STREAM, attemptIdentifier, callback, size, null, -1, true, null,
+        null, null, null);
   }
 
   public static MapOutput createWaitMapOutput(InputAttemptIdentifier attemptIdentifier) {
-    return new MapOutput(Type.WAIT, attemptIdentifier, null, -1, null, -1, false, null, null);
+    return new MapOutput(Type.WAIT, attemptIdentifier, null, -1, null, -1, false, null, null,
+        null, null);
   }
 
   public boolean isPrimaryMapOutput() {
@@ -159,10 +209,28 @@ class MapOutput {
     return outputPath;
   }
 
+  /**
+   * @return the heap buffer of a MEMORY output, which may be larger than the output, or null if
+   * the output is held off-heap
+   */
   public byte[] getMemory() {
     return memory;
   }
 
+  /**
+   * @return the buffer of a MEMORY output, on the heap or off-heap
+   */
+  public ByteBuffer getMemoryBuffer() {
+    return (offHeapMemory != null) ? offHeapMemory : ByteBuffer.wrap(memory);
+  }
+
+  public boolean isOffHeap() {
+    return offHeapMemory != null;
+  }
+
+  /**
+   * @return the stream to write a heap MEMORY output with, null if the output is held off-heap
+   */
   public BoundedByteArrayOutputStream getArrayStream() {
     return byteStream;
   }
@@ -171,6 +239,18 @@ class MapOutput {
     return disk;
   }
 
+  /**
+   * @return the stream of the input for a STREAM output, positioned at the start of the IFile
+   * data, and owned by the output from then on
+   */
+  public InputStream getStream() {
+    return stream;
+  }
+
+  public void setStream(InputStream stream) {
+    this.stream = stream;
+  }
+
   public InputAttemptIdentifier getAttemptIdentifier() {
     return this.attemptIdentifier;
   }
@@ -183,6 +263,14 @@ class MapOutput {
     return size;
   }
 
+  /**
+   * @return the memory reserved for a MEMORY output, which is the size of its buffer and may be
+   * more than {@link #getSize()}
+   */
+  public long getReservedSize() {
+    return reservedSize;
+  }
+
   public void commit() throws IOException {
     if (type == Type.MEMORY) {
       callback.closeInMemoryFile(this);
@@ -191,6 +279,8 @@ class MapOutput {
       callback.closeOnDiskFile(outputPath);
     } else if (type == Type.DISK_DIRECT) {
       callback.closeOnDiskFile(outputPath);
+    } else if (type == Type.STREAM) {
+      callback.closeStreamedOutput(this);
     } else {
       throw new IOException("Cannot commit MapOutput of type WAIT!");
     }
@@ -198,7 +288,7 @@ class MapOutput {
   
   public void abort() {
     if (type == Type.MEMORY) {
-      callback.unreserve(memory.length);
+      callback.unreserve(reservedSize);
     } else if (type == Type.DISK) {
       try {
         localFS.delete(tmpOutputPath, false);
@@ -206,6 +296,14 @@ class MapOutput {
         LOG.info("failure to clean up " + tmpOutputPath, ie);
       }
     } else if (type == Type.DISK_DIRECT) { //nothing to do.
+    } else if (type == Type.STREAM) {
+      if (stream != null) {
+        try {
+          stream.close();
+        } catch (IOException ie) {
+          LOG.info("failure to close the stream of " + attemptIdentifier, ie);
+        }
+      }
     } else {
       throw new IllegalArgumentException
                    ("Cannot commit MapOutput with of type WAIT!");
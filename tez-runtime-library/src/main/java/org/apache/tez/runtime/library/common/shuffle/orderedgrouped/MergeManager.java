@@ -45,6 +45,8 @@ import org.apache.tez.runtime.library.common.ConfigUtils;
 import org.apache.tez.runtime.library.common.Constants;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.combine.Combiner;
+import org.apache.tez.runtime.library.common.shuffle.ShuffleBufferPool;
+import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger;
@@ -52,10 +54,12 @@ import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
 import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
 import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
 import org.apache.tez.runtime.library.hadoop.compat.NullProgressable;
+import org.apache.tez.runtime.library.utils.BufferUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -102,6 +106,11 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
 
   @VisibleForTesting
   final Set<FileChunk> onDiskMapOutputs = new TreeSet<FileChunk>();
+  // inputs read straight from their source by the final merge
+  @VisibleForTesting
+  final List<MapOutput> streamedMapOutputs = new ArrayList<MapOutput>();
+  // set once the streamed outputs are taken by the final merge or aborted, later ones are aborted
+  private boolean streamedOutputsClosed = false;
   @VisibleForTesting
   final OnDiskMerger onDiskMerger;
   
@@ -146,6 +155,13 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
   private AtomicInteger mergeFileSequenceId = new AtomicInteger(0);
 
   private final boolean cleanup;
+  // keep the in-memory outputs in direct buffers, within a budget of their own
+  private final boolean offHeap;
+  // recycles the buffers of in-memory outputs, null if disabled
+  @VisibleForTesting
+  final ShuffleBufferPool bufferPool;
+  // read the inputs fetched from the local host through a memory mapping of their spill file
+  private final boolean mapLocalFiles;
 
   /**
    * Construct the MergeManager. Must call start before it becomes usable.
@@ -186,6 +202,12 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
 
     this.cleanup = conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_CLEANUP_FILES_ON_INTERRUPT,
         TezRuntimeConfiguration.TEZ_RUNTIME_CLEANUP_FILES_ON_INTERRUPT_DEFAULT);
+    final long offHeapMemLimit = ShuffleUtils.getOffHeapMemoryLimit(conf);
+    this.offHeap = offHeapMemLimit > 0;
+    this.bufferPool = offHeap ? null : ShuffleBufferPool.create(conf, inputContext.getCounters());
+    this.mapLocalFiles = conf.getBoolean(
+        TezRuntimeConfiguration.TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH_MMAP,
+        TezRuntimeConfiguration.TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH_MMAP_DEFAULT);
 
     this.codec = codec;
     this.ifileReadAhead = ifileReadAheadEnabled;
@@ -221,7 +243,10 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
     long maxRedBuffer = (long) (inputContext.getTotalMemoryAvailableToTask() * maxRedPer);
     // Figure out initial memory req end
     
-    if (this.initialMemoryAvailable < memLimit) {
+    if (offHeap) {
+      // not part of the memory given to the input
+      this.memoryLimit = offHeapMemLimit;
+    } else if (this.initialMemoryAvailable < memLimit) {
       this.memoryLimit = this.initialMemoryAvailable;
     } else {
       this.memoryLimit = memLimit;
@@ -275,6 +300,9 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
              "mergeThreshold=" + mergeThreshold + ", " + 
              "ioSortFactor=" + ioSortFactor + ", " +
              "postMergeMem=" + postMergeMemLimit + ", " +
+             "mapLocalFiles=" + mapLocalFiles + ", " +
+             "offHeap=" + offHeap + ", " +
+             "bufferPool=" + (bufferPool != null) + ", " +
              "memToMemMergeOutputsThreshold=" + memToMemMergeOutputsThreshold);
     
     if (this.maxSingleShuffleLimit >= this.mergeThreshold) {
@@ -288,7 +316,12 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
         conf.getBoolean(
             TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_ENABLE_MEMTOMEM, 
             TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_ENABLE_MEMTOMEM_DEFAULT);
-      if (allowMemToMemMerge) {
+      if (allowMemToMemMerge && offHeap) {
+        LOG.warn(inputContext.getSourceVertexName() + ": Ignoring "
+            + TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_ENABLE_MEMTOMEM
+            + " since the in-memory outputs are held off-heap");
+        this.memToMemMerger = null;
+      } else if (allowMemToMemMerge) {
         this.memToMemMerger = 
           new IntermediateMemoryToMemoryMerger(this,
                                                memToMemMergeOutputsThreshold);
@@ -328,6 +361,10 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
       // Allow unit tests to fix Runtime memory
       long memLimit = conf.getLong(Constants.TEZ_RUNTIME_TASK_MEMORY,
           (long)(maxAvailableTaskMemory * maxInMemCopyUse));
+      if (ShuffleUtils.getOffHeapMemoryLimit(conf) > 0) {
+        // the outputs are held in direct memory
+        memLimit = 0;
+      }
       
       float maxRedPer = conf.getFloat(TezRuntimeConfiguration.TEZ_RUNTIME_INPUT_POST_MERGE_BUFFER_PERCENT,
           TezRuntimeConfiguration.TEZ_RUNTIME_INPUT_BUFFER_PERCENT_DEFAULT);
@@ -373,6 +410,17 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
     return (requestedSize < maxSingleShuffleLimit);
   }
 
+  /**
+   * @return the memory taken by an in-memory output of requestedSize bytes, which is the size of
+   * the buffer handed out for it by the buffer pool
+   */
+  private long getReservedSize(long requestedSize) {
+    if (bufferPool == null || requestedSize > Integer.MAX_VALUE) {
+      return requestedSize;
+    }
+    return ShuffleBufferPool.getBufferSize((int) requestedSize);
+  }
+
   public synchronized void waitForShuffleToMergeMemory() throws InterruptedException {
     long startTime = System.currentTimeMillis();
     while(usedMemory > memoryLimit) {
@@ -384,17 +432,49 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
     }
   }
 
+  /**
+   * @return the memory reserved by fetches, as a fraction of the memory limit of the shuffle
+   */
+  public synchronized float getUsedMemoryFraction() {
+    return (memoryLimit > 0) ? (float) usedMemory / memoryLimit : 0f;
+  }
+
   final private MapOutput stallShuffle = MapOutput.createWaitMapOutput(null);
 
+  /**
+   * Stream an input into the final merge if it would otherwise have to wait for memory, or go to
+   * disk. Inputs are not streamed while a merge is in progress, since the final merge and with it
+   * the streamed connection would have to wait for it.
+   */
+  @Override
+  public synchronized MapOutput reserveStream(InputAttemptIdentifier srcAttemptIdentifier,
+                                              long requestedSize,
+                                              long compressedLength) {
+    long reservedSize = getReservedSize(requestedSize);
+    if (canShuffleToMemory(reservedSize) && usedMemory + reservedSize <= memoryLimit) {
+      return null;
+    }
+    if (streamedOutputsClosed || inMemoryMerger.isInProgress() || onDiskMerger.isInProgress()
+        || (memToMemMerger != null && memToMemMerger.isInProgress())) {
+      return null;
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(srcAttemptIdentifier + ": Streaming into the final merge since " + requestedSize
+          + " does not fit in memory. usedMemory=" + usedMemory + ", memoryLimit=" + memoryLimit);
+    }
+    return MapOutput.createStreamMapOutput(srcAttemptIdentifier, this, compressedLength);
+  }
+
   @Override
   public synchronized MapOutput reserve(InputAttemptIdentifier srcAttemptIdentifier, 
                                              long requestedSize,
                                              long compressedLength,
                                              int fetcher
                                              ) throws IOException {
-    if (!canShuffleToMemory(requestedSize)) {
+    long reservedSize = getReservedSize(requestedSize);
+    if (!canShuffleToMemory(reservedSize)) {
       if (LOG.isDebugEnabled()) {
-        LOG.debug(srcAttemptIdentifier + ": Shuffling to disk since " + requestedSize +
+        LOG.debug(srcAttemptIdentifier + ": Shuffling to disk since " + reservedSize +
             " is greater than maxSingleShuffleLimit (" +
             maxSingleShuffleLimit + ")");
       }
@@ -441,9 +521,21 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
   private synchronized MapOutput unconditionalReserve(
       InputAttemptIdentifier srcAttemptIdentifier, long requestedSize, boolean primaryMapOutput) throws
       IOException {
-    usedMemory += requestedSize;
+    // charge the buffer handed out, which may be larger than requested
+    usedMemory += getReservedSize(requestedSize);
+    if (offHeap) {
+      return MapOutput.createOffHeapMemoryMapOutput(srcAttemptIdentifier, this,
+          (int) requestedSize, primaryMapOutput, ByteBuffer.allocateDirect((int) requestedSize));
+    }
+    if (bufferPool == null) {
+      return MapOutput.createMemoryMapOutput(srcAttemptIdentifier, this, (int)requestedSize,
+          primaryMapOutput);
+    }
+    byte[] buffer = bufferPool.take((int) requestedSize);
+    // the buffers kept by the pool and the memory in use stay within the memory limit
+    bufferPool.trim(memoryLimit - usedMemory);
     return MapOutput.createMemoryMapOutput(srcAttemptIdentifier, this, (int)requestedSize,
-        primaryMapOutput);
+        primaryMapOutput, buffer);
   }
 
   @Override
@@ -457,6 +549,23 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
     notifyAll();
   }
 
+  /**
+   * Unreserve the memory of an in-memory output once it was read, and recycle or free its
+   * buffer.
+   */
+  synchronized void unreserve(long size, ByteBuffer buffer) {
+    unreserve(size);
+    if (buffer == null) {
+      return;
+    }
+    if (!buffer.hasArray()) {
+      // free the direct memory now, not whenever the garbage collector gets to it
+      BufferUtils.freeDirectBuffer(buffer);
+    } else if (bufferPool != null) {
+      bufferPool.release(buffer.array(), memoryLimit - usedMemory);
+    }
+  }
+
   @Override
   public synchronized void closeInMemoryFile(MapOutput mapOutput) { 
     inMemoryMapOutputs.add(mapOutput);
@@ -465,7 +574,7 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
           + ", commitMemory -> " + commitMemory + ", usedMemory ->" + usedMemory + ", mapOutput=" +
           mapOutput);
 
-    commitMemory+= mapOutput.getSize();
+    commitMemory+= mapOutput.getReservedSize();
 
     if (commitMemory >= mergeThreshold) {
       startMemToDiskMerge();
@@ -495,6 +604,20 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
     }
   }
   
+  @Override
+  public synchronized void closeStreamedOutput(MapOutput mapOutput) {
+    if (streamedOutputsClosed) {
+      LOG.info("closeStreamedOutput -> aborting map-output committed after close, mapOutput="
+          + mapOutput);
+      mapOutput.abort();
+      return;
+    }
+    streamedMapOutputs.add(mapOutput);
+    LOG.info("closeStreamedOutput -> map-output of size: " + mapOutput.getSize()
+        + ", streamedMapOutputs.size() -> " + streamedMapOutputs.size() + ", mapOutput="
+        + mapOutput);
+  }
+
   public synchronized void closeInMemoryMergedFile(MapOutput mapOutput) {
     inMemoryMergedMapOutputs.add(mapOutput);
     LOG.info("closeInMemoryMergedFile -> size: " + mapOutput.getSize() +
@@ -558,8 +681,14 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
       inMemoryMapOutputs.clear();
       List<FileChunk> disk = new ArrayList<FileChunk>(onDiskMapOutputs);
       onDiskMapOutputs.clear();
+      List<MapOutput> streamed;
+      synchronized (this) {
+        streamed = new ArrayList<MapOutput>(streamedMapOutputs);
+        streamedMapOutputs.clear();
+        streamedOutputsClosed = true;
+      }
       try {
-        TezRawKeyValueIterator kvIter = finalMerge(conf, rfs, memory, disk);
+        TezRawKeyValueIterator kvIter = finalMerge(conf, rfs, memory, disk, streamed);
         this.finalMergeComplete = true;
         return kvIter;
       } catch (InterruptedException e) {
@@ -570,11 +699,31 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
         }
         Thread.currentThread().interrupt(); //reset interrupt status
         throw e;
+      } finally {
+        if (!finalMergeComplete) {
+          // the final merge did not take over the streamed inputs
+          for (MapOutput mapOutput : streamed) {
+            mapOutput.abort();
+          }
+        }
       }
     }
     return null;
   }
 
+  /**
+   * Abort the streamed outputs which have not been taken by the final merge yet, closing their
+   * connections, and any which are committed later. Used when the shuffle is shut down or fails,
+   * so that a final merge neither reads from nor leaks them.
+   */
+  public synchronized void abortStreamedOutputs() {
+    streamedOutputsClosed = true;
+    for (MapOutput mapOutput : streamedMapOutputs) {
+      mapOutput.abort();
+    }
+    streamedMapOutputs.clear();
+  }
+
   @VisibleForTesting
   public boolean isShutdown() {
     return isShutdown.get();
@@ -849,7 +998,7 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
         final Path file = fileChunk.getPath();
         approxOutputSize += size;
         Segment segment = new Segment(rfs, file, offset, size, codec, ifileReadAhead,
-            ifileReadAheadLength, ifileBufferSize, preserve);
+            ifileReadAheadLength, ifileBufferSize, preserve, null, mapLocalFiles && preserve);
         inputSegments.add(segment);
       }
 
@@ -936,17 +1085,18 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
     // closed but not yet present in inMemoryMapOutputs
     long fullSize = 0L;
     for (MapOutput mo : inMemoryMapOutputs) {
-      fullSize += mo.getMemory().length;
+      fullSize += mo.getSize();
     }
     while((fullSize > leaveBytes) && !Thread.currentThread().isInterrupted()) {
       MapOutput mo = inMemoryMapOutputs.remove(0);
-      byte[] data = mo.getMemory();
-      long size = data.length;
+      ByteBuffer data = mo.getMemoryBuffer();
+      long size = mo.getSize();
       totalSize += size;
       fullSize -= size;
       IFile.Reader reader = new InMemoryReader(MergeManager.this, 
                                                    mo.getAttemptIdentifier(),
-                                                   data, 0, (int)size);
+                                                   data, 0, (int)size,
+                                                   mo.getReservedSize());
       inMemorySegments.add(new Segment(reader, true, 
                                             (mo.isPrimaryMapOutput() ? 
                                             mergedMapOutputsCounter : null)));
@@ -1000,11 +1150,13 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
 
   private TezRawKeyValueIterator finalMerge(Configuration job, FileSystem fs,
                                        List<MapOutput> inMemoryMapOutputs,
-                                       List<FileChunk> onDiskMapOutputs
+                                       List<FileChunk> onDiskMapOutputs,
+                                       List<MapOutput> streamedMapOutputs
                                        ) throws IOException, InterruptedException {
     LOG.info("finalMerge called with " + 
-             inMemoryMapOutputs.size() + " in-memory map-outputs and " + 
-             onDiskMapOutputs.size() + " on-disk map-outputs");
+             inMemoryMapOutputs.size() + " in-memory map-outputs, " +
+             onDiskMapOutputs.size() + " on-disk map-outputs and " +
+             streamedMapOutputs.size() + " streamed map-outputs");
 
     if (LOG.isDebugEnabled()) {
       for (MapOutput inMemoryMapOutput : inMemoryMapOutputs) {
@@ -1110,7 +1262,8 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
       final long fileOffset = fileChunk.getOffset();
       final boolean preserve = fileChunk.isLocalFile();
       diskSegments.add(new Segment(fs, file, fileOffset, fileLength, codec, ifileReadAhead,
-                                   ifileReadAheadLength, ifileBufferSize, preserve, counter));
+                                   ifileReadAheadLength, ifileBufferSize, preserve, counter,
+                                   mapLocalFiles && preserve));
     }
     LOG.info("Merging " + onDisk.length + " files, " +
              onDiskBytes + " bytes from disk");
@@ -1129,6 +1282,15 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
                                              finalSegments, 0);
     LOG.info("Merging " + finalSegments.size() + " segments, " +
              inMemBytes + " bytes from memory into reduce");
+    // streamed inputs are read once, so they can only go into the last merge pass
+    for (MapOutput mo : streamedMapOutputs) {
+      IFile.Reader reader = new IFile.Reader(mo.getStream(), mo.getSize(), codec, null,
+          null, ifileReadAhead, ifileReadAheadLength, ifileBufferSize);
+      finalSegments.add(new Segment(reader, true, mergedMapOutputsCounter));
+    }
+    if (!streamedMapOutputs.isEmpty()) {
+      LOG.info("Merging " + streamedMapOutputs.size() + " streamed segments into reduce");
+    }
     if (0 != onDiskBytes) {
       final int numInMemSegments = memDiskSegments.size();
       diskSegments.addAll(0, memDiskSegments);
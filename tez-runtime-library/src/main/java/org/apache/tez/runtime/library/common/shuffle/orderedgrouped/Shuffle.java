@@ -99,6 +99,9 @@ public class Shuffle implements ExceptionReporter {
   private AtomicBoolean fetchersClosed = new AtomicBoolean(false);
   private AtomicBoolean schedulerClosed = new AtomicBoolean(false);
   private AtomicBoolean mergerClosed = new AtomicBoolean(false);
+  // the merged iterator, until it is handed to the consumer or released on shutdown
+  private final AtomicReference<TezRawKeyValueIterator> mergedIterator =
+      new AtomicReference<TezRawKeyValueIterator>();
 
   private final long startTime;
   private final TezCounter mergePhaseTime;
@@ -262,6 +265,10 @@ public class Shuffle implements ExceptionReporter {
     if (throwable.get() != null) {
       handleThrowable(throwable.get());
     }
+    // the consumer owns the iterator from here on, unless shutdown released it already
+    if (!mergedIterator.compareAndSet(kvIter, null)) {
+      throw new InputAlreadyClosedException();
+    }
     return kvIter;
   }
 
@@ -278,6 +285,7 @@ public class Shuffle implements ExceptionReporter {
       LOG.info("Shutting down Shuffle for source: " + srcNameTrimmed);
       runShuffleFuture.cancel(true);
       cleanupIgnoreErrors();
+      releaseMergedIterator();
     }
   }
 
@@ -317,12 +325,18 @@ public class Shuffle implements ExceptionReporter {
         throwable.set(e);
         throw new ShuffleError("Error while doing final merge ", e);
       }
+      mergedIterator.set(kvIter);
+      if (isShutDown.get()) {
+        // shutdown may have missed the iterator, nobody is going to consume it
+        releaseMergedIterator();
+      }
       mergePhaseTime.setValue(System.currentTimeMillis() - startTime);
       
       inputContext.notifyProgress();
       // Sanity check
       synchronized (Shuffle.this) {
         if (throwable.get() != null) {
+          releaseMergedIterator();
           throw new ShuffleError("error in shuffle in " + throwingThreadName,
                                  throwable.get());
         }
@@ -352,7 +366,11 @@ public class Shuffle implements ExceptionReporter {
   private void cleanupMerger(boolean ignoreErrors) throws Throwable {
     if (!mergerClosed.getAndSet(true)) {
       try {
-        merger.close();
+        TezRawKeyValueIterator kvIter = merger.close();
+        if (kvIter != null) {
+          // merged on cleanup, the result is never consumed
+          kvIter.close();
+        }
       } catch (InterruptedException e) {
         if (ignoreErrors) {
           //Reset the status
@@ -371,12 +389,29 @@ public class Shuffle implements ExceptionReporter {
     }
   }
 
+  /**
+   * Close the merged iterator if it was never handed to the consumer.
+   */
+  private void releaseMergedIterator() {
+    TezRawKeyValueIterator kvIter = mergedIterator.getAndSet(null);
+    if (kvIter != null) {
+      try {
+        kvIter.close();
+      } catch (IOException e) {
+        LOG.info(srcNameTrimmed + ": " + "Error closing the unconsumed merged iterator, Ignoring",
+            e);
+      }
+    }
+  }
+
   private void cleanupIgnoreErrors() {
     try {
       if (eventHandler != null) {
         eventHandler.logProgress(true);
       }
       cleanupShuffleSchedulerIgnoreErrors();
+      // don't let a final merge on cleanup read from, or leak, the streamed inputs
+      merger.abortStreamedOutputs();
       cleanupMerger(true);
     } catch (Throwable t) {
       LOG.info(srcNameTrimmed + ": " + "Error in cleaning up.., ", t);
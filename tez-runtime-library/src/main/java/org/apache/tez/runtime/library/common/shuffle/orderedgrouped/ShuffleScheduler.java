@@ -73,6 +73,8 @@ import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.InputIdentifier;
 import org.apache.tez.runtime.library.common.TezRuntimeUtils;
+import org.apache.tez.runtime.library.common.shuffle.ContainerFetchService;
+import org.apache.tez.runtime.library.common.shuffle.HostStats;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.MapOutput.Type;
 
@@ -97,6 +99,12 @@ class ShuffleScheduler {
   private static final Logger LOG = LoggerFactory.getLogger(ShuffleScheduler.class);
   static final long INITIAL_PENALTY = 2000L; // 2 seconds
   private static final float PENALTY_GROWTH_RATE = 1.3f;
+  // a fetch at the tail is slow when its host made no progress for this many times the 90th
+  // percentile fetch latency, or for MIN_SLOW_FETCH_MS, whichever is longer
+  @VisibleForTesting
+  static final int SLOW_FETCH_FACTOR = 4;
+  @VisibleForTesting
+  static final long MIN_SLOW_FETCH_MS = 1000L;
 
   private final BitSet finishedMaps;
   private final int numInputs;
@@ -136,6 +144,7 @@ class ShuffleScheduler {
   private final TezCounter bytesShuffledToDisk;
   private final TezCounter bytesShuffledToDiskDirect;
   private final TezCounter bytesShuffledToMem;
+  private final TezCounter bytesShuffledStreamed;
   private final TezCounter firstEventReceived;
   private final TezCounter lastEventReceived;
 
@@ -153,6 +162,15 @@ class ShuffleScheduler {
       Collections.newSetFromMap(new ConcurrentHashMap<FetcherOrderedGrouped, Boolean>());
 
   private final ListeningExecutorService fetcherExecutor;
+  // null unless the fetchers run on the shared service of the container
+  private final ContainerFetchService containerFetchService;
+  // null unless the number of fetchers is adaptive
+  private final FetcherParallelism fetcherParallelism;
+  private final boolean prioritizeHosts;
+  private final int speculativeTailInputs;
+  private final int streamingMergeInputs;
+  // fetches from all hosts, to tell the slow ones apart
+  private final HostStats allHostStats = new HostStats();
 
   private final HttpConnectionParams httpConnectionParams;
   private final FetchedInputAllocatorOrderedGrouped allocator;
@@ -175,6 +193,8 @@ class ShuffleScheduler {
   private final TezCounter wrongMapErrsCounter;
   private final TezCounter connectionErrsCounter;
   private final TezCounter wrongReduceErrsCounter;
+  private final TezCounter shuffleConnections;
+  private final TezCounter shuffleConnectionsReused;
 
   private final int maxTaskOutputAtOnce;
   private final int maxFetchFailuresBeforeReporting;
@@ -294,6 +314,8 @@ class ShuffleScheduler {
         TaskCounter.SHUFFLE_BYTES_TO_DISK);
     this.bytesShuffledToDiskDirect =  inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_BYTES_DISK_DIRECT);
     this.bytesShuffledToMem = inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_BYTES_TO_MEM);
+    this.bytesShuffledStreamed =
+        inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_BYTES_STREAMED);
 
     // Counters used by Fetchers
     ioErrsCounter = inputContext.getCounters().findCounter(SHUFFLE_ERR_GRP_NAME,
@@ -308,6 +330,9 @@ class ShuffleScheduler {
         ShuffleErrors.CONNECTION.toString());
     wrongReduceErrsCounter = inputContext.getCounters().findCounter(SHUFFLE_ERR_GRP_NAME,
         ShuffleErrors.WRONG_REDUCE.toString());
+    shuffleConnections = inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_CONNECTIONS);
+    shuffleConnectionsReused =
+        inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_CONNECTIONS_REUSED);
 
     this.startTime = startTime;
     this.lastProgressTime = startTime;
@@ -322,10 +347,38 @@ class ShuffleScheduler {
             .getServiceConsumerMetaData(TezConstants.TEZ_SHUFFLE_HANDLER_SERVICE_ID));
     this.jobTokenSecretManager = new JobTokenSecretManager(jobTokenSecret);
 
-    ExecutorService fetcherRawExecutor = Executors.newFixedThreadPool(numFetchers,
-        new ThreadFactoryBuilder().setDaemon(true)
-            .setNameFormat("Fetcher {" + srcNameTrimmed + "} #%d").build());
-    this.fetcherExecutor = MoreExecutors.listeningDecorator(fetcherRawExecutor);
+    if (conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_CONTAINER_SERVICE,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_CONTAINER_SERVICE_DEFAULT)) {
+      // at most numFetchers fetchers are submitted at a time, by the ShuffleSchedulerCallable
+      this.containerFetchService = ContainerFetchService.getInstance();
+      this.fetcherExecutor = containerFetchService.newExecutor();
+    } else {
+      this.containerFetchService = null;
+      ExecutorService fetcherRawExecutor = Executors.newFixedThreadPool(numFetchers,
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("Fetcher {" + srcNameTrimmed + "} #%d").build());
+      this.fetcherExecutor = MoreExecutors.listeningDecorator(fetcherRawExecutor);
+    }
+
+    if (numFetchers > 0 && conf.getBoolean(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_PARALLELISM,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_PARALLELISM_DEFAULT)) {
+      this.fetcherParallelism = new FetcherParallelism(srcNameTrimmed, numFetchers, startTime,
+          inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_FETCHERS_PEAK),
+          inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_FETCHERS_ADJUSTMENTS));
+    } else {
+      this.fetcherParallelism = null;
+    }
+
+    this.prioritizeHosts = conf.getBoolean(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_HOST_PRIORITY,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_HOST_PRIORITY_DEFAULT);
+    this.speculativeTailInputs = conf.getInt(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATIVE_TAIL_INPUTS,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATIVE_TAIL_INPUTS_DEFAULT);
+    this.streamingMergeInputs = conf.getInt(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_STREAMING_MERGE_INPUTS,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_STREAMING_MERGE_INPUTS_DEFAULT);
 
     this.maxFailedUniqueFetches = Math.min(numberOfInputs, 5);
     referee.start();
@@ -358,6 +411,11 @@ class ShuffleScheduler {
         + ", abortFailureLimit=" + abortFailureLimit
         + ", maxTaskOutputAtOnce=" + maxTaskOutputAtOnce
         + ", numFetchers=" + numFetchers
+        + ", containerFetchService=" + (containerFetchService != null)
+        + ", adaptiveFetcherParallelism=" + (fetcherParallelism != null)
+        + ", prioritizeHosts=" + prioritizeHosts
+        + ", speculativeTailInputs=" + speculativeTailInputs
+        + ", streamingMergeInputs=" + streamingMergeInputs
         + ", hostFailureFraction=" + hostFailureFraction
         + ", minFailurePerHost=" + minFailurePerHost
         + ", maxAllowedFailedFetchFraction=" + maxAllowedFailedFetchFraction
@@ -467,6 +525,12 @@ class ShuffleScheduler {
                                          ) throws IOException {
 
     inputContext.notifyProgress();
+    // streamed inputs are only read by the final merge
+    if (host != null && output != null && output.getType() != Type.STREAM) {
+      host.getStats().fetchSucceeded(bytesCompressed, millis);
+      host.fetchProgressed(System.currentTimeMillis());
+      allHostStats.fetchSucceeded(bytesCompressed, millis);
+    }
     if (!isInputFinished(srcAttemptIdentifier.getInputIdentifier().getInputIndex())) {
       if (!isLocalFetch) {
         /**
@@ -488,6 +552,8 @@ class ShuffleScheduler {
           bytesShuffledToDisk.increment(bytesCompressed);
         } else if (output.getType() == Type.DISK_DIRECT) {
           bytesShuffledToDiskDirect.increment(bytesCompressed);
+        } else if (output.getType() == Type.STREAM) {
+          bytesShuffledStreamed.increment(bytesCompressed);
         } else {
           bytesShuffledToMem.increment(bytesCompressed);
         }
@@ -554,6 +620,9 @@ class ShuffleScheduler {
       // update the status
       lastProgressTime = System.currentTimeMillis();
       totalBytesShuffledTillNow += bytesCompressed;
+      if (fetcherParallelism != null) {
+        fetcherParallelism.bytesFetched(bytesCompressed);
+      }
       logProgress();
       reduceShuffleBytes.increment(bytesCompressed);
       reduceBytesDecompressed.increment(bytesDecompressed);
@@ -629,6 +698,9 @@ class ShuffleScheduler {
     failedShuffleCounter.increment(1);
     inputContext.notifyProgress();
     int failures = incrementAndGetFailureAttempt(srcAttempt);
+    if (host != null) {
+      host.getStats().fetchFailed();
+    }
 
     if (!isLocalFetch) {
       /**
@@ -706,6 +778,10 @@ class ShuffleScheduler {
     long delay = (long) (INITIAL_PENALTY *
         Math.pow(PENALTY_GROWTH_RATE, failures));
     penalties.add(new Penalty(host, delay));
+    if (containerFetchService != null) {
+      // let the shuffles of other inputs in the container back off from the host as well
+      containerFetchService.penalizeHost(hostPort, delay);
+    }
   }
 
   private int getFailureCount(InputAttemptIdentifier srcAttempt) {
@@ -939,6 +1015,14 @@ class ShuffleScheduler {
       host = new MapHost(partitionId, hostPort, hostUrl);
       assert identifier.equals(host.getIdentifier());
       mapLocations.put(identifier, host);
+      if (containerFetchService != null) {
+        // the host has failed fetches of another input in the container recently
+        long penalty = containerFetchService.getHostPenalty(hostPort);
+        if (penalty > 0) {
+          host.markPenalized();
+          penalties.add(new Penalty(host, penalty));
+        }
+      }
     }
 
     //Allow only one task attempt to proceed.
@@ -988,10 +1072,18 @@ class ShuffleScheduler {
     if (!pendingHosts.isEmpty()) {
 
       MapHost host = null;
-      Iterator<MapHost> iter = pendingHosts.iterator();
-      int numToPick = random.nextInt(pendingHosts.size());
-      for (int i = 0; i <= numToPick; ++i) {
-        host = iter.next();
+      if (speculativeTailInputs > 0) {
+        host = getHostWithAlternateOfSlowInput(System.currentTimeMillis());
+      }
+      if (host == null && prioritizeHosts) {
+        host = getHostWithHighestPriority();
+      }
+      if (host == null) {
+        Iterator<MapHost> iter = pendingHosts.iterator();
+        int numToPick = random.nextInt(pendingHosts.size());
+        for (int i = 0; i <= numToPick; ++i) {
+          host = iter.next();
+        }
       }
 
       pendingHosts.remove(host);
@@ -1007,6 +1099,94 @@ class ShuffleScheduler {
     }
   }
 
+  /**
+   * Pick the pending host with the most inputs pending and the best throughput so far. Hosts
+   * nothing was fetched from yet come first, hosts failing to serve fetches last.
+   */
+  private MapHost getHostWithHighestPriority() {
+    MapHost bestHost = null;
+    double bestPriority = -1;
+    // start at a random host, so that reducers do not all go for the same host on ties
+    List<MapHost> hosts = new ArrayList<MapHost>(pendingHosts);
+    int offset = random.nextInt(hosts.size());
+    for (int i = 0; i < hosts.size(); i++) {
+      MapHost host = hosts.get((offset + i) % hosts.size());
+      double priority = host.getStats().getPriority(host.getNumKnownMapOutputs());
+      if (priority > bestPriority) {
+        bestPriority = priority;
+        bestHost = host;
+      }
+    }
+    return bestHost;
+  }
+
+  /**
+   * Once only a few inputs remain, pick a pending host with another attempt of an input whose
+   * fetch is stuck on a slow host, so that the input is fetched from there as well.
+   */
+  private MapHost getHostWithAlternateOfSlowInput(long now) {
+    if (remainingMaps.get() > speculativeTailInputs) {
+      return null;
+    }
+    long slowFetchMs = Math.max(MIN_SLOW_FETCH_MS,
+        SLOW_FETCH_FACTOR * allHostStats.getLatencyPercentile(0.9));
+    Set<InputIdentifier> slowInputs = new HashSet<InputIdentifier>();
+    for (MapHost host : mapLocations.values()) {
+      if (host.getState() == MapHost.State.BUSY
+          && now - host.getLastProgressTime() > slowFetchMs) {
+        for (InputAttemptIdentifier input : host.getInFlightMaps()) {
+          if (!isInputFinished(input.getInputIdentifier().getInputIndex())) {
+            slowInputs.add(input.getInputIdentifier());
+          }
+        }
+      }
+    }
+    if (slowInputs.isEmpty()) {
+      return null;
+    }
+    for (MapHost host : pendingHosts) {
+      if (host.hasKnownMapOf(slowInputs)) {
+        LOG.info(srcNameTrimmed + ": " + "Fetching from " + host
+            + " ahead of other hosts, as it has alternate attempts of slow inputs " + slowInputs);
+        return host;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return whether the inputs left are few enough to be streamed into the final merge, see
+   * {@link TezRuntimeConfiguration#TEZ_RUNTIME_SHUFFLE_FETCH_STREAMING_MERGE_INPUTS}
+   */
+  private boolean isStreamingMergeTail() {
+    return streamingMergeInputs > 0 && remainingMaps.get() <= streamingMergeInputs;
+  }
+
+  /**
+   * A streamed input keeps its connection open until the final merge reads it, so it is only
+   * streamed once every input left is already being fetched. Otherwise the connection would be
+   * left idle while the inputs which are still pending are fetched.
+   *
+   * @return whether an input being fetched now can be streamed into the final merge
+   */
+  synchronized boolean canStreamToMerge() {
+    if (!isStreamingMergeTail()) {
+      return false;
+    }
+    Set<Integer> inFlightInputs = new HashSet<Integer>();
+    for (MapHost host : mapLocations.values()) {
+      if (host.getState() == MapHost.State.BUSY) {
+        for (InputAttemptIdentifier input : host.getInFlightMaps()) {
+          int inputIndex = input.getInputIdentifier().getInputIndex();
+          if (!isInputFinished(inputIndex)) {
+            inFlightInputs.add(inputIndex);
+          }
+        }
+      }
+    }
+    return inFlightInputs.size() >= remainingMaps.get();
+  }
+
   public InputAttemptIdentifier getIdentifierForFetchedOutput(
       String path, int reduceId) {
     return pathToIdentifierMap.get(getIdentifierFromPathAndReduceId(path, reduceId));
@@ -1077,15 +1257,17 @@ class ShuffleScheduler {
       }
     }
 
-    // Compute the final list, limited by NUM_FETCHERS_AT_ONCE
+    // Compute the final list, limited by NUM_FETCHERS_AT_ONCE. A streamed input has to be the
+    // last one on its connection, so only one is fetched at a time when inputs may be streamed.
     List<InputAttemptIdentifier> result = new ArrayList<InputAttemptIdentifier>();
+    int maxOutputs = isStreamingMergeTail() ? 1 : maxTaskOutputAtOnce;
     int includedMaps = 0;
     int totalSize = dedupedList.size();
 
     for(Integer inputIndex : dedupedList.keySet()) {
       List<InputAttemptIdentifier> attemptIdentifiers = dedupedList.get(inputIndex);
       for (InputAttemptIdentifier inputAttemptIdentifier : attemptIdentifiers) {
-        if (includedMaps++ >= maxTaskOutputAtOnce) {
+        if (includedMaps++ >= maxOutputs) {
           host.addKnownMap(inputAttemptIdentifier);
         } else {
           result.add(inputAttemptIdentifier);
@@ -1096,10 +1278,12 @@ class ShuffleScheduler {
       LOG.debug("assigned " + includedMaps + " of " + totalSize + " to " +
           host + " to " + Thread.currentThread().getName());
     }
+    host.fetchStarted(result, System.currentTimeMillis());
     return result;
   }
 
   public synchronized void freeHost(MapHost host) {
+    host.fetchFinished();
     if (host.getState() != MapHost.State.PENALIZED) {
       if (host.markAvailable() == MapHost.State.PENDING) {
         pendingHosts.add(host);
@@ -1208,10 +1392,12 @@ class ShuffleScheduler {
       outer:
       while (!isShutdown.get() && remainingMaps.get() > 0) {
         synchronized (ShuffleScheduler.this) {
-          if (runningFetchers.size() >= numFetchers || pendingHosts.isEmpty()) {
+          if (runningFetchers.size() >= getNumFetchersToRun() || pendingHosts.isEmpty()) {
             if (remainingMaps.get() > 0) {
               try {
-                ShuffleScheduler.this.wait();
+                // with adaptive parallelism, wake up to reconsider the number of fetchers
+                ShuffleScheduler.this.wait(
+                    (fetcherParallelism == null) ? 0 : FetcherParallelism.INTERVAL_MS);
               } catch (InterruptedException e) {
                 if (isShutdown.get()) {
                   LOG.info(srcNameTrimmed + ": " +
@@ -1249,7 +1435,7 @@ class ShuffleScheduler {
 
         if (!isShutdown.get() && remainingMaps.get() > 0) {
           synchronized (ShuffleScheduler.this) {
-            int numFetchersToRun = numFetchers - runningFetchers.size();
+            int numFetchersToRun = getNumFetchersToRun() - runningFetchers.size();
             int count = 0;
             while (count < numFetchersToRun && !isShutdown.get() && remainingMaps.get() > 0) {
               MapHost mapHost;
@@ -1294,13 +1480,33 @@ class ShuffleScheduler {
     }
   }
 
+  /**
+   * @return the number of fetchers to run concurrently. Must be called with the lock held.
+   */
+  private int getNumFetchersToRun() {
+    if (fetcherParallelism == null) {
+      return numFetchers;
+    }
+    return fetcherParallelism.getNumFetchers(getCurrentTimeMillis(), pendingHosts.size(),
+        runningFetchers.size(), mergeManager.getUsedMemoryFraction());
+  }
+
+  /**
+   * @return the time the adaptive fetcher parallelism is driven by, in millis
+   */
+  @VisibleForTesting
+  long getCurrentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
   @VisibleForTesting
   FetcherOrderedGrouped constructFetcherForHost(MapHost mapHost) {
     return new FetcherOrderedGrouped(httpConnectionParams, ShuffleScheduler.this, allocator,
         shuffleMetrics, exceptionReporter, jobTokenSecretManager, ifileReadAhead, ifileReadAheadLength,
         codec, conf, localDiskFetchEnabled, localHostname, shufflePort, srcNameTrimmed, mapHost,
         ioErrsCounter, wrongLengthErrsCounter, badIdErrsCounter, wrongMapErrsCounter,
-        connectionErrsCounter, wrongReduceErrsCounter, asyncHttp);
+        connectionErrsCounter, wrongReduceErrsCounter, shuffleConnections,
+        shuffleConnectionsReused, asyncHttp);
   }
 
   private class FetchFutureCallback implements FutureCallback<Void> {
@@ -51,6 +51,7 @@ import org.apache.tez.common.TezRuntimeFrameworkConfigs;
 import org.apache.tez.common.counters.TaskCounter;
 import org.apache.tez.common.counters.TezCounter;
 import org.apache.tez.runtime.api.OutputContext;
+import org.apache.tez.runtime.library.api.KeyValueWriter;
 import org.apache.tez.runtime.library.api.Partitioner;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.ConfigUtils;
@@ -86,6 +87,35 @@ public abstract class ExternalSorter {
     }
   }
 
+  /**
+   * Writes a batch of records, see {@link KeyValueWriter#write(Object[], Object[], int, int)}.
+   * The records of a batch are collected while holding the lock of the sorter once.
+   */
+  public void write(Object[] keys, Object[] values, int offset, int length) throws IOException {
+    synchronized (this) {
+      for (int i = offset; i < offset + length; i++) {
+        collect(keys[i], values[i], partitioner.getPartition(keys[i], values[i], partitions));
+      }
+    }
+  }
+
+  /**
+   * Writes a batch of records along with their partitions, which are not computed again.
+   */
+  public void write(Object[] keys, Object[] values, int[] recordPartitions, int offset,
+      int length) throws IOException {
+    synchronized (this) {
+      for (int i = offset; i < offset + length; i++) {
+        collect(keys[i], values[i], recordPartitions[i]);
+      }
+    }
+  }
+
+  /**
+   * Serialize the key, value to intermediate storage.
+   */
+  protected abstract void collect(Object key, Object value, int partition) throws IOException;
+
   protected final Progressable progressable = new Progressable() {
     @Override
     public void progress() {
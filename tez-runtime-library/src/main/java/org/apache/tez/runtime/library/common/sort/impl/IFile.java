@@ -23,7 +23,9 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -48,6 +50,7 @@ import org.apache.hadoop.io.compress.Decompressor;
 import org.apache.hadoop.io.serializer.SerializationFactory;
 import org.apache.hadoop.io.serializer.Serializer;
 import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 
 /**
  * <code>IFile</code> is the simple <key-len, value-len, key, value> format
@@ -67,6 +70,11 @@ public class IFile {
   static final byte[] HEADER = new byte[] { (byte) 'T', (byte) 'I',
     (byte) 'F' , (byte) 0};
 
+  // last byte of the header, the compression of the data
+  static final byte UNCOMPRESSED = 0;
+  static final byte STREAM_COMPRESSED = 1; // one codec stream
+  static final byte BLOCK_COMPRESSED = 2; // see IFileBlockOutputStream
+
   private static final String INCOMPLETE_READ = "Requested to read %d got %d";
 
   /**
@@ -83,6 +91,7 @@ public class IFile {
     final AtomicBoolean closed = new AtomicBoolean(false);
 
     CompressionOutputStream compressedOut;
+    IFileBlockOutputStream blockCompressedOut;
     Compressor compressor;
     boolean compressOutput = false;
 
@@ -153,8 +162,17 @@ public class IFile {
         this.compressor = CodecPool.getCompressor(codec);
         if (this.compressor != null) {
           this.compressor.reset();
-          this.compressedOut = codec.createOutputStream(checksumOut, compressor);
-          this.out = new FSDataOutputStream(this.compressedOut,  null);
+          final int compressBlockSize = (conf == null) ? 0 : conf.getInt(
+              TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_BLOCK_SIZE,
+              TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_BLOCK_SIZE_DEFAULT);
+          if (compressBlockSize > 0) {
+            this.blockCompressedOut = new IFileBlockOutputStream(checksumOut, compressor,
+                compressBlockSize);
+            this.out = new FSDataOutputStream(this.blockCompressedOut, null);
+          } else {
+            this.compressedOut = codec.createOutputStream(checksumOut, compressor);
+            this.out = new FSDataOutputStream(this.compressedOut, null);
+          }
           this.compressOutput = true;
         } else {
           LOG.warn("Could not obtain compressor from CodecPool");
@@ -185,7 +203,8 @@ public class IFile {
     protected void writeHeader(OutputStream outputStream) throws IOException {
       if (!headerWritten) {
         outputStream.write(HEADER, 0, HEADER.length - 1);
-        outputStream.write((compressOutput) ? (byte) 1 : (byte) 0);
+        outputStream.write((blockCompressedOut != null) ? BLOCK_COMPRESSED
+            : (compressOutput) ? STREAM_COMPRESSED : UNCOMPRESSED);
         outputStream.flush();
         headerWritten = true;
       }
@@ -219,7 +238,10 @@ public class IFile {
       if (ownOutputStream) {
         out.close();
       } else {
-        if (compressOutput) {
+        if (blockCompressedOut != null) {
+          // Flush the last block
+          blockCompressedOut.finish();
+        } else if (compressOutput) {
           // Flush
           compressedOut.finish();
           compressedOut.resetState();
@@ -487,7 +509,7 @@ public class IFile {
     private final TezCounter readRecordsCounter;
     private final TezCounter bytesReadCounter;
 
-    final InputStream in;        // Possibly decompressed stream that we read
+    InputStream in;        // Possibly decompressed stream that we read
     Decompressor decompressor;
     public long bytesRead = 0;
     final long fileLength;
@@ -543,7 +565,7 @@ public class IFile {
         int bufferSize) throws IOException {
       this(in, ((in != null) ? (length - HEADER.length) : length), codec,
           readsCounter, bytesReadCounter, readAhead, readAheadLength,
-          bufferSize, ((in != null) ? isCompressedFlagEnabled(in) : false));
+          bufferSize, ((in != null) ? readCompression(in) : UNCOMPRESSED));
       if (in != null && bytesReadCounter != null) {
         bytesReadCounter.increment(IFile.HEADER.length);
       }
@@ -564,10 +586,22 @@ public class IFile {
                   TezCounter readsCounter, TezCounter bytesReadCounter,
                   boolean readAhead, int readAheadLength,
                   int bufferSize, boolean isCompressed) throws IOException {
+      this(in, length, codec, readsCounter, bytesReadCounter, readAhead, readAheadLength,
+          bufferSize, (isCompressed) ? STREAM_COMPRESSED : UNCOMPRESSED);
+    }
+
+    private Reader(InputStream in, long length,
+                   CompressionCodec codec,
+                   TezCounter readsCounter, TezCounter bytesReadCounter,
+                   boolean readAhead, int readAheadLength,
+                   int bufferSize, byte compression) throws IOException {
       if (in != null) {
         checksumIn = new IFileInputStream(in, length, readAhead,
             readAheadLength/* , isCompressed */);
-        if (isCompressed && codec != null) {
+        if (compression == BLOCK_COMPRESSED) {
+          decompressor = getBlockDecompressor(codec);
+          this.in = new IFileBlockInputStream(checksumIn, decompressor);
+        } else if (compression == STREAM_COMPRESSED && codec != null) {
           decompressor = CodecPool.getDecompressor(codec);
           if (decompressor != null) {
             this.in = codec.createInputStream(checksumIn, decompressor);
@@ -590,6 +624,25 @@ public class IFile {
       this.bufferSize = Math.max(0, bufferSize);
     }
 
+    /**
+     * Decompress the data on a background thread, into a ring of numBuffers buffers ahead of
+     * the consumer, so that decompression overlaps with the processing of the records. Has no
+     * effect for uncompressed data, and has to be called before the first record is read.
+     * {@link #getPosition()} runs ahead of the records read once enabled.
+     *
+     * @param fillExecutor runs the decompression, see {@link IFileAsyncInputStream#createFillPool}
+     */
+    public void enableAsyncDecompression(int numBuffers, Executor fillExecutor)
+        throws IOException {
+      checkState(bytesRead == 0, "Async decompression has to be enabled before reading");
+      if (decompressor == null || numBuffers <= 0 || in instanceof IFileAsyncInputStream) {
+        return;
+      }
+      in = new IFileAsyncInputStream(in, numBuffers,
+          (bufferSize > 0) ? bufferSize : DEFAULT_BUFFER_SIZE, fillExecutor);
+      dataIn = new DataInputStream(in);
+    }
+
     /**
      * Read entire ifile content to memory.
      *
@@ -604,13 +657,55 @@ public class IFile {
     public static void readToMemory(byte[] buffer, InputStream in, int compressedLength,
         CompressionCodec codec, boolean ifileReadAhead, int ifileReadAheadLength)
         throws IOException {
-      boolean isCompressed = IFile.Reader.isCompressedFlagEnabled(in);
+      readToMemory(buffer, buffer.length, in, compressedLength, codec, ifileReadAhead,
+          ifileReadAheadLength);
+    }
+
+    /**
+     * Read entire ifile content to the start of a buffer which may be larger than the content.
+     *
+     * @param buffer
+     * @param length decompressed length of the ifile, including the header
+     * @param in
+     * @param compressedLength
+     * @param codec
+     * @param ifileReadAhead
+     * @param ifileReadAheadLength
+     * @throws IOException
+     */
+    public static void readToMemory(byte[] buffer, int length, InputStream in,
+        int compressedLength, CompressionCodec codec, boolean ifileReadAhead,
+        int ifileReadAheadLength) throws IOException {
+      readToMemory(ByteBuffer.wrap(buffer), length, in, compressedLength, codec, ifileReadAhead,
+          ifileReadAheadLength);
+    }
+
+    /**
+     * Read entire ifile content to the start of a heap or direct buffer, which may be larger
+     * than the content. The position of the buffer is left unchanged.
+     *
+     * @param buffer
+     * @param length decompressed length of the ifile, including the header
+     * @param in
+     * @param compressedLength
+     * @param codec
+     * @param ifileReadAhead
+     * @param ifileReadAheadLength
+     * @throws IOException
+     */
+    public static void readToMemory(ByteBuffer buffer, int length, InputStream in,
+        int compressedLength, CompressionCodec codec, boolean ifileReadAhead,
+        int ifileReadAheadLength) throws IOException {
+      final byte compression = IFile.Reader.readCompression(in);
       IFileInputStream checksumIn = new IFileInputStream(in,
           compressedLength - IFile.HEADER.length, ifileReadAhead,
           ifileReadAheadLength);
       in = checksumIn;
       Decompressor decompressor = null;
-      if (isCompressed && codec != null) {
+      if (compression == BLOCK_COMPRESSED) {
+        decompressor = getBlockDecompressor(codec);
+        in = new IFileBlockInputStream(checksumIn, decompressor);
+      } else if (compression == STREAM_COMPRESSED && codec != null) {
         decompressor = CodecPool.getDecompressor(codec);
         if (decompressor != null) {
           decompressor.reset();
@@ -621,7 +716,11 @@ public class IFile {
         }
       }
       try {
-        IOUtils.readFully(in, buffer, 0, buffer.length - IFile.HEADER.length);
+        if (buffer.hasArray()) {
+          IOUtils.readFully(in, buffer.array(), buffer.arrayOffset(), length - IFile.HEADER.length);
+        } else {
+          readFully(in, buffer.duplicate(), length - IFile.HEADER.length);
+        }
       } catch (IOException ioe) {
         if(in != null) {
           try {
@@ -641,6 +740,20 @@ public class IFile {
       }
     }
 
+    /**
+     * Copy len bytes of the stream to the start of a direct buffer, through a heap buffer.
+     */
+    private static void readFully(InputStream in, ByteBuffer buffer, int len) throws IOException {
+      byte[] chunk = new byte[Math.min(len, DEFAULT_BUFFER_SIZE)];
+      buffer.clear();
+      while (len > 0) {
+        int n = Math.min(len, chunk.length);
+        IOUtils.readFully(in, chunk, 0, n);
+        buffer.put(chunk, 0, n);
+        len -= n;
+      }
+    }
+
     public long getLength() {
       return fileLength - checksumIn.getSize();
     }
@@ -671,8 +784,15 @@ public class IFile {
       return len;
     }
 
+    /**
+     * Read a vint of the record framing (key and value lengths and markers).
+     */
+    protected int readVInt(DataInput dIn) throws IOException {
+      return WritableUtils.readVInt(dIn);
+    }
+
     protected void readValueLength(DataInput dIn) throws IOException {
-      currentValueLength = WritableUtils.readVInt(dIn);
+      currentValueLength = readVInt(dIn);
       bytesRead += WritableUtils.getVIntSize(currentValueLength);
       if (currentValueLength == V_END_MARKER) {
         readKeyValueLength(dIn);
@@ -680,8 +800,8 @@ public class IFile {
     }
 
     protected void readKeyValueLength(DataInput dIn) throws IOException {
-      currentKeyLength = WritableUtils.readVInt(dIn);
-      currentValueLength = WritableUtils.readVInt(dIn);
+      currentKeyLength = readVInt(dIn);
+      currentValueLength = readVInt(dIn);
       if (currentKeyLength != RLE_MARKER) {
         // original key length
         originalKeyLength = currentKeyLength;
@@ -729,6 +849,14 @@ public class IFile {
       return true;
     }
 
+    /**
+     * @return true if the key bytes handed out by {@link #readRawKey(DataInputBuffer)} are not
+     * overwritten when later records are read, i.e. remain valid until the reader is closed.
+     */
+    public boolean isRawKeyStable() {
+      return false;
+    }
+
     public final boolean nextRawKey(DataInputBuffer key) throws IOException {
       return readRawKey(key) != KeyState.NO_KEY;
     }
@@ -775,6 +903,15 @@ public class IFile {
     }
 
     public static boolean isCompressedFlagEnabled(InputStream in) throws IOException {
+      return readCompression(in) != UNCOMPRESSED;
+    }
+
+    /**
+     * Read the header of the IFile.
+     *
+     * @return the compression of the data which follows
+     */
+    static byte readCompression(InputStream in) throws IOException {
       byte[] header = new byte[HEADER.length];
       IOUtils.readFully(in, header, 0, HEADER.length);
 
@@ -782,7 +919,22 @@ public class IFile {
           && header[2] == 'F')) {
         throw new IOException("Not a valid ifile header");
       }
-      return (header[3] == 1);
+      checkState(header[3] >= UNCOMPRESSED && header[3] <= BLOCK_COMPRESSED,
+          "Unknown compression %d in ifile header", header[3]);
+      return header[3];
+    }
+
+    /**
+     * Block compressed data cannot be read without its codec, unlike a stream compressed IFile
+     * which is read as is.
+     */
+    private static Decompressor getBlockDecompressor(CompressionCodec codec) throws IOException {
+      checkState(codec != null, "Block compressed IFile, but no codec configured");
+      Decompressor decompressor = CodecPool.getDecompressor(codec);
+      checkState(decompressor != null, "Could not obtain decompressor for %s from CodecPool",
+          codec.getClass().getName());
+      decompressor.reset();
+      return decompressor;
     }
 
     public void close() throws IOException {
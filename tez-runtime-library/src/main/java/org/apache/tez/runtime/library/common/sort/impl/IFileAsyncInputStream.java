@@ -0,0 +1,242 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * Reads (and so decompresses) the wrapped stream ahead of the consumer, into a small ring of
+ * buffers. The reading is done by a task on an executor shared by the readers of a merge (see
+ * {@link #createFillPool(int)}), which fills the free buffers and exits; the consumer schedules it
+ * again whenever it hands a buffer back. A merge over many readers therefore does not hold a
+ * thread per reader.
+ *
+ * The wrapped stream is only read by the task, and closed by {@link #close()} once the task is
+ * done with it. Errors of the task are thrown to the consumer when it gets to them.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Unstable
+public class IFileAsyncInputStream extends InputStream {
+
+  private static class Chunk {
+    final byte[] data;
+    final int length;
+    final IOException error;
+
+    Chunk(byte[] data, int length, IOException error) {
+      this.data = data;
+      this.length = length;
+      this.error = error;
+    }
+  }
+
+  // end of the stream
+  private static final Chunk EOF = new Chunk(null, -1, null);
+
+  private final InputStream in;
+  private final Executor fillExecutor;
+  private final BlockingQueue<byte[]> free;
+  private final BlockingQueue<Chunk> filled = new LinkedBlockingQueue<Chunk>();
+  private final AtomicBoolean fillScheduled = new AtomicBoolean(false);
+  // held by the fill task while it reads the wrapped stream
+  private final Object fillLock = new Object();
+  private volatile boolean closed = false;
+  private boolean inputDone = false; // only accessed by the fill task
+
+  private Chunk current = null;
+  private int pos = 0;
+  private final byte[] oneByte = new byte[1];
+
+  private final Runnable fillTask = new Runnable() {
+    @Override
+    public void run() {
+      do {
+        synchronized (fillLock) {
+          fill();
+        }
+        fillScheduled.set(false);
+        // a buffer might have been handed back after the last poll
+      } while (!free.isEmpty() && !closed && !isInputDone()
+          && fillScheduled.compareAndSet(false, true));
+    }
+  };
+
+  /**
+   * @param in stream to read ahead of the consumer
+   * @param numBuffers number of buffers in the ring
+   * @param bufferSize size of the buffers
+   * @param fillExecutor runs the reads of the wrapped stream
+   */
+  public IFileAsyncInputStream(InputStream in, int numBuffers, int bufferSize,
+      Executor fillExecutor) {
+    Preconditions.checkArgument(numBuffers > 0, "numBuffers should be > 0, numBuffers="
+        + numBuffers);
+    Preconditions.checkArgument(bufferSize > 0, "bufferSize should be > 0, bufferSize="
+        + bufferSize);
+    this.in = in;
+    this.fillExecutor = fillExecutor;
+    this.free = new ArrayBlockingQueue<byte[]>(numBuffers);
+    for (int i = 0; i < numBuffers; i++) {
+      free.add(new byte[bufferSize]);
+    }
+    scheduleFill();
+  }
+
+  /**
+   * Pool for the reads of the streams of one merge, of at most numThreads threads which exit when
+   * idle. The owner shuts it down once the streams are closed.
+   */
+  public static ExecutorService createFillPool(int numThreads) {
+    Preconditions.checkArgument(numThreads > 0, "numThreads should be > 0, numThreads="
+        + numThreads);
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, 10,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("IFileAsyncRead #%d").build());
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  private boolean isInputDone() {
+    synchronized (fillLock) {
+      return inputDone;
+    }
+  }
+
+  private void scheduleFill() {
+    if (!closed && fillScheduled.compareAndSet(false, true)) {
+      fillExecutor.execute(fillTask);
+    }
+  }
+
+  /**
+   * Fill free buffers from the wrapped stream, until none is free or the stream ended.
+   */
+  private void fill() {
+    byte[] buffer;
+    while (!inputDone && !closed && (buffer = free.poll()) != null) {
+      int length = 0;
+      try {
+        while (length < buffer.length) {
+          final int n = in.read(buffer, length, buffer.length - length);
+          if (n < 0) {
+            inputDone = true;
+            break;
+          }
+          length += n;
+        }
+      } catch (IOException e) {
+        inputDone = true;
+        filled.add(new Chunk(null, -1, e));
+        return;
+      } catch (RuntimeException e) {
+        inputDone = true;
+        filled.add(new Chunk(null, -1, new IOException(e)));
+        return;
+      }
+      if (length > 0) {
+        filled.add(new Chunk(buffer, length, null));
+      } else {
+        free.add(buffer);
+      }
+      if (inputDone) {
+        filled.add(EOF);
+      }
+    }
+  }
+
+  /**
+   * @return false at the end of the stream
+   */
+  private boolean nextChunk() throws IOException {
+    if (current == EOF) {
+      return false;
+    }
+    if (current != null) {
+      free.add(current.data);
+      current = null;
+      scheduleFill();
+    }
+    final Chunk chunk;
+    try {
+      chunk = filled.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for data");
+    }
+    if (chunk.error != null) {
+      current = EOF;
+      throw chunk.error;
+    }
+    current = chunk;
+    pos = 0;
+    return chunk != EOF;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return (read(oneByte, 0, 1) < 0) ? -1 : (oneByte[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (current == null || pos == current.length) {
+      if (!nextChunk()) {
+        return -1;
+      }
+    }
+    final int n = Math.min(len, current.length - pos);
+    System.arraycopy(current.data, pos, b, off, n);
+    pos += n;
+    return n;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (current == null || current == EOF) ? 0 : current.length - pos;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    // wait for a running fill to stop reading the wrapped stream
+    synchronized (fillLock) {
+      in.close();
+    }
+  }
+}
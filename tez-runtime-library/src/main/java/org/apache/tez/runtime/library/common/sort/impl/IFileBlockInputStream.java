@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Checksum;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.util.PureJavaCrc32;
+
+/**
+ * Reads the blocks written by {@link IFileBlockOutputStream}. The checksum of every block is
+ * verified before it is decompressed, so corruption is reported with the offending block.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Unstable
+public class IFileBlockInputStream extends InputStream {
+
+  private final DataInputStream in;
+  private final Decompressor decompressor;
+  private final Checksum crc = new PureJavaCrc32();
+  private byte[] compressed = new byte[0];
+  private byte[] block = new byte[0];
+  private int blockLength = 0;
+  private int blockPos = 0;
+  private long blocksRead = 0;
+  private final byte[] oneByte = new byte[1];
+  private boolean eof = false;
+
+  /**
+   * @param in stream of blocks
+   * @param decompressor decompressor to use, reset for every block. It is not returned to the
+   *                     pool.
+   */
+  public IFileBlockInputStream(InputStream in, Decompressor decompressor) {
+    this.in = new DataInputStream(in);
+    this.decompressor = decompressor;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return (read(oneByte, 0, 1) < 0) ? -1 : (oneByte[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (blockPos == blockLength && !nextBlock()) {
+      return -1;
+    }
+    final int n = Math.min(len, blockLength - blockPos);
+    System.arraycopy(block, blockPos, b, off, n);
+    blockPos += n;
+    return n;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return blockLength - blockPos;
+  }
+
+  /**
+   * Read, verify and decompress the next block.
+   *
+   * @return false at the end of the stream
+   */
+  private boolean nextBlock() throws IOException {
+    while (!eof) {
+      final int first = in.read();
+      if (first < 0) {
+        eof = true;
+        break;
+      }
+      final int rawLength = (first << 24) | (in.readUnsignedByte() << 16)
+          | (in.readUnsignedShort());
+      final int compressedLength = in.readInt();
+      final int checksum = in.readInt();
+      if (rawLength < 0 || compressedLength < 0) {
+        throw new IOException("Invalid compressed block " + blocksRead + ": rawLength="
+            + rawLength + ", compressedLength=" + compressedLength);
+      }
+      if (compressed.length < compressedLength) {
+        compressed = new byte[compressedLength];
+      }
+      in.readFully(compressed, 0, compressedLength);
+      crc.reset();
+      crc.update(compressed, 0, compressedLength);
+      if ((int) crc.getValue() != checksum) {
+        throw new ChecksumException("Checksum error in compressed block " + blocksRead, -1);
+      }
+      decompress(compressedLength, rawLength);
+      blocksRead++;
+      if (blockLength > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void decompress(int compressedLength, int rawLength) throws IOException {
+    if (block.length < rawLength) {
+      block = new byte[rawLength];
+    }
+    decompressor.reset();
+    decompressor.setInput(compressed, 0, compressedLength);
+    int length = 0;
+    while (length < rawLength) {
+      final int n = decompressor.decompress(block, length, rawLength - length);
+      if (n == 0 && (decompressor.finished() || decompressor.needsInput())) {
+        throw new EOFException("Compressed block " + blocksRead + " ended after " + length
+            + " of " + rawLength + " bytes");
+      }
+      length += n;
+    }
+    blockLength = rawLength;
+    blockPos = 0;
+  }
+
+  /**
+   * @return number of blocks read so far
+   */
+  public long getBlocksRead() {
+    return blocksRead;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
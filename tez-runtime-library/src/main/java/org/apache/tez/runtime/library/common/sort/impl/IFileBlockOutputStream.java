@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+import com.google.common.base.Preconditions;
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.util.PureJavaCrc32;
+
+/**
+ * Compresses the data of an IFile in blocks of a fixed (uncompressed) size, each compressed on
+ * its own. Every block is written as
+ * <pre>
+ *   int uncompressed length, int compressed length, int CRC32 of the compressed bytes,
+ *   compressed bytes
+ * </pre>
+ * so that blocks can be verified and decompressed independently, see
+ * {@link IFileBlockInputStream}. {@link #flush()} does not end the current block, only
+ * {@link #finish()} and {@link #close()} do.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Unstable
+public class IFileBlockOutputStream extends OutputStream {
+
+  static final int BLOCK_HEADER_LENGTH = 12;
+
+  private final DataOutputStream out;
+  private final Compressor compressor;
+  private final Checksum crc = new PureJavaCrc32();
+  private final byte[] block;
+  private int blockLength = 0;
+  private byte[] compressed;
+  private final byte[] oneByte = new byte[1];
+  private boolean closed = false;
+
+  /**
+   * @param out stream the blocks are written to
+   * @param compressor compressor to use, reset for every block. It is not returned to the pool.
+   * @param blockSize uncompressed size of the blocks
+   */
+  public IFileBlockOutputStream(OutputStream out, Compressor compressor, int blockSize) {
+    Preconditions.checkArgument(blockSize > 0, "blockSize should be > 0, blockSize=" + blockSize);
+    this.out = new DataOutputStream(out);
+    this.compressor = compressor;
+    this.block = new byte[blockSize];
+    this.compressed = new byte[blockSize + (blockSize >>> 4) + 64];
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    oneByte[0] = (byte) b;
+    write(oneByte, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      final int n = Math.min(len, block.length - blockLength);
+      System.arraycopy(b, off, block, blockLength, n);
+      blockLength += n;
+      off += n;
+      len -= n;
+      if (blockLength == block.length) {
+        writeBlock();
+      }
+    }
+  }
+
+  private void writeBlock() throws IOException {
+    if (blockLength == 0) {
+      return;
+    }
+    compressor.reset();
+    compressor.setInput(block, 0, blockLength);
+    compressor.finish();
+    int compressedLength = 0;
+    while (!compressor.finished()) {
+      if (compressedLength == compressed.length) {
+        compressed = Arrays.copyOf(compressed, compressed.length * 2);
+      }
+      compressedLength += compressor.compress(compressed, compressedLength,
+          compressed.length - compressedLength);
+    }
+    crc.reset();
+    crc.update(compressed, 0, compressedLength);
+    out.writeInt(blockLength);
+    out.writeInt(compressedLength);
+    out.writeInt((int) crc.getValue());
+    out.write(compressed, 0, compressedLength);
+    blockLength = 0;
+  }
+
+  /**
+   * Compress and write out the pending data. The underlying stream is not closed.
+   */
+  public void finish() throws IOException {
+    writeBlock();
+    out.flush();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    finish();
+    out.close();
+  }
+}
@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * A loser tree (tournament tree) over a fixed number of sorted inputs, with the same usage as
+ * {@link org.apache.hadoop.util.PriorityQueue}: {@link #initialize(int)}, {@link #put(Object)}
+ * the inputs, then repeatedly read {@link #top()} and call {@link #adjustTop()} once its key
+ * advanced, or {@link #pop()} once it is exhausted.
+ *
+ * Every internal node keeps the loser of the match played at it, and the overall winner is kept
+ * at node 0. When the winner changes, it only has to replay the matches on the path from its leaf
+ * to the root against the stored losers, which is one comparison per level. A binary heap needs
+ * two comparisons per level to sift down the replaced top. Popped inputs stay in the tree as
+ * empty leaves which lose every match without a comparison.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Unstable
+public abstract class LoserTree<T> {
+
+  private Object[] leaves;
+  // tree[0] is the index of the winner, tree[1 .. k-1] the index of the loser at each node
+  private int[] tree;
+  private int numLeaves;
+  private int size;
+  private boolean built;
+
+  /**
+   * Determines the ordering of objects in this tree. Subclasses must define this one method.
+   */
+  protected abstract boolean lessThan(Object a, Object b);
+
+  /**
+   * Has to be called before inputs are added. Calling it again discards the current inputs.
+   */
+  protected final void initialize(int maxSize) {
+    leaves = new Object[maxSize];
+    tree = new int[Math.max(maxSize, 1)];
+    numLeaves = 0;
+    size = 0;
+    built = false;
+  }
+
+  /**
+   * Adds an input to the tree. All inputs have to be added before the first call to
+   * {@link #top()}.
+   */
+  public final void put(T element) {
+    if (built) {
+      throw new IllegalStateException("Cannot add to a loser tree which is in use");
+    }
+    if (numLeaves == leaves.length) {
+      throw new ArrayIndexOutOfBoundsException("Loser tree is full, size=" + leaves.length);
+    }
+    leaves[numLeaves++] = element;
+    size++;
+  }
+
+  /**
+   * Returns the least element of the tree in constant time.
+   */
+  @SuppressWarnings("unchecked")
+  public final T top() {
+    if (size == 0) {
+      return null;
+    }
+    build();
+    return (T) leaves[tree[0]];
+  }
+
+  /**
+   * Removes and returns the least element of the tree in log(size) time.
+   */
+  @SuppressWarnings("unchecked")
+  public final T pop() {
+    if (size == 0) {
+      return null;
+    }
+    build();
+    final int winner = tree[0];
+    T result = (T) leaves[winner];
+    leaves[winner] = null;
+    size--;
+    replay(winner);
+    return result;
+  }
+
+  /**
+   * Should be called when the object at top changes values. Replays the matches of the top
+   * element in log(size) time, with one comparison per level.
+   */
+  public final void adjustTop() {
+    if (size == 0) {
+      return;
+    }
+    build();
+    replay(tree[0]);
+  }
+
+  /**
+   * Returns the number of elements currently stored in the tree.
+   */
+  public final int size() {
+    return size;
+  }
+
+  /**
+   * Removes all entries from the tree.
+   */
+  public final void clear() {
+    for (int i = 0; i < numLeaves; i++) {
+      leaves[i] = null;
+    }
+    numLeaves = 0;
+    size = 0;
+    built = false;
+  }
+
+  /**
+   * @return true if the leaf at index a wins (is not greater than) the leaf at index b. Empty
+   * leaves lose against everything.
+   */
+  private boolean beats(int a, int b) {
+    final Object la = leaves[a];
+    final Object lb = leaves[b];
+    if (lb == null) {
+      return true;
+    }
+    if (la == null) {
+      return false;
+    }
+    return !lessThan(lb, la);
+  }
+
+  /**
+   * Plays all the matches bottom up. Node n has children 2n and 2n + 1, the leaf i sits at
+   * position numLeaves + i, which works for any number of leaves.
+   */
+  private void build() {
+    if (built) {
+      return;
+    }
+    built = true;
+    final int k = numLeaves;
+    if (k <= 1) {
+      tree[0] = 0;
+      return;
+    }
+    int[] winners = new int[2 * k];
+    for (int i = 0; i < k; i++) {
+      winners[k + i] = i;
+    }
+    for (int n = k - 1; n >= 1; n--) {
+      final int a = winners[2 * n];
+      final int b = winners[2 * n + 1];
+      if (beats(a, b)) {
+        winners[n] = a;
+        tree[n] = b;
+      } else {
+        winners[n] = b;
+        tree[n] = a;
+      }
+    }
+    tree[0] = winners[1];
+  }
+
+  /**
+   * Replays the matches from the leaf to the root, leaving the new winner at node 0.
+   */
+  private void replay(int leaf) {
+    int winner = leaf;
+    for (int n = (leaf + numLeaves) >>> 1; n >= 1; n >>>= 1) {
+      final int loser = tree[n];
+      if (beats(loser, winner)) {
+        tree[n] = winner;
+        winner = loser;
+      }
+    }
+    tree[0] = winner;
+  }
+}
@@ -17,24 +17,33 @@
 */
 package org.apache.tez.runtime.library.common.sort.impl;
 
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 
 import org.apache.tez.runtime.library.api.IOInterruptedException;
@@ -43,10 +52,14 @@ import org.slf4j.LoggerFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.tez.common.TezUtilsInternal;
 import org.apache.tez.common.CallableWithNdc;
+import org.apache.tez.common.counters.GenericCounter;
+import org.apache.tez.common.counters.TezCounter;
 import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.library.common.comparator.NormalizedKeyPrefix;
 import org.apache.tez.runtime.library.common.comparator.ProxyComparator;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.util.IndexedSortable;
@@ -58,6 +71,7 @@ import org.apache.tez.runtime.library.common.ConfigUtils;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
+import org.apache.tez.runtime.library.utils.BufferUtils;
 import org.apache.tez.runtime.library.utils.LocalProgress;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -72,6 +86,8 @@ public class PipelinedSorter extends ExternalSorter {
    */
   public static final int MAP_OUTPUT_INDEX_RECORD_LENGTH = 24;
 
+  private static final long SORT_TASKS_TERMINATION_TIMEOUT_MS = 10000;
+
   private final static int APPROX_HEADER_LENGTH = 150;
 
   private final int partitionBits;
@@ -82,6 +98,13 @@ public class PipelinedSorter extends ExternalSorter {
   private static final int VALLEN = 3;           // val len in acct
   private static final int NMETA = 4;            // num meta ints
   private static final int METASIZE = NMETA * 4; // size in bytes
+  private static final int PREFIX = 4;           // key prefix offset in acct (2 ints)
+  private static final int NMETA_WITH_PREFIX = 6; // num meta ints with key prefixes
+
+  // non-null when sorting on normalized key prefixes
+  private final NormalizedKeyPrefix keyPrefix;
+  private final int nmeta;
+  private final int metaBytes;
 
   private final int minSpillsForCombine;
   private final ProxyComparator hasher;
@@ -111,6 +134,11 @@ public class PipelinedSorter extends ExternalSorter {
   private int bufferIndex = -1;
   private final int MIN_BLOCK_SIZE;
   private final boolean lazyAllocateMem;
+  // sort buffers are allocated off-heap
+  private final boolean useDirectMemory;
+  // final merge of partitions runs on the sort threads
+  private final boolean parallelFinalMerge;
+  private final int sortThreads;
 
   // TODO Set additional countesr - total bytes written, spills etc.
 
@@ -122,6 +150,14 @@ public class PipelinedSorter extends ExternalSorter {
         .TEZ_RUNTIME_PIPELINED_SORTER_LAZY_ALLOCATE_MEMORY, TezRuntimeConfiguration
         .TEZ_RUNTIME_PIPELINED_SORTER_LAZY_ALLOCATE_MEMORY_DEFAULT);
 
+    useDirectMemory = this.conf.getBoolean(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_MEMORY, TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_MEMORY_DEFAULT);
+
+    parallelFinalMerge = this.conf.getBoolean(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_PARALLEL_FINAL_MERGE, TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_PARALLEL_FINAL_MERGE_DEFAULT);
+
     if (lazyAllocateMem) {
       /**
        * When lazy-allocation is enabled, framework takes care of auto
@@ -157,9 +193,18 @@ public class PipelinedSorter extends ExternalSorter {
     // buffers and accounting
     long maxMemLimit = sortmb << 20;
 
+    boolean prefixSort = this.conf.getBoolean(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_PREFIX_SORT, TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_PREFIX_SORT_DEFAULT);
+    keyPrefix = (prefixSort) ? NormalizedKeyPrefix.get(comparator) : null;
+    nmeta = (keyPrefix != null) ? NMETA_WITH_PREFIX : NMETA;
+    metaBytes = nmeta * 4;
+    initialSetupLogLine.append(", keyPrefix=").append(keyPrefix);
+
     initialSetupLogLine.append(", UsingHashComparator=");
     // k/v serialization
-    if(comparator instanceof ProxyComparator) {
+    // the proxy is redundant when the full key prefix is available
+    if(keyPrefix == null && comparator instanceof ProxyComparator) {
       hasher = (ProxyComparator)comparator;
       initialSetupLogLine.append(true);
     } else {
@@ -194,6 +239,8 @@ public class PipelinedSorter extends ExternalSorter {
     initialSetupLogLine.append(", maxMemUsage=").append(maxMemLimit);
     initialSetupLogLine.append(", lazyAllocateMem=").append(
         lazyAllocateMem);
+    initialSetupLogLine.append(", useDirectMemory=").append(useDirectMemory);
+    initialSetupLogLine.append(", parallelFinalMerge=").append(parallelFinalMerge);
     initialSetupLogLine.append(", minBlockSize=").append(MIN_BLOCK_SIZE);
     initialSetupLogLine.append(", initial BLOCK_SIZE=").append(buffers.get(0).capacity());
     initialSetupLogLine.append(", finalMergeEnabled=").append(isFinalMergeEnabled());
@@ -208,7 +255,7 @@ public class PipelinedSorter extends ExternalSorter {
 
     span = new SortSpan(buffers.get(bufferIndex), 1024 * 1024, 16, this.comparator);
     merger = new SpanMerger(); // SpanIterators are comparable
-    final int sortThreads = 
+    sortThreads =
             this.conf.getInt(
                 TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_SORT_THREADS,
                 TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_SORT_THREADS_DEFAULT);
@@ -233,7 +280,8 @@ public class PipelinedSorter extends ExternalSorter {
     int size = computeBlockSize(currentAllocatableMemory, availableMemoryMb << 20);
     currentAllocatableMemory -= size;
     int sizeWithoutMeta = (size) - (size % METASIZE);
-    ByteBuffer space = ByteBuffer.allocate(sizeWithoutMeta);
+    ByteBuffer space = (useDirectMemory) ? ByteBuffer.allocateDirect(sizeWithoutMeta)
+        : ByteBuffer.allocate(sizeWithoutMeta);
 
     buffers.add(space);
     bufferIndex++;
@@ -320,7 +368,7 @@ public class PipelinedSorter extends ExternalSorter {
       if(span.length() != 0) {
         items = span.length();
         perItem = span.kvbuffer.limit()/items;
-        items = (int) ((span.capacity)/(METASIZE+perItem));
+        items = (int) ((span.capacity)/(metaBytes+perItem));
         if(items > 1024*1024) {
             // our goal is to have 1M splits and sort early
             items = 1024*1024;
@@ -365,7 +413,8 @@ public class PipelinedSorter extends ExternalSorter {
    * When this method returns, kvindex must refer to sufficient unused
    * storage to store one METADATA.
    */
-  synchronized void collect(Object key, Object value, final int partition
+  @Override
+  protected synchronized void collect(Object key, Object value, final int partition
                                    ) throws IOException {
     if (key.getClass() != keyClass) {
       throw new IOException("Type mismatch in key from map: expected "
@@ -430,6 +479,11 @@ public class PipelinedSorter extends ExternalSorter {
     span.kvmeta.put(keystart);
     span.kvmeta.put(valstart);
     span.kvmeta.put(valend - valstart);
+    if (keyPrefix != null) {
+      final long keyprefix = keyPrefix.getPrefix(span.kvbuffer, keystart, valstart - keystart);
+      span.kvmeta.put((int) (keyprefix >>> 32));
+      span.kvmeta.put((int) keyprefix);
+    }
     mapOutputRecordCounter.increment(1);
     outputContext.notifyProgress();
     mapOutputByteCounter.increment(valend - keystart);
@@ -598,11 +652,74 @@ public class PipelinedSorter extends ExternalSorter {
     }
   }
 
+  /**
+   * Drop the sort buffers. Direct buffers are released right away instead of waiting for GC.
+   * Must only be called once all sort tasks have completed.
+   */
+  private void releaseBuffers() {
+    if (useDirectMemory) {
+      for (ByteBuffer buffer : buffers) {
+        BufferUtils.freeDirectBuffer(buffer);
+      }
+    }
+    buffers.clear();
+  }
+
+  /**
+   * Drop the sort buffers when the sorter is closed or cleaned up without a successful flush, e.g.
+   * when the task was interrupted or failed. Sort tasks may still be using the buffers, so they are
+   * stopped first; if they do not finish in time the buffers are left to GC.
+   */
+  private void releaseBuffersAfterSortTasks() {
+    if (buffers.isEmpty()) {
+      return;
+    }
+    sortmaster.shutdownNow();
+    // the caller is typically interrupted, so wait without giving up the interrupt status
+    boolean interrupted = Thread.interrupted();
+    boolean terminated = false;
+    try {
+      long deadline = System.currentTimeMillis() + SORT_TASKS_TERMINATION_TIMEOUT_MS;
+      long remaining;
+      while (!terminated && (remaining = deadline - System.currentTimeMillis()) > 0) {
+        try {
+          terminated = sortmaster.awaitTermination(remaining, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (terminated) {
+      releaseBuffers();
+    } else {
+      LOG.warn(outputContext.getDestinationVertexName()
+          + ": Sort tasks did not finish, leaving sort buffers to GC");
+      buffers.clear();
+    }
+  }
+
+  @Override
+  protected synchronized void cleanup() throws IOException {
+    super.cleanup();
+    releaseBuffersAfterSortTasks();
+  }
+
+  @Override
+  public void close() throws IOException {
+    super.close();
+    releaseBuffersAfterSortTasks();
+  }
+
   private boolean isThreadInterrupted() throws IOException {
     if (Thread.currentThread().isInterrupted()) {
       if (cleanup) {
         cleanup();
       }
+      releaseBuffersAfterSortTasks();
       sortmaster.shutdownNow();
       LOG.info(outputContext.getDestinationVertexName() + ": Thread interrupted, cleaned up stale data, sorter threads shutdown=" + sortmaster
           .isShutdown() + ", terminated=" + sortmaster.isTerminated());
@@ -613,8 +730,6 @@ public class PipelinedSorter extends ExternalSorter {
 
   @Override
   public void flush() throws IOException {
-    final String uniqueIdentifier = outputContext.getUniqueIdentifier();
-
     outputContext.notifyProgress();
     /**
      * Possible that the thread got interrupted when flush was happening or when the flush was
@@ -638,10 +753,9 @@ public class PipelinedSorter extends ExternalSorter {
       // so for flush()->spill() we want to force spill so that
       // we can send pipeline shuffle event with last event true.
       spill(false);
-      sortmaster.shutdown();
 
       //safe to clean up
-      buffers.clear();
+      releaseBuffers();
 
 
       if(indexCacheList.isEmpty()) {
@@ -717,73 +831,34 @@ public class PipelinedSorter extends ExternalSorter {
             "numSpills: " + numSpills + ", finalOutputFile:" + finalOutputFile + ", finalIndexFile:"
                 + finalIndexFile);
       }
-      //The output stream for the final single output file
-      FSDataOutputStream finalOut = rfs.create(finalOutputFile, true, 4096);
-
       final TezSpillRecord spillRec = new TezSpillRecord(partitions);
 
-      for (int parts = 0; parts < partitions; parts++) {
-        //create the segments to be merged
-        List<Segment> segmentList =
-            new ArrayList<Segment>(numSpills);
-        for (int i = 0; i < numSpills; i++) {
-          Path spillFilename = spillFilePaths.get(i);
-          TezIndexRecord indexRecord = indexCacheList.get(i).getIndex(parts);
-
-          Segment s =
-              new Segment(rfs, spillFilename, indexRecord.getStartOffset(),
-                  indexRecord.getPartLength(), codec, ifileReadAhead,
-                  ifileReadAheadLength, ifileBufferSize, true);
-          segmentList.add(i, s);
-        }
-
-        int mergeFactor =
-            this.conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR,
-                TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR_DEFAULT);
-        // sort the segments only if there are intermediate merges
-        boolean sortSegments = segmentList.size() > mergeFactor;
-        //merge
-        TezRawKeyValueIterator kvIter = TezMerger.merge(conf, rfs,
-            keyClass, valClass, codec,
-            segmentList, mergeFactor,
-            new Path(uniqueIdentifier),
-            (RawComparator) ConfigUtils.getIntermediateOutputKeyComparator(conf),
-            progressable, sortSegments, true,
-            null, spilledRecordsCounter, additionalSpillBytesRead,
-            null); // Not using any Progress in TezMerger. Should just work.
-        //write merged output to disk
-        long segmentStart = finalOut.getPos();
-        Writer writer =
-            new Writer(conf, finalOut, keyClass, valClass, codec,
-                spilledRecordsCounter, null, merger.needsRLE());
-        if (combiner == null || numSpills < minSpillsForCombine) {
-          TezMerger.writeFile(kvIter, writer, progressable,
-              TezRuntimeConfiguration.TEZ_RUNTIME_RECORDS_BEFORE_PROGRESS_DEFAULT);
-        } else {
-          runCombineProcessor(kvIter, writer);
+      final long finalOutputBytes;
+      if (useParallelFinalMerge()) {
+        finalOutputBytes = parallelFinalMerge(spillRec);
+      } else {
+        //The output stream for the final single output file
+        FSDataOutputStream finalOut = rfs.create(finalOutputFile, true, 4096);
+        try {
+          for (int parts = 0; parts < partitions; parts++) {
+            final TezIndexRecord rec = mergePartition(parts, finalOut);
+            spillRec.putIndex(rec, parts);
+          }
+        } finally {
+          finalOut.close();
         }
-
-        //close
-        writer.close();
-        outputBytesWithOverheadCounter.increment(writer.getRawLength());
-
-        // record offsets
-        final TezIndexRecord rec =
-            new TezIndexRecord(
-                segmentStart,
-                writer.getRawLength(),
-                writer.getCompressedLength());
-        spillRec.putIndex(rec, parts);
-        if (reportPartitionStats()) {
-          partitionStats[parts] += writer.getCompressedLength();
+        finalOutputBytes = rfs.getFileStatus(finalOutputFile).getLen();
+      }
+      if (reportPartitionStats()) {
+        for (int parts = 0; parts < partitions; parts++) {
+          partitionStats[parts] += spillRec.getIndex(parts).getPartLength();
         }
       }
 
       numShuffleChunks.setValue(1); //final merge has happened.
-      fileOutputByteCounter.increment(rfs.getFileStatus(finalOutputFile).getLen());
+      fileOutputByteCounter.increment(finalOutputBytes);
 
       spillRec.writeToFile(finalIndexFile, conf);
-      finalOut.close();
       for (int i = 0; i < numSpills; i++) {
         Path indexFilename = spillFileIndexPaths.get(i);
         Path spillFilename = spillFilePaths.get(i);
@@ -799,9 +874,298 @@ public class PipelinedSorter extends ExternalSorter {
       }
       Thread.currentThread().interrupt();
       throw new IOInterruptedException("Interrupted while closing Output", ie);
+    } finally {
+      // the pool is also used by the parallel final merge
+      sortmaster.shutdown();
+    }
+  }
+
+  /**
+   * Merge the given partition of all spills and append it to out.
+   * @return index record of the partition, relative to the start of out
+   */
+  private TezIndexRecord mergePartition(int parts, FSDataOutputStream out)
+      throws IOException, InterruptedException {
+    return mergePartition(parts, out, spilledRecordsCounter, additionalSpillBytesRead,
+        outputBytesWithOverheadCounter);
+  }
+
+  /**
+   * Merge the given partition of all spills and append it to out, counting into the given
+   * counters.
+   * @return index record of the partition, relative to the start of out
+   */
+  private TezIndexRecord mergePartition(int parts, FSDataOutputStream out,
+      TezCounter spilledRecords, TezCounter spillBytesRead, TezCounter outputBytesWithOverhead)
+      throws IOException, InterruptedException {
+    //create the segments to be merged
+    List<Segment> segmentList =
+        new ArrayList<Segment>(numSpills);
+    for (int i = 0; i < numSpills; i++) {
+      Path spillFilename = spillFilePaths.get(i);
+      TezIndexRecord indexRecord = indexCacheList.get(i).getIndex(parts);
+
+      Segment s =
+          new Segment(rfs, spillFilename, indexRecord.getStartOffset(),
+              indexRecord.getPartLength(), codec, ifileReadAhead,
+              ifileReadAheadLength, ifileBufferSize, true);
+      segmentList.add(i, s);
+    }
+
+    int mergeFactor =
+        this.conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR,
+            TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR_DEFAULT);
+    // sort the segments only if there are intermediate merges
+    boolean sortSegments = segmentList.size() > mergeFactor;
+    // intermediate merge files are named after the pass number, keep partitions apart
+    Path tmpDir = new Path(outputContext.getUniqueIdentifier());
+    if (useParallelFinalMerge()) {
+      tmpDir = new Path(tmpDir, "partition_" + parts);
+    }
+    //merge
+    TezRawKeyValueIterator kvIter = TezMerger.merge(conf, rfs,
+        keyClass, valClass, codec,
+        segmentList, mergeFactor,
+        tmpDir,
+        (RawComparator) ConfigUtils.getIntermediateOutputKeyComparator(conf),
+        progressable, sortSegments, true,
+        null, spilledRecords, spillBytesRead,
+        null); // Not using any Progress in TezMerger. Should just work.
+    //write merged output to disk
+    long segmentStart = out.getPos();
+    Writer writer =
+        new Writer(conf, out, keyClass, valClass, codec,
+            spilledRecords, null, merger.needsRLE());
+    if (combiner == null || numSpills < minSpillsForCombine) {
+      TezMerger.writeFile(kvIter, writer, progressable,
+          TezRuntimeConfiguration.TEZ_RUNTIME_RECORDS_BEFORE_PROGRESS_DEFAULT);
+    } else {
+      runCombineProcessor(kvIter, writer);
+    }
+
+    //close
+    writer.close();
+    outputBytesWithOverhead.increment(writer.getRawLength());
+
+    // record offsets
+    return new TezIndexRecord(
+        segmentStart,
+        writer.getRawLength(),
+        writer.getCompressedLength());
+  }
+
+  /**
+   * The final merge runs partitions concurrently on the sort threads when enabled, unless the
+   * combiner has to run (combiners are not expected to be thread-safe).
+   */
+  private boolean useParallelFinalMerge() {
+    return parallelFinalMerge && sortThreads > 1 && partitions > 1
+        && (combiner == null || numSpills < minSpillsForCombine);
+  }
+
+  /**
+   * Merge all partitions on the sort threads, straight into the final output. Each thread picks
+   * up the next unmerged partition and writes it to a region of the final output reserved for it.
+   * A merged partition is not larger than its segments in the spills put together (one IFile
+   * header and trailer instead of one per spill), unless it is compressed worse than the spills
+   * were, so the regions are sized and placed upfront. A partition which outgrows its region is
+   * merged again, once the threads are done, at the end of the file. The unused tails of the
+   * regions are then closed up, so the partitions end up back to back.
+   *
+   * @return the length of the final output
+   */
+  private long parallelFinalMerge(final TezSpillRecord spillRec)
+      throws IOException, InterruptedException {
+    final int numWorkers = Math.min(sortThreads, partitions);
+    final AtomicInteger nextPartition = new AtomicInteger(0);
+    final long[] regionStarts = new long[partitions + 1];
+    for (int parts = 0; parts < partitions; parts++) {
+      long regionLength = 0;
+      for (int i = 0; i < numSpills; i++) {
+        regionLength += indexCacheList.get(i).getIndex(parts).getPartLength();
+      }
+      regionStarts[parts + 1] = regionStarts[parts] + regionLength;
+    }
+    final boolean[] overflows = new boolean[partitions];
+    // counted per partition, so that a merge which outgrew its region can be dropped
+    final MergeCounters[] mergeCounters = new MergeCounters[partitions];
+    final List<Future<Void>> futures = new ArrayList<Future<Void>>(numWorkers);
+    LOG.info(outputContext.getDestinationVertexName() + ": Merging " + partitions
+        + " partitions with " + numWorkers + " threads");
+
+    RandomAccessFile file =
+        new RandomAccessFile(((RawLocalFileSystem) rfs).pathToFile(finalOutputFile), "rw");
+    try {
+      file.setLength(0);
+      final FileChannel channel = file.getChannel();
+      for (int i = 0; i < numWorkers; i++) {
+        futures.add(sortmaster.submit(new CallableWithNdc<Void>() {
+          @Override
+          protected Void callInternal() throws IOException, InterruptedException {
+            int parts;
+            while ((parts = nextPartition.getAndIncrement()) < partitions) {
+              RegionOutputStream region = new RegionOutputStream(channel, regionStarts[parts],
+                  regionStarts[parts + 1]);
+              FSDataOutputStream out = new FSDataOutputStream(
+                  new BufferedOutputStream(region, ifileBufferSize), null, regionStarts[parts]);
+              MergeCounters counters = new MergeCounters();
+              spillRec.putIndex(mergePartition(parts, out, counters.spilledRecords,
+                  counters.spillBytesRead, counters.outputBytesWithOverhead), parts);
+              out.flush();
+              overflows[parts] = region.overflow;
+              mergeCounters[parts] = counters;
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+          throw new IOException("Final merge failed", e.getCause());
+        }
+      }
+
+      // rare; the counters of the dropped merge are not kept
+      long tail = regionStarts[partitions];
+      for (int parts = 0; parts < partitions; parts++) {
+        if (overflows[parts]) {
+          LOG.info(outputContext.getDestinationVertexName() + ": Partition " + parts
+              + " outgrew its region of " + (regionStarts[parts + 1] - regionStarts[parts])
+              + " bytes, merging it again at " + tail);
+          FSDataOutputStream out = new FSDataOutputStream(new BufferedOutputStream(
+              new RegionOutputStream(channel, tail, Long.MAX_VALUE), ifileBufferSize), null, tail);
+          final TezIndexRecord rec = mergePartition(parts, out);
+          out.flush();
+          spillRec.putIndex(rec, parts);
+          tail = rec.getStartOffset() + rec.getPartLength();
+        } else {
+          mergeCounters[parts].addTo(spilledRecordsCounter, additionalSpillBytesRead,
+              outputBytesWithOverheadCounter);
+        }
+      }
+
+      final long length = compact(channel, spillRec);
+      file.setLength(length);
+      return length;
+    } finally {
+      for (Future<Void> future : futures) {
+        future.cancel(true);
+      }
+      file.close();
+    }
+  }
+
+  /**
+   * Move the partitions of the final output down, in file order, so that no gaps are left
+   * between them, and update their index records.
+   *
+   * @return the length of the compacted output
+   */
+  private long compact(FileChannel channel, TezSpillRecord spillRec) throws IOException {
+    final TezIndexRecord[] records = new TezIndexRecord[partitions];
+    final Integer[] order = new Integer[partitions];
+    for (int parts = 0; parts < partitions; parts++) {
+      records[parts] = spillRec.getIndex(parts);
+      order[parts] = parts;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer p1, Integer p2) {
+        return Long.compare(records[p1].getStartOffset(), records[p2].getStartOffset());
+      }
+    });
+    ByteBuffer buffer = null;
+    long position = 0;
+    for (int parts : order) {
+      final TezIndexRecord rec = records[parts];
+      if (rec.getStartOffset() != position) {
+        if (buffer == null) {
+          buffer = ByteBuffer.allocate(Math.max(ifileBufferSize, 64 * 1024));
+        }
+        // moving down, so the bytes still to be read are never overwritten
+        long from = rec.getStartOffset();
+        long to = position;
+        long remaining = rec.getPartLength();
+        while (remaining > 0) {
+          buffer.clear();
+          buffer.limit((int) Math.min(buffer.capacity(), remaining));
+          while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, from + buffer.position());
+            if (read < 0) {
+              throw new EOFException("Final output ends within partition " + parts);
+            }
+          }
+          buffer.flip();
+          while (buffer.hasRemaining()) {
+            to += channel.write(buffer, to);
+          }
+          from += buffer.limit();
+          remaining -= buffer.limit();
+        }
+        spillRec.putIndex(
+            new TezIndexRecord(position, rec.getRawLength(), rec.getPartLength()), parts);
+      }
+      position += rec.getPartLength();
     }
+    return position;
   }
 
+  /**
+   * Counters of the merge of one partition, added to the output's counters once the merge is
+   * kept.
+   */
+  private static class MergeCounters {
+    final TezCounter spilledRecords = new GenericCounter("spilledRecords", "spilledRecords");
+    final TezCounter spillBytesRead = new GenericCounter("spillBytesRead", "spillBytesRead");
+    final TezCounter outputBytesWithOverhead =
+        new GenericCounter("outputBytesWithOverhead", "outputBytesWithOverhead");
+
+    void addTo(TezCounter spilledRecords, TezCounter spillBytesRead,
+        TezCounter outputBytesWithOverhead) {
+      spilledRecords.increment(this.spilledRecords.getValue());
+      spillBytesRead.increment(this.spillBytesRead.getValue());
+      outputBytesWithOverhead.increment(this.outputBytesWithOverhead.getValue());
+    }
+  }
+
+  /**
+   * Writes a region of a file at a fixed offset, so that threads can each write their own region
+   * of the same file. Writes past the end of the region are dropped and flagged as overflow.
+   */
+  private static class RegionOutputStream extends OutputStream {
+    private final FileChannel channel;
+    private final long end;
+    private long position;
+    private boolean overflow = false;
+
+    RegionOutputStream(FileChannel channel, long start, long end) {
+      this.channel = channel;
+      this.position = start;
+      this.end = end;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (overflow || len > end - position) {
+        overflow = true;
+        return;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+    }
+  }
+
+
 
   private interface PartitionedRawKeyValueIterator extends TezRawKeyValueIterator {
     int getPartition();
@@ -843,7 +1207,6 @@ public class PipelinedSorter extends ExternalSorter {
     }
 
     // deep copy
-    @SuppressWarnings("unused")
     public void copy(DataInputBuffer clone) {
       byte[] data = clone.getData();
       int start = clone.getPosition();
@@ -852,6 +1215,14 @@ public class PipelinedSorter extends ExternalSorter {
       System.arraycopy(data, start, buffer, 0, length);
       super.reset(buffer, 0, length);
     }
+
+    // deep copy out of a (direct) buffer; source position is not preserved
+    public void copy(ByteBuffer source, int start, int length) {
+      resize(length);
+      source.position(start);
+      source.get(buffer, 0, length);
+      super.reset(buffer, 0, length);
+    }
   }
 
   private final class SortSpan implements IndexedSortable {
@@ -861,7 +1232,13 @@ public class PipelinedSorter extends ExternalSorter {
     final ByteBuffer kvbuffer;
     final DataOutputStream out;
     final RawComparator comparator;
-    final byte[] imeta = new byte[METASIZE];
+    final byte[] imeta = new byte[metaBytes];
+    // only used when the span is backed by direct memory (i.e. no backing array)
+    final ByteBuffer kvreader;
+    // compares direct keys in place, when the comparator orders keys by their bytes
+    final NormalizedKeyPrefix directKeys;
+    final InputByteBuffer ikey;
+    final InputByteBuffer jkey;
 
     private int index = 0;
     private long eq = 0;
@@ -871,11 +1248,11 @@ public class PipelinedSorter extends ExternalSorter {
 
     public SortSpan(ByteBuffer source, int maxItems, int perItem, RawComparator comparator) {
       capacity = source.remaining();
-      int metasize = METASIZE*maxItems;
+      int metasize = metaBytes*maxItems;
       int dataSize = maxItems * perItem;
       if(capacity < (metasize+dataSize)) {
         // try to allocate less meta space, because we have sample data
-        metasize = METASIZE*(capacity/(perItem+METASIZE));
+        metasize = metaBytes*(capacity/(perItem+metaBytes));
       }
       ByteBuffer reserved = source.duplicate();
       reserved.mark();
@@ -886,8 +1263,21 @@ public class PipelinedSorter extends ExternalSorter {
       reserved.flip();
       reserved.limit(metasize);
       ByteBuffer kvmetabuffer = reserved.slice();
-      rawkvmeta = kvmetabuffer.array();
-      kvmetabase = kvmetabuffer.arrayOffset();
+      if (kvmetabuffer.hasArray()) {
+        rawkvmeta = kvmetabuffer.array();
+        kvmetabase = kvmetabuffer.arrayOffset();
+        kvreader = null;
+        directKeys = null;
+        ikey = null;
+        jkey = null;
+      } else {
+        rawkvmeta = null;
+        kvmetabase = 0;
+        kvreader = kvbuffer.duplicate();
+        directKeys = NormalizedKeyPrefix.get(comparator);
+        ikey = new InputByteBuffer();
+        jkey = new InputByteBuffer();
+      }
       kvmeta = kvmetabuffer
                 .order(ByteOrder.nativeOrder())
                .asIntBuffer();
@@ -907,18 +1297,27 @@ public class PipelinedSorter extends ExternalSorter {
     }
 
     int offsetFor(int i) {
-      return (i * NMETA);
+      return (i * nmeta);
     }
 
     public void swap(final int mi, final int mj) {
       final int kvi = offsetFor(mi);
       final int kvj = offsetFor(mj);
 
+      if (rawkvmeta == null) {
+        for (int i = 0; i < nmeta; i++) {
+          final int tmp = kvmeta.get(kvi + i);
+          kvmeta.put(kvi + i, kvmeta.get(kvj + i));
+          kvmeta.put(kvj + i, tmp);
+        }
+        return;
+      }
+
       final int kvioff = kvmetabase + (kvi << 2);
       final int kvjoff = kvmetabase + (kvj << 2);
-      System.arraycopy(rawkvmeta, kvioff, imeta, 0, METASIZE);
-      System.arraycopy(rawkvmeta, kvjoff, rawkvmeta, kvioff, METASIZE);
-      System.arraycopy(imeta, 0, rawkvmeta, kvjoff, METASIZE);
+      System.arraycopy(rawkvmeta, kvioff, imeta, 0, metaBytes);
+      System.arraycopy(rawkvmeta, kvjoff, rawkvmeta, kvioff, metaBytes);
+      System.arraycopy(imeta, 0, rawkvmeta, kvjoff, metaBytes);
     }
 
     protected int compareKeys(final int kvi, final int kvj) {
@@ -934,15 +1333,38 @@ public class PipelinedSorter extends ExternalSorter {
         return ilen - jlen;
       }
 
-      final byte[] buf = kvbuffer.array();
-      final int off = kvbuffer.arrayOffset();
+      final int cmp;
+      if (directKeys != null) {
+        // sort by key, in place
+        cmp = directKeys.compare(kvreader, istart, ilen, jstart, jlen);
+      } else if (kvreader != null) {
+        // sort by key, comparing on-heap copies
+        ikey.copy(kvreader, istart, ilen);
+        jkey.copy(kvreader, jstart, jlen);
+        cmp = comparator.compare(ikey.getData(), 0, ilen, jkey.getData(), 0, jlen);
+      } else {
+        final byte[] buf = kvbuffer.array();
+        final int off = kvbuffer.arrayOffset();
 
-      // sort by key
-      final int cmp = comparator.compare(buf, off + istart, ilen, buf, off + jstart, jlen);
+        // sort by key
+        cmp = comparator.compare(buf, off + istart, ilen, buf, off + jstart, jlen);
+      }
       if(cmp == 0) eq++;
       return cmp;
     }
 
+    /**
+     * Point the given buffer at the bytes [start, start + length) of this span, copying them
+     * out of direct memory if needed.
+     */
+    void read(InputByteBuffer dest, int start, int length) {
+      if (kvreader != null) {
+        dest.copy(kvreader, start, length);
+      } else {
+        dest.reset(kvbuffer.array(), kvbuffer.arrayOffset() + start, length);
+      }
+    }
+
 
     public int compare(final int mi, final int mj) {
       final int kvi = offsetFor(mi);
@@ -953,9 +1375,21 @@ public class PipelinedSorter extends ExternalSorter {
       if (kvip != kvjp) {
         return kvip - kvjp;
       }
+      if (keyPrefix != null) {
+        // sort by key prefix, without touching the key bytes
+        final int cmp = NormalizedKeyPrefix.compare(prefixAt(kvi), prefixAt(kvj));
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
       return compareKeys(kvi, kvj);
     }
 
+    private long prefixAt(final int kv) {
+      return ((long) kvmeta.get(kv + PREFIX) << 32)
+          | (kvmeta.get(kv + PREFIX + 1) & 0xffffffffL);
+    }
+
     public SortSpan next() {
       ByteBuffer remaining = end();
       if(remaining != null) {
@@ -978,7 +1412,7 @@ public class PipelinedSorter extends ExternalSorter {
     }
 
     public int length() {
-      return kvmeta.limit()/NMETA;
+      return kvmeta.limit()/nmeta;
     }
 
     public ByteBuffer end() {
@@ -993,7 +1427,7 @@ public class PipelinedSorter extends ExternalSorter {
       }
       int perItem = kvbuffer.position()/items;
       LOG.info(outputContext.getDestinationVertexName() + ": " + String.format("Span%d.length = %d, perItem = %d", index, length(), perItem));
-      if(remaining.remaining() < METASIZE+perItem) {
+      if(remaining.remaining() < metaBytes+perItem) {
         //Check if we can get the next Buffer from the main buffer list
         ByteBuffer space = allocateSpace();
         if (space != null) {
@@ -1018,12 +1452,20 @@ public class PipelinedSorter extends ExternalSorter {
       } else {
         keystart = kvmeta.get(this.offsetFor(index) + KEYSTART);
         valstart = kvmeta.get(this.offsetFor(index) + VALSTART);
-        final byte[] buf = kvbuffer.array();
-        final int off = kvbuffer.arrayOffset();
-        cmp = comparator.compare(buf,
-            keystart + off , (valstart - keystart),
-            needle.getData(),
-            needle.getPosition(), (needle.getLength() - needle.getPosition()));
+        if (kvreader != null) {
+          ikey.copy(kvreader, keystart, valstart - keystart);
+          cmp = comparator.compare(ikey.getData(),
+              0, (valstart - keystart),
+              needle.getData(),
+              needle.getPosition(), (needle.getLength() - needle.getPosition()));
+        } else {
+          final byte[] buf = kvbuffer.array();
+          final int off = kvbuffer.arrayOffset();
+          cmp = comparator.compare(buf,
+              keystart + off , (valstart - keystart),
+              needle.getData(),
+              needle.getPosition(), (needle.getLength() - needle.getPosition()));
+        }
       }
       return cmp;
     }
@@ -1034,7 +1476,7 @@ public class PipelinedSorter extends ExternalSorter {
     
     @Override
     public String toString() {
-        return String.format("Span[%d,%d]", NMETA*kvmeta.capacity(), kvbuffer.limit());
+        return String.format("Span[%d,%d]", nmeta*kvmeta.capacity(), kvbuffer.limit());
     }
   }
 
@@ -1042,7 +1484,6 @@ public class PipelinedSorter extends ExternalSorter {
     private int kvindex = -1;
     private final int maxindex;
     private final IntBuffer kvmeta;
-    private final ByteBuffer kvbuffer;
     private final SortSpan span;
     private final InputByteBuffer key = new InputByteBuffer();
     private final InputByteBuffer value = new InputByteBuffer();
@@ -1052,26 +1493,21 @@ public class PipelinedSorter extends ExternalSorter {
 
     public SpanIterator(SortSpan span) {
       this.kvmeta = span.kvmeta;
-      this.kvbuffer = span.kvbuffer;
       this.span = span;
-      this.maxindex = (kvmeta.limit()/NMETA) - 1;
+      this.maxindex = span.length() - 1;
     }
 
     public DataInputBuffer getKey()  {
       final int keystart = kvmeta.get(span.offsetFor(kvindex) + KEYSTART);
       final int valstart = kvmeta.get(span.offsetFor(kvindex) + VALSTART);
-      final byte[] buf = kvbuffer.array();
-      final int off = kvbuffer.arrayOffset();
-      key.reset(buf, off + keystart, valstart - keystart);
+      span.read(key, keystart, valstart - keystart);
       return key;
     }
 
     public DataInputBuffer getValue() {
       final int valstart = kvmeta.get(span.offsetFor(kvindex) + VALSTART);
       final int vallen = kvmeta.get(span.offsetFor(kvindex) + VALLEN);
-      final byte[] buf = kvbuffer.array();
-      final int off = kvbuffer.arrayOffset();
-      value.reset(buf, off + valstart, vallen);
+      span.read(value, valstart, vallen);
       return value;
     }
 
@@ -1335,8 +1771,14 @@ public class PipelinedSorter extends ExternalSorter {
 
       if(current != null) {
         partition = current.getPartition();
-        key.reset(current.getKey());
-        value.reset(current.getValue());
+        if (useDirectMemory) {
+          // iterator buffers are reused when the heap is re-ordered, hold on to a copy
+          key.copy(current.getKey());
+          value.copy(current.getValue());
+        } else {
+          key.reset(current.getKey());
+          value.reset(current.getValue());
+        }
         if(gallop <= 0) {
           // since all keys and values are references to the kvbuffer, no more deep copies
           this.add(current);
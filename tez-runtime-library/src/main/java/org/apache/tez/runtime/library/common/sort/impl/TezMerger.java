@@ -18,10 +18,12 @@
 package org.apache.tez.runtime.library.common.sort.impl;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import com.google.common.annotations.VisibleForTesting;
 
@@ -51,6 +53,7 @@ import org.apache.tez.runtime.library.common.sort.impl.IFile.Reader.KeyState;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 import org.apache.tez.runtime.library.utils.BufferUtils;
 import org.apache.tez.runtime.library.utils.LocalProgress;
+import org.apache.tez.runtime.library.utils.MappedFileInputStream;
 
 /**
  * Merger is an utility class used by the Map and Reduce tasks for merging
@@ -245,6 +248,7 @@ public class TezMerger {
     boolean ifileReadAhead;
     int ifileReadAheadLength;
     int bufferSize = -1;
+    boolean mapped = false;
     
     TezCounter mapOutputsCounter = null;
 
@@ -278,6 +282,19 @@ public class TezMerger {
         long segmentOffset, long segmentLength, CompressionCodec codec,
         boolean ifileReadAhead, int ifileReadAheadLength, int bufferSize,
         boolean preserve, TezCounter mergedMapOutputsCounter)
+    throws IOException {
+      this(fs, file, segmentOffset, segmentLength, codec, ifileReadAhead, ifileReadAheadLength,
+          bufferSize, preserve, mergedMapOutputsCounter, false);
+    }
+
+    /**
+     * @param mapped read the segment through a memory mapping of the file; fs must be a local
+     *               file system
+     */
+    public Segment(FileSystem fs, Path file,
+        long segmentOffset, long segmentLength, CompressionCodec codec,
+        boolean ifileReadAhead, int ifileReadAheadLength, int bufferSize,
+        boolean preserve, TezCounter mergedMapOutputsCounter, boolean mapped)
     throws IOException {
       this.fs = fs;
       this.file = file;
@@ -291,6 +308,7 @@ public class TezMerger {
       this.segmentLength = segmentLength;
       
       this.mapOutputsCounter = mergedMapOutputsCounter;
+      this.mapped = mapped;
     }
     
     public Segment(Reader reader, boolean preserve) {
@@ -309,8 +327,14 @@ public class TezMerger {
 
     void init(TezCounter readsCounter, TezCounter byetsReadCounter) throws IOException {      
       if (reader == null) { 
-        FSDataInputStream in = fs.open(file);
-        in.seek(segmentOffset);
+        InputStream in;
+        if (mapped) {
+          in = new MappedFileInputStream(fs, file, segmentOffset, segmentLength);
+        } else {
+          FSDataInputStream fsIn = fs.open(file);
+          fsIn.seek(segmentOffset);
+          in = fsIn;
+        }
         reader = new Reader(in, segmentLength, codec, readsCounter, byetsReadCounter,
             ifileReadAhead, ifileReadAheadLength, bufferSize);
       }
@@ -322,6 +346,14 @@ public class TezMerger {
     boolean inMemory() {
       return fs == null;
     }
+
+    /**
+     * @return true if the keys read from this segment stay valid in place until it is closed, so
+     * that they can be referenced instead of copied.
+     */
+    boolean hasStableKeys() {
+      return inMemory() && reader != null && reader.isRawKeyStable();
+    }
     
     DataInputBuffer getKey() { return key; }
 
@@ -417,6 +449,14 @@ public class TezMerger {
     final DataInputBuffer diskIFileValue = new DataInputBuffer();
     
     Segment minSegment;
+    // Replaces the binary heap of this queue when TEZ_RUNTIME_MERGE_USE_LOSER_TREE is set
+    final LoserTree<Segment> loserTree;
+    // TEZ_RUNTIME_IFILE_ASYNC_DECOMPRESS_BUFFERS for segments read from disk
+    final int asyncDecompressBuffers;
+    final int asyncDecompressThreads;
+    // decompresses the segments of the current merge pass, shut down by close()
+    @VisibleForTesting
+    ExecutorService asyncDecompressPool;
     Comparator<Segment> segmentComparator =   
       new Comparator<Segment>() {
       public int compare(Segment o1, Segment o2) {
@@ -429,7 +469,12 @@ public class TezMerger {
     };
 
     KeyState hasNext;
+    // The previous key, used to find keys spread across segments. It is either copied to prevKey,
+    // or, for segments with stable keys, referenced in place.
     DataOutputBuffer prevKey = new DataOutputBuffer();
+    byte[] prevKeyData = prevKey.getData();
+    int prevKeyStart = 0;
+    int prevKeyLength = 0;
 
     public MergeQueue(Configuration conf, FileSystem fs, 
                       Path[] inputs, boolean deleteInputs,
@@ -448,6 +493,9 @@ public class TezMerger {
       this.comparator = comparator;
       this.reporter = reporter;
       this.considerFinalMergeForProgress = considerFinalMergeForProgress;
+      this.loserTree = createLoserTree(conf);
+      this.asyncDecompressBuffers = getAsyncDecompressBuffers(conf);
+      this.asyncDecompressThreads = getAsyncDecompressThreads(conf);
       
       for (Path file : inputs) {
         LOG.debug("MergeQ: adding: " + file);
@@ -472,6 +520,9 @@ public class TezMerger {
       this.segments = segments;
       this.reporter = reporter;
       this.considerFinalMergeForProgress = considerFinalMergeForProgress;
+      this.loserTree = createLoserTree(conf);
+      this.asyncDecompressBuffers = getAsyncDecompressBuffers(conf);
+      this.asyncDecompressThreads = getAsyncDecompressThreads(conf);
       if (sortSegments) {
         Collections.sort(segments, segmentComparator);
       }
@@ -485,11 +536,85 @@ public class TezMerger {
       this.codec = codec;
     }
 
+    private static int getAsyncDecompressBuffers(Configuration conf) {
+      return (conf == null) ? 0 : conf.getInt(
+          TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_ASYNC_DECOMPRESS_BUFFERS,
+          TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_ASYNC_DECOMPRESS_BUFFERS_DEFAULT);
+    }
+
+    private static int getAsyncDecompressThreads(Configuration conf) {
+      return (conf == null) ? 0 : conf.getInt(
+          TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_ASYNC_DECOMPRESS_THREADS,
+          TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_ASYNC_DECOMPRESS_THREADS_DEFAULT);
+    }
+
+    private ExecutorService getAsyncDecompressPool() {
+      if (asyncDecompressPool == null) {
+        asyncDecompressPool = IFileAsyncInputStream.createFillPool(asyncDecompressThreads);
+      }
+      return asyncDecompressPool;
+    }
+
+    private LoserTree<Segment> createLoserTree(Configuration conf) {
+      if (conf == null || !conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_USE_LOSER_TREE,
+          TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_USE_LOSER_TREE_DEFAULT)) {
+        return null;
+      }
+      return new LoserTree<Segment>() {
+        @Override
+        protected boolean lessThan(Object a, Object b) {
+          return MergeQueue.this.lessThan(a, b);
+        }
+      };
+    }
+
+    // The segment queue operations, on either the loser tree or the binary heap
+
+    private void initializeQueue(List<Segment> segmentsToMerge) {
+      if (loserTree != null) {
+        loserTree.initialize(segmentsToMerge.size());
+        for (Segment segment : segmentsToMerge) {
+          loserTree.put(segment);
+        }
+      } else {
+        initialize(segmentsToMerge.size());
+        clear();
+        for (Segment segment : segmentsToMerge) {
+          put(segment);
+        }
+      }
+    }
+
+    int queueSize() {
+      return (loserTree != null) ? loserTree.size() : size();
+    }
+
+    private Segment topSegment() {
+      return (loserTree != null) ? loserTree.top() : top();
+    }
+
+    private Segment popSegment() {
+      return (loserTree != null) ? loserTree.pop() : pop();
+    }
+
+    private void adjustTopSegment() {
+      if (loserTree != null) {
+        loserTree.adjustTop();
+      } else {
+        adjustTop();
+      }
+    }
+
     public void close() throws IOException {
       Segment segment;
-      while((segment = pop()) != null) {
+      while((segment = popSegment()) != null) {
         segment.close();
       }
+      if (asyncDecompressPool != null) {
+        // the readers are closed, nothing is left to decompress
+        asyncDecompressPool.shutdown();
+        asyncDecompressPool = null;
+      }
     }
 
     public DataInputBuffer getKey() throws IOException {
@@ -500,9 +625,31 @@ public class TezMerger {
       return value;
     }
 
-    private void populatePreviousKey() throws IOException {
+    private void populatePreviousKey(Segment segment) throws IOException {
       key.reset();
-      BufferUtils.copy(key, prevKey);
+      if (segment.hasStableKeys()) {
+        // no copy, the key bytes stay where they are until the segment is closed
+        prevKeyData = key.getData();
+        prevKeyStart = key.getPosition();
+        prevKeyLength = key.getLength() - prevKeyStart;
+      } else {
+        BufferUtils.copy(key, prevKey);
+        prevKeyData = prevKey.getData();
+        prevKeyStart = 0;
+        prevKeyLength = prevKey.getLength();
+      }
+    }
+
+    /**
+     * Copy the previous key if it refers to the data of a segment, before that segment is closed.
+     */
+    private void detachPreviousKey() throws IOException {
+      if (prevKeyData != prevKey.getData()) {
+        prevKey.reset();
+        prevKey.write(prevKeyData, prevKeyStart, prevKeyLength);
+        prevKeyData = prevKey.getData();
+        prevKeyStart = 0;
+      }
     }
 
     private void adjustPriorityQueue(Segment reader) throws IOException{
@@ -514,7 +661,7 @@ public class TezMerger {
          * during this process, we need to compare keys for RLE across segment boundaries.
          * prevKey can't be empty at that time (e.g custom comparators)
          */
-        populatePreviousKey();
+        populatePreviousKey(reader);
       } else {
         //indicates a key has been read already
         if (hasNext != KeyState.SAME_KEY) {
@@ -524,7 +671,7 @@ public class TezMerger {
            * are wasteful in such condition, as these comparisons are mainly done for RLE.
            * TODO: When better stats are available, this condition can be avoided.
            */
-          populatePreviousKey();
+          populatePreviousKey(reader);
         }
       }
       hasNext = reader.readRawKey();
@@ -532,10 +679,11 @@ public class TezMerger {
       totalBytesProcessed += endPos - startPos;
       mergeProgress.set(totalBytesProcessed * progPerByte);
       if (hasNext == KeyState.NEW_KEY) {
-        adjustTop();
+        adjustTopSegment();
         compareKeyWithNextTopKey(reader);
       } else if(hasNext == KeyState.NO_KEY) {
-        pop();
+        popSegment();
+        detachPreviousKey();
         reader.close();
         compareKeyWithNextTopKey(null);
       } else if(hasNext == KeyState.SAME_KEY) {
@@ -551,11 +699,11 @@ public class TezMerger {
      * @throws IOException
      */
     void compareKeyWithNextTopKey(Segment current) throws IOException {
-      Segment nextTop = top();
+      Segment nextTop = topSegment();
       if (nextTop != current) {
         //we have a different file. Compare it with previous key
         DataInputBuffer nextKey = nextTop.getKey();
-        int compare = compare(nextKey, prevKey);
+        int compare = compareWithPreviousKey(nextKey);
         if (compare == 0) {
           //Same key is available in the next segment.
           hasNext = KeyState.SAME_KEY;
@@ -565,7 +713,7 @@ public class TezMerger {
     }
 
     public boolean next() throws IOException {
-      if (size() == 0)
+      if (queueSize() == 0)
         return false;
 
       if (minSegment != null) {
@@ -573,12 +721,12 @@ public class TezMerger {
         //one. For the first invocation, the priority queue is ready for use
         //but for the subsequent invocations, first adjust the queue 
         adjustPriorityQueue(minSegment);
-        if (size() == 0) {
+        if (queueSize() == 0) {
           minSegment = null;
           return false;
         }
       }
-      minSegment = top();
+      minSegment = topSegment();
       long startPos = minSegment.getPosition();
       key = minSegment.getKey();
       if (!minSegment.inMemory()) {
@@ -602,14 +750,11 @@ public class TezMerger {
       return true;
     }
 
-    int compare(DataInputBuffer buf1, DataOutputBuffer buf2) {
+    int compareWithPreviousKey(DataInputBuffer buf1) {
       byte[] b1 = buf1.getData();
-      byte[] b2 = buf2.getData();
       int s1 = buf1.getPosition();
-      int s2 = 0;
       int l1 = buf1.getLength();
-      int l2 = buf2.getLength();
-      return comparator.compare(b1, s1, (l1 - s1), b2, s2, l2);
+      return comparator.compare(b1, s1, (l1 - s1), prevKeyData, prevKeyStart, prevKeyLength);
     }
 
     protected boolean lessThan(Object a, Object b) {
@@ -690,6 +835,10 @@ public class TezMerger {
             // this helps in ensuring we don't use buffers until we need them
 
             segment.init(readsCounter, bytesReadCounter);
+            if (asyncDecompressBuffers > 0 && asyncDecompressThreads > 0 && !segment.inMemory()) {
+              segment.getReader().enableAsyncDecompression(asyncDecompressBuffers,
+                  getAsyncDecompressPool());
+            }
             long startPos = segment.getPosition();
             boolean hasNext = segment.nextRawKey();
             long endPos = segment.getPosition();
@@ -716,11 +865,7 @@ public class TezMerger {
         }
         
         //feed the streams to the priority queue
-        initialize(segmentsToMerge.size());
-        clear();
-        for (Segment segment : segmentsToMerge) {
-          put(segment);
-        }
+        initializeQueue(segmentsToMerge);
         
         //if we have lesser number of segments remaining, then just return the
         //iterator, else do another single level merge
@@ -26,11 +26,17 @@ import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.tez.runtime.library.api.IOInterruptedException;
 import org.slf4j.Logger;
@@ -42,6 +48,7 @@ import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.util.IndexedSortable;
 import org.apache.hadoop.util.Progress;
+import org.apache.tez.common.CallableWithNdc;
 import org.apache.tez.common.TezUtilsInternal;
 import org.apache.tez.runtime.api.Event;
 import org.apache.tez.runtime.api.OutputContext;
@@ -122,6 +129,13 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
 
   public static final int MAX_IO_SORT_MB = 1800;
 
+  // spills smaller than this are sorted on the spill thread
+  private static final int MIN_RECORDS_PER_SORT_REGION = 16 * 1024;
+
+  // threads sorting regions of a spill; null when sorting on the spill thread
+  private final ExecutorService sortPool;
+  private final int sortThreads;
+
 
   public DefaultSorter(OutputContext outputContext, Configuration conf, int numOutputs,
       long initialMemoryAvailable) throws IOException {
@@ -179,6 +193,23 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
     valSerializer.open(bb);
     keySerializer.open(bb);
 
+    sortThreads = this.conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_LEGACY_SORTER_SORT_THREADS,
+        TezRuntimeConfiguration.TEZ_RUNTIME_LEGACY_SORTER_SORT_THREADS_DEFAULT);
+    Preconditions.checkArgument(sortThreads > 0,
+        TezRuntimeConfiguration.TEZ_RUNTIME_LEGACY_SORTER_SORT_THREADS + "=" + sortThreads
+            + " should be a positive value");
+    if (sortThreads > 1) {
+      sortPool = Executors.newFixedThreadPool(sortThreads,
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("Sorter {" + TezUtilsInternal
+                  .cleanVertexName(outputContext.getDestinationVertexName()) + "} #%d")
+              .build());
+      LOG.info(outputContext.getDestinationVertexName() + ": sorting spills with "
+          + sortThreads + " threads");
+    } else {
+      sortPool = null;
+    }
+
     spillInProgress = false;
     minSpillsForCombine = this.conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_COMBINE_MIN_SPILLS, 3);
     spillThread.setDaemon(true);
@@ -235,7 +266,8 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
    * When this method returns, kvindex must refer to sufficient unused
    * storage to store one METADATA.
    */
-  synchronized void collect(Object key, Object value, final int partition
+  @Override
+  protected synchronized void collect(Object key, Object value, final int partition
                                    ) throws IOException {
 
     if (key.getClass() != keyClass) {
@@ -436,6 +468,14 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
    * @see IndexedSortable#compare
    */
   public int compare(final int mi, final int mj) {
+    final int result = compare(mi, mj, comparator);
+    if (result == 0) {
+      sameKey++;
+    }
+    return result;
+  }
+
+  private int compare(final int mi, final int mj, final RawComparator keyComparator) {
     final int kvi = offsetFor(mi);
     final int kvj = offsetFor(mj);
     final int kvip = kvmeta.get(kvi + PARTITION);
@@ -445,16 +485,12 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
       return kvip - kvjp;
     }
     // sort by key
-    int result = comparator.compare(kvbuffer,
+    return keyComparator.compare(kvbuffer,
         kvmeta.get(kvi + KEYSTART),
         kvmeta.get(kvi + VALSTART) - kvmeta.get(kvi + KEYSTART),
         kvbuffer,
         kvmeta.get(kvj + KEYSTART),
         kvmeta.get(kvj + VALSTART) - kvmeta.get(kvj + KEYSTART));
-    if (result == 0) {
-      sameKey++;
-    }
-    return result;
   }
 
   final byte META_BUFFER_TMP[] = new byte[METASIZE];
@@ -463,11 +499,15 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
    * @see IndexedSortable#swap
    */
   public void swap(final int mi, final int mj) {
+    swap(mi, mj, META_BUFFER_TMP);
+  }
+
+  private void swap(final int mi, final int mj, final byte[] tmp) {
     int iOff = (mi % maxRec) * METASIZE;
     int jOff = (mj % maxRec) * METASIZE;
-    System.arraycopy(kvbuffer, iOff, META_BUFFER_TMP, 0, METASIZE);
+    System.arraycopy(kvbuffer, iOff, tmp, 0, METASIZE);
     System.arraycopy(kvbuffer, jOff, kvbuffer, iOff, METASIZE);
-    System.arraycopy(META_BUFFER_TMP, 0, kvbuffer, jOff, METASIZE);
+    System.arraycopy(tmp, 0, kvbuffer, jOff, METASIZE);
   }
 
   /**
@@ -678,6 +718,7 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
       } catch(IOException e) {
         //safe to ignore
       }
+      shutdownSortPool();
       return;
     }
 
@@ -725,6 +766,7 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
     }
 
     interruptSpillThread();
+    shutdownSortPool();
     // release sort buffer before the mergecl
     //FIXME
     //kvbuffer = null;
@@ -740,6 +782,12 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
     }
   }
 
+  @Override
+  public void close() throws IOException {
+    super.close();
+    shutdownSortPool();
+  }
+
 
   protected class SpillThread extends Thread {
 
@@ -838,8 +886,140 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
       throws IOException, InterruptedException {
     final int mstart = getMetaStart();
     final int mend = getMetaEnd();
-    sorter.sort(this, mstart, mend, progressable);
-    spill(mstart, mend, sameKeyCount, totalKeysCount);
+    final int numRegions = (sortPool == null) ? 1
+        : Math.min(sortThreads, (mend - mstart) / MIN_RECORDS_PER_SORT_REGION);
+    if (numRegions <= 1) {
+      sorter.sort(this, mstart, mend, progressable);
+      spill(new SortedRuns(new int[] { mstart }, new int[] { mend }), sameKeyCount,
+          totalKeysCount);
+    } else {
+      spill(sortRegions(mstart, mend, numRegions), sameKeyCount, totalKeysCount);
+    }
+  }
+
+  /**
+   * Split [mstart, mend) into numRegions contiguous regions and sort them concurrently on the
+   * sort threads.
+   * @return the sorted regions, to be merged while spilling
+   */
+  private SortedRuns sortRegions(int mstart, int mend, int numRegions)
+      throws IOException, InterruptedException {
+    final int[] starts = new int[numRegions];
+    final int[] ends = new int[numRegions];
+    final List<SortRegion> regions = new ArrayList<SortRegion>(numRegions);
+    final List<Future<Void>> futures = new ArrayList<Future<Void>>(numRegions);
+    try {
+      for (int i = 0; i < numRegions; i++) {
+        starts[i] = mstart + (int) (((long) (mend - mstart) * i) / numRegions);
+        ends[i] = mstart + (int) (((long) (mend - mstart) * (i + 1)) / numRegions);
+        SortRegion region = new SortRegion(starts[i], ends[i]);
+        regions.add(region);
+        futures.add(sortPool.submit(region));
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+          throw new IOException("Sort failed", e.getCause());
+        }
+      }
+    } finally {
+      for (Future<Void> future : futures) {
+        future.cancel(true);
+      }
+    }
+    for (SortRegion region : regions) {
+      sameKey += region.sameKey;
+    }
+    return new SortedRuns(starts, ends);
+  }
+
+  private void shutdownSortPool() {
+    if (sortPool != null) {
+      sortPool.shutdownNow();
+    }
+  }
+
+  /**
+   * A region of the spill sorted independently on one of the sort threads. Comparator and swap
+   * buffer are per region, as neither can be shared across threads.
+   */
+  private final class SortRegion extends CallableWithNdc<Void> implements IndexedSortable {
+    private final int start;
+    private final int end;
+    private final RawComparator regionComparator =
+        ConfigUtils.getIntermediateOutputKeyComparator(conf);
+    private final byte[] metaTmp = new byte[METASIZE];
+    private long sameKey = 0;
+
+    SortRegion(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public int compare(int mi, int mj) {
+      final int result = DefaultSorter.this.compare(mi, mj, regionComparator);
+      if (result == 0) {
+        sameKey++;
+      }
+      return result;
+    }
+
+    @Override
+    public void swap(int mi, int mj) {
+      DefaultSorter.this.swap(mi, mj, metaTmp);
+    }
+
+    @Override
+    protected Void callInternal() {
+      sorter.sort(this, start, end, progressable);
+      return null;
+    }
+  }
+
+  /**
+   * Iterates over the meta positions of a spill in partition and key order. When the spill was
+   * sorted as several regions, the runs are merged on the fly. The number of runs is bounded by
+   * the number of sort threads, so the smallest head is found with a linear scan.
+   */
+  protected final class SortedRuns {
+    private final int[] heads;
+    private final int[] ends;
+    // run holding the next position, -1 once all runs are exhausted
+    private int current;
+
+    SortedRuns(int[] starts, int[] ends) {
+      this.heads = starts;
+      this.ends = ends;
+      selectNext();
+    }
+
+    boolean hasNext() {
+      return current >= 0;
+    }
+
+    /** Partition of the next position. */
+    int partition() {
+      return kvmeta.get(offsetFor(heads[current]) + PARTITION);
+    }
+
+    int next() {
+      final int pos = heads[current]++;
+      selectNext();
+      return pos;
+    }
+
+    private void selectNext() {
+      current = -1;
+      for (int i = 0; i < heads.length; i++) {
+        if (heads[i] < ends[i]
+            && (current < 0 || compare(heads[i], heads[current], comparator) < 0)) {
+          current = i;
+        }
+      }
+    }
   }
 
   private void adjustSpillCounters(long rawLen, long compLength) {
@@ -857,7 +1037,7 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
     }
   }
 
-  protected void spill(int mstart, int mend, long sameKeyCount, long totalKeysCount)
+  protected void spill(SortedRuns records, long sameKeyCount, long totalKeysCount)
       throws IOException, InterruptedException {
 
     //approximate the length of the output file to be the length of the
@@ -875,7 +1055,6 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
       spillFilePaths.put(numSpills, filename);
       out = rfs.create(filename);
 
-      int spindex = mstart;
       final InMemValBytes value = createInMemValBytes();
       boolean rle = isRLENeeded(sameKeyCount, totalKeysCount);
       for (int i = 0; i < partitions; ++i) {
@@ -887,32 +1066,27 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
           if (combiner == null) {
             // spill directly
             DataInputBuffer key = new DataInputBuffer();
-            while (spindex < mend &&
-                kvmeta.get(offsetFor(spindex) + PARTITION) == i) {
-              final int kvoff = offsetFor(spindex);
+            while (records.hasNext() && records.partition() == i) {
+              final int kvoff = offsetFor(records.next());
               int keystart = kvmeta.get(kvoff + KEYSTART);
               int valstart = kvmeta.get(kvoff + VALSTART);
               key.reset(kvbuffer, keystart, valstart - keystart);
               getVBytesForOffset(kvoff, value);
               writer.append(key, value);
-              ++spindex;
             }
           } else {
-            int spstart = spindex;
-            while (spindex < mend &&
-                kvmeta.get(offsetFor(spindex)
-                          + PARTITION) == i) {
-              ++spindex;
-            }
             // Note: we would like to avoid the combiner if we've fewer
             // than some threshold of records for a partition
-            if (spstart != spindex) {
-              TezRawKeyValueIterator kvIter =
-                new MRResultIterator(spstart, spindex);
+            if (records.hasNext() && records.partition() == i) {
+              TezRawKeyValueIterator kvIter = new MRResultIterator(records, i);
               if (LOG.isDebugEnabled()) {
                 LOG.debug(outputContext.getDestinationVertexName() + ": " + "Running combine processor");
               }
               runCombineProcessor(kvIter, writer);
+              // skip whatever the combiner did not consume
+              while (records.hasNext() && records.partition() == i) {
+                records.next();
+              }
             }
           }
 
@@ -1091,14 +1265,19 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
   protected class MRResultIterator implements TezRawKeyValueIterator {
     private final DataInputBuffer keybuf = new DataInputBuffer();
     private final InMemValBytes vbytes = createInMemValBytes();
-    private final int end;
+    private final SortedRuns records;
+    private final int partition;
     private int current;
-    public MRResultIterator(int start, int end) {
-      this.end = end;
-      current = start - 1;
+    public MRResultIterator(SortedRuns records, int partition) {
+      this.records = records;
+      this.partition = partition;
     }
     public boolean next() throws IOException {
-      return ++current < end;
+      if (records.hasNext() && records.partition() == partition) {
+        current = records.next();
+        return true;
+      }
+      return false;
     }
     public DataInputBuffer getKey() throws IOException {
       final int kvoff = offsetFor(current);
@@ -26,15 +26,16 @@ import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.LockSupport;
 
 import com.google.common.collect.Lists;
 import org.apache.hadoop.classification.InterfaceAudience;
@@ -45,6 +46,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.tez.common.CallableWithNdc;
 import org.apache.tez.common.TezCommonUtils;
@@ -63,6 +65,8 @@ import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataMovementEventPayloadProto;
+import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataProto;
+import org.apache.tez.runtime.library.utils.PowerOfTwoBuckets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -89,6 +93,11 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
 
   private final static int APPROX_HEADER_LENGTH = 150;
 
+  // Power of two buckets of the histogram of the time the writer waited for spills
+  private static final int NUM_SPILL_WAIT_BUCKETS = 32;
+  // Counter group of the histogram, one counter per non-empty bucket
+  public static final String SPILL_WAIT_HISTOGRAM_GROUP = "UnorderedOutputSpillWaitHistogram";
+
   // Maybe setup a separate statistics class which can be shared between the
   // buffer and the main path instead of having multiple arrays.
 
@@ -96,8 +105,9 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
   private final long availableMemory;
   @VisibleForTesting
   final WrappedBuffer[] buffers;
+  // Spilled buffers, handed back by the spill thread without taking any lock
   @VisibleForTesting
-  final BlockingQueue<WrappedBuffer> availableBuffers;
+  final Queue<WrappedBuffer> availableBuffers;
   private final ByteArrayOutputStream baos;
   private final DataOutputStream dos;
   @VisibleForTesting
@@ -116,6 +126,8 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
    * Represents final number of records written (spills are not counted)
    */
   protected final TezCounter outputLargeRecordsCounter;
+  private final TezCounter spillWaitTimeCounter;
+  private final TezCounter spillWaitsCounter;
 
   @VisibleForTesting
   int numBuffers;
@@ -124,11 +136,15 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
   @VisibleForTesting
   int numInitializedBuffers;
 
-  private Throwable spillException;
+  private volatile Throwable spillException;
   private AtomicBoolean isShutdown = new AtomicBoolean(false);
   @VisibleForTesting
   final AtomicInteger numSpills = new AtomicInteger(0);
   private final AtomicInteger pendingSpillCount = new AtomicInteger(0);
+  // The writer while it waits for spills, to be woken up by them as they complete or fail
+  private volatile Thread waitingWriter;
+  // Number of waits for spills per power of two bucket of the millis waited
+  private final long[] spillWaitHistogram = new long[NUM_SPILL_WAIT_BUCKETS];
 
   @VisibleForTesting
   Path finalIndexPath;
@@ -138,11 +154,14 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
   //for single partition cases (e.g UnorderedKVOutput)
   private final IFile.Writer writer;
   private final boolean skipBuffers;
+  // output of the writer while it may still be sent along with the event
+  private final InlineDataOutputStream inlineDataOut;
 
-  private final ReentrantLock spillLock = new ReentrantLock();
-  private final Condition spillInProgress = spillLock.newCondition();
+  private final boolean dataViaEventsEnabled;
+  private final int dataViaEventsMaxSize;
 
   private final boolean pipelinedShuffle;
+  private final boolean finalMergeEnabled;
 
   private final long indexFileSizeEstimate;
 
@@ -152,11 +171,14 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
     Preconditions.checkArgument(availableMemoryBytes >= 0, "availableMemory should be >= 0 bytes");
 
     this.destNameTrimmed = TezUtilsInternal.cleanVertexName(outputContext.getDestinationVertexName());
-    //Not checking for TEZ_RUNTIME_ENABLE_FINAL_MERGE_IN_OUTPUT as it might not add much value in
-    // this case.  Add it later if needed.
     pipelinedShuffle = this.conf.getBoolean(TezRuntimeConfiguration
         .TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED, TezRuntimeConfiguration
         .TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED_DEFAULT);
+    // Without the final merge, the spills are published in place on close instead of being
+    // merged into a single output. Pipelined shuffle publishes them as they complete.
+    finalMergeEnabled = !pipelinedShuffle && this.conf.getBoolean(
+        TezRuntimeConfiguration.TEZ_RUNTIME_ENABLE_FINAL_MERGE_IN_OUTPUT,
+        TezRuntimeConfiguration.TEZ_RUNTIME_ENABLE_FINAL_MERGE_IN_OUTPUT_DEFAULT);
 
     if (availableMemoryBytes == 0) {
       Preconditions.checkArgument(((numPartitions == 1) && !pipelinedShuffle), "availableMemory "
@@ -166,6 +188,16 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
           + pipelinedShuffle);
     }
 
+    dataViaEventsEnabled = !pipelinedShuffle && this.conf.getBoolean(
+        TezRuntimeConfiguration.TEZ_RUNTIME_TRANSFER_DATA_VIA_EVENTS_ENABLED,
+        TezRuntimeConfiguration.TEZ_RUNTIME_TRANSFER_DATA_VIA_EVENTS_ENABLED_DEFAULT);
+    dataViaEventsMaxSize = this.conf.getInt(
+        TezRuntimeConfiguration.TEZ_RUNTIME_TRANSFER_DATA_VIA_EVENTS_MAX_SIZE,
+        TezRuntimeConfiguration.TEZ_RUNTIME_TRANSFER_DATA_VIA_EVENTS_MAX_SIZE_DEFAULT);
+    Preconditions.checkArgument(!dataViaEventsEnabled || dataViaEventsMaxSize > 0,
+        TezRuntimeConfiguration.TEZ_RUNTIME_TRANSFER_DATA_VIA_EVENTS_MAX_SIZE
+            + " should be larger than 0");
+
     // Ideally, should be significantly larger.
     availableMemory = availableMemoryBytes;
 
@@ -174,7 +206,7 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
         TezRuntimeConfiguration.TEZ_RUNTIME_UNORDERED_OUTPUT_MAX_PER_BUFFER_SIZE_BYTES, Integer.MAX_VALUE);
     computeNumBuffersAndSize(maxSingleBufferSizeBytes);
 
-    availableBuffers = new LinkedBlockingQueue<WrappedBuffer>();
+    availableBuffers = new ConcurrentLinkedQueue<WrappedBuffer>();
     buffers = new WrappedBuffer[numBuffers];
     // Set up only the first buffer to start with.
     buffers[0] = new WrappedBuffer(numOutputs, sizePerBuffer);
@@ -203,6 +235,9 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
 
     outputLargeRecordsCounter = outputContext.getCounters().findCounter(
         TaskCounter.OUTPUT_LARGE_RECORDS);
+    spillWaitTimeCounter = outputContext.getCounters().findCounter(
+        TaskCounter.OUTPUT_SPILL_WAIT_TIME);
+    spillWaitsCounter = outputContext.getCounters().findCounter(TaskCounter.OUTPUT_SPILL_WAITS);
 
 
 
@@ -213,17 +248,27 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
       finalOutPath = outputFileHandler.getOutputFileForWrite();
       finalIndexPath = outputFileHandler.getOutputIndexFileForWrite(indexFileSizeEstimate);
       skipBuffers = true;
-      writer = new IFile.Writer(conf, rfs, finalOutPath, keyClass, valClass,
-          codec, outputRecordsCounter, outputRecordBytesCounter);
+      if (dataViaEventsEnabled) {
+        inlineDataOut = new InlineDataOutputStream();
+        writer = new IFile.Writer(conf, new FSDataOutputStream(inlineDataOut, null), keyClass,
+            valClass, codec, outputRecordsCounter, outputRecordBytesCounter);
+      } else {
+        inlineDataOut = null;
+        writer = new IFile.Writer(conf, rfs, finalOutPath, keyClass, valClass,
+            codec, outputRecordsCounter, outputRecordBytesCounter);
+      }
     } else {
       skipBuffers = false;
       writer = null;
+      inlineDataOut = null;
     }
     LOG.info(destNameTrimmed + ": "
         + "numBuffers=" + numBuffers
         + ", sizePerBuffer=" + sizePerBuffer
         + ", skipBuffers=" + skipBuffers
         + ", pipelinedShuffle=" + pipelinedShuffle
+        + ", finalMergeEnabled=" + finalMergeEnabled
+        + ", dataViaEventsEnabled=" + dataViaEventsEnabled
         + ", numPartitions=" + numPartitions);
   }
 
@@ -239,14 +284,7 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
     // Skipping checks for key-value types. IFile takes care of these, but should be removed from
     // there as well.
 
-    // How expensive are checks like these ?
-    if (isShutdown.get()) {
-      throw new RuntimeException("Writer already closed");
-    }
-    if (spillException != null) {
-      // Already reported as a fatalError - report to the user code
-      throw new IOException("Exception during spill", new IOException(spillException));
-    }
+    checkWritable();
     if (skipBuffers) {
       //special case, where we have only one partition and pipelining is disabled.
       writer.append(key, value); // ???? Why is outputrecordscounter not updated here?
@@ -257,6 +295,55 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
     }
   }
 
+  @Override
+  public void write(Object[] keys, Object[] values, int offset, int length) throws IOException {
+    checkWritable();
+    if (skipBuffers) {
+      appendBatch(keys, values, offset, length);
+      return;
+    }
+    for (int i = offset; i < offset + length; i++) {
+      write(keys[i], values[i], partitioner.getPartition(keys[i], values[i], numPartitions));
+    }
+  }
+
+  @Override
+  public void write(Object[] keys, Object[] values, int[] partitions, int offset, int length)
+      throws IOException {
+    checkWritable();
+    if (skipBuffers) {
+      appendBatch(keys, values, offset, length);
+      return;
+    }
+    for (int i = offset; i < offset + length; i++) {
+      int partition = partitions[i];
+      if (partition < 0 || partition >= numPartitions) {
+        throw new IOException("Illegal partition for " + keys[i] + " (" + partition + ")"
+            + ", TotalPartitions: " + numPartitions);
+      }
+      write(keys[i], values[i], partition);
+    }
+  }
+
+  // How expensive are checks like these ? Done once per batch for batches.
+  private void checkWritable() throws IOException {
+    if (isShutdown.get()) {
+      throw new RuntimeException("Writer already closed");
+    }
+    if (spillException != null) {
+      // Already reported as a fatalError - report to the user code
+      throw new IOException("Exception during spill", new IOException(spillException));
+    }
+  }
+
+  private void appendBatch(Object[] keys, Object[] values, int offset, int length)
+      throws IOException {
+    for (int i = offset; i < offset + length; i++) {
+      writer.append(keys[i], values[i]);
+    }
+    outputContext.notifyProgress();
+  }
+
   @SuppressWarnings("unchecked")
   private void write(Object key, Object value, int partition) throws IOException {
     // Wrap to 4 byte (Int) boundary for metaData
@@ -356,23 +443,84 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
   }
 
   private WrappedBuffer getNextAvailableBuffer() throws IOException {
-    if (availableBuffers.peek() == null) {
-      if (numInitializedBuffers < numBuffers) {
-        buffers[numInitializedBuffers] = new WrappedBuffer(numPartitions, sizePerBuffer);
-        numInitializedBuffers++;
-        return buffers[numInitializedBuffers - 1];
-      } else {
-        // All buffers initialized, and none available right now. Wait
-        try {
-          return availableBuffers.take();
-        } catch (InterruptedException e) {
+    // Use up the buffers of the memory budget before reusing spilled ones. Otherwise the buffer
+    // handed out depends on whether the spill of the previous one completed already, since spills
+    // hand their buffers back without waiting for the writer.
+    if (numInitializedBuffers < numBuffers) {
+      buffers[numInitializedBuffers] = new WrappedBuffer(numPartitions, sizePerBuffer);
+      numInitializedBuffers++;
+      return buffers[numInitializedBuffers - 1];
+    }
+    WrappedBuffer wb = availableBuffers.poll();
+    if (wb != null) {
+      return wb;
+    }
+    // All buffers initialized, i.e. the memory is used up, and none available right now. Wait
+    // for a spill to hand one back.
+    long startTime = System.nanoTime();
+    waitingWriter = Thread.currentThread();
+    try {
+      while ((wb = availableBuffers.poll()) == null) {
+        if (spillException != null) {
+          throw new IOException("Exception during spill", new IOException(spillException));
+        }
+        LockSupport.park(this);
+        if (Thread.interrupted()) {
+          // IOInterruptedException is not an InterruptedException, so keep the status for callers
           Thread.currentThread().interrupt();
-          throw new IOInterruptedException("Interrupted while waiting for next buffer", e);
+          throw new IOInterruptedException("Interrupted while waiting for next buffer");
         }
       }
-    } else {
-      return availableBuffers.poll();
+    } finally {
+      waitingWriter = null;
+      spillWaitCompleted(startTime);
+    }
+    return wb;
+  }
+
+  /**
+   * Wake up the writer if it is waiting for spills. Called by the spills as they complete, or
+   * fail, after updating the state the writer waits on.
+   */
+  private void notifyWaitingWriter() {
+    Thread writerThread = waitingWriter;
+    if (writerThread != null) {
+      LockSupport.unpark(writerThread);
+    }
+  }
+
+  private void spillWaitCompleted(long startTime) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    spillWaitTimeCounter.increment(millis);
+    spillWaitsCounter.increment(1);
+    int bucket = getSpillWaitBucket(millis);
+    spillWaitHistogram[bucket]++;
+    outputContext.getCounters().findCounter(SPILL_WAIT_HISTOGRAM_GROUP,
+        getSpillWaitBucketName(bucket)).increment(1);
+  }
+
+  @VisibleForTesting
+  static int getSpillWaitBucket(long millis) {
+    return PowerOfTwoBuckets.getBucket(millis, NUM_SPILL_WAIT_BUCKETS);
+  }
+
+  @VisibleForTesting
+  static String getSpillWaitBucketName(int bucket) {
+    return "<=" + PowerOfTwoBuckets.getUpperBound(bucket) + "ms";
+  }
+
+  @VisibleForTesting
+  String getSpillWaitHistogram() {
+    StringBuilder sb = new StringBuilder("[");
+    for (int i = 0; i < NUM_SPILL_WAIT_BUCKETS; i++) {
+      if (spillWaitHistogram[i] != 0) {
+        if (sb.length() > 1) {
+          sb.append(", ");
+        }
+        sb.append(getSpillWaitBucketName(i)).append(":").append(spillWaitHistogram[i]);
+      }
     }
+    return sb.append("]").toString();
   }
 
   // All spills using compression for now.
@@ -445,7 +593,19 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
 
   private void writePartition(int pos, WrappedBuffer wrappedBuffer, Writer writer,
       DataInputBuffer keyBuffer, DataInputBuffer valBuffer) throws IOException {
+    writePartition(pos, wrappedBuffer, writer, keyBuffer, valBuffer, null, Long.MAX_VALUE);
+  }
+
+  /**
+   * @return false if writing stopped since out grew beyond maxLength
+   */
+  private boolean writePartition(int pos, WrappedBuffer wrappedBuffer, Writer writer,
+      DataInputBuffer keyBuffer, DataInputBuffer valBuffer, FSDataOutputStream out,
+      long maxLength) throws IOException {
     while (pos != WrappedBuffer.PARTITION_ABSENT_POSITION) {
+      if (out != null && out.getPos() > maxLength) {
+        return false;
+      }
       int metaIndex = pos / INT_SIZE;
       int keyLength = wrappedBuffer.metaBuffer.get(metaIndex + INDEX_KEYLEN);
       int valLength = wrappedBuffer.metaBuffer.get(metaIndex + INDEX_VALLEN);
@@ -455,6 +615,48 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
       writer.append(keyBuffer, valBuffer);
       pos = wrappedBuffer.metaBuffer.get(metaIndex + INDEX_NEXT);
     }
+    return true;
+  }
+
+  /**
+   * Serialize the partitions of the current buffer to be sent along with the event.
+   *
+   * @return data of each partition, or null if sending data along with the event is disabled,
+   * or the data does not fit within the limit
+   */
+  private List<DataProto> getDataForEvent() throws IOException {
+    if (!dataViaEventsEnabled || currentBuffer.numRecords == 0) {
+      return null;
+    }
+    DataOutputBuffer buffer = new DataOutputBuffer();
+    FSDataOutputStream out = new FSDataOutputStream(buffer, null);
+    DataInputBuffer key = new DataInputBuffer();
+    DataInputBuffer val = new DataInputBuffer();
+    List<DataProto> data = new ArrayList<DataProto>(numPartitions);
+    for (int i = 0; i < numPartitions; i++) {
+      if (currentBuffer.partitionPositions[i] == WrappedBuffer.PARTITION_ABSENT_POSITION) {
+        data.add(DataProto.getDefaultInstance());
+        continue;
+      }
+      int segmentStart = (int) out.getPos();
+      Writer writer = new Writer(conf, out, keyClass, valClass, codec, null, null);
+      boolean fits = writePartition(currentBuffer.partitionPositions[i], currentBuffer, writer,
+          key, val, out, dataViaEventsMaxSize);
+      writer.close();
+      if (!fits || out.getPos() > dataViaEventsMaxSize) {
+        LOG.info(destNameTrimmed + ": " + "Data does not fit within "
+            + TezRuntimeConfiguration.TEZ_RUNTIME_TRANSFER_DATA_VIA_EVENTS_MAX_SIZE + "="
+            + dataViaEventsMaxSize + ", writing it out");
+        return null;
+      }
+      data.add(DataProto.newBuilder()
+          .setRawLength((int) writer.getRawLength())
+          .setCompressedLength((int) writer.getCompressedLength())
+          .setData(ByteString.copyFrom(buffer.getData(), segmentStart,
+              (int) writer.getCompressedLength()))
+          .build());
+    }
+    return data;
   }
 
   public static long getInitialMemoryRequirement(Configuration conf, long maxAvailableTaskMemory) {
@@ -472,15 +674,25 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
   @Override
   public List<Event> close() throws IOException, InterruptedException {
     isShutdown.set(true);
-    spillLock.lock();
-    try {
-      LOG.info(destNameTrimmed + ": " + "Waiting for all spills to complete : Pending : " + pendingSpillCount.get());
-      while (pendingSpillCount.get() != 0 && spillException == null) {
-        spillInProgress.await();
+    LOG.info(destNameTrimmed + ": " + "Waiting for all spills to complete : Pending : " + pendingSpillCount.get());
+    if (pendingSpillCount.get() != 0 && spillException == null) {
+      long startTime = System.nanoTime();
+      waitingWriter = Thread.currentThread();
+      try {
+        while (pendingSpillCount.get() != 0 && spillException == null) {
+          LockSupport.park(this);
+          if (Thread.interrupted()) {
+            throw new InterruptedException();
+          }
+        }
+      } finally {
+        waitingWriter = null;
+        spillWaitCompleted(startTime);
       }
-    } finally {
-      spillLock.unlock();
     }
+    LOG.info(destNameTrimmed + ": " + "Waited for spills " + spillWaitsCounter.getValue()
+        + " times, for " + spillWaitTimeCounter.getValue() + " ms, histogram="
+        + getSpillWaitHistogram());
     if (spillException != null) {
       LOG.error(destNameTrimmed + ": " + "Error during spill, throwing");
       // Assuming close will be called on the same thread as the write
@@ -503,27 +715,58 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
           writer.close();
           long rawLen = writer.getRawLength();
           long compLen = writer.getCompressedLength();
-          TezIndexRecord rec = new TezIndexRecord(0, rawLen, compLen);
-          TezSpillRecord sr = new TezSpillRecord(1);
-          sr.putIndex(rec, 0);
-          sr.writeToFile(finalIndexPath, conf);
 
           BitSet emptyPartitions = new BitSet();
           if (outputRecordsCounter.getValue() == 0) {
             emptyPartitions.set(0);
           }
           cleanupCurrentBuffer();
-
           outputBytesWithOverheadCounter.increment(rawLen);
+
+          if (inlineDataOut != null && inlineDataOut.isInMemory()) {
+            // Nothing was written out; the data, if any, goes along with the event.
+            List<DataProto> data = null;
+            if (!emptyPartitions.get(0)) {
+              data = Collections.singletonList(DataProto.newBuilder()
+                  .setRawLength((int) rawLen)
+                  .setCompressedLength((int) compLen)
+                  .setData(inlineDataOut.getData())
+                  .build());
+            }
+            return Collections.singletonList(generateDMEvent(false, -1, false, outputContext
+                .getUniqueIdentifier(), emptyPartitions, data));
+          }
+          if (inlineDataOut != null) {
+            inlineDataOut.close();
+          }
+          TezIndexRecord rec = new TezIndexRecord(0, rawLen, compLen);
+          TezSpillRecord sr = new TezSpillRecord(1);
+          sr.putIndex(rec, 0);
+          sr.writeToFile(finalIndexPath, conf);
+
           fileOutputBytesCounter.increment(compLen + indexFileSizeEstimate);
           return Collections.singletonList(generateDMEvent(false, -1, false, outputContext
               .getUniqueIdentifier(), emptyPartitions));
         }
 
         //Regular code path.
+        if (numSpills.get() > 0 && !finalMergeEnabled) {
+          events = getEventsForSpills();
+          cleanupCurrentBuffer();
+          return events;
+        }
         if (numSpills.get() > 0) {
           mergeAll();
         } else {
+          List<DataProto> data = getDataForEvent();
+          if (data != null) {
+            // Nothing was written out; the data goes along with the event.
+            updateGlobalStats(currentBuffer);
+            cleanupCurrentBuffer();
+            return Collections.singletonList(generateDMEvent(false, -1, false,
+                outputContext.getUniqueIdentifier(),
+                getEmptyPartitions(numRecordsPerPartition), data));
+          }
           finalSpill();
         }
         cleanupCurrentBuffer();
@@ -539,6 +782,43 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
     }
   }
 
+  /**
+   * Spill the current buffer, and publish all the spills in place, as the final merge is
+   * disabled.
+   */
+  private List<Event> getEventsForSpills() throws IOException {
+    finalSpill();
+    List<SpillInfo> spills;
+    synchronized (spillInfoList) {
+      spills = new ArrayList<SpillInfo>(spillInfoList);
+    }
+    Collections.sort(spills, new Comparator<SpillInfo>() {
+      @Override
+      public int compare(SpillInfo s1, SpillInfo s2) {
+        return s1.spillIndex < s2.spillIndex ? -1 : (s1.spillIndex == s2.spillIndex ? 0 : 1);
+      }
+    });
+    Preconditions.checkState(spills.size() == numSpills.get(), "Expected " + numSpills.get()
+        + " spills, found " + spills.size());
+
+    List<Event> events = Lists.newLinkedList();
+    for (SpillInfo spill : spills) {
+      BitSet emptyPartitions = new BitSet();
+      for (int i = 0; i < numPartitions; i++) {
+        if (spill.spillRecord.getIndex(i).getPartLength() == 0) {
+          emptyPartitions.set(i);
+        }
+      }
+      boolean isLastSpill = spill.spillIndex == spills.size() - 1;
+      String pathComponent = (outputContext.getUniqueIdentifier() + "_" + spill.spillIndex);
+      events.add(generateDMEvent(true, spill.spillIndex, isLastSpill, pathComponent,
+          emptyPartitions));
+    }
+    LOG.info(destNameTrimmed + ": " + "Skipped final merge, publishing " + spills.size()
+        + " spills");
+    return events;
+  }
+
   private BitSet getEmptyPartitions(int[] recordsPerPartition) {
     Preconditions.checkArgument(recordsPerPartition != null, "records per partition can not be null");
     BitSet emptyPartitions = new BitSet();
@@ -558,6 +838,13 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
   private Event generateDMEvent(boolean addSpillDetails, int spillId,
       boolean isLastSpill, String pathComponent, BitSet emptyPartitions)
       throws IOException {
+    return generateDMEvent(addSpillDetails, spillId, isLastSpill, pathComponent, emptyPartitions,
+        null);
+  }
+
+  private Event generateDMEvent(boolean addSpillDetails, int spillId,
+      boolean isLastSpill, String pathComponent, BitSet emptyPartitions, List<DataProto> data)
+      throws IOException {
 
     outputContext.notifyProgress();
     DataMovementEventPayloadProto.Builder payloadBuilder = DataMovementEventPayloadProto
@@ -583,6 +870,10 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
       payloadBuilder.setLastEvent(isLastSpill);
     }
 
+    if (data != null) {
+      payloadBuilder.addAllData(data);
+    }
+
     ByteBuffer payload = payloadBuilder.build().toByteString().asReadOnlyByteBuffer();
     return CompositeDataMovementEvent.create(0, numPartitions, payload);
   }
@@ -652,7 +943,8 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
     Path outputFilePath = null;
     Path indexFilePath = null;
 
-    if (!pipelinedShuffle) {
+    // A single spill is the final output, even if the final merge is disabled
+    if (!pipelinedShuffle && (finalMergeEnabled || (isFinalSpill && spillNumber == 0))) {
       if (isFinalSpill) {
         outputFilePath = outputFileHandler.getOutputFileForWrite(spillSize);
         indexFilePath = outputFileHandler.getOutputIndexFileForWrite(indexFileSizeEstimate);
@@ -824,14 +1116,70 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
     if (spillPathDetails.indexFilePath != null) {
       //write the index record
       spillRecord.writeToFile(spillPathDetails.indexFilePath, conf);
+      if (!pipelinedShuffle && !finalMergeEnabled) {
+        // published on close
+        spillInfoList.add(new SpillInfo(spillRecord, spillPathDetails.outputFilePath,
+            spillPathDetails.spillIndex));
+      }
     } else {
       //add to cache
-      SpillInfo spillInfo = new SpillInfo(spillRecord, spillPathDetails.outputFilePath);
+      SpillInfo spillInfo = new SpillInfo(spillRecord, spillPathDetails.outputFilePath,
+          spillPathDetails.spillIndex);
       spillInfoList.add(spillInfo);
       numAdditionalSpillsCounter.increment(1);
     }
   }
 
+  /**
+   * Output of a single partition, kept in memory while it fits within the limit of the data sent
+   * along with the event, and written to the final output file once it does not.
+   */
+  private class InlineDataOutputStream extends OutputStream {
+
+    private DataOutputBuffer buffer = new DataOutputBuffer();
+    private OutputStream out = buffer;
+    private FSDataOutputStream fileOut;
+
+    @Override
+    public void write(int v) throws IOException {
+      ensureFits(1);
+      out.write(v);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ensureFits(len);
+      out.write(b, off, len);
+    }
+
+    private void ensureFits(int len) throws IOException {
+      if (fileOut == null && buffer.getLength() + len > dataViaEventsMaxSize) {
+        fileOut = rfs.create(finalOutPath);
+        fileOut.write(buffer.getData(), 0, buffer.getLength());
+        out = fileOut;
+        buffer = null;
+      }
+    }
+
+    boolean isInMemory() {
+      return fileOut == null;
+    }
+
+    ByteString getData() {
+      return ByteString.copyFrom(buffer.getData(), 0, buffer.getLength());
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
   private class ByteArrayOutputStream extends OutputStream {
 
     private final byte[] scratch = new byte[1];
@@ -953,21 +1301,15 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
         outputContext.fatalError(e, "Failure while attempting to reset buffer after spill");
       }
 
-      if (!pipelinedShuffle) {
+      if (finalMergeEnabled) {
         additionalSpillBytesWritternCounter.increment(result.spillSize);
       } else {
         fileOutputBytesCounter.increment(indexFileSizeEstimate);
         fileOutputBytesCounter.increment(result.spillSize);
       }
 
-      spillLock.lock();
-      try {
-        if (pendingSpillCount.decrementAndGet() == 0) {
-          spillInProgress.signal();
-        }
-      } finally {
-        spillLock.unlock();
-      }
+      pendingSpillCount.decrementAndGet();
+      notifyWaitingWriter();
     }
 
     @Override
@@ -977,12 +1319,7 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
       LOG.error(destNameTrimmed + ": " + "Failure while spilling to disk", t);
       spillException = t;
       outputContext.fatalError(t, "Failure while spilling to disk");
-      spillLock.lock();
-      try {
-        spillInProgress.signal();
-      } finally {
-        spillLock.unlock();
-      }
+      notifyWaitingWriter();
     }
   }
 
@@ -999,10 +1336,12 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
   private static class SpillInfo {
     final TezSpillRecord spillRecord;
     final Path outPath;
+    final int spillIndex;
 
-    SpillInfo(TezSpillRecord spillRecord, Path outPath) {
+    SpillInfo(TezSpillRecord spillRecord, Path outPath, int spillIndex) {
       this.spillRecord = spillRecord;
       this.outPath = outPath;
+      this.spillIndex = spillIndex;
     }
   }
 
@@ -41,10 +41,12 @@ import org.apache.tez.dag.api.TezConfiguration;
 import org.apache.tez.runtime.api.AbstractLogicalOutput;
 import org.apache.tez.runtime.api.Event;
 import org.apache.tez.runtime.api.OutputContext;
+import org.apache.tez.runtime.library.api.KeyValueWriter;
 import org.apache.tez.runtime.library.api.KeyValuesWriter;
 import org.apache.tez.runtime.library.api.Partitioner;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.MemoryUpdateCallbackHandler;
+import org.apache.tez.runtime.library.common.combine.HashAggregator;
 import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
 import org.apache.tez.runtime.library.common.sort.impl.PipelinedSorter;
 import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
@@ -64,6 +66,7 @@ public class OrderedPartitionedKVOutput extends AbstractLogicalOutput {
   private static final Logger LOG = LoggerFactory.getLogger(OrderedPartitionedKVOutput.class);
 
   protected ExternalSorter sorter;
+  private HashAggregator hashAggregator;
   protected Configuration conf;
   protected MemoryUpdateCallbackHandler memoryUpdateCallbackHandler;
   private long startTime;
@@ -137,18 +140,26 @@ public class OrderedPartitionedKVOutput extends AbstractLogicalOutput {
               + "only works with PipelinedSorter.");
       }
 
+      long aggregationMemory = HashAggregator.getMemory(conf,
+          memoryUpdateCallbackHandler.getMemoryAssigned());
+      long sorterMemory = memoryUpdateCallbackHandler.getMemoryAssigned() - aggregationMemory;
       if (sorterImpl.equals(SorterImpl.PIPELINED)) {
-        sorter = new PipelinedSorter(getContext(), conf, getNumPhysicalOutputs(),
-            memoryUpdateCallbackHandler.getMemoryAssigned());
+        sorter = new PipelinedSorter(getContext(), conf, getNumPhysicalOutputs(), sorterMemory);
       } else if (sorterImpl.equals(SorterImpl.LEGACY)) {
-        sorter = new DefaultSorter(getContext(), conf, getNumPhysicalOutputs(),
-            memoryUpdateCallbackHandler.getMemoryAssigned());
+        sorter = new DefaultSorter(getContext(), conf, getNumPhysicalOutputs(), sorterMemory);
       } else {
         throw new UnsupportedOperationException("Unsupported sorter class specified in config"
             + ", propertyName=" + TezRuntimeConfiguration.TEZ_RUNTIME_SORTER_CLASS
             + ", value=" + sorterClass
             + ", validValues=" + Arrays.asList(SorterImpl.values()));
       }
+      hashAggregator = HashAggregator.create(getContext(), conf, aggregationMemory,
+          new KeyValueWriter() {
+            @Override
+            public void write(Object key, Object value) throws IOException {
+              sorter.write(key, value);
+            }
+          });
 
       isStarted.set(true);
     }
@@ -160,12 +171,40 @@ public class OrderedPartitionedKVOutput extends AbstractLogicalOutput {
     return new KeyValuesWriter() {
       @Override
       public void write(Object key, Object value) throws IOException {
-        sorter.write(key, value);
+        if (hashAggregator != null) {
+          hashAggregator.write(key, value);
+        } else {
+          sorter.write(key, value);
+        }
       }
 
       @Override
       public void write(Object key, Iterable<Object> values) throws IOException {
-        sorter.write(key, values);
+        if (hashAggregator != null) {
+          hashAggregator.write(key, values);
+        } else {
+          sorter.write(key, values);
+        }
+      }
+
+      @Override
+      public void write(Object[] keys, Object[] values, int offset, int length)
+          throws IOException {
+        if (hashAggregator != null) {
+          super.write(keys, values, offset, length);
+        } else {
+          sorter.write(keys, values, offset, length);
+        }
+      }
+
+      @Override
+      public void write(Object[] keys, Object[] values, int[] partitions, int offset, int length)
+          throws IOException {
+        if (hashAggregator != null) {
+          super.write(keys, values, offset, length);
+        } else {
+          sorter.write(keys, values, partitions, offset, length);
+        }
       }
     };
   }
@@ -179,8 +218,15 @@ public class OrderedPartitionedKVOutput extends AbstractLogicalOutput {
   public synchronized List<Event> close() throws IOException {
     List<Event> returnEvents = null;
     if (sorter != null) {
-      sorter.flush();
-      sorter.close();
+      if (hashAggregator != null) {
+        hashAggregator.close();
+      }
+      try {
+        sorter.flush();
+      } finally {
+        // also releases the sort buffers when the flush failed
+        sorter.close();
+      }
       this.endTime = System.nanoTime();
       returnEvents = generateEvents();
     } else {
@@ -217,6 +263,8 @@ public class OrderedPartitionedKVOutput extends AbstractLogicalOutput {
   static {
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_READAHEAD);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_READAHEAD_BYTES);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_ASYNC_DECOMPRESS_BUFFERS);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_ASYNC_DECOMPRESS_THREADS);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_IO_FILE_BUFFER_SIZE);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_SORT_SPILL_PERCENT);
@@ -227,14 +275,23 @@ public class OrderedPartitionedKVOutput extends AbstractLogicalOutput {
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_SORT_THREADS);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_LAZY_ALLOCATE_MEMORY);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_MEMORY);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_PREFIX_SORT);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_PARALLEL_FINAL_MERGE);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_LEGACY_SORTER_SORT_THREADS);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_USE_LOSER_TREE);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_PARTITIONER_CLASS);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_COMBINER_CLASS);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_ENABLED);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_MEMORY_FRACTION);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_MIN_REDUCTION);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_INTERNAL_SORTER_CLASS);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_COMPARATOR_CLASS);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_CLASS);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_VALUE_CLASS);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_CODEC);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_BLOCK_SIZE);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_EMPTY_PARTITION_INFO_VIA_EVENTS_ENABLED);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_CONVERT_USER_PAYLOAD_TO_HISTORY_TEXT);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED);
@@ -18,6 +18,7 @@
 
 package org.apache.tez.runtime.library.output;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -42,8 +43,10 @@ import org.apache.tez.runtime.api.Event;
 import org.apache.tez.runtime.api.LogicalOutput;
 import org.apache.tez.runtime.api.OutputContext;
 import org.apache.tez.runtime.api.Writer;
+import org.apache.tez.runtime.library.api.KeyValuesWriter;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.MemoryUpdateCallbackHandler;
+import org.apache.tez.runtime.library.common.combine.HashAggregator;
 import org.apache.tez.runtime.library.common.writers.UnorderedPartitionedKVWriter;
 
 /**
@@ -59,6 +62,7 @@ public class UnorderedPartitionedKVOutput extends AbstractLogicalOutput {
   private Configuration conf;
   private MemoryUpdateCallbackHandler memoryUpdateCallbackHandler;
   private UnorderedPartitionedKVWriter kvWriter;
+  private HashAggregator hashAggregator;
   private final AtomicBoolean isStarted = new AtomicBoolean(false);
 
   public UnorderedPartitionedKVOutput(OutputContext outputContext, int numPhysicalOutputs) {
@@ -82,8 +86,12 @@ public class UnorderedPartitionedKVOutput extends AbstractLogicalOutput {
   public synchronized void start() throws Exception {
     if (!isStarted.get()) {
       memoryUpdateCallbackHandler.validateUpdateReceived();
-      this.kvWriter = new UnorderedPartitionedKVWriter(getContext(), conf, getNumPhysicalOutputs(),
+      long aggregationMemory = HashAggregator.getMemory(conf,
           memoryUpdateCallbackHandler.getMemoryAssigned());
+      this.kvWriter = new UnorderedPartitionedKVWriter(getContext(), conf, getNumPhysicalOutputs(),
+          memoryUpdateCallbackHandler.getMemoryAssigned() - aggregationMemory);
+      this.hashAggregator = HashAggregator.create(getContext(), conf, aggregationMemory,
+          kvWriter);
       isStarted.set(true);
     }
   }
@@ -91,7 +99,20 @@ public class UnorderedPartitionedKVOutput extends AbstractLogicalOutput {
   @Override
   public synchronized Writer getWriter() throws Exception {
     Preconditions.checkState(isStarted.get(), "Cannot get writer before starting the Output");
-    return kvWriter;
+    if (hashAggregator == null) {
+      return kvWriter;
+    }
+    return new KeyValuesWriter() {
+      @Override
+      public void write(Object key, Object value) throws IOException {
+        hashAggregator.write(key, value);
+      }
+
+      @Override
+      public void write(Object key, Iterable<Object> values) throws IOException {
+        hashAggregator.write(key, values);
+      }
+    };
   }
 
   @Override
@@ -102,6 +123,9 @@ public class UnorderedPartitionedKVOutput extends AbstractLogicalOutput {
   public synchronized List<Event> close() throws Exception {
     List<Event> returnEvents = null;
     if (isStarted.get()) {
+      if (hashAggregator != null) {
+        hashAggregator.close();
+      }
       returnEvents = kvWriter.close();
     } else {
       LOG.warn(getContext().getDestinationVertexName() +
@@ -132,14 +156,22 @@ public class UnorderedPartitionedKVOutput extends AbstractLogicalOutput {
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_INDEX_CACHE_MEMORY_LIMIT_BYTES);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_UNORDERED_OUTPUT_BUFFER_SIZE_MB);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_UNORDERED_OUTPUT_MAX_PER_BUFFER_SIZE_BYTES);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_TRANSFER_DATA_VIA_EVENTS_ENABLED);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_TRANSFER_DATA_VIA_EVENTS_MAX_SIZE);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_PARTITIONER_CLASS);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_COMBINER_CLASS);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_ENABLED);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_MEMORY_FRACTION);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_MIN_REDUCTION);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_CLASS);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_VALUE_CLASS);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_CODEC);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_BLOCK_SIZE);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_EMPTY_PARTITION_INFO_VIA_EVENTS_ENABLED);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_CONVERT_USER_PAYLOAD_TO_HISTORY_TEXT);
     confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED);
+    confKeys.add(TezRuntimeConfiguration.TEZ_RUNTIME_ENABLE_FINAL_MERGE_IN_OUTPUT);
     confKeys.add(TezConfiguration.TEZ_COUNTERS_MAX);
     confKeys.add(TezConfiguration.TEZ_COUNTERS_GROUP_NAME_MAX_LENGTH);
     confKeys.add(TezConfiguration.TEZ_COUNTERS_COUNTER_NAME_MAX_LENGTH);
@@ -19,13 +19,44 @@
 package org.apache.tez.runtime.library.utils;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.hadoop.classification.InterfaceAudience.Private;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.DataOutputBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 @Private
 public class BufferUtils {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BufferUtils.class);
+
+  private static final AtomicBoolean FREE_FAILURE_LOGGED = new AtomicBoolean(false);
+  // sun.misc.Unsafe.invokeCleaner, only present on Java 9+
+  private static final Object UNSAFE;
+  private static final Method INVOKE_CLEANER;
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      unsafe = theUnsafe.get(null);
+    } catch (Exception e) {
+      // Java 8 and older, fall back to the buffer's own cleaner
+      invokeCleaner = null;
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+  }
+
   public static int compare(DataInputBuffer buf1, DataInputBuffer buf2) {
     byte[] b1 = buf1.getData();
     byte[] b2 = buf2.getData();
@@ -76,4 +107,42 @@ public class BufferUtils {
     dst.write(b1, s1, l1);
   }
 
+  /**
+   * Release the native memory backing a direct buffer, or unmap a memory mapped buffer, without
+   * waiting for it to be garbage collected. The buffer must not be accessed after this call
+   * (including through any duplicate or slice of it). Heap buffers, and buffers which cannot be
+   * released explicitly on this JVM, are left to the garbage collector; the first such failure is
+   * logged as a warning.
+   *
+   * @param buffer buffer obtained from {@link ByteBuffer#allocateDirect(int)} or
+   *               {@link java.nio.channels.FileChannel#map}
+   */
+  public static void freeDirectBuffer(ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect()) {
+      return;
+    }
+    try {
+      if (INVOKE_CLEANER != null) {
+        // Java 9+: the buffer's cleaner is no longer accessible, Unsafe releases it on our behalf
+        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+      } else {
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner != null) {
+          Method cleanMethod = cleaner.getClass().getMethod("clean");
+          cleanMethod.setAccessible(true);
+          cleanMethod.invoke(cleaner);
+        }
+      }
+    } catch (Exception e) {
+      if (FREE_FAILURE_LOGGED.compareAndSet(false, true)) {
+        LOG.warn("Unable to release direct buffers explicitly on this JVM,"
+            + " leaving them to the garbage collector", e);
+      } else if (LOG.isDebugEnabled()) {
+        LOG.debug("Unable to release direct buffer explicitly, leaving it to GC", e);
+      }
+    }
+  }
+
 }
@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Reads a region of a local file through a read only memory mapping, so that the data is read
+ * straight from the page cache instead of being copied in by read calls and the buffers of the
+ * local file system.
+ *
+ * The region is mapped in windows of at most 1 GB, each window being unmapped once it is read.
+ */
+@Private
+public class MappedFileInputStream extends InputStream {
+
+  @VisibleForTesting
+  static final long DEFAULT_WINDOW_SIZE = 1L << 30;
+
+  private final FileChannel channel;
+  private final long windowSize;
+  private final long end;
+  // file offset the next window starts at
+  private long nextWindowOffset;
+  private ByteBuffer window;
+
+  /**
+   * @param localFs local file system the file belongs to
+   * @param file file to read
+   * @param offset offset of the region in the file
+   * @param length length of the region
+   */
+  public MappedFileInputStream(FileSystem localFs, Path file, long offset, long length)
+      throws IOException {
+    this(new File(localFs.makeQualified(file).toUri().getPath()), offset, length,
+        DEFAULT_WINDOW_SIZE);
+  }
+
+  @VisibleForTesting
+  MappedFileInputStream(File file, long offset, long length, long windowSize)
+      throws IOException {
+    Preconditions.checkArgument(offset >= 0 && length >= 0, "Invalid region: offset=" + offset
+        + ", length=" + length);
+    Preconditions.checkArgument(windowSize > 0 && windowSize <= Integer.MAX_VALUE,
+        "Invalid window size: " + windowSize);
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    this.channel = raf.getChannel();
+    if (offset + length > channel.size()) {
+      channel.close();
+      throw new IOException("Region [" + offset + ", " + (offset + length) + ") is beyond the end "
+          + "of " + file + ", length=" + channel.size());
+    }
+    this.windowSize = windowSize;
+    this.nextWindowOffset = offset;
+    this.end = offset + length;
+  }
+
+  private boolean ensureWindow() throws IOException {
+    if (window != null && window.hasRemaining()) {
+      return true;
+    }
+    if (nextWindowOffset >= end) {
+      return false;
+    }
+    if (!channel.isOpen()) {
+      throw new IOException("Stream closed");
+    }
+    BufferUtils.freeDirectBuffer(window);
+    long size = Math.min(windowSize, end - nextWindowOffset);
+    window = channel.map(FileChannel.MapMode.READ_ONLY, nextWindowOffset, size);
+    nextWindowOffset += size;
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureWindow()) {
+      return -1;
+    }
+    return window.get() & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensureWindow()) {
+      return -1;
+    }
+    int n = Math.min(len, window.remaining());
+    window.get(b, off, n);
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    if (n <= 0) {
+      return 0;
+    }
+    long windowRemaining = window == null ? 0 : window.remaining();
+    if (n <= windowRemaining) {
+      window.position(window.position() + (int) n);
+      return n;
+    }
+    // skip the rest of the window, and the data following it without mapping it
+    long skipped = windowRemaining + Math.min(n - windowRemaining, end - nextWindowOffset);
+    nextWindowOffset += skipped - windowRemaining;
+    BufferUtils.freeDirectBuffer(window);
+    window = null;
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    long remaining = end - nextWindowOffset + (window == null ? 0 : window.remaining());
+    return (int) Math.min(Integer.MAX_VALUE, remaining);
+  }
+
+  @Override
+  public void close() throws IOException {
+    BufferUtils.freeDirectBuffer(window);
+    window = null;
+    channel.close();
+  }
+}
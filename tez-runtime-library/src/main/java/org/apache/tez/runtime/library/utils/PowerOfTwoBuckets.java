@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tez.runtime.library.utils;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+
+/**
+ * Power of two buckets of histograms: bucket 0 holds 0, and bucket i holds the values from
+ * 2^(i-1) to 2^i - 1. Negative values go into bucket 0, and values beyond the last bucket into
+ * the last one.
+ */
+@Private
+public final class PowerOfTwoBuckets {
+
+  private PowerOfTwoBuckets() {
+  }
+
+  /**
+   * @return the bucket of the value, in a histogram of numBuckets buckets
+   */
+  public static int getBucket(long value, int numBuckets) {
+    return Math.min(numBuckets - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, value)));
+  }
+
+  /**
+   * @return the largest value of the bucket
+   */
+  public static long getUpperBound(int bucket) {
+    return bucket == 0 ? 0 : (1L << bucket) - 1;
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.http.async.netty;
+
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.http.HttpConnectionParams;
+import org.jboss.netty.channel.Channel;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestTezConnectionsPool {
+
+  private Channel mockChannel() {
+    // the pool attaches to the pipeline of offered channels
+    Channel channel = mock(Channel.class, RETURNS_DEEP_STUBS);
+    when(channel.isOpen()).thenReturn(true);
+    when(channel.isConnected()).thenReturn(true);
+    return channel;
+  }
+
+  @Test(timeout = 5000)
+  public void testReuseCounts() {
+    TezCounters counters = new TezCounters();
+    TezCounter connections = counters.findCounter(TaskCounter.SHUFFLE_CONNECTIONS);
+    TezCounter connectionsReused = counters.findCounter(TaskCounter.SHUFFLE_CONNECTIONS_REUSED);
+    HttpConnectionParams params = new HttpConnectionParams(true, 2, 1000, 1000, 1024, false, null);
+    TezConnectionsPool pool = new TezConnectionsPool(params);
+    try {
+      String host1 = "http://host1:13562";
+      String host2 = "http://host2:13562";
+      TezConnectionsPool.setInputCounters(connections, connectionsReused);
+      assertNull(pool.poll(host1));
+
+      Channel channel1 = mockChannel();
+      Channel channel2 = mockChannel();
+      Channel channel3 = mockChannel();
+      assertTrue(pool.offer(host1, channel1));
+      assertTrue(pool.offer(host1, channel2));
+      // at most keepAliveMaxConnections per host
+      assertFalse(pool.offer(host1, channel3));
+
+      // connections are only handed out for the host they are connected to
+      assertNull(pool.poll(host2));
+      Channel polled = pool.poll(host1);
+      assertTrue(polled == channel1 || polled == channel2);
+      assertTrue(pool.removeAll(channel1 == polled ? channel2 : channel1));
+      assertNull(pool.poll(host1));
+      assertTrue(pool.offer(host1, channel3));
+      assertSame(channel3, pool.poll(host1));
+
+      assertEquals(5, connections.getValue());
+      assertEquals(2, connectionsReused.getValue());
+
+      // connections are only counted for the input the thread fetches for
+      TezConnectionsPool.clearInputCounters();
+      assertTrue(pool.offer(host1, channel3));
+      assertSame(channel3, pool.poll(host1));
+      assertEquals(5, connections.getValue());
+      assertEquals(2, connectionsReused.getValue());
+    } finally {
+      TezConnectionsPool.clearInputCounters();
+      pool.destroy();
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.combine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.tez.runtime.api.OutputContext;
+import org.apache.tez.runtime.library.api.KeyValueWriter;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestHashAggregator {
+
+  private Configuration conf;
+  private OutputContext outputContext;
+  private CollectingWriter output;
+
+  @Before
+  public void setup() {
+    conf = new Configuration(false);
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_CLASS, IntWritable.class.getName());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_VALUE_CLASS, LongWritable.class.getName());
+    conf.setStrings("io.serializations", "org.apache.hadoop.io.serializer.WritableSerialization");
+    outputContext = mock(OutputContext.class);
+    doReturn("destinationVertex").when(outputContext).getDestinationVertexName();
+    output = new CollectingWriter();
+  }
+
+  @Test(timeout = 5000)
+  public void testAggregation() throws IOException {
+    HashAggregator aggregator = new HashAggregator(outputContext, conf, new SumCombiner(), 4096,
+        output);
+    IntWritable key = new IntWritable();
+    LongWritable value = new LongWritable(1);
+    for (int i = 0; i < 10000; i++) {
+      key.set(i % 10);
+      aggregator.write(key, value);
+      assertTrue(aggregator.getSizeBytes() < 4096);
+    }
+    aggregator.close();
+    assertTrue(aggregator.isEnabled());
+    assertEquals(0, aggregator.getSizeBytes());
+    assertEquals(10, output.sums.size());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(1000, output.sums.get(i).longValue());
+    }
+    // the table is combined whenever it is full
+    assertTrue(output.numRecords > 10);
+    assertTrue(output.numRecords < 1000);
+  }
+
+  @Test(timeout = 5000)
+  public void testDisabledWithoutReduction() throws IOException {
+    HashAggregator aggregator = new HashAggregator(outputContext, conf, new SumCombiner(),
+        10 * HashAggregator.ENTRY_OVERHEAD, output);
+    IntWritable key = new IntWritable();
+    LongWritable value = new LongWritable(1);
+    for (int i = 0; i < 1000; i++) {
+      key.set(i);
+      aggregator.write(key, value);
+    }
+    // no duplicates in the first table, so the records are passed on as they are written
+    assertFalse(aggregator.isEnabled());
+    assertEquals(1000, output.numRecords);
+    key.set(0);
+    aggregator.write(key, value);
+    aggregator.close();
+    assertEquals(1001, output.numRecords);
+    assertEquals(2, output.sums.get(0).longValue());
+    assertEquals(1, output.sums.get(999).longValue());
+  }
+
+  @Test(timeout = 5000)
+  public void testGetMemory() {
+    assertEquals(0, HashAggregator.getMemory(conf, 1000));
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_ENABLED, true);
+    // nothing to aggregate with
+    assertEquals(0, HashAggregator.getMemory(conf, 1000));
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_COMBINER_CLASS, SumCombiner.class.getName());
+    assertEquals(100, HashAggregator.getMemory(conf, 1000));
+    conf.setFloat(TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_MEMORY_FRACTION, 0.25f);
+    assertEquals(250, HashAggregator.getMemory(conf, 1000));
+  }
+
+  private static class CollectingWriter extends KeyValueWriter {
+    final Map<Integer, Long> sums = new HashMap<Integer, Long>();
+    int numRecords = 0;
+
+    @Override
+    public void write(Object key, Object value) throws IOException {
+      int k = ((IntWritable) key).get();
+      long sum = sums.containsKey(k) ? sums.get(k) : 0;
+      sums.put(k, sum + ((LongWritable) value).get());
+      numRecords++;
+    }
+  }
+
+  public static class SumCombiner implements Combiner {
+    @Override
+    public void combine(TezRawKeyValueIterator rawIter, Writer writer)
+        throws InterruptedException, IOException {
+      IntWritable key = new IntWritable();
+      LongWritable value = new LongWritable();
+      LongWritable sum = new LongWritable();
+      boolean hasKey = false;
+      while (rawIter.next()) {
+        if (hasKey && !rawIter.isSameKey()) {
+          writer.append(key, sum);
+          sum.set(0);
+        }
+        key.readFields(rawIter.getKey());
+        value.readFields(rawIter.getValue());
+        sum.set(sum.get() + value.get());
+        hasKey = true;
+      }
+      if (hasKey) {
+        writer.append(key, sum);
+      }
+    }
+  }
+}
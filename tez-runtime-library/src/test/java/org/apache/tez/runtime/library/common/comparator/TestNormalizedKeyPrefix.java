@@ -0,0 +1,172 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.comparator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Test;
+
+public class TestNormalizedKeyPrefix {
+
+  final static String[] keys = {
+    "",
+    "A", "B", "A\u0000", "A\u0000\u0000",
+    "AA", "BB", "BA", "CB",
+    "AAA", "BBBB", "CCCCC",
+    "AAAAAAAA", "AAAAAAAAA", "AAAAAAAAB", "AAAAAAAB",
+    /* utf-8 comparisons */
+    "\u00E6AAAA", "\u00F7", "A\u00F7", "\u00F7AAAAAAAAA",
+    "\u00F7\u00F7", "\u00F7\u00F7\u00E6\u00E6A",
+    "\u00F7\u00F7\u00E6\u00E6A"
+  };
+
+  private static byte[] serialize(Writable w) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    w.write(out);
+    byte[] b = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, b, 0, out.getLength());
+    return b;
+  }
+
+  private static byte[] utf8(String s) {
+    return s.getBytes(Charset.forName("utf-8"));
+  }
+
+  private static void verify(RawComparator comparator, byte[][] serialized, boolean direct) {
+    NormalizedKeyPrefix keyPrefix = NormalizedKeyPrefix.get(comparator);
+    long[] prefixes = new long[serialized.length];
+    for (int i = 0; i < serialized.length; i++) {
+      // place the key at an offset, to make sure the start is honoured
+      ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(serialized[i].length + 3)
+          : ByteBuffer.allocate(serialized[i].length + 3);
+      buffer.position(3);
+      buffer.put(serialized[i]);
+      buffer.position(1);
+      prefixes[i] = keyPrefix.getPrefix(buffer, 3, serialized[i].length);
+      assertEquals(1, buffer.position());
+    }
+    for (int i = 0; i < serialized.length; i++) {
+      for (int j = 0; j < serialized.length; j++) {
+        int cmp = Integer.signum(comparator.compare(serialized[i], 0, serialized[i].length,
+            serialized[j], 0, serialized[j].length));
+        int prefixCmp = NormalizedKeyPrefix.compare(prefixes[i], prefixes[j]);
+        // equal prefixes need the comparator, differing ones have to agree with it
+        if (prefixCmp != 0) {
+          assertEquals(keys[i] + " vs " + keys[j], cmp, prefixCmp);
+        }
+      }
+    }
+    verifyInPlace(comparator, serialized, direct);
+  }
+
+  private static void verifyInPlace(RawComparator comparator, byte[][] serialized,
+      boolean direct) {
+    NormalizedKeyPrefix keyPrefix = NormalizedKeyPrefix.get(comparator);
+    int total = 1;
+    for (byte[] key : serialized) {
+      total += key.length;
+    }
+    // all keys back to back in one buffer, starting at an odd offset
+    ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(total) : ByteBuffer.allocate(total);
+    int[] starts = new int[serialized.length];
+    buffer.position(1);
+    for (int i = 0; i < serialized.length; i++) {
+      starts[i] = buffer.position();
+      buffer.put(serialized[i]);
+    }
+    buffer.position(0);
+    for (int i = 0; i < serialized.length; i++) {
+      for (int j = 0; j < serialized.length; j++) {
+        int cmp = Integer.signum(comparator.compare(serialized[i], 0, serialized[i].length,
+            serialized[j], 0, serialized[j].length));
+        int inPlaceCmp = Integer.signum(keyPrefix.compare(buffer, starts[i],
+            serialized[i].length, starts[j], serialized[j].length));
+        assertEquals(keys[i] + " vs " + keys[j], cmp, inPlaceCmp);
+      }
+    }
+    assertEquals(0, buffer.position());
+  }
+
+  @Test(timeout = 5000)
+  public void testRawBytes() {
+    byte[][] serialized = new byte[keys.length][];
+    for (int i = 0; i < keys.length; i++) {
+      serialized[i] = utf8(keys[i]);
+    }
+    RawComparator comparator = new TezBytesComparator();
+    assertEquals(NormalizedKeyPrefix.RAW_BYTES, NormalizedKeyPrefix.get(comparator));
+    verify(comparator, serialized, false);
+    verify(comparator, serialized, true);
+  }
+
+  @Test(timeout = 5000)
+  public void testText() throws IOException {
+    byte[][] serialized = new byte[keys.length][];
+    for (int i = 0; i < keys.length; i++) {
+      serialized[i] = serialize(new Text(keys[i]));
+    }
+    RawComparator comparator = WritableComparator.get(Text.class);
+    assertEquals(NormalizedKeyPrefix.TEXT, NormalizedKeyPrefix.get(comparator));
+    verify(comparator, serialized, false);
+    verify(comparator, serialized, true);
+  }
+
+  @Test(timeout = 5000)
+  public void testBytesWritable() throws IOException {
+    byte[][] serialized = new byte[keys.length][];
+    for (int i = 0; i < keys.length; i++) {
+      byte[] b = utf8(keys[i]);
+      serialized[i] = serialize(new BytesWritable(b));
+    }
+    RawComparator comparator = WritableComparator.get(BytesWritable.class);
+    assertEquals(NormalizedKeyPrefix.BYTES_WRITABLE, NormalizedKeyPrefix.get(comparator));
+    verify(comparator, serialized, false);
+    verify(comparator, serialized, true);
+  }
+
+  @Test(timeout = 5000)
+  public void testUnsupportedComparators() {
+    assertNull(NormalizedKeyPrefix.get(null));
+    assertNull(NormalizedKeyPrefix.get(WritableComparator.get(IntWritable.class)));
+    // subclasses may change the ordering
+    assertNull(NormalizedKeyPrefix.get(new Text.Comparator() {
+    }));
+  }
+
+  @Test(timeout = 5000)
+  public void testUnsignedCompare() {
+    assertTrue(NormalizedKeyPrefix.compare(0L, -1L) < 0);
+    assertTrue(NormalizedKeyPrefix.compare(Long.MAX_VALUE, Long.MIN_VALUE) < 0);
+    assertTrue(NormalizedKeyPrefix.compare(-1L, 1L) > 0);
+    assertEquals(0, NormalizedKeyPrefix.compare(42L, 42L));
+  }
+}
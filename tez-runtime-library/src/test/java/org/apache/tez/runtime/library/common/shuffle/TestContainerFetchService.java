@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import org.junit.Test;
+
+public class TestContainerFetchService {
+
+  private static Callable<Integer> blockingTask(final CountDownLatch started,
+      final CountDownLatch release, final int result) {
+    return new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        started.countDown();
+        release.await();
+        return result;
+      }
+    };
+  }
+
+  @Test(timeout = 10000)
+  public void testShutdownNowOnlyStopsOwnFetchers() throws Exception {
+    ContainerFetchService service = new ContainerFetchService();
+    ListeningExecutorService executor1 = service.newExecutor();
+    ListeningExecutorService executor2 = service.newExecutor();
+
+    CountDownLatch started = new CountDownLatch(2);
+    CountDownLatch release = new CountDownLatch(1);
+    ListenableFuture<Integer> future1 = executor1.submit(blockingTask(started, release, 1));
+    ListenableFuture<Integer> future2 = executor2.submit(blockingTask(started, release, 2));
+    started.await();
+
+    executor1.shutdownNow();
+    assertTrue(executor1.isShutdown());
+    assertFalse(executor2.isShutdown());
+    try {
+      future1.get();
+      fail("Fetcher of the shutdown executor should have been cancelled");
+    } catch (CancellationException e) {
+      // expected
+    }
+    assertTrue(executor1.awaitTermination(5, TimeUnit.SECONDS));
+    try {
+      executor1.submit(blockingTask(started, release, 3));
+      fail("Shutdown executor should not accept fetchers");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    release.countDown();
+    assertEquals(2, future2.get().intValue());
+    executor2.shutdown();
+    assertTrue(executor2.awaitTermination(5, TimeUnit.SECONDS));
+    assertTrue(executor2.isTerminated());
+  }
+
+  @Test(timeout = 10000)
+  public void testHostPenalties() throws Exception {
+    ContainerFetchService service = new ContainerFetchService();
+    assertEquals(0, service.getHostPenalty("host1:13562"));
+
+    service.penalizeHost("host1:13562", 60000);
+    long penalty = service.getHostPenalty("host1:13562");
+    assertTrue(penalty > 0 && penalty <= 60000);
+    assertEquals(0, service.getHostPenalty("host2:13562"));
+
+    // a shorter penalty does not cut the current one short
+    service.penalizeHost("host1:13562", 10);
+    assertTrue(service.getHostPenalty("host1:13562") > 10);
+
+    service.penalizeHost("host2:13562", 10);
+    Thread.sleep(50);
+    assertEquals(0, service.getHostPenalty("host2:13562"));
+
+    // ended penalties of hosts which are not looked up again are dropped as well
+    service.penalizeHost("host3:13562", 10);
+    Thread.sleep(50);
+    service.penalizeHost("host1:13562", 60000);
+    assertFalse(service.hostPenalties.containsKey("host3:13562"));
+    assertEquals(1, service.hostPenalties.size());
+  }
+}
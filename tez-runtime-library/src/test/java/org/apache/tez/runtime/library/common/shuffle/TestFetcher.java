@@ -18,6 +18,7 @@
 
 package org.apache.tez.runtime.library.common.shuffle;
 
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
@@ -30,23 +31,45 @@ import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.FluentCaseInsensitiveStringsMap;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.security.JobTokenSecretManager;
 import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.http.HttpConnectionParams;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.InputIdentifier;
+import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
+import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleHeader;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
 import org.junit.Assert;
 import org.junit.Test;
@@ -58,6 +81,8 @@ public class TestFetcher {
   private static final String SHUFFLE_INPUT_FILE_PREFIX = "shuffle_input_file_";
   private static String HOST = "localhost";
   private static int PORT = 41;
+  // "TIF" and the compression flag
+  private static final int IFILE_HEADER_LENGTH = 4;
 
   @Test(timeout = 3000)
   public void testLocalFetchModeSetting() throws Exception {
@@ -233,6 +258,442 @@ public class TestFetcher {
     Assert.assertEquals("success callback type", f.getType(), FetchedInput.Type.DISK_DIRECT);
   }
 
+  @Test(timeout = 5000)
+  public void testNonBlockingFetch() throws Exception {
+    InputAttemptIdentifier[] srcAttempts = {
+        new InputAttemptIdentifier(0, 1, InputAttemptIdentifier.PATH_PREFIX + "pathComponent_0"),
+        new InputAttemptIdentifier(1, 2, InputAttemptIdentifier.PATH_PREFIX + "pathComponent_1"),
+        new InputAttemptIdentifier(2, 3, InputAttemptIdentifier.PATH_PREFIX + "pathComponent_2")
+    };
+    TezConfiguration conf = new TezConfiguration();
+    byte[][] data = new byte[srcAttempts.length][];
+    long[] rawLengths = new long[srcAttempts.length];
+    DataOutputBuffer body = new DataOutputBuffer();
+    for (int i = 0; i < srcAttempts.length; i++) {
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      IFile.Writer writer = new IFile.Writer(conf, new FSDataOutputStream(bout, null),
+          Text.class, Text.class, null, null, null);
+      for (int j = 0; j < 10 * (i + 1); j++) {
+        writer.append(new Text("key" + j), new Text("value" + i + "_" + j));
+      }
+      writer.close();
+      data[i] = bout.toByteArray();
+      rawLengths[i] = writer.getRawLength();
+      new ShuffleHeader(srcAttempts[i].getPathComponent(), data[i].length, rawLengths[i], 0)
+          .write(body);
+      // the last input is truncated
+      body.write(data[i], 0, (i < srcAttempts.length - 1) ? data[i].length : 10);
+    }
+
+    FetcherCallback callback = mock(FetcherCallback.class);
+    FetchedInputAllocator inputManager = mock(FetchedInputAllocator.class);
+    doAnswer(new Answer<FetchedInput>() {
+      @Override
+      public FetchedInput answer(InvocationOnMock invocation) throws Throwable {
+        Object[] args = invocation.getArguments();
+        return new MemoryFetchedInput((Long) args[0], (Long) args[1],
+            (InputAttemptIdentifier) args[2], mock(FetchedInputCallback.class));
+      }
+    }).when(inputManager).allocate(anyLong(), anyLong(), any(InputAttemptIdentifier.class));
+    final JobTokenSecretManager jobTokenSecretMgr = new JobTokenSecretManager(
+        JobTokenSecretManager.createSecretKey("secret".getBytes()));
+    HttpConnectionParams params = new HttpConnectionParams(false, 0, 1000, 1000, 1024, false,
+        null);
+
+    Fetcher.FetcherBuilder builder = new Fetcher.FetcherBuilder(callback, params, inputManager,
+        ApplicationId.newInstance(0, 1), 1, jobTokenSecretMgr, "fetcherTest", conf, false, HOST,
+        PORT, false);
+    builder.assignWork(HOST, PORT, 0, Arrays.asList(srcAttempts));
+    builder.setDiskWriteExecutor(MoreExecutors.sameThreadExecutor());
+    Fetcher fetcher = spy(builder.build());
+    final List<Fetcher.NonBlockingFetchHandler> handlers =
+        new LinkedList<Fetcher.NonBlockingFetchHandler>();
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        handlers.add((Fetcher.NonBlockingFetchHandler) invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(fetcher).startNonBlockingFetch(any(Fetcher.NonBlockingFetchHandler.class));
+
+    Assert.assertTrue(fetcher.canFetchNonBlocking());
+    ListenableFuture<FetchResult> future = fetcher.fetchNonBlocking();
+    Assert.assertEquals(1, handlers.size());
+    Fetcher.NonBlockingFetchHandler handler = handlers.get(0);
+    Assert.assertFalse(future.isDone());
+
+    HttpResponseStatus status = mock(HttpResponseStatus.class);
+    doReturn(200).when(status).getStatusCode();
+    Assert.assertEquals(AsyncHandler.STATE.CONTINUE, handler.onStatusReceived(status));
+    FluentCaseInsensitiveStringsMap headerMap = new FluentCaseInsensitiveStringsMap();
+    headerMap.add(ShuffleHeader.HTTP_HEADER_NAME, ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+    headerMap.add(ShuffleHeader.HTTP_HEADER_VERSION, ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+    headerMap.add(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH,
+        SecureShuffleUtils.hashFromString(handler.encHash, jobTokenSecretMgr));
+    HttpResponseHeaders headers = mock(HttpResponseHeaders.class);
+    doReturn(headerMap).when(headers).getHeaders();
+    Assert.assertEquals(AsyncHandler.STATE.CONTINUE, handler.onHeadersReceived(headers));
+
+    // deliver the body in small parts, which split headers and data
+    for (int off = 0; off < body.getLength(); off += 7) {
+      HttpResponseBodyPart part = mock(HttpResponseBodyPart.class);
+      doReturn(ByteBuffer.wrap(body.getData(), off, Math.min(7, body.getLength() - off)))
+          .when(part).getBodyByteBuffer();
+      Assert.assertEquals(AsyncHandler.STATE.CONTINUE, handler.onBodyPartReceived(part));
+    }
+    handler.onCompleted();
+    Assert.assertTrue(future.isDone());
+
+    for (int i = 0; i < srcAttempts.length - 1; i++) {
+      ArgumentCaptor<MemoryFetchedInput> fetchedInput =
+          ArgumentCaptor.forClass(MemoryFetchedInput.class);
+      verify(callback).fetchSucceeded(eq(HOST), eq(srcAttempts[i]), fetchedInput.capture(),
+          eq((long) data[i].length), eq(rawLengths[i]), anyLong());
+      byte[] expected = Arrays.copyOfRange(data[i], IFILE_HEADER_LENGTH,
+          (int) rawLengths[i]);
+      byte[] actual = Arrays.copyOf(fetchedInput.getValue().getBytes(),
+          (int) rawLengths[i] - IFILE_HEADER_LENGTH);
+      Assert.assertArrayEquals(expected, actual);
+    }
+    verify(callback).fetchFailed(eq(HOST), eq(srcAttempts[2]), eq(false));
+    List<InputAttemptIdentifier> pendingInputs =
+        Lists.newArrayList(future.get().getPendingInputs());
+    Assert.assertEquals(1, pendingInputs.size());
+    Assert.assertEquals(srcAttempts[2], pendingInputs.get(0));
+
+    // local fetches are not done non-blocking
+    builder = new Fetcher.FetcherBuilder(callback, params, inputManager,
+        ApplicationId.newInstance(0, 1), 1, jobTokenSecretMgr, "fetcherTest", conf, true, HOST,
+        PORT, false);
+    builder.assignWork(HOST, PORT, 0, Arrays.asList(srcAttempts));
+    Assert.assertFalse(builder.build().canFetchNonBlocking());
+  }
+
+  @Test(timeout = 5000)
+  public void testNonBlockingFetchToDisk() throws Exception {
+    InputAttemptIdentifier[] srcAttempts = {
+        new InputAttemptIdentifier(0, 1, InputAttemptIdentifier.PATH_PREFIX + "pathComponent_0"),
+        new InputAttemptIdentifier(1, 2, InputAttemptIdentifier.PATH_PREFIX + "pathComponent_1")
+    };
+    TezConfiguration conf = new TezConfiguration();
+    byte[][] data = new byte[srcAttempts.length][];
+    DataOutputBuffer body = new DataOutputBuffer();
+    for (int i = 0; i < srcAttempts.length; i++) {
+      data[i] = new byte[100 * (i + 1)];
+      Arrays.fill(data[i], (byte) i);
+      new ShuffleHeader(srcAttempts[i].getPathComponent(), data[i].length, data[i].length, 0)
+          .write(body);
+      body.write(data[i], 0, data[i].length);
+    }
+
+    final Thread ioThread = Thread.currentThread();
+    final List<ByteArrayOutputStream> outputs = new LinkedList<ByteArrayOutputStream>();
+    FetcherCallback callback = mock(FetcherCallback.class);
+    FetchedInputAllocator inputManager = mock(FetchedInputAllocator.class);
+    doAnswer(new Answer<FetchedInput>() {
+      @Override
+      public FetchedInput answer(InvocationOnMock invocation) throws Throwable {
+        DiskFetchedInput input = mock(DiskFetchedInput.class);
+        doReturn(FetchedInput.Type.DISK).when(input).getType();
+        ByteArrayOutputStream output = new ByteArrayOutputStream() {
+          @Override
+          public synchronized void write(byte[] b, int off, int len) {
+            // the data is written by the disk writer, not the IO thread
+            Assert.assertNotSame(ioThread, Thread.currentThread());
+            super.write(b, off, len);
+          }
+        };
+        outputs.add(output);
+        doReturn(output).when(input).getOutputStream();
+        return input;
+      }
+    }).when(inputManager).allocate(anyLong(), anyLong(), any(InputAttemptIdentifier.class));
+    final JobTokenSecretManager jobTokenSecretMgr = new JobTokenSecretManager(
+        JobTokenSecretManager.createSecretKey("secret".getBytes()));
+    HttpConnectionParams params = new HttpConnectionParams(false, 0, 1000, 1000, 1024, false,
+        null);
+
+    ExecutorService diskWriteExecutor = Executors.newSingleThreadExecutor();
+    try {
+      Fetcher.FetcherBuilder builder = new Fetcher.FetcherBuilder(callback, params, inputManager,
+          ApplicationId.newInstance(0, 1), 1, jobTokenSecretMgr, "fetcherTest", conf, false, HOST,
+          PORT, false);
+      builder.assignWork(HOST, PORT, 0, Arrays.asList(srcAttempts));
+      builder.setDiskWriteExecutor(diskWriteExecutor);
+      Fetcher fetcher = spy(builder.build());
+      final List<Fetcher.NonBlockingFetchHandler> handlers =
+          new LinkedList<Fetcher.NonBlockingFetchHandler>();
+      doAnswer(new Answer<Void>() {
+        @Override
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+          handlers.add((Fetcher.NonBlockingFetchHandler) invocation.getArguments()[0]);
+          return null;
+        }
+      }).when(fetcher).startNonBlockingFetch(any(Fetcher.NonBlockingFetchHandler.class));
+
+      ListenableFuture<FetchResult> future = fetcher.fetchNonBlocking();
+      Fetcher.NonBlockingFetchHandler handler = handlers.get(0);
+      HttpResponseStatus status = mock(HttpResponseStatus.class);
+      doReturn(200).when(status).getStatusCode();
+      handler.onStatusReceived(status);
+      FluentCaseInsensitiveStringsMap headerMap = new FluentCaseInsensitiveStringsMap();
+      headerMap.add(ShuffleHeader.HTTP_HEADER_NAME, ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+      headerMap.add(ShuffleHeader.HTTP_HEADER_VERSION, ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+      headerMap.add(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH,
+          SecureShuffleUtils.hashFromString(handler.encHash, jobTokenSecretMgr));
+      HttpResponseHeaders headers = mock(HttpResponseHeaders.class);
+      doReturn(headerMap).when(headers).getHeaders();
+      handler.onHeadersReceived(headers);
+
+      for (int off = 0; off < body.getLength(); off += 11) {
+        HttpResponseBodyPart part = mock(HttpResponseBodyPart.class);
+        doReturn(ByteBuffer.wrap(body.getData(), off, Math.min(11, body.getLength() - off)))
+            .when(part).getBodyByteBuffer();
+        Assert.assertEquals(AsyncHandler.STATE.CONTINUE, handler.onBodyPartReceived(part));
+      }
+      handler.onCompleted();
+      // completes once the inputs have been written
+      Assert.assertFalse(future.get().getPendingInputs().iterator().hasNext());
+
+      Assert.assertEquals(srcAttempts.length, outputs.size());
+      for (int i = 0; i < srcAttempts.length; i++) {
+        verify(callback).fetchSucceeded(eq(HOST), eq(srcAttempts[i]), any(FetchedInput.class),
+            eq((long) data[i].length), eq((long) data[i].length), anyLong());
+        Assert.assertArrayEquals(data[i], outputs.get(i).toByteArray());
+      }
+      verify(callback, never()).fetchFailed(anyString(), any(InputAttemptIdentifier.class),
+          anyBoolean());
+    } finally {
+      diskWriteExecutor.shutdownNow();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testNonBlockingFetchBackPressure() throws Exception {
+    InputAttemptIdentifier srcAttempt =
+        new InputAttemptIdentifier(0, 1, InputAttemptIdentifier.PATH_PREFIX + "pathComponent_0");
+    TezConfiguration conf = new TezConfiguration();
+    // several times the data the disk writer may fall behind by
+    final byte[] data = new byte[3 << 20];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    DataOutputBuffer body = new DataOutputBuffer();
+    new ShuffleHeader(srcAttempt.getPathComponent(), data.length, data.length, 0).write(body);
+    body.write(data, 0, data.length);
+
+    // the disk is stuck until released
+    final CountDownLatch diskReleased = new CountDownLatch(1);
+    final ByteArrayOutputStream output = new ByteArrayOutputStream() {
+      @Override
+      public synchronized void write(byte[] b, int off, int len) {
+        try {
+          diskReleased.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        super.write(b, off, len);
+      }
+    };
+    FetcherCallback callback = mock(FetcherCallback.class);
+    FetchedInputAllocator inputManager = mock(FetchedInputAllocator.class);
+    DiskFetchedInput input = mock(DiskFetchedInput.class);
+    doReturn(FetchedInput.Type.DISK).when(input).getType();
+    doReturn(output).when(input).getOutputStream();
+    doReturn(input).when(inputManager)
+        .allocate(anyLong(), anyLong(), any(InputAttemptIdentifier.class));
+    final JobTokenSecretManager jobTokenSecretMgr = new JobTokenSecretManager(
+        JobTokenSecretManager.createSecretKey("secret".getBytes()));
+    HttpConnectionParams params = new HttpConnectionParams(false, 0, 1000, 1000, 1024, false,
+        null);
+
+    ExecutorService diskWriteExecutor = Executors.newSingleThreadExecutor();
+    try {
+      Fetcher.FetcherBuilder builder = new Fetcher.FetcherBuilder(callback, params, inputManager,
+          ApplicationId.newInstance(0, 1), 1, jobTokenSecretMgr, "fetcherTest", conf, false, HOST,
+          PORT, false);
+      builder.assignWork(HOST, PORT, 0, Arrays.asList(srcAttempt));
+      builder.setDiskWriteExecutor(diskWriteExecutor);
+      Fetcher fetcher = spy(builder.build());
+      final List<Fetcher.NonBlockingFetchHandler> handlers =
+          new LinkedList<Fetcher.NonBlockingFetchHandler>();
+      doAnswer(new Answer<Void>() {
+        @Override
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+          handlers.add((Fetcher.NonBlockingFetchHandler) invocation.getArguments()[0]);
+          return null;
+        }
+      }).when(fetcher).startNonBlockingFetch(any(Fetcher.NonBlockingFetchHandler.class));
+      final List<Boolean> readable = Collections.synchronizedList(new ArrayList<Boolean>());
+      doAnswer(new Answer<Boolean>() {
+        @Override
+        public Boolean answer(InvocationOnMock invocation) throws Throwable {
+          readable.add((Boolean) invocation.getArguments()[0]);
+          return true;
+        }
+      }).when(fetcher).setConnectionReadable(anyBoolean());
+
+      ListenableFuture<FetchResult> future = fetcher.fetchNonBlocking();
+      Fetcher.NonBlockingFetchHandler handler = handlers.get(0);
+      HttpResponseStatus status = mock(HttpResponseStatus.class);
+      doReturn(200).when(status).getStatusCode();
+      handler.onStatusReceived(status);
+      FluentCaseInsensitiveStringsMap headerMap = new FluentCaseInsensitiveStringsMap();
+      headerMap.add(ShuffleHeader.HTTP_HEADER_NAME, ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+      headerMap.add(ShuffleHeader.HTTP_HEADER_VERSION, ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+      headerMap.add(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH,
+          SecureShuffleUtils.hashFromString(handler.encHash, jobTokenSecretMgr));
+      HttpResponseHeaders headers = mock(HttpResponseHeaders.class);
+      doReturn(headerMap).when(headers).getHeaders();
+      handler.onHeadersReceived(headers);
+
+      // the IO thread is never blocked by the disk, the connection is paused instead and the
+      // parts delivered meanwhile are kept
+      int partSize = 64 * 1024;
+      for (int off = 0; off < body.getLength(); off += partSize) {
+        HttpResponseBodyPart part = mock(HttpResponseBodyPart.class);
+        doReturn(ByteBuffer.wrap(body.getData(), off, Math.min(partSize, body.getLength() - off)))
+            .when(part).getBodyByteBuffer();
+        Assert.assertEquals(AsyncHandler.STATE.CONTINUE, handler.onBodyPartReceived(part));
+      }
+      Assert.assertEquals(Arrays.asList(false), readable);
+      handler.onCompleted();
+      // the response was read, so the connection is resumed, but the fetch is not done
+      Assert.assertEquals(Arrays.asList(false, true), readable);
+      Assert.assertFalse(future.isDone());
+
+      diskReleased.countDown();
+      Assert.assertFalse(future.get().getPendingInputs().iterator().hasNext());
+      Assert.assertArrayEquals(data, output.toByteArray());
+      verify(callback).fetchSucceeded(eq(HOST), eq(srcAttempt), any(FetchedInput.class),
+          eq((long) data.length), eq((long) data.length), anyLong());
+      verify(callback, never()).fetchFailed(anyString(), any(InputAttemptIdentifier.class),
+          anyBoolean());
+      Assert.assertEquals(Arrays.asList(false, true), readable);
+    } finally {
+      diskWriteExecutor.shutdownNow();
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testPartitionRangeFetch() throws Exception {
+    String path0 = InputAttemptIdentifier.PATH_PREFIX + "pathComponent_0";
+    String path1 = InputAttemptIdentifier.PATH_PREFIX + "pathComponent_1";
+    InputAttemptIdentifier[] srcAttempts = {
+        new InputAttemptIdentifier(0, 0, path0),
+        new InputAttemptIdentifier(1, 0, path1),
+        new InputAttemptIdentifier(2, 0, path0),
+        new InputAttemptIdentifier(3, 0, path1),
+        new InputAttemptIdentifier(4, 0, path0)
+    };
+    int[] srcPartitions = {4, 4, 5, 5, 6};
+    InputHost inputHost = new InputHost(HOST, PORT, ApplicationId.newInstance(0, 1));
+    for (int i = 0; i < srcAttempts.length; i++) {
+      inputHost.addKnownInput(srcPartitions[i], srcAttempts[i]);
+    }
+    // partition 6 has inputs of other source attempts
+    InputHost.PartitionToInputs work = inputHost.clearAndGetPendingInputs(3);
+    Assert.assertEquals(4, work.getPartition());
+    Assert.assertEquals(2, work.getPartitionCount());
+    Assert.assertEquals(4, work.getInputs().size());
+    Assert.assertEquals(5, work.getPartition(srcAttempts[3]));
+    Assert.assertEquals(1, inputHost.getNumPendingInputs());
+    Assert.assertTrue(ShuffleUtils.constructBaseURIForPartitionRange(HOST + ":" + PORT, 4, 2,
+        "application_0_1", 1, false).toString().contains("&reduce=4-5&"));
+
+    // the input of partition 5 of path1 is not fetched, but sent by the server
+    work.getInputs().remove(srcAttempts[3]);
+    TezConfiguration conf = new TezConfiguration();
+    DataOutputBuffer body = new DataOutputBuffer();
+    byte[][] data = new byte[srcAttempts.length][];
+    long[] rawLengths = new long[srcAttempts.length];
+    for (int i = 0; i < 4; i++) {
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      IFile.Writer writer = new IFile.Writer(conf, new FSDataOutputStream(bout, null),
+          Text.class, Text.class, null, null, null);
+      for (int j = 0; j < 5 * (i + 1); j++) {
+        writer.append(new Text("key" + j), new Text("value" + i + "_" + j));
+      }
+      writer.close();
+      data[i] = bout.toByteArray();
+      rawLengths[i] = writer.getRawLength();
+    }
+    // all partitions of the range of a source attempt follow each other
+    for (int i : new int[] {0, 2, 1, 3}) {
+      new ShuffleHeader(srcAttempts[i].getPathComponent(), data[i].length, rawLengths[i],
+          srcPartitions[i]).write(body);
+      body.write(data[i], 0, data[i].length);
+    }
+
+    FetcherCallback callback = mock(FetcherCallback.class);
+    FetchedInputAllocator inputManager = mock(FetchedInputAllocator.class);
+    doAnswer(new Answer<FetchedInput>() {
+      @Override
+      public FetchedInput answer(InvocationOnMock invocation) throws Throwable {
+        Object[] args = invocation.getArguments();
+        return new MemoryFetchedInput((Long) args[0], (Long) args[1],
+            (InputAttemptIdentifier) args[2], mock(FetchedInputCallback.class));
+      }
+    }).when(inputManager).allocate(anyLong(), anyLong(), any(InputAttemptIdentifier.class));
+    final JobTokenSecretManager jobTokenSecretMgr = new JobTokenSecretManager(
+        JobTokenSecretManager.createSecretKey("secret".getBytes()));
+    HttpConnectionParams params = new HttpConnectionParams(false, 0, 1000, 1000, 1024, false,
+        null);
+    Fetcher.FetcherBuilder builder = new Fetcher.FetcherBuilder(callback, params, inputManager,
+        ApplicationId.newInstance(0, 1), 1, jobTokenSecretMgr, "fetcherTest", conf, false, HOST,
+        PORT, false);
+    builder.assignWork(HOST, PORT, work);
+    builder.setDiskWriteExecutor(MoreExecutors.sameThreadExecutor());
+    Fetcher fetcher = spy(builder.build());
+    final List<Fetcher.NonBlockingFetchHandler> handlers =
+        new LinkedList<Fetcher.NonBlockingFetchHandler>();
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        handlers.add((Fetcher.NonBlockingFetchHandler) invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(fetcher).startNonBlockingFetch(any(Fetcher.NonBlockingFetchHandler.class));
+
+    ListenableFuture<FetchResult> future = fetcher.fetchNonBlocking();
+    Fetcher.NonBlockingFetchHandler handler = handlers.get(0);
+    HttpResponseStatus status = mock(HttpResponseStatus.class);
+    doReturn(200).when(status).getStatusCode();
+    handler.onStatusReceived(status);
+    FluentCaseInsensitiveStringsMap headerMap = new FluentCaseInsensitiveStringsMap();
+    headerMap.add(ShuffleHeader.HTTP_HEADER_NAME, ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+    headerMap.add(ShuffleHeader.HTTP_HEADER_VERSION, ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+    headerMap.add(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH,
+        SecureShuffleUtils.hashFromString(handler.encHash, jobTokenSecretMgr));
+    HttpResponseHeaders headers = mock(HttpResponseHeaders.class);
+    doReturn(headerMap).when(headers).getHeaders();
+    Assert.assertEquals(AsyncHandler.STATE.CONTINUE, handler.onHeadersReceived(headers));
+    for (int off = 0; off < body.getLength(); off += 11) {
+      HttpResponseBodyPart part = mock(HttpResponseBodyPart.class);
+      doReturn(ByteBuffer.wrap(body.getData(), off, Math.min(11, body.getLength() - off)))
+          .when(part).getBodyByteBuffer();
+      Assert.assertEquals(AsyncHandler.STATE.CONTINUE, handler.onBodyPartReceived(part));
+    }
+    handler.onCompleted();
+    Assert.assertTrue(future.isDone());
+
+    for (int i = 0; i < 3; i++) {
+      verify(callback).fetchSucceeded(eq(HOST), eq(srcAttempts[i]), any(FetchedInput.class),
+          eq((long) data[i].length), eq(rawLengths[i]), anyLong());
+    }
+    verify(inputManager, never()).allocate(anyLong(), anyLong(), eq(srcAttempts[3]));
+    verify(callback, never()).fetchFailed(anyString(), any(InputAttemptIdentifier.class),
+        any(Boolean.class));
+    Assert.assertFalse(future.get().getPendingInputs().iterator().hasNext());
+
+    // requeued inputs go back to their partition
+    inputHost.addKnownInput(srcAttempts[3]);
+    work = inputHost.clearAndGetPendingInputs(3);
+    Assert.assertEquals(5, work.getPartition());
+    Assert.assertEquals(1, work.getPartitionCount());
+    Assert.assertEquals(Arrays.asList(srcAttempts[3]), work.getInputs());
+  }
+
   @Test(timeout=5000)
   public void testInputAttemptIdentifierMap() {
     InputAttemptIdentifier[] srcAttempts = {
@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestHostStats {
+
+  @Test(timeout = 5000)
+  public void testBuckets() {
+    assertEquals(0, HostStats.getBucket(-1));
+    assertEquals(0, HostStats.getBucket(0));
+    assertEquals(1, HostStats.getBucket(1));
+    assertEquals(2, HostStats.getBucket(2));
+    assertEquals(2, HostStats.getBucket(3));
+    assertEquals(11, HostStats.getBucket(1024));
+    assertEquals(47, HostStats.getBucket(Long.MAX_VALUE));
+  }
+
+  @Test(timeout = 5000)
+  public void testPercentiles() {
+    HostStats stats = new HostStats();
+    assertEquals(-1, stats.getLatencyPercentile(0.5));
+    assertEquals(-1, stats.getThroughputPercentile(0.5));
+
+    for (int i = 0; i < 9; i++) {
+      // 1000 bytes per second
+      stats.fetchSucceeded(10, 10);
+    }
+    // 10 bytes per second
+    stats.fetchSucceeded(10, 1000);
+    assertEquals(10, stats.getNumFetches());
+    assertEquals(15, stats.getLatencyPercentile(0.5));
+    assertEquals(15, stats.getLatencyPercentile(0.9));
+    assertEquals(1023, stats.getLatencyPercentile(1.0));
+    assertEquals(15, stats.getThroughputPercentile(0.1));
+    assertEquals(1023, stats.getThroughputPercentile(0.5));
+  }
+
+  @Test(timeout = 5000)
+  public void testPriority() {
+    HostStats unknown = new HostStats();
+    HostStats fast = new HostStats();
+    fast.fetchSucceeded(1 << 20, 10);
+    HostStats slow = new HostStats();
+    slow.fetchSucceeded(1 << 10, 10);
+
+    assertEquals(HostStats.UNKNOWN_THROUGHPUT, unknown.getPriority(1), 0.0);
+    assertTrue(unknown.getPriority(1) > fast.getPriority(1));
+    assertTrue(fast.getPriority(1) > slow.getPriority(1));
+    assertTrue(slow.getPriority(2) > slow.getPriority(1));
+    assertEquals(0, fast.getPriority(0), 0.0);
+
+    // failures since the last successful fetch push the host back
+    double priority = fast.getPriority(1);
+    fast.fetchFailed();
+    fast.fetchFailed();
+    assertEquals(2, fast.getFailuresSinceLastFetch());
+    assertEquals(priority / 3, fast.getPriority(1), 0.0);
+    fast.fetchSucceeded(1 << 20, 10);
+    assertEquals(0, fast.getFailuresSinceLastFetch());
+    assertEquals(priority, fast.getPriority(1), 0.0);
+  }
+}
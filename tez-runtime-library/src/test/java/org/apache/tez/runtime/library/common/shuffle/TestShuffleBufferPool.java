@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.junit.Test;
+
+public class TestShuffleBufferPool {
+
+  private static final int MIN = ShuffleBufferPool.MIN_BUFFER_SIZE;
+
+  @Test(timeout = 5000)
+  public void testBufferSizes() {
+    assertEquals(100, ShuffleBufferPool.getBufferSize(100));
+    assertEquals(MIN - 1, ShuffleBufferPool.getBufferSize(MIN - 1));
+    assertEquals(MIN, ShuffleBufferPool.getBufferSize(MIN));
+    assertEquals(MIN + MIN / 4, ShuffleBufferPool.getBufferSize(MIN + 1));
+    assertEquals(1 << 20, ShuffleBufferPool.getBufferSize((1 << 20) - 1));
+    assertEquals((1 << 20) + (1 << 18), ShuffleBufferPool.getBufferSize((1 << 20) + 1));
+    assertEquals(ShuffleBufferPool.MAX_BUFFER_SIZE,
+        ShuffleBufferPool.getBufferSize(ShuffleBufferPool.MAX_BUFFER_SIZE - 1));
+    assertEquals(ShuffleBufferPool.MAX_BUFFER_SIZE + 1,
+        ShuffleBufferPool.getBufferSize(ShuffleBufferPool.MAX_BUFFER_SIZE + 1));
+  }
+
+  @Test(timeout = 5000)
+  public void testTakeAndRelease() {
+    TezCounters counters = new TezCounters();
+    TezCounter hits = counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_HITS);
+    TezCounter bytesReused = counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_BYTES_REUSED);
+    ShuffleBufferPool pool = new ShuffleBufferPool(hits, bytesReused);
+
+    byte[] small = pool.take(100);
+    assertEquals(100, small.length);
+    pool.release(small, Long.MAX_VALUE);
+    assertEquals(0, pool.getRetainedBytes());
+
+    byte[] b1 = pool.take(MIN + 1);
+    byte[] b2 = pool.take(2 * MIN);
+    assertEquals(MIN + MIN / 4, b1.length);
+    pool.release(b1, Long.MAX_VALUE);
+    pool.release(b2, Long.MAX_VALUE);
+    assertEquals(b1.length + b2.length, pool.getRetainedBytes());
+
+    assertSame(b1, pool.take(MIN + 2));
+    assertEquals(1, hits.getValue());
+    assertEquals(b1.length, bytesReused.getValue());
+    assertNotSame(b1, pool.take(MIN + 2));
+    assertEquals(1, hits.getValue());
+
+    // larger buffers are dropped first to stay within the limit
+    pool.release(b1, b2.length);
+    assertEquals(b1.length, pool.getRetainedBytes());
+    assertNotSame(b2, pool.take(b2.length));
+    // nor is a buffer retained beyond the limit
+    pool.release(b2, b1.length);
+    assertEquals(0, pool.getRetainedBytes());
+    pool.release(b2, Long.MAX_VALUE);
+    pool.trim(0);
+    assertEquals(0, pool.getRetainedBytes());
+  }
+
+  @Test(timeout = 5000)
+  public void testCreate() {
+    Configuration conf = new Configuration(false);
+    assertNull(ShuffleBufferPool.create(conf, new TezCounters()));
+  }
+}
@@ -18,8 +18,10 @@
 
 package org.apache.tez.runtime.library.common.shuffle.impl;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
@@ -32,14 +34,17 @@ import static org.mockito.Mockito.verify;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.security.token.Token;
 import org.apache.tez.common.TezCommonUtils;
 import org.apache.tez.common.TezRuntimeFrameworkConfigs;
@@ -55,8 +60,12 @@ import org.apache.tez.runtime.api.events.DataMovementEvent;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.InputIdentifier;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInputAllocator;
+import org.apache.tez.runtime.library.common.shuffle.FetchedInputCallback;
+import org.apache.tez.runtime.library.common.shuffle.MemoryFetchedInput;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataMovementEventPayloadProto;
+import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataProto;
 import org.junit.Test;
 
 import com.google.protobuf.ByteString;
@@ -131,6 +140,53 @@ public class TestShuffleInputEventHandlerImpl {
     verify(shuffleManager).addKnownInput(eq(HOST), eq(PORT), eq(expectedIdentifier), eq(0));
   }
 
+  @Test(timeout = 5000)
+  public void testDataInEvent() throws IOException {
+    InputContext inputContext = mock(InputContext.class);
+    ShuffleManager shuffleManager = mock(ShuffleManager.class);
+    FetchedInputAllocator inputAllocator = mock(FetchedInputAllocator.class);
+
+    ShuffleInputEventHandlerImpl handler = new ShuffleInputEventHandlerImpl(inputContext,
+        shuffleManager, inputAllocator, null, false, 0);
+
+    DataOutputBuffer buffer = new DataOutputBuffer();
+    IFile.Writer writer = new IFile.Writer(conf, new FSDataOutputStream(buffer, null),
+        Text.class, Text.class, null, null, null);
+    writer.append(new Text("key"), new Text("value"));
+    writer.close();
+    int rawLength = (int) writer.getRawLength();
+    int compressedLength = (int) writer.getCompressedLength();
+    DataProto data = DataProto.newBuilder().setRawLength(rawLength)
+        .setCompressedLength(compressedLength)
+        .setData(ByteString.copyFrom(buffer.getData(), 0, buffer.getLength())).build();
+
+    int taskIndex = 1;
+    InputAttemptIdentifier expectedIdentifier = new InputAttemptIdentifier(taskIndex, 0,
+        PATH_COMPONENT);
+    MemoryFetchedInput fetchedInput = new MemoryFetchedInput(rawLength, compressedLength,
+        expectedIdentifier, mock(FetchedInputCallback.class));
+    doReturn(fetchedInput).when(inputAllocator).allocate(rawLength, compressedLength,
+        expectedIdentifier);
+
+    // data of partition 1, partition 0 being empty
+    DataMovementEventPayloadProto payload = DataMovementEventPayloadProto.newBuilder()
+        .setHost(HOST).setPort(PORT).setPathComponent(PATH_COMPONENT)
+        .setEmptyPartitions(createEmptyPartitionByteString(0))
+        .addData(DataProto.getDefaultInstance()).addData(data).build();
+    Event dme = DataMovementEvent.create(1, taskIndex, 0,
+        payload.toByteString().asReadOnlyByteBuffer());
+    handler.handleEvents(Collections.singletonList(dme));
+
+    verify(shuffleManager).fetchSucceeded(eq(HOST), eq(expectedIdentifier), eq(fetchedInput),
+        eq((long) compressedLength), eq((long) rawLength), anyLong());
+    verify(shuffleManager, times(0)).addKnownInput(anyString(), any(int.class),
+        any(InputAttemptIdentifier.class), any(int.class));
+    // the records, following the header
+    int headerLength = 4;
+    assertArrayEquals(Arrays.copyOfRange(buffer.getData(), headerLength, rawLength),
+        Arrays.copyOf(fetchedInput.getBytes(), rawLength - headerLength));
+  }
+
   @Test(timeout = 5000)
   public void testMultipleEvents1() throws IOException {
     InputContext inputContext = mock(InputContext.class);
@@ -19,17 +19,27 @@
 package org.apache.tez.runtime.library.common.shuffle.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.Constants;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInput;
+import org.apache.tez.runtime.library.common.shuffle.MemoryFetchedInput;
+import org.apache.tez.runtime.library.common.shuffle.ShuffleBufferPool;
 import org.junit.Test;
 
 public class TestSimpleFetchedInputAllocator {
@@ -85,4 +95,107 @@ public class TestSimpleFetchedInputAllocator {
     assertEquals(FetchedInput.Type.DISK, fi5.getType());
   }
 
+  @Test(timeout = 5000)
+  public void testBufferPool() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS, "/tmp/" + this.getClass().getName());
+    conf.setFloat(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_BUFFER_PERCENT, 1.0f);
+    conf.setLong(Constants.TEZ_RUNTIME_TASK_MEMORY, 10 << 20);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED, true);
+    TezCounters counters = new TezCounters();
+    ShuffleBufferPool bufferPool = ShuffleBufferPool.create(conf, counters);
+    SimpleFetchedInputAllocator inputManager = new SimpleFetchedInputAllocator("srcName",
+        UUID.randomUUID().toString(), conf, 100 << 20, 10 << 20, bufferPool);
+
+    MemoryFetchedInput fi1 = (MemoryFetchedInput) inputManager.allocate(1 << 20, 1,
+        new InputAttemptIdentifier(1, 1));
+    byte[] buffer = fi1.getBytes();
+    assertEquals(1 << 20, buffer.length);
+    fi1.commit();
+    fi1.free();
+    assertEquals(1 << 20, bufferPool.getRetainedBytes());
+
+    // the next input of the same size class gets the buffer of the first one
+    MemoryFetchedInput fi2 = (MemoryFetchedInput) inputManager.allocate((1 << 20) - 100, 1,
+        new InputAttemptIdentifier(2, 1));
+    assertSame(buffer, fi2.getBytes());
+    assertEquals(0, bufferPool.getRetainedBytes());
+    assertEquals(1, counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_HITS).getValue());
+    assertEquals(1 << 20,
+        counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_BYTES_REUSED).getValue());
+
+    // buffers of failed fetches are not recycled
+    fi2.abort();
+    fi2.free();
+    assertEquals(0, bufferPool.getRetainedBytes());
+  }
+
+  @Test(timeout = 5000)
+  public void testBufferPoolWithinMemoryLimit() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS, "/tmp/" + this.getClass().getName());
+    conf.setFloat(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_BUFFER_PERCENT, 1.0f);
+    conf.setFloat(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_LIMIT_PERCENT, 1.0f);
+    conf.setLong(Constants.TEZ_RUNTIME_TASK_MEMORY, 10 << 20);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED, true);
+    ShuffleBufferPool bufferPool = ShuffleBufferPool.create(conf, new TezCounters());
+    SimpleFetchedInputAllocator inputManager = new SimpleFetchedInputAllocator("srcName",
+        UUID.randomUUID().toString(), conf, 100 << 20, 10 << 20, bufferPool);
+    long memoryLimit = inputManager.getMemoryLimit();
+
+    // each input is charged for its buffer of 1.25 MB, so only 8 of them fit in memory
+    List<MemoryFetchedInput> inputs = new ArrayList<MemoryFetchedInput>();
+    for (int i = 0; i < 9; i++) {
+      FetchedInput fi = inputManager.allocate((1 << 20) + 1, 1, new InputAttemptIdentifier(i, 1));
+      assertTrue(inputManager.getUsedMemory() + bufferPool.getRetainedBytes() <= memoryLimit);
+      if (fi.getType() == FetchedInput.Type.MEMORY) {
+        inputs.add((MemoryFetchedInput) fi);
+      }
+    }
+    assertEquals(8, inputs.size());
+    assertEquals(inputs.get(0).getBytes().length, inputs.get(0).getReservedSize());
+    for (MemoryFetchedInput fi : inputs) {
+      fi.commit();
+      fi.free();
+      assertTrue(inputManager.getUsedMemory() + bufferPool.getRetainedBytes() <= memoryLimit);
+    }
+    assertEquals(0, inputManager.getUsedMemory());
+    assertEquals(memoryLimit, bufferPool.getRetainedBytes());
+
+    // a buffer of another size class makes the pool drop buffers
+    FetchedInput fi = inputManager.allocate((2 << 20) + 1, 1, new InputAttemptIdentifier(9, 1));
+    assertEquals(FetchedInput.Type.MEMORY, fi.getType());
+    assertTrue(inputManager.getUsedMemory() + bufferPool.getRetainedBytes() <= memoryLimit);
+  }
+
+  @Test(timeout = 5000)
+  public void testOffHeapAllocation() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS, "/tmp/" + this.getClass().getName());
+    conf.setFloat(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_LIMIT_PERCENT, 1.0f);
+    conf.setLong(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_OFFHEAP_BUFFER_BYTES, 2 << 20);
+    // no heap is needed for the inputs
+    assertEquals(0, SimpleFetchedInputAllocator.getInitialMemoryReq(conf, 100 << 20));
+    SimpleFetchedInputAllocator inputManager = new SimpleFetchedInputAllocator("srcName",
+        UUID.randomUUID().toString(), conf, 100 << 20, 0);
+
+    MemoryFetchedInput fi1 = (MemoryFetchedInput) inputManager.allocate(1 << 20, 1,
+        new InputAttemptIdentifier(1, 1));
+    assertTrue(fi1.isOffHeap());
+    assertTrue(fi1.getBuffer().isDirect());
+    assertNull(fi1.getBytes());
+    MemoryFetchedInput fi2 = (MemoryFetchedInput) inputManager.allocate(1 << 20, 1,
+        new InputAttemptIdentifier(2, 1));
+    assertTrue(fi2.isOffHeap());
+
+    // the off-heap budget is used up
+    FetchedInput fi3 = inputManager.allocate(1, 1, new InputAttemptIdentifier(3, 1));
+    assertEquals(FetchedInput.Type.DISK, fi3.getType());
+
+    fi1.commit();
+    fi1.free();
+    FetchedInput fi4 = inputManager.allocate(1 << 20, 1, new InputAttemptIdentifier(4, 1));
+    assertEquals(FetchedInput.Type.MEMORY, fi4.getType());
+  }
+
 }
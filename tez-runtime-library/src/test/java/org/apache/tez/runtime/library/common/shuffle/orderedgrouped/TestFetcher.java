@@ -36,7 +36,9 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -50,8 +52,10 @@ import java.util.Map.Entry;
 
 import com.google.common.collect.Lists;
 
+import org.apache.tez.http.BaseHttpConnection;
 import org.apache.tez.http.HttpConnection;
 import org.apache.tez.http.HttpConnectionParams;
+import org.apache.tez.common.counters.TaskCounter;
 import org.apache.tez.common.counters.TezCounter;
 import org.apache.tez.runtime.library.common.InputIdentifier;
 import org.slf4j.Logger;
@@ -99,6 +103,10 @@ public class TestFetcher {
   private TezCounter wrongReduceErrsCounter =
       tezCounters.findCounter(ShuffleScheduler.SHUFFLE_ERR_GRP_NAME,
           ShuffleScheduler.ShuffleErrors.WRONG_REDUCE.toString());
+  private TezCounter connectionsCounter =
+      tezCounters.findCounter(TaskCounter.SHUFFLE_CONNECTIONS);
+  private TezCounter connectionsReusedCounter =
+      tezCounters.findCounter(TaskCounter.SHUFFLE_CONNECTIONS_REUSED);
 
   static final Logger LOG = LoggerFactory.getLogger(TestFetcher.class);
 
@@ -125,7 +133,8 @@ public class TestFetcher {
         new FetcherOrderedGrouped(null, scheduler, merger, metrics, shuffle, null, false, 0,
             null, conf, false, HOST, PORT, "src vertex", mapHost, ioErrsCounter,
             wrongLengthErrsCounter, badIdErrsCounter,
-            wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter, false);
+            wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter,
+            connectionsCounter, connectionsReusedCounter, false);
 
     fetcher.call();
     verify(scheduler).getMapsForHost(mapHost);
@@ -153,7 +162,8 @@ public class TestFetcher {
         new FetcherOrderedGrouped(null, scheduler, merger, metrics, shuffle, null, false, 0,
             null, conf, ENABLE_LOCAL_FETCH, HOST, PORT, "src vertex", mapHost, ioErrsCounter,
             wrongLengthErrsCounter, badIdErrsCounter,
-            wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter, false);
+            wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter,
+            connectionsCounter, connectionsReusedCounter, false);
 
     // when local mode is enabled and host and port matches use local fetch
     FetcherOrderedGrouped spyFetcher = spy(fetcher);
@@ -170,7 +180,8 @@ public class TestFetcher {
         new FetcherOrderedGrouped(null, scheduler, merger, metrics, shuffle, null, false, 0,
             null, conf, ENABLE_LOCAL_FETCH, HOST, PORT, "src vertex", mapHost, ioErrsCounter,
             wrongLengthErrsCounter, badIdErrsCounter,
-            wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter, false);
+            wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter,
+            connectionsCounter, connectionsReusedCounter, false);
     spyFetcher = spy(fetcher);
     doNothing().when(spyFetcher).setupLocalDiskFetch(mapHost);
 
@@ -185,7 +196,8 @@ public class TestFetcher {
         new FetcherOrderedGrouped(null, scheduler, merger, metrics, shuffle, null, false, 0,
             null, conf, ENABLE_LOCAL_FETCH, HOST, PORT, "src vertex", mapHost, ioErrsCounter,
             wrongLengthErrsCounter, badIdErrsCounter,
-            wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter, false);
+            wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter,
+            connectionsCounter, connectionsReusedCounter, false);
     spyFetcher = spy(fetcher);
     doNothing().when(spyFetcher).setupLocalDiskFetch(mapHost);
 
@@ -199,7 +211,8 @@ public class TestFetcher {
     fetcher = new FetcherOrderedGrouped(null, scheduler, merger, metrics, shuffle, null, false, 0,
         null, conf, DISABLE_LOCAL_FETCH, HOST, PORT, "src vertex", mapHost, ioErrsCounter,
         wrongLengthErrsCounter, badIdErrsCounter,
-        wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter, false);
+        wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter,
+        connectionsCounter, connectionsReusedCounter, false);
     spyFetcher = spy(fetcher);
     doNothing().when(spyFetcher).setupLocalDiskFetch(mapHost);
 
@@ -224,7 +237,8 @@ public class TestFetcher {
         "http://" + HOST + ":" + PORT + "/mapOutput?job=job_123&&reduce=1&map=");
     FetcherOrderedGrouped fetcher = new FetcherOrderedGrouped(null, scheduler, merger, metrics, shuffle, null, false, 0,
         null, conf, true, HOST, PORT, "src vertex", host, ioErrsCounter, wrongLengthErrsCounter, badIdErrsCounter,
-        wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter, false);
+        wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter,
+        connectionsCounter, connectionsReusedCounter, false);
     FetcherOrderedGrouped spyFetcher = spy(fetcher);
 
 
@@ -368,7 +382,8 @@ public class TestFetcher {
         "http://" + HOST + ":" + PORT + "/mapOutput?job=job_123&&reduce=1&map=");
     FetcherOrderedGrouped mockFetcher = new FetcherOrderedGrouped(null, scheduler, merger, metrics, shuffle, null, false, 0,
         null, conf, false, HOST, PORT, "src vertex", host, ioErrsCounter, wrongLengthErrsCounter, badIdErrsCounter,
-        wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter, false);
+        wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter,
+        connectionsCounter, connectionsReusedCounter, false);
     final FetcherOrderedGrouped fetcher = spy(mockFetcher);
 
 
@@ -432,6 +447,56 @@ public class TestFetcher {
 
   }
 
+  @Test(timeout = 5000)
+  public void testStreamToMerge() throws Exception {
+    Configuration conf = new TezConfiguration();
+    ShuffleScheduler scheduler = mock(ShuffleScheduler.class);
+    MergeManager merger = mock(MergeManager.class);
+    ShuffleClientMetrics metrics = mock(ShuffleClientMetrics.class);
+    Shuffle shuffle = mock(Shuffle.class);
+
+    final MapHost host = new MapHost(1, HOST + ":" + PORT,
+        "http://" + HOST + ":" + PORT + "/mapOutput?job=job_123&&reduce=1&map=");
+    FetcherOrderedGrouped fetcher = new FetcherOrderedGrouped(null, scheduler, merger, metrics,
+        shuffle, null, false, 0, null, conf, false, HOST, PORT, "src vertex", host, ioErrsCounter,
+        wrongLengthErrsCounter, badIdErrsCounter, wrongMapErrsCounter, connectionErrsCounter,
+        wrongReduceErrsCounter,
+        connectionsCounter, connectionsReusedCounter, false);
+
+    InputAttemptIdentifier srcAttempt =
+        new InputAttemptIdentifier(0, 1, InputAttemptIdentifier.PATH_PREFIX + "pathComponent_0");
+    fetcher.populateRemainingMap(Arrays.asList(srcAttempt));
+    BaseHttpConnection connection = mock(BaseHttpConnection.class);
+    fetcher.httpConnection = connection;
+
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(response);
+    new ShuffleHeader(srcAttempt.getPathComponent(), 10, 20, 1).write(out);
+    out.write(new byte[10]);
+    out.flush();
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(response.toByteArray()));
+
+    MapOutput mapOutput = MapOutput.createStreamMapOutput(srcAttempt, merger, 10);
+    doReturn(srcAttempt).when(scheduler)
+        .getIdentifierForFetchedOutput(srcAttempt.getPathComponent(), 1);
+    doReturn(true).when(scheduler).canStreamToMerge();
+    doReturn(mapOutput).when(merger).reserveStream(srcAttempt, 20, 10);
+
+    Assert.assertNull(fetcher.copyMapOutput(host, input));
+    verify(merger, never()).reserve(any(InputAttemptIdentifier.class), anyLong(), anyLong(),
+        anyInt());
+    verify(scheduler).copySucceeded(eq(srcAttempt), eq(host), eq(10L), eq(20L), anyLong(),
+        eq(mapOutput), eq(false));
+    // the host is freed without waiting for the final merge
+    verify(scheduler).freeHost(host);
+
+    // the connection belongs to the streamed output now
+    Assert.assertNull(fetcher.httpConnection);
+    verify(connection, never()).cleanup(anyBoolean());
+    mapOutput.getStream().close();
+    verify(connection).cleanup(true);
+  }
+
   @Test
   @SuppressWarnings("unchecked")
   public void testAsyncWithException() throws Exception {
@@ -460,7 +525,8 @@ public class TestFetcher {
             false, 0,
             null, conf, false, HOST, PORT, "src vertex", host, ioErrsCounter,
             wrongLengthErrsCounter, badIdErrsCounter,
-            wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter, true);
+            wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter,
+            connectionsCounter, connectionsReusedCounter, true);
     final FetcherOrderedGrouped fetcher = spy(mockFetcher);
     fetcher.remaining = new LinkedHashMap<String, InputAttemptIdentifier>();
     final List<InputAttemptIdentifier> srcAttempts = Arrays.asList(
@@ -527,7 +593,8 @@ public class TestFetcher {
         new FetcherOrderedGrouped(null, scheduler, merger, metrics, shuffle, null, false, 0,
             null, conf, false, HOST, PORT, "src vertex", mapHost, ioErrsCounter,
             wrongLengthErrsCounter, badIdErrsCounter,
-            wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter, false);
+            wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter,
+            connectionsCounter, connectionsReusedCounter, false);
     fetcher.populateRemainingMap(new LinkedList<InputAttemptIdentifier>(Arrays.asList(srcAttempts)));
     Assert.assertEquals(expectedSrcAttempts.length, fetcher.remaining.size());
     Iterator<Entry<String, InputAttemptIdentifier>> iterator = fetcher.remaining.entrySet().iterator();
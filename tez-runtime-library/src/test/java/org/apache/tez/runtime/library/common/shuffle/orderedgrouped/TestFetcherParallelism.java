@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.orderedgrouped;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.junit.Test;
+
+public class TestFetcherParallelism {
+
+  private static final long INTERVAL = FetcherParallelism.INTERVAL_MS;
+
+  @Test(timeout = 5000)
+  public void testAdaptToThroughput() {
+    TezCounters counters = new TezCounters();
+    TezCounter peak = counters.findCounter(TaskCounter.SHUFFLE_FETCHERS_PEAK);
+    TezCounter adjustments = counters.findCounter(TaskCounter.SHUFFLE_FETCHERS_ADJUSTMENTS);
+    long now = 0;
+    FetcherParallelism parallelism = new FetcherParallelism("src", 8, now, peak, adjustments);
+    assertEquals(2, parallelism.getNumFetchers(now, 10, 0, 0f));
+    assertEquals(2, peak.getValue());
+
+    // no change within an interval
+    parallelism.bytesFetched(1000);
+    assertEquals(2, parallelism.getNumFetchers(now + INTERVAL - 1, 10, 2, 0f));
+
+    // all fetchers busy and hosts waiting
+    now += INTERVAL;
+    assertEquals(3, parallelism.getNumFetchers(now, 10, 2, 0f));
+
+    // the added fetcher helped
+    parallelism.bytesFetched(2000);
+    now += INTERVAL;
+    assertEquals(4, parallelism.getNumFetchers(now, 10, 3, 0f));
+
+    // the added fetcher did not help
+    parallelism.bytesFetched(2000);
+    now += INTERVAL;
+    assertEquals(3, parallelism.getNumFetchers(now, 10, 4, 0f));
+    for (int i = 0; i < FetcherParallelism.HOLD_INTERVALS; i++) {
+      parallelism.bytesFetched(2000);
+      now += INTERVAL;
+      assertEquals(3, parallelism.getNumFetchers(now, 10, 3, 0f));
+    }
+    parallelism.bytesFetched(2000);
+    now += INTERVAL;
+    assertEquals(4, parallelism.getNumFetchers(now, 10, 3, 0f));
+
+    // not all fetchers busy, or no hosts waiting
+    parallelism.bytesFetched(3000);
+    now += INTERVAL;
+    assertEquals(4, parallelism.getNumFetchers(now, 10, 2, 0f));
+    parallelism.bytesFetched(3000);
+    now += INTERVAL;
+    assertEquals(4, parallelism.getNumFetchers(now, 0, 4, 0f));
+
+    assertEquals(4, peak.getValue());
+    assertEquals(4, adjustments.getValue());
+  }
+
+  @Test(timeout = 5000)
+  public void testMemoryPressure() {
+    TezCounters counters = new TezCounters();
+    long now = 0;
+    FetcherParallelism parallelism = new FetcherParallelism("src", 12, now,
+        counters.findCounter(TaskCounter.SHUFFLE_FETCHERS_PEAK),
+        counters.findCounter(TaskCounter.SHUFFLE_FETCHERS_ADJUSTMENTS));
+    assertEquals(3, parallelism.getNumFetchers(now, 10, 0, 0f));
+    for (int expected : new int[] {2, 1, 1}) {
+      parallelism.bytesFetched(1000);
+      now += INTERVAL;
+      assertEquals(expected, parallelism.getNumFetchers(now, 10, 3,
+          FetcherParallelism.MEMORY_PRESSURE));
+    }
+    now += INTERVAL;
+    assertEquals(2, parallelism.getNumFetchers(now, 10, 1, 0.5f));
+  }
+}
@@ -19,7 +19,11 @@
 package org.apache.tez.runtime.library.common.shuffle.orderedgrouped;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.atLeastOnce;
@@ -29,10 +33,16 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.common.collect.Sets;
 import org.mockito.invocation.InvocationOnMock;
@@ -40,18 +50,23 @@ import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocalDirAllocator;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.FileChunk;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.common.counters.TaskCounter;
 import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.dag.api.TezConfiguration;
 import org.apache.tez.runtime.api.InputContext;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.shuffle.ShuffleBufferPool;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
 import org.junit.After;
@@ -335,6 +350,262 @@ public class TestMergeManager {
   }
 
 
+  @Test(timeout = 10000)
+  public void testStreamedFinalMerge() throws Throwable {
+    Configuration conf = new TezConfiguration(defaultConf);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS, false);
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_CLASS, IntWritable.class.getName());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_VALUE_CLASS, IntWritable.class.getName());
+
+    Path localDir = new Path(workDir, "local");
+    Path srcDir = new Path(workDir, "srcData");
+    localFs.mkdirs(localDir);
+    localFs.mkdirs(srcDir);
+
+    conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS, localDir.toString());
+
+    FileSystem localFs = FileSystem.getLocal(conf);
+    LocalDirAllocator localDirAllocator =
+        new LocalDirAllocator(TezRuntimeFrameworkConfigs.LOCAL_DIRS);
+    InputContext inputContext = createMockInputContext(UUID.randomUUID().toString());
+    ExceptionReporter exceptionReporter = mock(ExceptionReporter.class);
+
+    MergeManager mergeManager =
+        new MergeManager(conf, localFs, localDirAllocator, inputContext, null, null, null, null,
+            exceptionReporter, 2000000, null, false, -1);
+    mergeManager.configureAndStart();
+
+    // Partition 0 Keys 0-2
+    SrcFileInfo src1Info =
+        createFile(conf, localFs, new Path(srcDir, InputAttemptIdentifier.PATH_PREFIX + "src1.out"),
+            2, 3, 0);
+    // Partition 0 Keys 1-3
+    SrcFileInfo src2Info =
+        createFile(conf, localFs, new Path(srcDir, InputAttemptIdentifier.PATH_PREFIX + "src2.out"),
+            2, 3, 1);
+    InputAttemptIdentifier identifier1 = new InputAttemptIdentifier(0, 0, src1Info.path.getName());
+    InputAttemptIdentifier identifier2 = new InputAttemptIdentifier(1, 0, src2Info.path.getName());
+
+    // inputs which fit in memory are not streamed
+    assertNull(mergeManager.reserveStream(identifier2, 100, 100));
+
+    getMapOutputForDirectDiskFetch(identifier1, src1Info.path, src1Info.indexedRecords[0],
+        mergeManager).commit();
+
+    TezIndexRecord indexRecord = src2Info.indexedRecords[0];
+    MapOutput streamed = mergeManager.reserveStream(identifier2, Integer.MAX_VALUE,
+        indexRecord.getPartLength());
+    assertEquals(MapOutput.Type.STREAM, streamed.getType());
+    FSDataInputStream in = localFs.open(src2Info.path);
+    in.seek(indexRecord.getStartOffset());
+    final AtomicBoolean streamClosed = new AtomicBoolean(false);
+    streamed.setStream(new FilterInputStream(in) {
+      @Override
+      public void close() throws IOException {
+        streamClosed.set(true);
+        super.close();
+      }
+    });
+    streamed.commit();
+    assertEquals(1, mergeManager.streamedMapOutputs.size());
+
+    TezRawKeyValueIterator kvIter = mergeManager.close();
+    List<Integer> keys = new ArrayList<Integer>();
+    IntWritable key = new IntWritable();
+    while (kvIter.next()) {
+      DataInputBuffer keyBuffer = kvIter.getKey();
+      key.readFields(keyBuffer);
+      keys.add(key.get());
+    }
+    kvIter.close();
+    assertEquals(Arrays.asList(0, 1, 1, 2, 2, 3), keys);
+    assertTrue(streamClosed.get());
+  }
+
+  @Test(timeout = 10000)
+  public void testStreamedOutputsAbortedOnShutdown() throws Throwable {
+    Configuration conf = new TezConfiguration(defaultConf);
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_CLASS, IntWritable.class.getName());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_VALUE_CLASS, IntWritable.class.getName());
+    FileSystem localFs = FileSystem.getLocal(conf);
+    LocalDirAllocator localDirAllocator =
+        new LocalDirAllocator(TezRuntimeFrameworkConfigs.LOCAL_DIRS);
+    InputContext inputContext = createMockInputContext(UUID.randomUUID().toString());
+    MergeManager mergeManager =
+        new MergeManager(conf, localFs, localDirAllocator, inputContext, null, null, null, null,
+            mock(ExceptionReporter.class), 2000000, null, false, -1);
+    mergeManager.configureAndStart();
+
+    MapOutput committed = mergeManager.reserveStream(new InputAttemptIdentifier(0, 0),
+        Integer.MAX_VALUE, 100);
+    InputStream committedStream = mock(InputStream.class);
+    committed.setStream(committedStream);
+    committed.commit();
+    // still being fetched when the shuffle shuts down
+    MapOutput inFlight = mergeManager.reserveStream(new InputAttemptIdentifier(1, 0),
+        Integer.MAX_VALUE, 100);
+    InputStream inFlightStream = mock(InputStream.class);
+    inFlight.setStream(inFlightStream);
+
+    mergeManager.abortStreamedOutputs();
+    verify(committedStream).close();
+    assertTrue(mergeManager.streamedMapOutputs.isEmpty());
+    // nothing is streamed into the final merge any more
+    assertNull(mergeManager.reserveStream(new InputAttemptIdentifier(2, 0),
+        Integer.MAX_VALUE, 100));
+
+    inFlight.commit();
+    verify(inFlightStream).close();
+    assertTrue(mergeManager.streamedMapOutputs.isEmpty());
+    TezRawKeyValueIterator kvIter = mergeManager.close();
+    assertFalse(kvIter.next());
+    kvIter.close();
+  }
+
+  @Test(timeout = 10000)
+  public void testStreamedOutputCommittedAfterClose() throws Throwable {
+    Configuration conf = new TezConfiguration(defaultConf);
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_CLASS, IntWritable.class.getName());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_VALUE_CLASS, IntWritable.class.getName());
+    FileSystem localFs = FileSystem.getLocal(conf);
+    LocalDirAllocator localDirAllocator =
+        new LocalDirAllocator(TezRuntimeFrameworkConfigs.LOCAL_DIRS);
+    InputContext inputContext = createMockInputContext(UUID.randomUUID().toString());
+    MergeManager mergeManager =
+        new MergeManager(conf, localFs, localDirAllocator, inputContext, null, null, null, null,
+            mock(ExceptionReporter.class), 2000000, null, false, -1);
+    mergeManager.configureAndStart();
+
+    MapOutput streamed = mergeManager.reserveStream(new InputAttemptIdentifier(0, 0),
+        Integer.MAX_VALUE, 100);
+    InputStream stream = mock(InputStream.class);
+    streamed.setStream(stream);
+    mergeManager.close().close();
+
+    // the final merge has run, the late output would never be read
+    streamed.commit();
+    verify(stream).close();
+    assertTrue(mergeManager.streamedMapOutputs.isEmpty());
+  }
+
+  @Test(timeout = 10000)
+  public void testBufferPool() throws Throwable {
+    Configuration conf = new TezConfiguration(defaultConf);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED, true);
+    FileSystem localFs = FileSystem.getLocal(conf);
+    LocalDirAllocator localDirAllocator =
+        new LocalDirAllocator(TezRuntimeFrameworkConfigs.LOCAL_DIRS);
+    InputContext inputContext = createMockInputContext(UUID.randomUUID().toString());
+    MergeManager mergeManager =
+        new MergeManager(conf, localFs, localDirAllocator, inputContext, null, null, null, null,
+            mock(ExceptionReporter.class), 2000000, null, false, -1);
+
+    MapOutput mapOutput1 = mergeManager.reserve(new InputAttemptIdentifier(0, 0), 100000, 100000, 0);
+    assertEquals(MapOutput.Type.MEMORY, mapOutput1.getType());
+    assertEquals(100000, mapOutput1.getSize());
+    // rounded up to the size class of the buffer
+    byte[] buffer = mapOutput1.getMemory();
+    assertEquals(7 * 16384, buffer.length);
+
+    // once read, the buffer goes back to the pool
+    new InMemoryReader(mergeManager, mapOutput1.getAttemptIdentifier(), ByteBuffer.wrap(buffer),
+        0, (int) mapOutput1.getSize(), mapOutput1.getReservedSize()).close();
+    MapOutput mapOutput2 = mergeManager.reserve(new InputAttemptIdentifier(1, 0), 110000, 110000, 0);
+    assertSame(buffer, mapOutput2.getMemory());
+    TezCounters counters = inputContext.getCounters();
+    assertEquals(1, counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_HITS).getValue());
+    assertEquals(buffer.length,
+        counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_BYTES_REUSED).getValue());
+
+    // buffers of aborted outputs are not recycled
+    mapOutput2.abort();
+    MapOutput mapOutput3 = mergeManager.reserve(new InputAttemptIdentifier(2, 0), 110000, 110000, 0);
+    assertNotSame(buffer, mapOutput3.getMemory());
+    assertEquals(1, counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_HITS).getValue());
+  }
+
+  @Test(timeout = 10000)
+  public void testBufferPoolWithinMemoryLimit() throws Throwable {
+    Configuration conf = new TezConfiguration(defaultConf);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED, true);
+    FileSystem localFs = FileSystem.getLocal(conf);
+    LocalDirAllocator localDirAllocator =
+        new LocalDirAllocator(TezRuntimeFrameworkConfigs.LOCAL_DIRS);
+    InputContext inputContext = createMockInputContext(UUID.randomUUID().toString());
+    long memoryLimit = 2000000;
+    MergeManager mergeManager =
+        new MergeManager(conf, localFs, localDirAllocator, inputContext, null, null, null, null,
+            mock(ExceptionReporter.class), memoryLimit, null, false, -1);
+    ShuffleBufferPool bufferPool = mergeManager.bufferPool;
+
+    // each output is charged for its buffer of 7 * 16384 bytes
+    List<MapOutput> mapOutputs = new ArrayList<MapOutput>();
+    for (int i = 0; i < 17; i++) {
+      MapOutput mapOutput =
+          mergeManager.reserve(new InputAttemptIdentifier(i, 0), 100000, 100000, 0);
+      assertEquals(MapOutput.Type.MEMORY, mapOutput.getType());
+      assertEquals(mapOutput.getMemory().length, mapOutput.getReservedSize());
+      mapOutputs.add(mapOutput);
+    }
+    assertEquals(17 * 7 * 16384, getUsedMemory(mergeManager, memoryLimit));
+
+    // reading an output releases all of the memory charged for it
+    for (MapOutput mapOutput : mapOutputs) {
+      new InMemoryReader(mergeManager, mapOutput.getAttemptIdentifier(),
+          mapOutput.getMemoryBuffer(), 0, (int) mapOutput.getSize(),
+          mapOutput.getReservedSize()).close();
+      assertTrue(getUsedMemory(mergeManager, memoryLimit) + bufferPool.getRetainedBytes()
+          <= memoryLimit);
+    }
+    assertEquals(0.0f, mergeManager.getUsedMemoryFraction(), 0.0f);
+    assertEquals(17 * 7 * 16384, bufferPool.getRetainedBytes());
+
+    // a buffer of another size class makes the pool drop buffers
+    MapOutput mapOutput = mergeManager.reserve(new InputAttemptIdentifier(17, 0), 200000,
+        200000, 0);
+    assertEquals(7 * 32768, mapOutput.getReservedSize());
+    assertTrue(getUsedMemory(mergeManager, memoryLimit) + bufferPool.getRetainedBytes()
+        <= memoryLimit);
+  }
+
+  private static long getUsedMemory(MergeManager mergeManager, long memoryLimit) {
+    return Math.round(mergeManager.getUsedMemoryFraction() * memoryLimit);
+  }
+
+  @Test(timeout = 10000)
+  public void testOffHeapMemory() throws Throwable {
+    Configuration conf = new TezConfiguration(defaultConf);
+    conf.setLong(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_OFFHEAP_BUFFER_BYTES, 1000000);
+    // the heap is only asked for the memory retained for the final merge
+    assertEquals(0, MergeManager.getInitialMemoryRequirement(conf, 2000000));
+    FileSystem localFs = FileSystem.getLocal(conf);
+    LocalDirAllocator localDirAllocator =
+        new LocalDirAllocator(TezRuntimeFrameworkConfigs.LOCAL_DIRS);
+    InputContext inputContext = createMockInputContext(UUID.randomUUID().toString());
+    MergeManager mergeManager =
+        new MergeManager(conf, localFs, localDirAllocator, inputContext, null, null, null, null,
+            mock(ExceptionReporter.class), 0, null, false, -1);
+
+    MapOutput mapOutput = mergeManager.reserve(new InputAttemptIdentifier(0, 0), 100000, 100000, 0);
+    assertEquals(MapOutput.Type.MEMORY, mapOutput.getType());
+    assertTrue(mapOutput.isOffHeap());
+    assertNull(mapOutput.getMemory());
+    assertTrue(mapOutput.getMemoryBuffer().isDirect());
+    assertEquals(0.1f, mergeManager.getUsedMemoryFraction(), 0.001f);
+
+    new InMemoryReader(mergeManager, mapOutput.getAttemptIdentifier(),
+        mapOutput.getMemoryBuffer(), 0, (int) mapOutput.getSize()).close();
+    assertEquals(0.0f, mergeManager.getUsedMemoryFraction(), 0.0f);
+
+    // the off-heap budget is used up
+    for (int i = 1; i <= 5; i++) {
+      assertEquals(MapOutput.Type.MEMORY,
+          mergeManager.reserve(new InputAttemptIdentifier(i, 0), 240000, 240000, 0).getType());
+    }
+    assertEquals(MapOutput.Type.WAIT,
+        mergeManager.reserve(new InputAttemptIdentifier(6, 0), 240000, 240000, 0).getType());
+  }
+
   void testLocalDiskMergeMultipleTasks(boolean interruptInMiddle)
       throws IOException, InterruptedException {
     Configuration conf = new TezConfiguration(defaultConf);
@@ -29,11 +29,15 @@ import static org.junit.Assert.assertEquals;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
@@ -41,6 +45,7 @@ import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.security.token.Token;
 import org.apache.hadoop.yarn.api.records.ApplicationId;
 import org.apache.tez.common.TezCommonUtils;
+import org.apache.tez.common.counters.TaskCounter;
 import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.common.security.JobTokenIdentifier;
 import org.apache.tez.common.security.JobTokenSecretManager;
@@ -107,6 +112,67 @@ public class TestShuffleScheduler {
     }
   }
 
+  @Test (timeout = 10000)
+  public void testAdaptiveParallelScheduledFetchers() throws IOException, InterruptedException {
+    InputContext inputContext = createTezInputContext();
+    Configuration conf = new TezConfiguration();
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES, 10);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_PARALLELISM, true);
+    int numInputs = 50;
+    Shuffle shuffle = mock(Shuffle.class);
+    MergeManager mergeManager = mock(MergeManager.class);
+
+    long startTime = System.currentTimeMillis();
+    final ShuffleSchedulerForTest scheduler =
+        new ShuffleSchedulerForTest(inputContext, conf, numInputs, shuffle, mergeManager,
+            mergeManager, startTime, null, false, 0, "srcName", true);
+    scheduler.currentTime.set(startTime);
+
+    Future<Void> executorFuture = null;
+    ExecutorService executor = Executors.newFixedThreadPool(1);
+    try {
+      executorFuture = executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          scheduler.start();
+          return null;
+        }
+      });
+
+      for (int i = 0; i < numInputs; i++) {
+        InputAttemptIdentifier inputAttemptIdentifier =
+            new InputAttemptIdentifier(new InputIdentifier(i), 0, "attempt_");
+        scheduler.addKnownMapOutput("host" + i, 10000, 1, "hostUrl", inputAttemptIdentifier);
+      }
+
+      // starts with a quarter of the fetchers
+      scheduler.fetchersCreated.acquire(2);
+      // no fetcher is added within an interval
+      synchronized (scheduler) {
+        scheduler.currentTime.addAndGet(FetcherParallelism.INTERVAL_MS - 1);
+        scheduler.notifyAll();
+      }
+      assertFalse(scheduler.fetchersCreated.tryAcquire(100, TimeUnit.MILLISECONDS));
+      assertEquals(2, scheduler.numFetchersCreated.get());
+
+      // adds one after an interval with all fetchers busy
+      synchronized (scheduler) {
+        scheduler.currentTime.addAndGet(1);
+        scheduler.notifyAll();
+      }
+      scheduler.fetchersCreated.acquire(1);
+      assertEquals(3, scheduler.numFetchersCreated.get());
+      assertEquals(3, inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_FETCHERS_PEAK)
+          .getValue());
+    } finally {
+      scheduler.close();
+      if (executorFuture != null) {
+        executorFuture.cancel(true);
+      }
+      executor.shutdownNow();
+    }
+  }
+
   @Test(timeout = 5000)
   public void testSimpleFlow() throws Exception {
     InputContext inputContext = createTezInputContext();
@@ -774,6 +840,87 @@ public class TestShuffleScheduler {
     assertFalse(host.getIdentifier(), host.getIdentifier().equalsIgnoreCase("host0:10000"));
   }
 
+  @Test(timeout = 5000)
+  public void testHostPriority() throws IOException, InterruptedException {
+    Configuration conf = new TezConfiguration();
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_HOST_PRIORITY, true);
+    final ShuffleSchedulerForTest scheduler =
+        createScheduler(System.currentTimeMillis(), 4, mock(Shuffle.class), conf);
+
+    scheduler.addKnownMapOutput("host0", 10000, 0, "hostUrl",
+        new InputAttemptIdentifier(new InputIdentifier(0), 0, "attempt_"));
+    scheduler.addKnownMapOutput("host1", 10000, 0, "hostUrl",
+        new InputAttemptIdentifier(new InputIdentifier(1), 0, "attempt_"));
+    scheduler.addKnownMapOutput("host1", 10000, 0, "hostUrl",
+        new InputAttemptIdentifier(new InputIdentifier(2), 0, "attempt_"));
+    scheduler.addKnownMapOutput("host2", 10000, 0, "hostUrl",
+        new InputAttemptIdentifier(new InputIdentifier(3), 0, "attempt_"));
+    scheduler.mapLocations.get(MapHost.createIdentifier("host2:10000", 0)).getStats()
+        .fetchFailed();
+
+    // most inputs pending first, failing hosts last
+    assertEquals("host1:10000", scheduler.getHost().getHostIdentifier());
+    assertEquals("host0:10000", scheduler.getHost().getHostIdentifier());
+    assertEquals("host2:10000", scheduler.getHost().getHostIdentifier());
+  }
+
+  @Test(timeout = 10000)
+  public void testSpeculativeFetchOfSlowTailInput() throws IOException, InterruptedException {
+    Configuration conf = new TezConfiguration();
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_SPECULATIVE_TAIL_INPUTS, 1);
+    final ShuffleSchedulerForTest scheduler =
+        createScheduler(System.currentTimeMillis(), 2, mock(Shuffle.class), conf);
+
+    InputAttemptIdentifier input0 =
+        new InputAttemptIdentifier(new InputIdentifier(0), 0, "attempt_0_0");
+    InputAttemptIdentifier input1 =
+        new InputAttemptIdentifier(new InputIdentifier(1), 0, "attempt_1_0");
+    scheduler.addKnownMapOutput("host0", 10000, 0, "hostUrl", input0);
+    scheduler.addKnownMapOutput("host1", 10000, 0, "hostUrl", input1);
+    for (int i = 0; i < 2; i++) {
+      MapHost host = scheduler.getHost();
+      List<InputAttemptIdentifier> inputs = scheduler.getMapsForHost(host);
+      assertEquals(1, inputs.size());
+      if (inputs.get(0).equals(input1)) {
+        MapOutput mapOutput = MapOutput.createMemoryMapOutput(input1,
+            mock(FetchedInputAllocatorOrderedGrouped.class), 100, false);
+        scheduler.copySucceeded(input1, host, 100, 100, 10, mapOutput, false);
+        scheduler.freeHost(host);
+      }
+    }
+
+    // input0 is stuck on host0, and another attempt of it shows up on host2
+    scheduler.addKnownMapOutput("host2", 10000, 0, "hostUrl",
+        new InputAttemptIdentifier(new InputIdentifier(0), 1, "attempt_0_1"));
+    for (int i = 3; i < 10; i++) {
+      scheduler.addKnownMapOutput("host" + i, 10000, 0, "hostUrl",
+          new InputAttemptIdentifier(new InputIdentifier(1), 1, "attempt_1_1"));
+    }
+    Thread.sleep(ShuffleScheduler.MIN_SLOW_FETCH_MS + 100);
+    assertEquals("host2:10000", scheduler.getHost().getHostIdentifier());
+  }
+
+  @Test(timeout = 5000)
+  public void testCanStreamToMerge() throws IOException, InterruptedException {
+    Configuration conf = new TezConfiguration();
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_STREAMING_MERGE_INPUTS, 2);
+    final ShuffleSchedulerForTest scheduler =
+        createScheduler(System.currentTimeMillis(), 2, mock(Shuffle.class), conf);
+
+    scheduler.addKnownMapOutput("host0", 10000, 0, "hostUrl",
+        new InputAttemptIdentifier(new InputIdentifier(0), 0, "attempt_0_0"));
+    scheduler.addKnownMapOutput("host1", 10000, 0, "hostUrl",
+        new InputAttemptIdentifier(new InputIdentifier(1), 0, "attempt_1_0"));
+    MapHost host = scheduler.getHost();
+    assertEquals(1, scheduler.getMapsForHost(host).size());
+    // the input on the other host is still pending
+    assertFalse(scheduler.canStreamToMerge());
+
+    host = scheduler.getHost();
+    assertEquals(1, scheduler.getMapsForHost(host).size());
+    assertTrue(scheduler.canStreamToMerge());
+  }
+
   @Test(timeout = 5000)
   public void testShutdown() throws Exception {
     InputContext inputContext = createTezInputContext();
@@ -852,6 +999,10 @@ public class TestShuffleScheduler {
   private static class ShuffleSchedulerForTest extends ShuffleScheduler {
 
     private final AtomicInteger numFetchersCreated = new AtomicInteger(0);
+    // released once for every fetcher created
+    private final Semaphore fetchersCreated = new Semaphore(0);
+    // time the scheduler sees, or the system time if negative
+    private final AtomicLong currentTime = new AtomicLong(-1);
     private final boolean fetcherShouldWait;
     private final ExceptionReporter reporter;
 
@@ -881,9 +1032,16 @@ public class TestShuffleScheduler {
       this.reporter = shuffle;
     }
 
+    @Override
+    long getCurrentTimeMillis() {
+      long time = currentTime.get();
+      return (time < 0) ? super.getCurrentTimeMillis() : time;
+    }
+
     @Override
     FetcherOrderedGrouped constructFetcherForHost(MapHost mapHost) {
       numFetchersCreated.incrementAndGet();
+      fetchersCreated.release();
       FetcherOrderedGrouped mockFetcher = mock(FetcherOrderedGrouped.class);
       doAnswer(new Answer() {
         @Override
@@ -20,14 +20,17 @@ package org.apache.tez.runtime.library.common.sort.impl;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
@@ -42,6 +45,7 @@ import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.io.serializer.Deserializer;
 import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.InMemoryReader;
 import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.InMemoryWriter;
@@ -68,6 +72,7 @@ public class TestIFile {
   private Path outputPath;
   private DataOutputBuffer k = new DataOutputBuffer();
   private DataOutputBuffer v = new DataOutputBuffer();
+  private ExecutorService fillPool;
 
   static {
     defaultConf.set("fs.defaultFS", "file:///");
@@ -88,6 +93,12 @@ public class TestIFile {
         Configuration());
     codec = codecFactory.getCodecByClassName("org.apache.hadoop.io.compress.DefaultCodec");
     outputPath = new Path(workDir, outputFileName);
+    fillPool = IFileAsyncInputStream.createFillPool(2);
+  }
+
+  @After
+  public void tearDown() {
+    fillPool.shutdownNow();
   }
 
   @Before
@@ -272,6 +283,33 @@ public class TestIFile {
     readUsingInMemoryReader(bout.getBuffer(), data);
   }
 
+  @Test(timeout = 5000)
+  //Test InMemoryReader over a direct buffer
+  public void testOffHeapInMemoryReader() throws IOException {
+    List<KVPair> data = KVDataGen.generateTestData(true, 10);
+    //RLE, RepeatKeys, with and without compression
+    for (CompressionCodec ifileCodec : new CompressionCodec[] { null, codec }) {
+      Writer writer = writeTestFileUsingDataBuffer(true, true, data, ifileCodec);
+      int rawLength = (int) writer.getRawLength();
+      FSDataInputStream inStream = localFs.open(outputPath);
+      // larger than the data, as a pooled buffer would be
+      ByteBuffer buffer = ByteBuffer.allocateDirect(rawLength + 100);
+      IFile.Reader.readToMemory(buffer, rawLength, inStream,
+          (int) writer.getCompressedLength(), ifileCodec, false, -1);
+      inStream.close();
+      assertEquals(0, buffer.position());
+
+      InMemoryReader inMemReader = new InMemoryReader(null,
+          new InputAttemptIdentifier(0, 0), buffer, 0, rawLength);
+      // keys are copied to the heap, into the same buffer
+      assertFalse(inMemReader.isRawKeyStable());
+      verifyData(inMemReader, data);
+      inMemReader.reset(0);
+      verifyData(inMemReader, data);
+      inMemReader.close();
+    }
+  }
+
   @Test(timeout = 5000)
   //Test appendValue feature
   public void testAppendValue() throws IOException {
@@ -376,6 +414,115 @@ public class TestIFile {
   }
 
 
+  @Test(timeout = 5000)
+  //Write compressed blocks, read them with the IFile and in memory readers
+  public void testBlockCompression() throws IOException {
+    Configuration conf = new Configuration(defaultConf);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_BLOCK_SIZE, 128);
+    List<KVPair> data = KVDataGen.generateTestData(true, rnd.nextInt(100));
+    for (boolean rle : new boolean[] {false, true}) {
+      FSDataOutputStream out = localFs.create(outputPath);
+      IFile.Writer writer = new IFile.Writer(conf, out,
+          Text.class, IntWritable.class, codec, null, null, rle);
+      assertNotNull(writer.blockCompressedOut);
+      writeTestFile(writer, rle, true, data, codec);
+      out.close();
+      readAndVerifyData(writer.getRawLength(), writer.getCompressedLength(), data, codec);
+    }
+
+    FSDataInputStream in = localFs.open(outputPath);
+    assertEquals(IFile.BLOCK_COMPRESSED, IFile.Reader.readCompression(in));
+    in.close();
+
+    // the codec is needed to read compressed blocks
+    try {
+      new IFile.Reader(localFs, outputPath, null, null, null, false, 0, -1);
+      fail("Block compressed IFile should not be read without codec");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test(timeout = 5000)
+  //A corrupt block is detected by its checksum before it is decompressed
+  public void testBlockCompressionChecksum() throws IOException {
+    Configuration conf = new Configuration(defaultConf);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_BLOCK_SIZE, 64);
+    List<KVPair> data = KVDataGen.generateTestData(true, 0);
+    FSDataOutputStream out = localFs.create(outputPath);
+    IFile.Writer writer = new IFile.Writer(conf, out,
+        Text.class, IntWritable.class, codec, null, null, false);
+    writeTestFile(writer, false, false, data, codec);
+    out.close();
+
+    byte[] ifile = new byte[(int) writer.getCompressedLength()];
+    FSDataInputStream in = localFs.open(outputPath);
+    in.readFully(ifile);
+    in.close();
+    // first byte of the compressed data of the first block
+    ifile[IFile.HEADER.length + IFileBlockOutputStream.BLOCK_HEADER_LENGTH] ^= 0x5a;
+    IFile.Reader reader = new IFile.Reader(new ByteArrayInputStream(ifile), ifile.length,
+        codec, null, null, false, 0, -1);
+    // the checksum of the whole file would catch it as well
+    reader.disableChecksumValidation();
+    try {
+      verifyData(reader, data);
+      fail("Corrupt block should have been detected");
+    } catch (ChecksumException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("block 0"));
+    }
+
+    // also when decompressed on a background thread
+    reader = new IFile.Reader(new ByteArrayInputStream(ifile), ifile.length,
+        codec, null, null, false, 0, -1);
+    reader.disableChecksumValidation();
+    reader.enableAsyncDecompression(2, fillPool);
+    try {
+      verifyData(reader, data);
+      fail("Corrupt block should have been detected");
+    } catch (ChecksumException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("block 0"));
+    }
+  }
+
+  @Test(timeout = 5000)
+  //Decompress on a background thread, with stream and block compression
+  public void testAsyncDecompression() throws IOException {
+    List<KVPair> data = new ArrayList<KVPair>();
+    for (int i = 0; i < 1000; i++) {
+      data.add(new KVPair(new Text(String.format("key%04d", i)), new IntWritable(i)));
+    }
+    for (int blockSize : new int[] {0, 256}) {
+      Configuration conf = new Configuration(defaultConf);
+      conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_BLOCK_SIZE, blockSize);
+      FSDataOutputStream out = localFs.create(outputPath);
+      IFile.Writer writer = new IFile.Writer(conf, out,
+          Text.class, IntWritable.class, codec, null, null, true);
+      writeTestFile(writer, true, false, data, codec);
+      out.close();
+
+      // small buffers, so that the ring wraps around many times
+      IFile.Reader reader = new IFile.Reader(localFs, outputPath, codec, null, null, false, 0,
+          100);
+      reader.enableAsyncDecompression(2, fillPool);
+      assertTrue(reader.in instanceof IFileAsyncInputStream);
+      verifyData(reader, data);
+      reader.close();
+    }
+
+    // no effect on uncompressed data
+    FSDataOutputStream out = localFs.create(outputPath);
+    IFile.Writer writer = new IFile.Writer(defaultConf, out,
+        Text.class, IntWritable.class, null, null, null, true);
+    writeTestFile(writer, true, false, data, null);
+    out.close();
+    IFile.Reader reader = new IFile.Reader(localFs, outputPath, null, null, null, false, 0, 100);
+    reader.enableAsyncDecompression(2, fillPool);
+    assertFalse(reader.in instanceof IFileAsyncInputStream);
+    verifyData(reader, data);
+    reader.close();
+  }
+
   /**
    * Test different options (RLE, repeat keys, compression) on reader/writer
    *
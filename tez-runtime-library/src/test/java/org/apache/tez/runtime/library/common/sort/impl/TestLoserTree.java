@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestLoserTree {
+
+  /** A sorted run, ordered by its current value. */
+  private static class Run {
+    final int[] values;
+    int pos = 0;
+
+    Run(int[] values) {
+      this.values = values;
+    }
+
+    int current() {
+      return values[pos];
+    }
+  }
+
+  private static class RunTree extends LoserTree<Run> {
+    int comparisons = 0;
+
+    RunTree(int size) {
+      initialize(size);
+    }
+
+    @Override
+    protected boolean lessThan(Object a, Object b) {
+      comparisons++;
+      return ((Run) a).current() < ((Run) b).current();
+    }
+  }
+
+  private static List<Integer> merge(RunTree tree) {
+    List<Integer> merged = new ArrayList<Integer>();
+    while (tree.size() > 0) {
+      Run top = tree.top();
+      merged.add(top.current());
+      if (++top.pos == top.values.length) {
+        assertEquals(top, tree.pop());
+      } else {
+        tree.adjustTop();
+      }
+    }
+    assertNull(tree.top());
+    assertNull(tree.pop());
+    return merged;
+  }
+
+  private static void verifyMerge(int numRuns, int maxRunLength, Random random) {
+    RunTree tree = new RunTree(numRuns);
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < numRuns; i++) {
+      int[] values = new int[1 + random.nextInt(maxRunLength)];
+      for (int j = 0; j < values.length; j++) {
+        // small range, to have plenty of duplicates across runs
+        values[j] = random.nextInt(100);
+        expected.add(values[j]);
+      }
+      Arrays.sort(values);
+      tree.put(new Run(values));
+    }
+    assertEquals(numRuns, tree.size());
+    Collections.sort(expected);
+    assertEquals("numRuns=" + numRuns, expected, merge(tree));
+  }
+
+  @Test(timeout = 5000)
+  public void testMerge() {
+    Random random = new Random(0x1EAF);
+    for (int numRuns = 1; numRuns <= 33; numRuns++) {
+      verifyMerge(numRuns, 50, random);
+    }
+    verifyMerge(100, 200, random);
+  }
+
+  @Test(timeout = 5000)
+  public void testEmptyAndReuse() {
+    RunTree tree = new RunTree(0);
+    assertEquals(0, tree.size());
+    assertNull(tree.top());
+    assertNull(tree.pop());
+    tree.adjustTop();
+
+    tree.initialize(2);
+    tree.put(new Run(new int[] {3, 4}));
+    tree.put(new Run(new int[] {1, 5}));
+    assertEquals(Arrays.asList(1, 3, 4, 5), merge(tree));
+
+    tree.clear();
+    tree.put(new Run(new int[] {2}));
+    assertEquals(Arrays.asList(2), merge(tree));
+  }
+
+  @Test(timeout = 5000)
+  public void testPutAfterTop() {
+    RunTree tree = new RunTree(2);
+    tree.put(new Run(new int[] {1}));
+    tree.top();
+    try {
+      tree.put(new Run(new int[] {2}));
+      fail("put after top should fail");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testComparisonsPerRecord() {
+    // with 64 runs, every replacement of the winner costs at most log2(64) comparisons
+    final int numRuns = 64;
+    final int runLength = 100;
+    RunTree tree = new RunTree(numRuns);
+    for (int i = 0; i < numRuns; i++) {
+      int[] values = new int[runLength];
+      for (int j = 0; j < runLength; j++) {
+        values[j] = j * numRuns + i;
+      }
+      tree.put(new Run(values));
+    }
+    assertEquals(numRuns * runLength, merge(tree).size());
+    int records = numRuns * runLength;
+    assertTrue("comparisons=" + tree.comparisons,
+        tree.comparisons <= (numRuns - 1) + records * 6);
+  }
+}
@@ -18,9 +18,12 @@
 
 package org.apache.tez.runtime.library.common.sort.impl;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.apache.commons.lang.RandomStringUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
@@ -52,10 +55,14 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.UUID;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Mockito.atLeastOnce;
@@ -318,6 +325,196 @@ public class TestPipelinedSorter {
     basicTest2(1, numkeys, keylens, (10 * 1024l * 1024l), 2);
   }
 
+  @Test
+  public void testWithDirectMemory() throws IOException {
+    this.numOutputs = 1;
+    this.initialAvailableMem = 10 * 1024 * 1024;
+    Configuration conf = getConf();
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_MEMORY, true);
+    conf.setInt(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB, 3);
+    PipelinedSorter sorter = new PipelinedSorter(this.outputContext, conf, numOutputs,
+        initialAvailableMem);
+
+    // enough data for multiple spans and spills
+    writeData(sorter, 100000, 100);
+    assertTrue(sorter.getNumSpills() > 1);
+    verifyCounters(sorter, outputContext);
+
+    Path outputFile = sorter.finalOutputFile;
+    FileSystem fs = outputFile.getFileSystem(conf);
+    IFile.Reader reader = new IFile.Reader(fs, outputFile, null, null, null, false, -1, 4096);
+    verifyData(reader);
+    reader.close();
+  }
+
+  @Test
+  public void testBuffersReleasedWithoutFlush() throws IOException {
+    this.numOutputs = 1;
+    this.initialAvailableMem = 10 * 1024 * 1024;
+    Configuration conf = getConf();
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_MEMORY, true);
+    conf.setInt(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB, 3);
+
+    // failed task, the output is closed without a flush
+    PipelinedSorter sorter = new PipelinedSorter(this.outputContext, conf, numOutputs,
+        initialAvailableMem);
+    writeData(sorter, 10000, 100, false);
+    assertFalse(sorter.buffers.isEmpty());
+    sorter.close();
+    assertTrue(sorter.buffers.isEmpty());
+
+    // interrupted task, flush cleans up and returns right away
+    sorter = new PipelinedSorter(this.outputContext, conf, numOutputs, initialAvailableMem);
+    writeData(sorter, 10000, 100, false);
+    Thread.currentThread().interrupt();
+    try {
+      sorter.flush();
+      assertTrue(sorter.buffers.isEmpty());
+      assertTrue(Thread.currentThread().isInterrupted());
+    } finally {
+      Thread.interrupted();
+    }
+    sorter.close();
+  }
+
+  @Test
+  public void testWithDirectMemoryAndCustomComparator() throws IOException {
+    this.numOutputs = 5;
+    this.initialAvailableMem = 5 * 1024 * 1024;
+    Configuration conf = getConf();
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_MEMORY, true);
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_COMPARATOR_CLASS,
+        CustomComparator.class.getName());
+    conf.setInt(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB, 1);
+    PipelinedSorter sorter = new PipelinedSorter(this.outputContext, conf, numOutputs,
+        initialAvailableMem);
+
+    writeData(sorter, 10000, 100);
+    verifyCounters(sorter, outputContext);
+  }
+
+  @Test
+  public void testWithPrefixSort() throws IOException {
+    this.numOutputs = 1;
+    this.initialAvailableMem = 10 * 1024 * 1024;
+    Configuration conf = getConf();
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_PREFIX_SORT, true);
+    conf.setInt(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB, 3);
+    PipelinedSorter sorter = new PipelinedSorter(this.outputContext, conf, numOutputs,
+        initialAvailableMem);
+
+    // short keys share prefixes, so that ties fall back to the comparator
+    writeData(sorter, 100000, 10);
+    verifyCounters(sorter, outputContext);
+
+    Path outputFile = sorter.finalOutputFile;
+    FileSystem fs = outputFile.getFileSystem(conf);
+    IFile.Reader reader = new IFile.Reader(fs, outputFile, null, null, null, false, -1, 4096);
+    verifyData(reader);
+    reader.close();
+  }
+
+  @Test
+  public void testWithPrefixSortAndDirectMemory() throws IOException {
+    this.numOutputs = 5;
+    this.initialAvailableMem = 5 * 1024 * 1024;
+    Configuration conf = getConf();
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_PREFIX_SORT, true);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_MEMORY, true);
+    conf.setInt(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB, 1);
+    PipelinedSorter sorter = new PipelinedSorter(this.outputContext, conf, numOutputs,
+        initialAvailableMem);
+
+    writeData(sorter, 10000, 100);
+    verifyCounters(sorter, outputContext);
+  }
+
+  @Test
+  public void testParallelFinalMerge() throws IOException {
+    this.numOutputs = 10;
+    this.initialAvailableMem = 5 * 1024 * 1024;
+    Configuration conf = getConf();
+    conf.setInt(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB, 1);
+    // intermediate merge passes within each partition
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR, 3);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_SORT_THREADS, 4);
+
+    List<Text> keys = Lists.newArrayList();
+    for (int i = 0; i < 50000; i++) {
+      keys.add(new Text(RandomStringUtils.randomAlphanumeric(100)));
+    }
+
+    TezCounters serialCounters = new TezCounters();
+    OutputContext serialContext = createMockOutputContext(serialCounters,
+        ApplicationId.newInstance(10000, 1), UUID.randomUUID().toString());
+    PipelinedSorter serialSorter = new PipelinedSorter(serialContext, conf, numOutputs,
+        initialAvailableMem);
+    for (Text key : keys) {
+      serialSorter.write(key, key);
+    }
+    closeSorter(serialSorter);
+    assertTrue(serialSorter.getNumSpills() > 3);
+
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_PARALLEL_FINAL_MERGE,
+        true);
+    PipelinedSorter sorter = new PipelinedSorter(this.outputContext, conf, numOutputs,
+        initialAvailableMem);
+    for (Text key : keys) {
+      sorter.write(key, key);
+    }
+    closeSorter(sorter);
+    verifyCounters(sorter, outputContext);
+
+    // same partitions as the single threaded merge, back to back
+    TezSpillRecord serialIndex = new TezSpillRecord(serialSorter.finalIndexFile, conf);
+    TezSpillRecord index = new TezSpillRecord(sorter.finalIndexFile, conf);
+    FileSystem fs = sorter.finalOutputFile.getFileSystem(conf);
+    byte[] serialData = readFully(fs, serialSorter.finalOutputFile);
+    byte[] data = readFully(fs, sorter.finalOutputFile);
+    long end = 0;
+    for (int i = 0; i < numOutputs; i++) {
+      TezIndexRecord serialRec = serialIndex.getIndex(i);
+      TezIndexRecord rec = index.getIndex(i);
+      assertEquals(serialRec.getRawLength(), rec.getRawLength());
+      assertEquals(serialRec.getPartLength(), rec.getPartLength());
+      assertEquals(end, rec.getStartOffset());
+      end = rec.getStartOffset() + rec.getPartLength();
+      assertTrue(Arrays.equals(
+          Arrays.copyOfRange(serialData, (int) serialRec.getStartOffset(),
+              (int) (serialRec.getStartOffset() + serialRec.getPartLength())),
+          Arrays.copyOfRange(data, (int) rec.getStartOffset(), (int) end)));
+    }
+    assertEquals(end, data.length);
+    assertTrue(Arrays.equals(serialData, data));
+    for (TaskCounter counter : new TaskCounter[] { TaskCounter.SPILLED_RECORDS,
+        TaskCounter.OUTPUT_BYTES_PHYSICAL, TaskCounter.OUTPUT_BYTES_WITH_OVERHEAD,
+        TaskCounter.ADDITIONAL_SPILLS_BYTES_READ }) {
+      assertEquals(counter.name(), serialCounters.findCounter(counter).getValue(),
+          outputContext.getCounters().findCounter(counter).getValue());
+    }
+    // nothing but the final output and its index
+    for (FileStatus status : fs.listStatus(sorter.finalOutputFile.getParent())) {
+      assertFalse(status.getPath().getName().contains(".merge_"));
+    }
+  }
+
+  private static byte[] readFully(FileSystem fs, Path path) throws IOException {
+    byte[] data = new byte[(int) fs.getFileStatus(path).getLen()];
+    FSDataInputStream in = fs.open(path);
+    try {
+      in.readFully(data);
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
   @Test
   public void testWithCustomComparator() throws IOException {
     //Test with custom comparator
@@ -36,6 +36,8 @@ import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.util.Progress;
 import org.apache.hadoop.util.Progressable;
 import org.apache.tez.common.TezRuntimeFrameworkConfigs;
@@ -56,7 +58,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
@@ -74,6 +79,9 @@ public class TestTezMerger {
   private static final String DIFF_KEY = "DIFF_KEY";
 
   //store the generated data for final verification
+  // codec of the IFiles written by writeIFile and merged by merge
+  private static CompressionCodec codec = null;
+
   private static ListMultimap<Integer, Long> verificationDataSet = LinkedListMultimap.create();
 
   private MergeManager merger = mock(MergeManager.class);
@@ -133,6 +141,38 @@ public class TestTezMerger {
     merge(pathList, Math.max(2, rnd.nextInt(10)));
   }
 
+  @Test(timeout = 80000)
+  public void testMergeWithLoserTree() throws Exception {
+    defaultConf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_USE_LOSER_TREE, true);
+    try {
+      testMerge();
+      testMergeSegments();
+      testWithCustomComparator_RLE_acrossFiles();
+      testWithCustomComparator_RLE_acrossInMemorySegments();
+      testWithCustomComparator_mixedFiles();
+      testWithCustomComparator_allEmptyFiles();
+    } finally {
+      defaultConf.unset(TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_USE_LOSER_TREE);
+    }
+  }
+
+  @Test(timeout = 80000)
+  public void testMergeWithAsyncDecompression() throws Exception {
+    defaultConf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_ASYNC_DECOMPRESS_BUFFERS, 2);
+    codec = new CompressionCodecFactory(defaultConf)
+        .getCodecByClassName("org.apache.hadoop.io.compress.DefaultCodec");
+    try {
+      testMerge();
+      // with compressed blocks
+      defaultConf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_BLOCK_SIZE, 512);
+      testMerge();
+    } finally {
+      codec = null;
+      defaultConf.unset(TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_ASYNC_DECOMPRESS_BUFFERS);
+      defaultConf.unset(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_BLOCK_SIZE);
+    }
+  }
+
   private Path createIFileWithTextData(List<String> data) throws IOException {
     Path path = new Path(workDir + "/src", "data_" + System.nanoTime() + ".out");
     FSDataOutputStream out = localFs.create(path);
@@ -321,6 +361,84 @@ public class TestTezMerger {
 
   }
 
+  @Test(timeout = 5000)
+  public void testWithCustomComparator_RLE_acrossInMemorySegments() throws Exception {
+    List<TezMerger.Segment> segments = Lists.newLinkedList();
+    List<String> data = Lists.newLinkedList();
+
+    LOG.info("Test with custom comparator with RLE spanning across in-memory segments");
+
+    // keys of in-memory segments are referenced in place for the RLE checks, make sure they
+    // are still right across segment boundaries and with closed segments
+    data.add("0");
+    data.add("0");
+    data.add("1");
+    segments.add(createInMemorySegmentWithTextData(data));
+
+    data.clear();
+    data.add("1");
+    data.add("2");
+    segments.add(createInMemorySegmentWithTextData(data));
+
+    data.clear();
+    data.add("2");
+    data.add("3");
+    Path diskFile = createIFileWithTextData(data);
+    segments.add(new TezMerger.Segment(localFs, diskFile, 0, localFs.getFileStatus(diskFile)
+        .getLen(), null, false, 1024, 1024, false, null));
+
+    data.clear();
+    data.add("3");
+    data.add("3");
+    segments.add(createInMemorySegmentWithTextData(data));
+
+    TezRawKeyValueIterator records = TezMerger.merge(defaultConf, localFs, Text.class,
+        Text.class, segments, 10, new Path(workDir, "tmp_" + System.nanoTime()),
+        new CustomComparator(), new Reporter(), null, null, null, new Progress());
+
+    String[][] expectedResult =
+        {
+            //formatting intentionally
+            { "0", DIFF_KEY },
+              { "0", SAME_KEY },
+            { "1", DIFF_KEY },
+              { "1", SAME_KEY },
+            { "2", DIFF_KEY },
+              { "2", SAME_KEY },
+            { "3", DIFF_KEY },
+              { "3", SAME_KEY },
+              { "3", SAME_KEY }
+        };
+
+    verify(records, expectedResult);
+  }
+
+  private TezMerger.Segment createInMemorySegmentWithTextData(List<String> data)
+      throws IOException {
+    BoundedByteArrayOutputStream stream = new BoundedByteArrayOutputStream(10000);
+    InMemoryWriter writer = new InMemoryWriter(stream);
+    DataOutputBuffer k = new DataOutputBuffer();
+    DataOutputBuffer v = new DataOutputBuffer();
+    DataInputBuffer key = new DataInputBuffer();
+    DataInputBuffer value = new DataInputBuffer();
+    String prev = null;
+    for (String keyString : data) {
+      k.reset();
+      v.reset();
+      new Text(keyString).write(k);
+      new Text(keyString + "_" + System.nanoTime()).write(v);
+      key.reset(k.getData(), 0, k.getLength());
+      value.reset(v.getData(), 0, v.getLength());
+      // write repeated keys with RLE, the way the in-memory merges do
+      writer.append(keyString.equals(prev) ? IFile.REPEAT_KEY : key, value);
+      prev = keyString;
+    }
+    writer.close();
+    InMemoryReader reader =
+        new InMemoryReader(merger, null, stream.getBuffer(), 0, stream.getLimit());
+    return new TezMerger.Segment(reader, true, null);
+  }
+
   @Test(timeout = 5000)
   public void testWithCustomComparator_mixedFiles() throws Exception {
     List<Path> pathList = new LinkedList<Path>();
@@ -603,13 +721,18 @@ public class TestTezMerger {
     //Merge datasets
     TezMerger merger = new TezMerger();
     TezRawKeyValueIterator records = merger.merge(defaultConf, localFs, IntWritable.class,
-        LongWritable.class, null, false, 0, 1024, pathList.toArray(new Path[pathList.size()]),
+        LongWritable.class, codec, false, 0, 1024, pathList.toArray(new Path[pathList.size()]),
         true, mergeFactor, new Path(workDir, "tmp_" + System.nanoTime()),
         ((rc == null) ? comparator : rc), new Reporter(), null, null,
         null,
         new Progress());
 
     verifyData(records);
+    ExecutorService asyncDecompressPool = ((TezMerger.MergeQueue) records).asyncDecompressPool;
+    records.close();
+    // the threads decompressing ahead of the merge are stopped with it
+    assertTrue(asyncDecompressPool == null || asyncDecompressPool.isShutdown());
+    assertNull(((TezMerger.MergeQueue) records).asyncDecompressPool);
     verificationDataSet.clear();
   }
 
@@ -708,6 +831,10 @@ public class TestTezMerger {
     //Verify the merged data is correct
     verifyData(records);
 
+    assertEquals(defaultConf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_USE_LOSER_TREE,
+        TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_USE_LOSER_TREE_DEFAULT),
+        mergeQueue.loserTree != null);
+
     //ensure disk buffers are used
     int diskBufLen = mergeQueue.diskIFileValue.getLength();
     assertTrue(diskBufLen + " disk buf length should be > 0", (hasDiskSegments == diskBufLen > 0));
@@ -771,7 +898,7 @@ public class TestTezMerger {
     FSDataOutputStream out = localFs.create(path);
     //create IFile with RLE
     IFile.Writer writer = new IFile.Writer(defaultConf, out, IntWritable.class
-        , LongWritable.class, null, null, null, true);
+        , LongWritable.class, codec, null, null, true);
 
     for (Integer key : dataSet.keySet()) {
       for (Long value : dataSet.get(key)) {
@@ -18,6 +18,7 @@
 
 package org.apache.tez.runtime.library.common.sort.impl.dflt;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
@@ -38,10 +39,13 @@ import com.google.protobuf.ByteString;
 import org.apache.commons.lang.RandomStringUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.util.StringInterner;
 import org.apache.tez.common.TezRuntimeFrameworkConfigs;
@@ -55,12 +59,19 @@ import org.apache.tez.runtime.api.ExecutionContext;
 import org.apache.tez.runtime.api.MemoryUpdateCallback;
 import org.apache.tez.runtime.api.OutputContext;
 import org.apache.tez.runtime.api.OutputStatisticsReporter;
+import org.apache.tez.runtime.api.TaskContext;
 import org.apache.tez.runtime.api.events.CompositeDataMovementEvent;
 import org.apache.tez.runtime.api.impl.ExecutionContextImpl;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.ConfigUtils;
 import org.apache.tez.runtime.library.common.MemoryUpdateCallbackHandler;
+import org.apache.tez.runtime.library.common.combine.Combiner;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
 import org.apache.tez.runtime.library.conf.OrderedPartitionedKVOutputConfig.SorterImpl;
 import org.apache.tez.runtime.library.partitioner.HashPartitioner;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads;
@@ -402,6 +413,136 @@ public class TestDefaultSorter {
     verifyCounters(sorter, context);
   }
 
+  @Test(timeout = 60000)
+  public void testMultiThreadedSort() throws IOException {
+    OutputContext context = createTezOutputContext();
+
+    conf.setLong(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB, 4);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_LEGACY_SORTER_SORT_THREADS, 4);
+    MemoryUpdateCallbackHandler handler = new MemoryUpdateCallbackHandler();
+    context.requestInitialMemory(ExternalSorter.getInitialMemoryRequirement(conf,
+        context.getTotalMemoryAvailableToTask()), handler);
+    DefaultSorter sorter = new DefaultSorter(context, conf, 5, handler.getMemoryAssigned());
+
+    // small records, so that each spill is split across all sort threads
+    writeData(sorter, 300000, 10);
+    assertTrue(sorter.getNumSpills() > 1);
+    verifyCounters(sorter, context);
+    verifyOutput(sorter, 5, 300000);
+  }
+
+  @Test(timeout = 60000)
+  public void testMultiThreadedSortWithCombiner() throws IOException {
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_COMBINER_CLASS,
+        PassThroughCombiner.class.getName());
+    OutputContext context = createTezOutputContext();
+
+    conf.setLong(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB, 4);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_LEGACY_SORTER_SORT_THREADS, 3);
+    MemoryUpdateCallbackHandler handler = new MemoryUpdateCallbackHandler();
+    context.requestInitialMemory(ExternalSorter.getInitialMemoryRequirement(conf,
+        context.getTotalMemoryAvailableToTask()), handler);
+    DefaultSorter sorter = new DefaultSorter(context, conf, 5, handler.getMemoryAssigned());
+
+    writeData(sorter, 200000, 10);
+    assertTrue(sorter.getNumSpills() > 1);
+    verifyCounters(sorter, context);
+    verifyOutput(sorter, 5, 200000);
+  }
+
+  @Test(timeout = 60000)
+  public void testBatchWrites() throws IOException {
+    OutputContext context = createTezOutputContext();
+
+    conf.setLong(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB, 1);
+    MemoryUpdateCallbackHandler handler = new MemoryUpdateCallbackHandler();
+    context.requestInitialMemory(ExternalSorter.getInitialMemoryRequirement(conf,
+        context.getTotalMemoryAvailableToTask()), handler);
+    DefaultSorter sorter = new DefaultSorter(context, conf, 5, handler.getMemoryAssigned());
+
+    HashPartitioner partitioner = new HashPartitioner();
+    int batchSize = 100;
+    Object[] keys = new Object[batchSize];
+    Object[] values = new Object[batchSize];
+    int[] partitions = new int[batchSize];
+    for (int batch = 0; batch < 100; batch++) {
+      for (int i = 0; i < batchSize; i++) {
+        keys[i] = new Text(RandomStringUtils.randomAlphanumeric(100));
+        values[i] = new Text(RandomStringUtils.randomAlphanumeric(100));
+        partitions[i] = partitioner.getPartition(keys[i], values[i], 5);
+      }
+      // batches with and without partitions, skipping the first record
+      if (batch % 2 == 0) {
+        sorter.write(keys, values, partitions, 1, batchSize - 1);
+      } else {
+        sorter.write(keys, values, 1, batchSize - 1);
+      }
+    }
+    partitions[0] = 5;
+    try {
+      sorter.write(keys, values, partitions, 0, 1);
+      fail("Expected an IOException for an illegal partition");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("Illegal partition"));
+    }
+    sorter.flush();
+    sorter.close();
+    assertTrue(sorter.getNumSpills() > 1);
+    verifyCounters(sorter, context);
+    verifyOutput(sorter, 5, 100 * (batchSize - 1));
+  }
+
+  /**
+   * Check that every partition of the final output is sorted, and that no record got lost.
+   */
+  private void verifyOutput(DefaultSorter sorter, int partitions, long numRecords)
+      throws IOException {
+    TezSpillRecord index = new TezSpillRecord(sorter.getFinalIndexFile(), conf);
+    RawComparator comparator = ConfigUtils.getIntermediateOutputKeyComparator(conf);
+    FSDataInputStream in = localFs.open(sorter.getFinalOutputFile());
+    long records = 0;
+    try {
+      for (int i = 0; i < partitions; i++) {
+        TezIndexRecord rec = index.getIndex(i);
+        in.seek(rec.getStartOffset());
+        IFile.Reader reader = new IFile.Reader(in, rec.getPartLength(), null, null, null,
+            false, 0, 4096);
+        DataInputBuffer key = new DataInputBuffer();
+        DataInputBuffer value = new DataInputBuffer();
+        DataOutputBuffer previous = null;
+        while (reader.nextRawKey(key)) {
+          reader.nextRawValue(value);
+          int keyLength = key.getLength() - key.getPosition();
+          if (previous != null) {
+            assertTrue(comparator.compare(previous.getData(), 0, previous.getLength(),
+                key.getData(), key.getPosition(), keyLength) <= 0);
+          } else {
+            previous = new DataOutputBuffer();
+          }
+          previous.reset();
+          previous.write(key.getData(), key.getPosition(), keyLength);
+          records++;
+        }
+      }
+    } finally {
+      in.close();
+    }
+    assertEquals(numRecords, records);
+  }
+
+  public static class PassThroughCombiner implements Combiner {
+    public PassThroughCombiner(TaskContext context) {
+    }
+
+    @Override
+    public void combine(TezRawKeyValueIterator rawIter, IFile.Writer writer)
+        throws InterruptedException, IOException {
+      while (rawIter.next()) {
+        writer.append(rawIter.getKey(), rawIter.getValue());
+      }
+    }
+  }
+
   private void verifyCounters(DefaultSorter sorter, OutputContext context) {
     TezCounter numShuffleChunks = context.getCounters().findCounter(TaskCounter.SHUFFLE_CHUNK_COUNT);
     TezCounter additionalSpills = context.getCounters().findCounter(TaskCounter.ADDITIONAL_SPILL_COUNT);
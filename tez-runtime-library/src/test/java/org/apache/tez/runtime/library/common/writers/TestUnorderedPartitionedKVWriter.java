@@ -21,6 +21,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.eq;
@@ -33,6 +34,7 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.BitSet;
@@ -58,6 +60,8 @@ import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
 import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.yarn.api.records.ApplicationId;
 import org.apache.tez.common.TezCommonUtils;
@@ -79,6 +83,7 @@ import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFile
 import org.apache.tez.runtime.library.partitioner.HashPartitioner;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataMovementEventPayloadProto;
+import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataProto;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -170,6 +175,224 @@ public class TestUnorderedPartitionedKVWriter {
     assertEquals(1, kvWriter.numInitializedBuffers);
   }
 
+  @Test(timeout = 10000)
+  public void testSpillWaitBuckets() {
+    assertEquals(0, UnorderedPartitionedKVWriter.getSpillWaitBucket(-1));
+    assertEquals(0, UnorderedPartitionedKVWriter.getSpillWaitBucket(0));
+    assertEquals(1, UnorderedPartitionedKVWriter.getSpillWaitBucket(1));
+    assertEquals(2, UnorderedPartitionedKVWriter.getSpillWaitBucket(3));
+    assertEquals(11, UnorderedPartitionedKVWriter.getSpillWaitBucket(1024));
+    assertEquals(31, UnorderedPartitionedKVWriter.getSpillWaitBucket(Long.MAX_VALUE));
+    assertEquals("<=0ms", UnorderedPartitionedKVWriter.getSpillWaitBucketName(0));
+    assertEquals("<=1023ms", UnorderedPartitionedKVWriter.getSpillWaitBucketName(10));
+  }
+
+  @Test(timeout = 10000)
+  public void testSpillFailureWhileWaitingForBuffer() throws IOException {
+    ApplicationId appId = ApplicationId.newInstance(10000000, 1);
+    TezCounters counters = new TezCounters();
+    String uniqueId = UUID.randomUUID().toString();
+    OutputContext outputContext = createMockOutputContext(counters, appId, uniqueId);
+    Configuration conf = createConfiguration(outputContext, IntWritable.class, LongWritable.class,
+        true, -1);
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_CODEC, FailingCodec.class.getName());
+
+    // 2 buffers, both in flight once the second one is full. The writer has to fail once the
+    // spills do, instead of waiting for a buffer forever.
+    UnorderedPartitionedKVWriter kvWriter = new UnorderedPartitionedKVWriterForTest(outputContext,
+        conf, 10, 2048);
+    IntWritable intWritable = new IntWritable();
+    LongWritable longWritable = new LongWritable();
+    try {
+      for (int i = 0; i < 1000; i++) {
+        intWritable.set(i);
+        longWritable.set(i);
+        kvWriter.write(intWritable, longWritable);
+      }
+      fail("Expected the write to fail once the spills failed");
+    } catch (IOException e) {
+      // expected
+    }
+    verify(outputContext, atLeast(1)).fatalError(any(Throwable.class), any(String.class));
+  }
+
+  @Test(timeout = 10000)
+  public void testDataViaEvents() throws IOException, InterruptedException {
+    // partitioned, and single partition without buffers
+    dataViaEventsTest(10, 2048, 65536, true);
+    dataViaEventsTest(10, 2048, 16, false);
+    dataViaEventsTest(1, 0, 65536, true);
+    dataViaEventsTest(1, 0, 16, false);
+  }
+
+  private void dataViaEventsTest(int numPartitions, long availableMemory, int maxSize,
+      boolean expectData) throws IOException, InterruptedException {
+    ApplicationId appId = ApplicationId.newInstance(10000000, 1);
+    TezCounters counters = new TezCounters();
+    String uniqueId = UUID.randomUUID().toString();
+    OutputContext outputContext = createMockOutputContext(counters, appId, uniqueId);
+    Configuration conf = createConfiguration(outputContext, IntWritable.class, LongWritable.class,
+        shouldCompress, -1);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_TRANSFER_DATA_VIA_EVENTS_ENABLED, true);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_TRANSFER_DATA_VIA_EVENTS_MAX_SIZE, maxSize);
+    CompressionCodec codec = null;
+    if (shouldCompress) {
+      codec = new DefaultCodec();
+      ((Configurable) codec).setConf(conf);
+    }
+
+    UnorderedPartitionedKVWriter kvWriter = new UnorderedPartitionedKVWriterForTest(outputContext,
+        conf, numPartitions, availableMemory);
+    // fits within a single buffer, with partition 0 left empty when partitioned
+    int numRecords = 0;
+    IntWritable intWritable = new IntWritable();
+    LongWritable longWritable = new LongWritable();
+    for (int i = 0; i < 30; i++) {
+      if (numPartitions > 1 && i % numPartitions == 0) {
+        continue;
+      }
+      intWritable.set(i);
+      longWritable.set(i);
+      kvWriter.write(intWritable, longWritable);
+      numRecords++;
+    }
+    List<Event> events = kvWriter.close();
+    verify(outputContext, never()).fatalError(any(Throwable.class), any(String.class));
+
+    assertEquals(1, events.size());
+    CompositeDataMovementEvent cdme = (CompositeDataMovementEvent) events.get(0);
+    DataMovementEventPayloadProto eventProto = DataMovementEventPayloadProto.parseFrom(
+        ByteString.copyFrom(cdme.getUserPayload()));
+    if (!expectData) {
+      assertEquals(0, eventProto.getDataCount());
+      assertTrue(localFs.exists(kvWriter.finalOutPath));
+      assertTrue(localFs.exists(kvWriter.finalIndexPath));
+      return;
+    }
+    assertEquals(0, counters.findCounter(TaskCounter.OUTPUT_BYTES_PHYSICAL).getValue());
+    if (numPartitions > 1) {
+      assertNull(kvWriter.finalOutPath);
+    } else {
+      assertFalse(localFs.exists(kvWriter.finalOutPath));
+    }
+    assertEquals(numPartitions, eventProto.getDataCount());
+    DataInputBuffer keyBuffer = new DataInputBuffer();
+    DataInputBuffer valBuffer = new DataInputBuffer();
+    IntWritable keyDeser = new IntWritable();
+    LongWritable valDeser = new LongWritable();
+    int numRecordsRead = 0;
+    for (int i = 0; i < numPartitions; i++) {
+      DataProto data = eventProto.getData(i);
+      if (numPartitions > 1 && i == 0) {
+        assertFalse(data.hasData());
+        continue;
+      }
+      IFile.Reader reader = new IFile.Reader(data.getData().newInput(),
+          data.getCompressedLength(), codec, null, null, false, 0, -1);
+      while (reader.nextRawKey(keyBuffer)) {
+        reader.nextRawValue(valBuffer);
+        keyDeser.readFields(keyBuffer);
+        valDeser.readFields(valBuffer);
+        assertEquals(i, keyDeser.get() % numPartitions);
+        assertEquals(keyDeser.get(), valDeser.get());
+        numRecordsRead++;
+      }
+      reader.close();
+    }
+    assertEquals(numRecords, numRecordsRead);
+  }
+
+  @Test(timeout = 10000)
+  public void testMultipleSpills_WithoutFinalMerge() throws IOException, InterruptedException {
+    PartitionerForTest partitioner = new PartitionerForTest();
+    ApplicationId appId = ApplicationId.newInstance(10000000, 1);
+    TezCounters counters = new TezCounters();
+    String uniqueId = UUID.randomUUID().toString();
+    OutputContext outputContext = createMockOutputContext(counters, appId, uniqueId);
+    Configuration conf = createConfiguration(outputContext, IntWritable.class, LongWritable.class,
+        shouldCompress, -1);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_ENABLE_FINAL_MERGE_IN_OUTPUT, false);
+    CompressionCodec codec = null;
+    if (shouldCompress) {
+      codec = new DefaultCodec();
+      ((Configurable) codec).setConf(conf);
+    }
+
+    int numOutputs = 10;
+    UnorderedPartitionedKVWriter kvWriter = new UnorderedPartitionedKVWriterForTest(outputContext,
+        conf, numOutputs, 2048);
+    Multimap<Integer, Long> expectedValues = LinkedListMultimap.create();
+    IntWritable intWritable = new IntWritable();
+    LongWritable longWritable = new LongWritable();
+    for (int i = 0; i < 200; i++) {
+      // partition 2 is left empty
+      if (i % numOutputs == 2) {
+        continue;
+      }
+      intWritable.set(i);
+      longWritable.set(i);
+      kvWriter.write(intWritable, longWritable);
+      expectedValues.put(i, (long) i);
+    }
+    List<Event> events = kvWriter.close();
+    verify(outputContext, never()).fatalError(any(Throwable.class), any(String.class));
+
+    int numSpills = kvWriter.numSpills.get();
+    assertTrue(numSpills > 1);
+    assertEquals(numSpills, events.size());
+    // the spills are not merged, and the output file is never written
+    assertNull(kvWriter.finalOutPath);
+    assertEquals(0, counters.findCounter(TaskCounter.ADDITIONAL_SPILLS_BYTES_WRITTEN).getValue());
+    assertEquals(0, counters.findCounter(TaskCounter.ADDITIONAL_SPILLS_BYTES_READ).getValue());
+    assertTrue(counters.findCounter(TaskCounter.OUTPUT_BYTES_PHYSICAL).getValue() > 0);
+
+    TezTaskOutput taskOutput = new TezTaskOutputFiles(conf, uniqueId);
+    DataInputBuffer keyBuffer = new DataInputBuffer();
+    DataInputBuffer valBuffer = new DataInputBuffer();
+    IntWritable keyDeser = new IntWritable();
+    LongWritable valDeser = new LongWritable();
+    for (int i = 0; i < numSpills; i++) {
+      CompositeDataMovementEvent cdme = (CompositeDataMovementEvent) events.get(i);
+      assertEquals(0, cdme.getSourceIndexStart());
+      assertEquals(numOutputs, cdme.getCount());
+      DataMovementEventPayloadProto eventProto = DataMovementEventPayloadProto.parseFrom(
+          ByteString.copyFrom(cdme.getUserPayload()));
+      assertEquals(i, eventProto.getSpillId());
+      assertEquals(i == numSpills - 1, eventProto.getLastEvent());
+      assertEquals(uniqueId + "_" + i, eventProto.getPathComponent());
+      assertEquals(HOST_STRING, eventProto.getHost());
+      BitSet emptyPartitionBits = TezUtilsInternal.fromByteArray(
+          TezCommonUtils.decompressByteStringToByteArray(eventProto.getEmptyPartitions()));
+      assertTrue(emptyPartitionBits.get(2));
+
+      Path spillPath = taskOutput.getSpillFileForWrite(i, 10);
+      Path spillIndexPath = taskOutput.getSpillIndexFileForWrite(i, 10);
+      assertTrue(localFs.exists(spillPath));
+      assertTrue(localFs.exists(spillIndexPath));
+      TezSpillRecord spillRecord = new TezSpillRecord(spillIndexPath, conf);
+      for (int p = 0; p < numOutputs; p++) {
+        TezIndexRecord indexRecord = spillRecord.getIndex(p);
+        if (indexRecord.getPartLength() == 0) {
+          assertTrue(emptyPartitionBits.get(p));
+          continue;
+        }
+        FSDataInputStream inStream = localFs.open(spillPath);
+        inStream.seek(indexRecord.getStartOffset());
+        IFile.Reader reader = new IFile.Reader(inStream, indexRecord.getPartLength(), codec, null,
+            null, false, 0, -1);
+        while (reader.nextRawKey(keyBuffer)) {
+          reader.nextRawValue(valBuffer);
+          keyDeser.readFields(keyBuffer);
+          valDeser.readFields(valBuffer);
+          assertEquals(p, partitioner.getPartition(keyDeser, valDeser, numOutputs));
+          assertTrue(expectedValues.remove(keyDeser.get(), valDeser.get()));
+        }
+        inStream.close();
+      }
+    }
+    assertEquals(0, expectedValues.size());
+  }
+
   @Test(timeout = 10000)
   public void testNoSpill() throws IOException, InterruptedException {
     baseTest(10, 10, null, shouldCompress);
@@ -200,6 +423,11 @@ public class TestUnorderedPartitionedKVWriter {
     baseTest(10, 1, null, shouldCompress);
   }
 
+  @Test(timeout = 10000)
+  public void testMultipleSpills_WithBatches() throws IOException, InterruptedException {
+    baseTest(200, 10, Sets.newHashSet(2, 5), shouldCompress, true);
+  }
+
 
   @Test(timeout = 10000)
   public void testRandomText() throws IOException, InterruptedException {
@@ -603,6 +831,11 @@ public class TestUnorderedPartitionedKVWriter {
 
   private void baseTest(int numRecords, int numPartitions, Set<Integer> skippedPartitions,
       boolean shouldCompress) throws IOException, InterruptedException {
+    baseTest(numRecords, numPartitions, skippedPartitions, shouldCompress, false);
+  }
+
+  private void baseTest(int numRecords, int numPartitions, Set<Integer> skippedPartitions,
+      boolean shouldCompress, boolean batchWrites) throws IOException, InterruptedException {
     PartitionerForTest partitioner = new PartitionerForTest();
     ApplicationId appId = ApplicationId.newInstance(10000000, 1);
     TezCounters counters = new TezCounters();
@@ -635,6 +868,9 @@ public class TestUnorderedPartitionedKVWriter {
 
     IntWritable intWritable = new IntWritable();
     LongWritable longWritable = new LongWritable();
+    Object[] keys = new Object[numRecords];
+    Object[] values = new Object[numRecords];
+    int[] partitions = new int[numRecords];
     for (int i = 0; i < numRecords; i++) {
       intWritable.set(i);
       longWritable.set(i);
@@ -643,9 +879,27 @@ public class TestUnorderedPartitionedKVWriter {
         continue;
       }
       expectedValues.get(partition).put(intWritable.get(), longWritable.get());
-      kvWriter.write(intWritable, longWritable);
+      if (batchWrites) {
+        keys[numRecordsWritten] = new IntWritable(i);
+        values[numRecordsWritten] = new LongWritable(i);
+        partitions[numRecordsWritten] = partition;
+      } else {
+        kvWriter.write(intWritable, longWritable);
+      }
       numRecordsWritten++;
     }
+    if (batchWrites) {
+      // batches with and without partitions
+      int batchSize = 7;
+      for (int i = 0; i < numRecordsWritten; i += batchSize) {
+        int length = Math.min(batchSize, numRecordsWritten - i);
+        if ((i / batchSize) % 2 == 0) {
+          kvWriter.write(keys, values, partitions, i, length);
+        } else {
+          kvWriter.write(keys, values, i, length);
+        }
+      }
+    }
     List<Event> events = kvWriter.close();
 
     int recordsPerBuffer = sizePerBuffer / sizePerRecordWithOverhead;
@@ -706,6 +960,16 @@ public class TestUnorderedPartitionedKVWriter {
     }
     assertTrue(additionalSpillBytesWritten == additionalSpillBytesRead);
     assertEquals(numExpectedSpills, numAdditionalSpillsCounter.getValue());
+    // Waits for a buffer, at most one per spill, and one on close
+    assertTrue(counters.findCounter(TaskCounter.OUTPUT_SPILL_WAITS).getValue()
+        <= numExpectedSpills + 1);
+    // every wait is counted in the histogram
+    long histogramWaits = 0;
+    for (TezCounter counter : counters.getGroup(
+        UnorderedPartitionedKVWriter.SPILL_WAIT_HISTOGRAM_GROUP)) {
+      histogramWaits += counter.getValue();
+    }
+    assertEquals(counters.findCounter(TaskCounter.OUTPUT_SPILL_WAITS).getValue(), histogramWaits);
 
     BitSet emptyPartitionBits = null;
     // Verify the event returned
@@ -858,6 +1122,14 @@ public class TestUnorderedPartitionedKVWriter {
     return conf;
   }
 
+  public static class FailingCodec extends DefaultCodec {
+    @Override
+    public CompressionOutputStream createOutputStream(OutputStream out, Compressor compressor)
+        throws IOException {
+      throw new IOException("Failing spill for test");
+    }
+  }
+
   public static class PartitionerForTest implements Partitioner {
     @Override
     public int getPartition(Object key, Object value, int numPartitions) {
@@ -100,8 +100,7 @@ public class TestUnorderedPartitionedKVOutputConfig {
     // Verify programmatic API usage
     assertEquals(true, conf.getBoolean(TezRuntimeConfiguration
         .TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED, false));
-    //unorderedpartitioned writer ignores this value.
-    assertEquals(false, conf.getBoolean(TezRuntimeConfiguration
+    assertEquals(true, conf.getBoolean(TezRuntimeConfiguration
         .TEZ_RUNTIME_ENABLE_FINAL_MERGE_IN_OUTPUT, false));
     assertEquals(1111, conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_UNORDERED_OUTPUT_BUFFER_SIZE_MB, 0));
     assertEquals("KEY", conf.get(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_CLASS, ""));
@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMappedFileInputStream {
+
+  private static final Configuration conf = new Configuration();
+  private FileSystem localFs;
+  private Path workDir;
+
+  @Before
+  public void setUp() throws IOException {
+    localFs = FileSystem.getLocal(conf);
+    workDir = new Path(new Path(System.getProperty("test.build.data", "/tmp")),
+        TestMappedFileInputStream.class.getName()).makeQualified(localFs.getUri(),
+        localFs.getWorkingDirectory());
+    localFs.delete(workDir, true);
+    localFs.mkdirs(workDir);
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    localFs.delete(workDir, true);
+  }
+
+  private File createFile(int length) throws IOException {
+    File file = new File(new Path(workDir, "data").toUri().getPath());
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      for (int i = 0; i < length; i++) {
+        out.write(i);
+      }
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  @Test(timeout = 5000)
+  public void testReadAcrossWindows() throws IOException {
+    File file = createFile(100);
+    // region [10, 90) read through windows of 16 bytes
+    InputStream in = new MappedFileInputStream(file, 10, 80, 16);
+    assertEquals(80, in.available());
+    assertEquals(10, in.read());
+
+    byte[] buf = new byte[40];
+    int read = 0;
+    while (read < buf.length) {
+      int n = in.read(buf, read, buf.length - read);
+      // a read does not cross the end of a window
+      assertFalse(n > 16);
+      read += n;
+    }
+    for (int i = 0; i < buf.length; i++) {
+      assertEquals(11 + i, buf[i]);
+    }
+
+    // skip within the window and beyond it
+    assertEquals(5, in.skip(5));
+    assertEquals(56, in.read());
+    assertEquals(20, in.skip(20));
+    assertEquals(77, in.read());
+    assertEquals(12, in.skip(100));
+    assertEquals(0, in.available());
+    assertEquals(-1, in.read());
+    assertEquals(-1, in.read(buf, 0, buf.length));
+    in.close();
+
+    try {
+      new MappedFileInputStream(file, 50, 51, 16);
+      fail("Expected an IOException for a region beyond the end of the file");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testReadIFile() throws IOException {
+    Path path = new Path(workDir, "ifile.out");
+    FSDataOutputStream out = localFs.create(path);
+    // data before the segment, as in a spill file holding several partitions
+    out.write(new byte[7]);
+    long offset = out.getPos();
+    IFile.Writer writer = new IFile.Writer(conf, out, Text.class, Text.class, null, null, null);
+    for (int i = 0; i < 100; i++) {
+      writer.append(new Text("key" + i), new Text("value" + i));
+    }
+    writer.close();
+    long length = writer.getCompressedLength();
+    out.write(new byte[7]);
+    out.close();
+
+    IFile.Reader reader = new IFile.Reader(
+        new MappedFileInputStream(localFs, path, offset, length), length, null, null, null,
+        false, 0, 1024);
+    DataInputBuffer key = new DataInputBuffer();
+    DataInputBuffer value = new DataInputBuffer();
+    Text text = new Text();
+    int records = 0;
+    while (reader.nextRawKey(key)) {
+      reader.nextRawValue(value);
+      text.readFields(key);
+      assertEquals("key" + records, text.toString());
+      text.readFields(value);
+      assertEquals("value" + records, text.toString());
+      records++;
+    }
+    reader.close();
+    assertEquals(100, records);
+  }
+}
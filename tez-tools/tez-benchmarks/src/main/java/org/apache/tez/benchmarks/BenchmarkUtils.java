@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.UUID;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.OutputContext;
+import org.apache.tez.runtime.api.OutputStatisticsReporter;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+
+/**
+ * Shared setup for the benchmarks: configuration, a stub {@link OutputContext} and in-memory
+ * IFile segments.
+ */
+public final class BenchmarkUtils {
+
+  public static final String CODEC_NONE = "none";
+
+  private BenchmarkUtils() {
+  }
+
+  public static Configuration createConf(Path workDir) {
+    Configuration conf = new Configuration();
+    conf.set("fs.defaultFS", "file:///");
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_CLASS, BytesWritable.class.getName());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_VALUE_CLASS, BytesWritable.class.getName());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_PARTITIONER_CLASS,
+        FirstBytePartitioner.class.getName());
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_ENABLE_FINAL_MERGE_IN_OUTPUT, true);
+    conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS, workDir.toString());
+    return conf;
+  }
+
+  public static Path createWorkDir(FileSystem fs, String name) throws IOException {
+    Path workDir = new Path(new Path(System.getProperty("java.io.tmpdir")),
+        "tez-benchmarks-" + name + "-" + UUID.randomUUID())
+        .makeQualified(fs.getUri(), fs.getWorkingDirectory());
+    fs.mkdirs(workDir);
+    return workDir;
+  }
+
+  public static OutputContext createOutputContext(TezCounters counters, Path workDir) {
+    OutputContext outputContext = mock(OutputContext.class);
+    String uniqueId = UUID.randomUUID().toString();
+    doReturn(mock(OutputStatisticsReporter.class)).when(outputContext).getStatisticsReporter();
+    doReturn(counters).when(outputContext).getCounters();
+    doReturn("benchmark").when(outputContext).getDestinationVertexName();
+    doReturn("benchmark").when(outputContext).getTaskVertexName();
+    doReturn(uniqueId).when(outputContext).getUniqueIdentifier();
+    doReturn(new String[] { new Path(workDir, "outDir_" + uniqueId).toString() })
+        .when(outputContext).getWorkDirs();
+    return outputContext;
+  }
+
+  public static CompressionCodec createCodec(String codecClass, Configuration conf)
+      throws ClassNotFoundException {
+    if (CODEC_NONE.equals(codecClass)) {
+      return null;
+    }
+    return (CompressionCodec) ReflectionUtils.newInstance(conf.getClassByName(codecClass), conf);
+  }
+
+  /**
+   * Serialize the given records as a complete IFile (header, records, EOF markers and checksum)
+   * held in memory.
+   */
+  public static byte[] writeIFile(Configuration conf, BytesWritable[] keys,
+      BytesWritable[] values, CompressionCodec codec, boolean sort) throws IOException {
+    Integer[] order = new Integer[keys.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    if (sort) {
+      final BytesWritable[] sortKeys = keys;
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer o1, Integer o2) {
+          return sortKeys[o1].compareTo(sortKeys[o2]);
+        }
+      });
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    FSDataOutputStream out = new FSDataOutputStream(bytes, null);
+    IFile.Writer writer = new IFile.Writer(conf, out, BytesWritable.class, BytesWritable.class,
+        codec, null, null);
+    for (int i : order) {
+      writer.append(keys[i], values[i]);
+    }
+    writer.close();
+    out.close();
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.tez.runtime.library.common.comparator.TezBytesComparator;
+import org.apache.tez.runtime.library.utils.BufferUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Raw key comparison cost of the Tez FastByteComparisons (through {@link BufferUtils}) and of the
+ * comparators commonly configured for intermediate keys. Each operation is one comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ComparatorBenchmark {
+
+  private static final int NUM_KEYS = 4096;
+
+  @Param({"8", "32", "256"})
+  public int keyLength;
+
+  /**
+   * Length of the prefix shared by all keys. A long shared prefix models heavily duplicated or
+   * composite keys where comparisons run deep into the key.
+   */
+  @Param({"0", "16"})
+  public int sharedPrefix;
+
+  private byte[][] raw;
+  private DataOutputBuffer[] rawBuffers;
+  private byte[][] bytesWritables;
+  private byte[][] texts;
+
+  private final RawComparator bytesWritableComparator =
+      WritableComparator.get(BytesWritable.class);
+  private final RawComparator tezBytesComparator = new TezBytesComparator();
+  private final RawComparator textComparator = WritableComparator.get(Text.class);
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    Random random = new Random(0xBEEF);
+    int prefix = Math.min(sharedPrefix, keyLength);
+    byte[] common = new byte[prefix];
+    random.nextBytes(common);
+
+    raw = new byte[NUM_KEYS][];
+    rawBuffers = new DataOutputBuffer[NUM_KEYS];
+    bytesWritables = new byte[NUM_KEYS][];
+    texts = new byte[NUM_KEYS][];
+    DataOutputBuffer out = new DataOutputBuffer();
+    char[] chars = new char[keyLength];
+    for (int i = 0; i < NUM_KEYS; i++) {
+      byte[] key = new byte[keyLength];
+      random.nextBytes(key);
+      System.arraycopy(common, 0, key, 0, prefix);
+      raw[i] = key;
+      rawBuffers[i] = new DataOutputBuffer(keyLength);
+      rawBuffers[i].write(key);
+
+      out.reset();
+      new BytesWritable(key).write(out);
+      bytesWritables[i] = copy(out);
+
+      for (int j = 0; j < keyLength; j++) {
+        chars[j] = (char) ('a' + ((key[j] & 0xff) % 26));
+      }
+      out.reset();
+      new Text(new String(chars)).write(out);
+      texts[i] = copy(out);
+    }
+  }
+
+  private static byte[] copy(DataOutputBuffer out) {
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, out.getLength());
+    return bytes;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_KEYS - 1)
+  public int fastByteComparisons() {
+    int result = 0;
+    for (int i = 1; i < NUM_KEYS; i++) {
+      result += BufferUtils.compare(rawBuffers[i - 1], rawBuffers[i]);
+    }
+    return result;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_KEYS - 1)
+  public int tezBytesComparator() {
+    return compareAll(tezBytesComparator, raw);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_KEYS - 1)
+  public int bytesWritableComparator() {
+    return compareAll(bytesWritableComparator, bytesWritables);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_KEYS - 1)
+  public int textComparator() {
+    return compareAll(textComparator, texts);
+  }
+
+  private static int compareAll(RawComparator comparator, byte[][] keys) {
+    int result = 0;
+    for (int i = 1; i < keys.length; i++) {
+      result += comparator.compare(keys[i - 1], 0, keys[i - 1].length,
+          keys[i], 0, keys[i].length);
+    }
+    return result;
+  }
+}
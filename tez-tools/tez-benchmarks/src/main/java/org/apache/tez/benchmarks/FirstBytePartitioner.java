@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.tez.runtime.library.api.Partitioner;
+
+/**
+ * Partitions {@link BytesWritable} keys on their first byte, which {@link KVDistribution} uses as a
+ * partition hint.
+ */
+public class FirstBytePartitioner implements Partitioner {
+
+  @Override
+  public int getPartition(Object key, Object value, int numPartitions) {
+    BytesWritable bytes = (BytesWritable) key;
+    if (bytes.getLength() == 0) {
+      return 0;
+    }
+    return (bytes.getBytes()[0] & 0xff) % numPartitions;
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Serialization and deserialization throughput of {@link IFile.Writer} and {@link IFile.Reader}
+ * over in-memory streams, so that only the IFile code path and the codec are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IFileBenchmark {
+
+  @Param({"SMALL_KEYS", "WIDE_VALUES", "HEAVY_DUPLICATES"})
+  public KVDistribution distribution;
+
+  @Param({BenchmarkUtils.CODEC_NONE, "org.apache.hadoop.io.compress.DefaultCodec"})
+  public String codecClass;
+
+  /** {@link TezRuntimeConfiguration#TEZ_RUNTIME_COMPRESS_BLOCK_SIZE}, 0 for a single stream. */
+  @Param({"0", "65536"})
+  public int compressBlockSize;
+
+  @Param({"100000"})
+  public int numRecords;
+
+  @Param({"false", "true"})
+  public boolean readAhead;
+
+  private KVDistribution.Records records;
+  private Configuration conf;
+  private CompressionCodec codec;
+  private byte[] ifile;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    records = distribution.generate(numRecords, 1, 0xBEEF);
+    conf = BenchmarkUtils.createConf(new Path(System.getProperty("java.io.tmpdir")));
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_BLOCK_SIZE, compressBlockSize);
+    codec = BenchmarkUtils.createCodec(codecClass, conf);
+    ifile = BenchmarkUtils.writeIFile(conf, records.getKeys(), records.getValues(), codec, true);
+  }
+
+  @Benchmark
+  public int write(ThroughputCounters counters) throws IOException {
+    byte[] written = BenchmarkUtils.writeIFile(conf, records.getKeys(), records.getValues(),
+        codec, false);
+    counters.add(records.size(), records.getRawBytes());
+    return written.length;
+  }
+
+  @Benchmark
+  public void read(ThroughputCounters counters, Blackhole blackhole) throws IOException {
+    IFile.Reader reader = new IFile.Reader(new ByteArrayInputStream(ifile), ifile.length, codec,
+        null, null, readAhead, TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_READAHEAD_BYTES_DEFAULT,
+        TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_BUFFER_SIZE_DEFAULT);
+    DataInputBuffer key = new DataInputBuffer();
+    DataInputBuffer value = new DataInputBuffer();
+    long count = 0;
+    while (reader.nextRawKey(key)) {
+      reader.nextRawValue(value);
+      blackhole.consume(key);
+      blackhole.consume(value);
+      count++;
+    }
+    reader.close();
+    counters.add(count, records.getRawBytes());
+  }
+}
@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.util.Random;
+
+import org.apache.hadoop.io.BytesWritable;
+
+/**
+ * Synthetic key/value shapes used by the benchmarks.
+ *
+ * The first byte of every generated key is a partition hint which is picked up by
+ * {@link FirstBytePartitioner}, so that the partition skew can be controlled independently of the
+ * key contents.
+ */
+public enum KVDistribution {
+
+  /** Short keys and values; dominated by per-record overheads. */
+  SMALL_KEYS(8, 8, 0, 0.0f),
+  /** Moderate keys with 1 KB values; dominated by byte copies. */
+  WIDE_VALUES(16, 1024, 0, 0.0f),
+  /** A small set of distinct keys; exercises RLE and comparator early-outs. */
+  HEAVY_DUPLICATES(16, 32, 64, 0.0f),
+  /** 80% of the records go to partition 0. */
+  SKEWED_PARTITIONS(16, 64, 0, 0.8f);
+
+  private final int keyLength;
+  private final int valueLength;
+  private final int distinctKeys;
+  private final float hotPartitionFraction;
+
+  KVDistribution(int keyLength, int valueLength, int distinctKeys, float hotPartitionFraction) {
+    this.keyLength = keyLength;
+    this.valueLength = valueLength;
+    this.distinctKeys = distinctKeys;
+    this.hotPartitionFraction = hotPartitionFraction;
+  }
+
+  public int getKeyLength() {
+    return keyLength;
+  }
+
+  public int getValueLength() {
+    return valueLength;
+  }
+
+  /**
+   * Generate records following this distribution.
+   *
+   * @param numRecords number of records to generate
+   * @param numPartitions number of partitions the records are spread over
+   * @param seed seed for the random generator, so that runs are reproducible
+   * @return generated records
+   */
+  public Records generate(int numRecords, int numPartitions, long seed) {
+    Random random = new Random(seed);
+    BytesWritable[] pool = null;
+    if (distinctKeys > 0) {
+      pool = new BytesWritable[distinctKeys];
+      for (int i = 0; i < distinctKeys; i++) {
+        pool[i] = randomKey(random, numPartitions);
+      }
+    }
+    BytesWritable[] keys = new BytesWritable[numRecords];
+    BytesWritable[] values = new BytesWritable[numRecords];
+    long rawBytes = 0;
+    for (int i = 0; i < numRecords; i++) {
+      keys[i] = (pool != null) ? pool[random.nextInt(pool.length)] : randomKey(random, numPartitions);
+      byte[] value = new byte[valueLength];
+      random.nextBytes(value);
+      values[i] = new BytesWritable(value);
+      rawBytes += keys[i].getLength() + values[i].getLength();
+    }
+    return new Records(keys, values, rawBytes);
+  }
+
+  private BytesWritable randomKey(Random random, int numPartitions) {
+    byte[] key = new byte[keyLength];
+    random.nextBytes(key);
+    int partition;
+    if (hotPartitionFraction > 0 && random.nextFloat() < hotPartitionFraction) {
+      partition = 0;
+    } else {
+      partition = random.nextInt(Math.min(numPartitions, 256));
+    }
+    key[0] = (byte) partition;
+    return new BytesWritable(key);
+  }
+
+  /**
+   * Generated key/value pairs along with their total raw size.
+   */
+  public static class Records {
+    private final BytesWritable[] keys;
+    private final BytesWritable[] values;
+    private final long rawBytes;
+
+    Records(BytesWritable[] keys, BytesWritable[] values, long rawBytes) {
+      this.keys = keys;
+      this.values = values;
+      this.rawBytes = rawBytes;
+    }
+
+    public BytesWritable[] getKeys() {
+      return keys;
+    }
+
+    public BytesWritable[] getValues() {
+      return values;
+    }
+
+    public int size() {
+      return keys.length;
+    }
+
+    public long getRawBytes() {
+      return rawBytes;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
+import org.apache.tez.runtime.library.common.sort.impl.PipelinedSorter;
+import org.apache.tez.runtime.library.common.sort.impl.dflt.DefaultSorter;
+import org.apache.tez.runtime.library.conf.OrderedPartitionedKVOutputConfig.SorterImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Drives {@link PipelinedSorter} and {@link DefaultSorter} through a full write / sort / spill /
+ * final merge cycle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SorterBenchmark {
+
+  @Param({"PIPELINED", "LEGACY"})
+  public SorterImpl sorterImpl;
+
+  @Param({"SMALL_KEYS", "WIDE_VALUES", "HEAVY_DUPLICATES", "SKEWED_PARTITIONS"})
+  public KVDistribution distribution;
+
+  @Param({"200000"})
+  public int numRecords;
+
+  @Param({"16"})
+  public int numPartitions;
+
+  /** A sort buffer smaller than the data set forces spills and a final merge. */
+  @Param({"32"})
+  public int sortMb;
+
+  /** Normalized key prefix sorting in PipelinedSorter, e.g. -p prefixSort=false,true. */
+  @Param({"false"})
+  public boolean prefixSort;
+
+  /** Parallel final merge in PipelinedSorter, e.g. -p parallelFinalMerge=false,true. */
+  @Param({"false"})
+  public boolean parallelFinalMerge;
+
+  private KVDistribution.Records records;
+  private FileSystem localFs;
+  private Path workDir;
+  private Configuration conf;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    records = distribution.generate(numRecords, numPartitions, 0xBEEF);
+    localFs = FileSystem.getLocal(new Configuration());
+    workDir = BenchmarkUtils.createWorkDir(localFs, "sorter");
+    conf = BenchmarkUtils.createConf(workDir);
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_SORTER_CLASS, sorterImpl.name());
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB, sortMb);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_PREFIX_SORT, prefixSort);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_PARALLEL_FINAL_MERGE,
+        parallelFinalMerge);
+  }
+
+  @TearDown(Level.Invocation)
+  public void cleanupOutputs() throws IOException {
+    localFs.delete(workDir, true);
+    localFs.mkdirs(workDir);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    localFs.delete(workDir, true);
+  }
+
+  @Benchmark
+  public long sortAndSpill(ThroughputCounters counters) throws IOException {
+    TezCounters tezCounters = new TezCounters();
+    long initialMemory = ((long) sortMb) << 20;
+    ExternalSorter sorter;
+    if (sorterImpl == SorterImpl.PIPELINED) {
+      sorter = new PipelinedSorter(BenchmarkUtils.createOutputContext(tezCounters, workDir),
+          new Configuration(conf), numPartitions, initialMemory);
+    } else {
+      sorter = new DefaultSorter(BenchmarkUtils.createOutputContext(tezCounters, workDir),
+          new Configuration(conf), numPartitions, initialMemory);
+    }
+    BytesWritable[] keys = records.getKeys();
+    BytesWritable[] values = records.getValues();
+    for (int i = 0; i < keys.length; i++) {
+      sorter.write(keys[i], values[i]);
+    }
+    sorter.flush();
+    sorter.close();
+    counters.add(records.size(), records.getRawBytes());
+    return sorter.getNumSpills();
+  }
+}
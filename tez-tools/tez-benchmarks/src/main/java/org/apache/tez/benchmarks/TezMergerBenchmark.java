@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.util.Progress;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.ConfigUtils;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.TezMerger;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.apache.tez.runtime.library.hadoop.compat.NullProgressable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * k-way merge throughput of {@link TezMerger} over sorted in-memory IFile segments. When
+ * {@link #fanIn} exceeds {@link #mergeFactor} the merger runs intermediate passes to local disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TezMergerBenchmark {
+
+  @Param({"SMALL_KEYS", "WIDE_VALUES", "HEAVY_DUPLICATES"})
+  public KVDistribution distribution;
+
+  @Param({"10", "100"})
+  public int fanIn;
+
+  @Param({"100"})
+  public int mergeFactor;
+
+  @Param({"200000"})
+  public int numRecords;
+
+  @Param({BenchmarkUtils.CODEC_NONE})
+  public String codecClass;
+
+  @Param({"false", "true"})
+  public boolean loserTree;
+
+  private KVDistribution.Records records;
+  private FileSystem localFs;
+  private Path workDir;
+  private Configuration conf;
+  private CompressionCodec codec;
+  private RawComparator comparator;
+  private byte[][] segments;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    records = distribution.generate(numRecords, 1, 0xBEEF);
+    localFs = FileSystem.getLocal(new Configuration());
+    workDir = BenchmarkUtils.createWorkDir(localFs, "merger");
+    conf = BenchmarkUtils.createConf(workDir);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR, mergeFactor);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_USE_LOSER_TREE, loserTree);
+    codec = BenchmarkUtils.createCodec(codecClass, conf);
+    comparator = ConfigUtils.getIntermediateOutputKeyComparator(conf);
+
+    segments = new byte[fanIn][];
+    int perSegment = (records.size() + fanIn - 1) / fanIn;
+    for (int i = 0; i < fanIn; i++) {
+      int start = Math.min(i * perSegment, records.size());
+      int end = Math.min(start + perSegment, records.size());
+      BytesWritable[] keys = Arrays.copyOfRange(records.getKeys(), start, end);
+      BytesWritable[] values = Arrays.copyOfRange(records.getValues(), start, end);
+      segments[i] = BenchmarkUtils.writeIFile(conf, keys, values, codec, true);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    localFs.delete(workDir, true);
+  }
+
+  @Benchmark
+  public void merge(ThroughputCounters counters, Blackhole blackhole) throws Exception {
+    List<TezMerger.Segment> segmentList = new ArrayList<TezMerger.Segment>(segments.length);
+    for (byte[] segment : segments) {
+      IFile.Reader reader = new IFile.Reader(new ByteArrayInputStream(segment), segment.length,
+          codec, null, null, false, 0,
+          TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_BUFFER_SIZE_DEFAULT);
+      segmentList.add(new TezMerger.Segment(reader, false));
+    }
+    TezCounters tezCounters = new TezCounters();
+    TezCounter reads = tezCounters.findCounter("benchmark", "reads");
+    TezCounter writes = tezCounters.findCounter("benchmark", "writes");
+    TezCounter bytesRead = tezCounters.findCounter("benchmark", "bytesRead");
+    TezRawKeyValueIterator iterator = TezMerger.merge(conf, localFs, BytesWritable.class,
+        BytesWritable.class, codec, segmentList, mergeFactor, new Path(workDir, "merge"),
+        comparator, new NullProgressable(), false, false, reads, writes, bytesRead,
+        new Progress());
+    long count = 0;
+    while (iterator.next()) {
+      blackhole.consume(iterator.getKey());
+      blackhole.consume(iterator.getValue());
+      count++;
+    }
+    iterator.close();
+    counters.add(count, records.getRawBytes());
+  }
+}